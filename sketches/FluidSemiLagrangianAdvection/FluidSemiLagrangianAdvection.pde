@@ -1,14 +1,24 @@
 float WorldSize = 10.0;
 int NX = 64;
 int NY = 64;
-int ArraySize = NX * NY;
+
+// Whether to pad each row of the grids out to a whole number of cache
+// lines. See the Grid2D tab.
+boolean PadGridRows = false;
+
+// No halo: the advection clamps to the outermost cells. GridStride is NX
+// unless the rows are padded.
+Grid2D SimGrid = new Grid2D(NX, NY, 0, PadGridRows);
+int GridStride = SimGrid.Stride;
+int ArraySize = SimGrid.Size;
 float DXY = WorldSize / NX;
 
 float LX = WorldSize;
 float LY = WorldSize;
 
 int StateSize = 7;
-float[][] State = new float[StateSize][ArraySize];
+FieldSet SimFields = new FieldSet(SimGrid, StateSize);
+float[][] State = SimFields.Data;
 int StateVelU = 0;
 int StatePrevVelU = 1;
 int StateVelV = 2;
@@ -33,7 +43,7 @@ PImage StateImage = createImage( NX, NY, RGB );
 
 // Index an element of a grid in the state array
 int IX( int i, int j ) {
-    return ( i + NX*j );
+    return ( i + GridStride*j );
 }
 
 float snoise( float x, float y ) {
@@ -105,15 +115,11 @@ void SetFieldToHatch(int field, int line_width, int cell_width) {
 }
 
 void CopyField(int src, int dst) {
-  for (int i = 0; i < ArraySize; ++i) {
-    State[dst][i] = State[src][i];
-  }  
+  SimFields.Copy(src, dst);
 }
 
 void FillField(int field, float value) {
-  for (int i = 0; i < ArraySize; ++i) {
-    State[field][i] = value;
-  }
+  SimFields.Fill(field, value);
 }
 
 void SetInitialState() {
@@ -155,8 +161,8 @@ void SwapVel() {
   StateVelV = tmp;
 }
 
-// Bi-Linear Resampling of a field Q at some point fi, fj
-float BiLinearResample(int Q, float fi, float fj) {
+// Bi-Linear Resampling of a field q at some point fi, fj
+float BiLinearResample(float[] q, float fi, float fj) {
   int i_lo = floor(fi);
   float s = fi - float(i_lo);
   i_lo = constrain(i_lo, 0, NX-1);
@@ -167,19 +173,24 @@ float BiLinearResample(int Q, float fi, float fj) {
   j_lo = constrain(j_lo, 0, NY-1);
   int j_hi = min(j_lo + 1, NY-1);
   
-  float q00 = State[Q][IX(i_lo,j_lo)];
-  float q10 = State[Q][IX(i_hi,j_lo)];
-  float q01 = State[Q][IX(i_lo,j_hi)];
-  float q11 = State[Q][IX(i_hi,j_hi)];
+  float q00 = q[IX(i_lo,j_lo)];
+  float q10 = q[IX(i_hi,j_lo)];
+  float q01 = q[IX(i_lo,j_hi)];
+  float q11 = q[IX(i_hi,j_hi)];
   return lerp(lerp(q00, q10, s), lerp(q01, q11, s), t);
 }
 
 // Semi-Lagrangian Advection of Q by U & V
 void SemiLagrangianAdvect(int new_Q, int old_Q, int U, int V, float dt) {
+  float[] q_new = State[new_Q];
+  float[] q_old = State[old_Q];
+  float[] u = State[U];
+  float[] v = State[V];
   for (int j = 0; j < NY; ++j) {
-    for (int i = 0; i < NX; ++i) {
-      float vel_u = State[U][IX(i,j)];
-      float vel_v = State[V][IX(i,j)];
+    int a = SimGrid.RowStart(j);
+    for (int i = 0; i < NX; ++i, ++a) {
+      float vel_u = u[a];
+      float vel_v = v[a];
       
       float cell_vel_u = vel_u / DXY;
       float cell_vel_v = vel_v / DXY;
@@ -187,7 +198,7 @@ void SemiLagrangianAdvect(int new_Q, int old_Q, int U, int V, float dt) {
       float fi = float(i) - (dt * cell_vel_u);
       float fj = float(j) - (dt * cell_vel_v);
       
-      State[new_Q][IX(i,j)] = BiLinearResample(old_Q, fi, fj);
+      q_new[a] = BiLinearResample(q_old, fi, fj);
     }  
   } 
 }
@@ -245,7 +256,7 @@ void DrawScalarField(int field,
       d = constrain(d, 0.0, 1.0);
       d = pow(d, exponent);
       
-      StateImage.pixels[IX(i,j)] = lerpColor(color_low, color_high, d);
+      StateImage.pixels[i + NX*j] = lerpColor(color_low, color_high, d);
     }
   }  
   StateImage.updatePixels();
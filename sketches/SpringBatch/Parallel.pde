@@ -0,0 +1,105 @@
+// Parallel loops over the oscillators.
+//
+// Every oscillator is integrated on its own - no step ever reads another
+// oscillator - so the index range can be cut into one band per worker and
+// the bands run at the same time on a fixed pool of threads, with exactly
+// the same result as running them one after another. RunRange doesn't
+// return until every band is done, so the next step always sees a
+// finished batch.
+
+import java.util.concurrent.*;
+
+// Whether to split the batch across threads, and how many threads to use.
+static boolean UseParallelLoops = true;
+static int NumWorkerThreads = Runtime.getRuntime().availableProcessors();
+
+// Batches smaller than this are always run serially, since handing the
+// work out costs more than the work itself.
+static int MinParallelCount = 16 * 1024;
+
+// The pool is made on first use.
+static ExecutorService WorkerPool = null;
+static int WorkerPoolSize = 0;
+
+// A loop over oscillators i_begin up to (not including) i_end.
+static abstract class RangeKernel
+{
+    abstract void Range( int i_begin, int i_end );
+}
+
+static void StartWorkerPool()
+{
+    if ( WorkerPool != null )
+    {
+        WorkerPool.shutdown();
+    }
+
+    // Daemon threads, so that an idle pool never keeps the sketch alive.
+    WorkerPoolSize = NumWorkerThreads;
+    WorkerPool = Executors.newFixedThreadPool( WorkerPoolSize,
+        new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, "SpringWorker" );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+}
+
+// Run i_kernel over i_begin up to (not including) i_end, in parallel if
+// we can, and wait for it to finish.
+static void RunRange( int i_begin, int i_end, final RangeKernel i_kernel )
+{
+    int count = i_end - i_begin;
+    if ( !UseParallelLoops || NumWorkerThreads < 2 ||
+         count < MinParallelCount )
+    {
+        i_kernel.Range( i_begin, i_end );
+        return;
+    }
+
+    if ( WorkerPool == null || WorkerPoolSize != NumWorkerThreads )
+    {
+        StartWorkerPool();
+    }
+
+    // Band edges are rounded to multiples of 16, so that no two threads
+    // ever write to the same cache line.
+    int numBands = NumWorkerThreads;
+    java.util.List<Callable<Object>> bands =
+        new java.util.ArrayList<Callable<Object>>( numBands );
+    for ( int b = 0; b < numBands; ++b )
+    {
+        final int bandBegin = ( b == 0 ) ? i_begin :
+            i_begin + ( ( ( b * count ) / numBands ) & ~15 );
+        final int bandEnd = ( b == numBands - 1 ) ? i_end :
+            i_begin + ( ( ( ( b + 1 ) * count ) / numBands ) & ~15 );
+        bands.add( new Callable<Object>()
+        {
+            public Object call()
+            {
+                i_kernel.Range( bandBegin, bandEnd );
+                return null;
+            }
+        } );
+    }
+
+    try
+    {
+        java.util.List<Future<Object>> done = WorkerPool.invokeAll( bands );
+        for ( int b = 0; b < done.size(); ++b )
+        {
+            done.get( b ).get();
+        }
+    }
+    catch ( InterruptedException e )
+    {
+        throw new RuntimeException( e );
+    }
+    catch ( ExecutionException e )
+    {
+        throw new RuntimeException( e.getCause() );
+    }
+}
@@ -0,0 +1,468 @@
+// A batch of springs.
+//
+// The spring sketches (005_001 through 008_002) each integrate one bob,
+// held in a little float[] State, calling A_from_X once per stage. For
+// parameter sweeps we want hundreds of thousands of them at once, each with
+// its own Stiffness and BobMass. Here the batch is held as parallel arrays,
+// one value per oscillator, and every integrator is a single flat loop over
+// them: each oscillator is loaded into locals, stepped with exactly the
+// arithmetic of its single-bob sketch, and stored back. The loops allocate
+// nothing and touch each array once per step in order, which is the shape
+// the JIT turns into SIMD code, and the batch is split across cores by
+// RunRange (see the Parallel tab).
+//
+// Keys: 'i' cycles the integrator, 'r' resets, 'p' toggles threads.
+//
+// For sweeps without a window, run:
+//   java SpringBatch --bench n=262144 steps=1000 dt=0.0416667 threads=4
+// which times every integrator on the same batch and reports its worst
+// error against the exact solution. The batch and the integrators are
+// static, so this never constructs the sketch, and needs no display; only
+// setup(), draw(), DrawSprings() and the keys belong to the window.
+
+// The number of oscillators.
+static int NumSprings = 256 * 1024;
+
+// The sweep: Stiffness varies along each row of SweepWidth oscillators,
+// and BobMass from row to row.
+static int SweepWidth = 512;
+static float StiffnessMin = 1.0;
+static float StiffnessMax = 10.0;
+static float BobMassMin = 0.25;
+static float BobMassMax = 1.0;
+
+// The state, one value per oscillator. KOverM is Stiffness / BobMass,
+// computed once when the parameters are set, rather than once per stage.
+static float[] Stiffness;
+static float[] BobMass;
+static float[] KOverM;
+static float[] InitPositionX;
+static float[] InitVelocityX;
+static float[] PositionX;
+static float[] VelocityX;
+
+// Every oscillator shares the same clock.
+static float CurrentTime = 0.0;
+
+// The integrators.
+static int SI_ForwardEuler = 0;
+static int SI_EulerCromer = 1;
+static int SI_Midpoint = 2;
+static int SI_VelocityVerlet = 3;
+static int SI_RK2 = 4;
+static int SI_RK4 = 5;
+static int NumIntegrators = 6;
+static String[] IntegratorNames = { "Forward Euler", "Euler-Cromer", "Midpoint",
+                             "Velocity Verlet", "RK2", "RK4" };
+static int Integrator = SI_RK4;
+
+static float DT = 1.0 / 24.0;
+
+// Drawing: a few oscillators, picked evenly across the batch.
+static int NumDrawn = 24;
+static int WindowWidth = 600;
+static int WindowHeight = 600;
+static float WorldSize = 2.0;
+static float PixelsPerMeter;
+static float LastStepMillis = 0.0;
+
+// Make the arrays for i_count oscillators and fill in the sweep.
+static void AllocateSprings( int i_count )
+{
+    NumSprings = i_count;
+    Stiffness = new float[i_count];
+    BobMass = new float[i_count];
+    KOverM = new float[i_count];
+    InitPositionX = new float[i_count];
+    InitVelocityX = new float[i_count];
+    PositionX = new float[i_count];
+    VelocityX = new float[i_count];
+
+    int numRows = max( 1, ( i_count + SweepWidth - 1 ) / SweepWidth );
+    for ( int n = 0; n < i_count; ++n )
+    {
+        float s = ( float )( n % SweepWidth ) / ( float )max( 1, SweepWidth - 1 );
+        float m = ( float )( n / SweepWidth ) / ( float )max( 1, numRows - 1 );
+        SetSpring( n, lerp( StiffnessMin, StiffnessMax, s ),
+                   lerp( BobMassMin, BobMassMax, m ),
+                   0.65, 0.0 );
+    }
+    ResetSprings();
+}
+
+// Set the parameters and initial state of oscillator i_n.
+static void SetSpring( int i_n, float i_stiffness, float i_bobMass,
+                float i_x0, float i_v0 )
+{
+    Stiffness[i_n] = i_stiffness;
+    BobMass[i_n] = i_bobMass;
+    KOverM[i_n] = i_stiffness / i_bobMass;
+    InitPositionX[i_n] = i_x0;
+    InitVelocityX[i_n] = i_v0;
+}
+
+// Copy the initial state to the current state.
+static void ResetSprings()
+{
+    System.arraycopy( InitPositionX, 0, PositionX, 0, NumSprings );
+    System.arraycopy( InitVelocityX, 0, VelocityX, 0, NumSprings );
+    CurrentTime = 0.0;
+}
+
+// Forward Euler, as in 005_001.
+static void StepForwardEuler( int i_begin, int i_end, float i_dt )
+{
+    float[] X = PositionX;
+    float[] V = VelocityX;
+    float[] W2 = KOverM;
+    for ( int n = i_begin; n < i_end; ++n )
+    {
+        float x = X[n];
+        float v = V[n];
+        float A = -W2[n] * x;
+        X[n] = x + i_dt * v;
+        V[n] = v + i_dt * A;
+    }
+}
+
+// Euler-Cromer, as in 006_001: the velocity first, then the position
+// with the new velocity.
+static void StepEulerCromer( int i_begin, int i_end, float i_dt )
+{
+    float[] X = PositionX;
+    float[] V = VelocityX;
+    float[] W2 = KOverM;
+    for ( int n = i_begin; n < i_end; ++n )
+    {
+        float x = X[n];
+        float v = V[n] + i_dt * ( -W2[n] * x );
+        X[n] = x + i_dt * v;
+        V[n] = v;
+    }
+}
+
+// Midpoint, as in 007_001: half the position step either side of the
+// velocity step.
+static void StepMidpoint( int i_begin, int i_end, float i_dt )
+{
+    float[] X = PositionX;
+    float[] V = VelocityX;
+    float[] W2 = KOverM;
+    float halfDt = i_dt / 2.0;
+    for ( int n = i_begin; n < i_end; ++n )
+    {
+        float x = X[n];
+        float A = -W2[n] * x;
+        x += halfDt * V[n];
+        float v = V[n] + i_dt * A;
+        X[n] = x + halfDt * v;
+        V[n] = v;
+    }
+}
+
+// Velocity Verlet, as in 007_002: half the velocity step either side of
+// the position step, re-computing the acceleration in between.
+static void StepVelocityVerlet( int i_begin, int i_end, float i_dt )
+{
+    float[] X = PositionX;
+    float[] V = VelocityX;
+    float[] W2 = KOverM;
+    float halfDt = i_dt / 2.0;
+    for ( int n = i_begin; n < i_end; ++n )
+    {
+        float w2 = W2[n];
+        float v = V[n] + halfDt * ( -w2 * X[n] );
+        float x = X[n] + i_dt * v;
+        X[n] = x;
+        V[n] = v + halfDt * ( -w2 * x );
+    }
+}
+
+// RK2, as in 008_001. The stages are written inline, without a local for
+// KOverM: the same arithmetic held in named temporaries, like RK4 below,
+// keeps the JIT from vectorizing this loop, and runs four times slower.
+static void StepRK2( int i_begin, int i_end, float i_dt )
+{
+    float[] X = PositionX;
+    float[] V = VelocityX;
+    float[] W2 = KOverM;
+    float halfDt = i_dt / 2.0;
+    for ( int n = i_begin; n < i_end; ++n )
+    {
+        float x = X[n];
+        float v = V[n];
+        float aStar1 = -W2[n] * x;
+        float aStar2 = -W2[n] * ( x + ( i_dt * v ) );
+        X[n] = x + halfDt * ( v + ( v + ( i_dt * aStar1 ) ) );
+        V[n] = v + halfDt * ( aStar1 + aStar2 );
+    }
+}
+
+// RK4, as in 008_002.
+static void StepRK4( int i_begin, int i_end, float i_dt )
+{
+    float[] X = PositionX;
+    float[] V = VelocityX;
+    float[] W2 = KOverM;
+    float halfDt = i_dt / 2.0;
+    float sixthDt = i_dt / 6.0;
+    for ( int n = i_begin; n < i_end; ++n )
+    {
+        float w2 = W2[n];
+        float x = X[n];
+        float v = V[n];
+
+        float vStar1 = v;
+        float aStar1 = -w2 * x;
+
+        float vStar2 = v + ( halfDt * aStar1 );
+        float xTmp2 = x + ( halfDt * vStar1 );
+        float aStar2 = -w2 * xTmp2;
+
+        float vStar3 = v + ( halfDt * aStar2 );
+        float xTmp3 = x + ( halfDt * vStar2 );
+        float aStar3 = -w2 * xTmp3;
+
+        float vStar4 = v + ( i_dt * aStar3 );
+        float xTmp4 = x + ( i_dt * vStar3 );
+        float aStar4 = -w2 * xTmp4;
+
+        X[n] = x + sixthDt *
+            ( vStar1 + ( 2.0 * vStar2 ) + ( 2.0 * vStar3 ) + vStar4 );
+        V[n] = v + sixthDt *
+            ( aStar1 + ( 2.0 * aStar2 ) + ( 2.0 * aStar3 ) + aStar4 );
+    }
+}
+
+// One kernel per integrator, made once so that a step allocates nothing
+// on the serial path. Each loop sits behind its own Range method, so the
+// JIT compiles it on its own, whichever integrators ran before it.
+static abstract class IntegratorKernel extends RangeKernel
+{
+    float dt;
+}
+
+static class ForwardEulerKernel extends IntegratorKernel
+{
+    void Range( int i_begin, int i_end ) { StepForwardEuler( i_begin, i_end, dt ); }
+}
+
+static class EulerCromerKernel extends IntegratorKernel
+{
+    void Range( int i_begin, int i_end ) { StepEulerCromer( i_begin, i_end, dt ); }
+}
+
+static class MidpointKernel extends IntegratorKernel
+{
+    void Range( int i_begin, int i_end ) { StepMidpoint( i_begin, i_end, dt ); }
+}
+
+static class VelocityVerletKernel extends IntegratorKernel
+{
+    void Range( int i_begin, int i_end ) { StepVelocityVerlet( i_begin, i_end, dt ); }
+}
+
+static class RK2Kernel extends IntegratorKernel
+{
+    void Range( int i_begin, int i_end ) { StepRK2( i_begin, i_end, dt ); }
+}
+
+static class RK4Kernel extends IntegratorKernel
+{
+    void Range( int i_begin, int i_end ) { StepRK4( i_begin, i_end, dt ); }
+}
+
+// By integrator, in the order of the SI_ constants.
+static IntegratorKernel[] IntegratorKernels = {
+    new ForwardEulerKernel(), new EulerCromerKernel(), new MidpointKernel(),
+    new VelocityVerletKernel(), new RK2Kernel(), new RK4Kernel() };
+
+// Time Step function, for the whole batch.
+static void TimeStep( float i_dt )
+{
+    IntegratorKernel kernel = IntegratorKernels[Integrator];
+    kernel.dt = i_dt;
+    RunRange( 0, NumSprings, kernel );
+
+    // Update current time.
+    CurrentTime += i_dt;
+}
+
+// The exact position of oscillator i_n at time i_t.
+static float CorrectPositionX( int i_n, float i_t )
+{
+    double w = Math.sqrt( ( double )KOverM[i_n] );
+    return ( float )( InitPositionX[i_n] * Math.cos( w * i_t ) +
+                      ( InitVelocityX[i_n] / w ) * Math.sin( w * i_t ) );
+}
+
+// The largest difference between any oscillator and its exact position.
+static float MaxPositionError()
+{
+    float maxErr = 0.0;
+    for ( int n = 0; n < NumSprings; ++n )
+    {
+        maxErr = max( maxErr, abs( PositionX[n] -
+                                   CorrectPositionX( n, CurrentTime ) ) );
+    }
+    return maxErr;
+}
+
+void setup()
+{
+    AllocateSprings( NumSprings );
+
+    // Set up normalized colors.
+    colorMode( RGB, 1.0 );
+    stroke( 0.0 );
+
+    size( WindowWidth, WindowHeight );
+    PixelsPerMeter = (( float )WindowWidth ) / WorldSize;
+
+    textSize( 16 );
+}
+
+// Draw NumDrawn oscillators, one per row, with the exact position of each
+// in blue underneath its bob.
+void DrawSprings()
+{
+    float rowHeight = ( float )( WindowHeight - 40 ) / ( float )NumDrawn;
+    for ( int r = 0; r < NumDrawn; ++r )
+    {
+        int n = ( int )( ( ( long )r * ( NumSprings - 1 ) ) /
+                         max( 1, NumDrawn - 1 ) );
+        float y = 40.0 + ( r + 0.5 ) * rowHeight;
+        float SpringEndX = PixelsPerMeter * PositionX[n];
+        float CorrectEndX = PixelsPerMeter * CorrectPositionX( n, CurrentTime );
+
+        pushMatrix();
+        translate( 0.5 * ( float )WindowWidth, y );
+
+        // Draw the spring and its pivot.
+        strokeWeight( 1.0 );
+        line( 0.0, 0.0, SpringEndX, 0.0 );
+        fill( 0.0 );
+        ellipse( 0.0, 0.0, 4.0, 4.0 );
+
+        // Draw the correct bob in blue, then the bob in red.
+        fill( 0.0, 0.0, 1.0 );
+        ellipse( CorrectEndX, 0.25 * rowHeight, 0.4 * rowHeight, 0.4 * rowHeight );
+        fill( 1.0, 0.0, 0.0 );
+        ellipse( SpringEndX, 0.0, 0.6 * rowHeight, 0.6 * rowHeight );
+        popMatrix();
+    }
+}
+
+// Processing Draw function, called every time the screen refreshes.
+void draw()
+{
+    // Time Step.
+    long start = System.nanoTime();
+    TimeStep( DT );
+    LastStepMillis = ( float )( System.nanoTime() - start ) / 1.0e6;
+
+    // Clear the display to a constant color.
+    background( 0.75 );
+
+    // Label.
+    fill( 1.0 );
+    text( IntegratorNames[Integrator] + ", " + NumSprings + " springs, " +
+          nf( LastStepMillis, 1, 2 ) + " ms/step" +
+          ( UseParallelLoops ? ", " + NumWorkerThreads + " threads" : "" ) +
+          ", max error " + nf( MaxPositionError(), 1, 4 ), 10, 24 );
+
+    DrawSprings();
+}
+
+// 'r' resets the batch, 'i' resets it with the next integrator, and 'p'
+// turns the threads on and off.
+void keyReleased()
+{
+    if ( key == 'r' )
+    {
+        ResetSprings();
+    }
+    else if ( key == 'i' )
+    {
+        Integrator = ( Integrator + 1 ) % NumIntegrators;
+        ResetSprings();
+    }
+    else if ( key == 'p' )
+    {
+        UseParallelLoops = !UseParallelLoops;
+    }
+}
+
+// Time every integrator on the same batch.
+static void RunBenchmarksFromArgs( String[] args )
+{
+    int count = NumSprings;
+    int steps = 1000;
+    for ( int a = 0; a < args.length; ++a )
+    {
+        String[] kv = split( args[a], '=' );
+        if ( kv.length != 2 )
+        {
+            println( "Ignoring argument: " + args[a] );
+        }
+        else if ( kv[0].equals( "n" ) )
+        {
+            count = max( 1, int( kv[1] ) );
+        }
+        else if ( kv[0].equals( "steps" ) )
+        {
+            steps = max( 1, int( kv[1] ) );
+        }
+        else if ( kv[0].equals( "dt" ) )
+        {
+            DT = float( kv[1] );
+        }
+        else if ( kv[0].equals( "threads" ) )
+        {
+            NumWorkerThreads = max( 1, int( kv[1] ) );
+        }
+        else
+        {
+            println( "Ignoring argument: " + args[a] );
+        }
+    }
+
+    AllocateSprings( count );
+    println( count + " springs, " + steps + " steps of " + DT + ", " +
+             NumWorkerThreads + " threads" );
+    for ( int i = 0; i < NumIntegrators; ++i )
+    {
+        Integrator = i;
+
+        // A short run first, so that the loops are compiled before timing.
+        ResetSprings();
+        for ( int s = 0; s < min( steps, 50 ); ++s )
+        {
+            TimeStep( DT );
+        }
+
+        ResetSprings();
+        long start = System.nanoTime();
+        for ( int s = 0; s < steps; ++s )
+        {
+            TimeStep( DT );
+        }
+        double secs = ( System.nanoTime() - start ) / 1.0e9;
+        println( IntegratorNames[i] + ": " +
+                 nf( ( float )( secs * 1.0e9 / ( ( double )steps * count ) ), 1, 3 ) +
+                 " ns/spring-step, max error at t=" + nf( CurrentTime, 1, 2 ) +
+                 ": " + MaxPositionError() );
+    }
+}
+
+static public void main( String[] args )
+{
+    if ( args.length > 0 && args[0].equals( "--bench" ) )
+    {
+        RunBenchmarksFromArgs( subset( args, 1 ) );
+    }
+    else
+    {
+        PApplet.main( concat( new String[] { "SpringBatch" }, args ) );
+    }
+}
@@ -0,0 +1,97 @@
+// Adaptive time stepping for the RK2 integrator.
+//
+// draw() normally takes one RK2 step of a fixed 1/24 second per frame. With
+// UseAdaptiveTimeStep on, each frame instead advances the simulation to the
+// same time with as many steps of whatever size the error needs, carrying
+// the step size over from frame to frame.
+//
+// RK2 here is Heun's method, and its first stage is a forward Euler step,
+// so every step gives us a first order answer for free: the Euler height
+// is hPrev + dt * vPrev, and the Euler velocity is what EstimateVelStar
+// leaves in StateVelStar after the first stage. The largest difference
+// between that and the RK2 answer estimates the error of the step. If it's
+// more than AdaptiveTolerance the step is undone and retried smaller,
+// otherwise it's kept. Either way the next step size is scaled by
+//   0.9 * sqrt( AdaptiveTolerance / error )
+// clamped so it never changes by more than a factor of five at once.
+//
+// Independently of the error, a step is never longer than the one that
+// moves a wave WaveTargetCFL cells, nor longer than MaxAdaptiveDT.
+
+static boolean UseAdaptiveTimeStep = false;
+static float AdaptiveTolerance = 1.0e-3;
+static float WaveTargetCFL = 1.0;
+static float MaxAdaptiveDT = 4.0 / 24.0;
+static float MinAdaptiveDT = 1.0e-5;
+
+// The step size to try next, and the time the current frame advances to.
+static float AdaptiveDT = 1.0 / 24.0;
+static float AdaptiveTargetTime = 0.0;
+
+// Steps taken and rejected, in total.
+static int AdaptiveSteps = 0;
+static int AdaptiveRejections = 0;
+
+static void ResetAdaptiveTimeStep()
+{
+    AdaptiveDT = 1.0 / 24.0;
+    AdaptiveTargetTime = StateCurrentTime;
+    AdaptiveSteps = 0;
+    AdaptiveRejections = 0;
+}
+
+// The largest difference between the RK2 step just taken and the forward
+// Euler step embedded in it.
+static float EmbeddedErrorRK2( float i_dt )
+{
+    float[] h = State[StateHeight];
+    float[] v = State[StateVel];
+    float[] hPrev = State[StateHeightPrev];
+    float[] vPrev = State[StateVelPrev];
+    float[] vEuler = State[StateVelStar];
+    float err = 0.0;
+    for ( int i = 0; i < ArraySize; ++i )
+    {
+        float hEuler = hPrev[i] + ( i_dt * vPrev[i] );
+        err = max( err, max( abs( h[i] - hEuler ), abs( v[i] - vEuler[i] ) ) );
+    }
+    return err;
+}
+
+// Advance the simulation by i_frameDT with error controlled RK2 steps.
+static void AdaptiveTimeStepRK2( float i_frameDT )
+{
+    AdaptiveTargetTime += i_frameDT;
+    float maxDT = min( MaxAdaptiveDT, WaveTargetCFL * DX / WaveSpeed );
+
+    while ( AdaptiveTargetTime - StateCurrentTime > 1.0e-6 )
+    {
+        float dt = constrain( AdaptiveDT, MinAdaptiveDT, maxDT );
+        dt = min( dt, AdaptiveTargetTime - StateCurrentTime );
+
+        TimeStepRK2( dt );
+        float err = EmbeddedErrorRK2( dt );
+        float scale = ( err > 0.0 ) ?
+            constrain( 0.9 * sqrt( AdaptiveTolerance / err ), 0.2, 5.0 ) : 5.0;
+
+        if ( err > AdaptiveTolerance && dt > MinAdaptiveDT )
+        {
+            // Undo the step. TimeStepRK2 only swapped the previous state
+            // into StateHeightPrev and StateVelPrev, it didn't change it.
+            SwapState();
+            StateCurrentTime -= dt;
+            ++AdaptiveRejections;
+        }
+        else
+        {
+            ++AdaptiveSteps;
+        }
+
+        // Don't let the last, shortened, step of a frame shrink the next one.
+        if ( dt == AdaptiveDT || scale < 1.0 )
+        {
+            AdaptiveDT = dt * scale;
+        }
+    }
+    StateCurrentTime = AdaptiveTargetTime;
+}
@@ -0,0 +1,199 @@
+// Benchmarks for the wave equation kernels and time steps.
+//
+// Each kernel is run for BenchWarmupSeconds so the JIT has compiled it, and
+// then for BenchMeasureSeconds in each of BenchTrials trials. The best
+// trial is reported, as nanoseconds per cell and, where we know how many
+// bytes a kernel has to move, as GB/s. The time steps are measured with each
+// of the acceleration solvers.
+//
+// Launch from the command line with:
+//   java -Xmx2g WaveEqn2D_Sketch --bench sizes=64,128,256,512,1024,2048
+//
+// Every argument after --bench is optional. backend=scalar, flat or both
+// picks the kernel backends to time (see the Kernels tab); they're checked
+// against each other at every size first.
+
+static float BenchWarmupSeconds = 0.5;
+static float BenchMeasureSeconds = 0.5;
+static int BenchTrials = 3;
+static int[] BenchSizes = { 64, 128, 256, 512, 1024, 2048 };
+
+// The time step the benchmarks use, as in draw().
+static float BenchDT = 1.0 / 24.0;
+
+// A kernel to be timed. Bytes is the number of bytes one call of Run reads
+// and writes, or zero if we don't know.
+static abstract class BenchKernel
+{
+    String Name;
+    BenchKernel( String i_name ) { Name = i_name; }
+    abstract void Run();
+    long Bytes() { return 0; }
+}
+
+// Reallocate the state for a new grid size, and reset it.
+static void ResizeGrid( int i_nx, int i_ny )
+{
+    NX = i_nx;
+    NY = i_ny;
+    SimGrid = new Grid2D( NX, NY, 0, PadGridRows );
+    GridStride = SimGrid.Stride;
+    ArraySize = SimGrid.Size;
+    DX = WorldSize / NX;
+    DY = WorldSize / NY;
+    WindowWidth = PixelsPerCell * NX;
+    WindowHeight = PixelsPerCell * NY;
+
+    SimFields = new FieldSet( SimGrid, StateSize );
+    State = SimFields.Data;
+    StateImage = new PImage( NX, NY, RGB );
+
+    CGRhs = new float[ArraySize];
+    CGResidual = new float[ArraySize];
+    CGDirection = new float[ArraySize];
+    CGProduct = new float[ArraySize];
+
+    SetInitialState();
+}
+
+// Time one kernel and print a line.
+static void TimeKernel( BenchKernel i_kernel )
+{
+    long warmupEnd = System.nanoTime() + ( long )( BenchWarmupSeconds * 1.0e9 );
+    while ( System.nanoTime() < warmupEnd )
+    {
+        i_kernel.Run();
+    }
+
+    double bestNanosPerRun = Double.MAX_VALUE;
+    for ( int t = 0; t < BenchTrials; ++t )
+    {
+        long measureNanos = ( long )( BenchMeasureSeconds * 1.0e9 );
+        long startTime = System.nanoTime();
+        long elapsed = 0;
+        int runs = 0;
+        do
+        {
+            i_kernel.Run();
+            ++runs;
+            elapsed = System.nanoTime() - startTime;
+        }
+        while ( elapsed < measureNanos );
+
+        bestNanosPerRun = Math.min( bestNanosPerRun,
+                                    ( double )elapsed / ( double )runs );
+    }
+
+    String line = String.format( "%-28s %5dx%-5d %10.3f ns/cell",
+                                 i_kernel.Name, NX, NY,
+                                 bestNanosPerRun / ( double )ArraySize );
+    if ( i_kernel.Bytes() > 0 )
+    {
+        // Bytes per nanosecond is GB/s.
+        line += String.format( " %8.2f GB/s",
+                               ( double )i_kernel.Bytes() / bestNanosPerRun );
+    }
+    println( line );
+}
+
+// Run every benchmark at the current grid size.
+static void RunKernelBenchmarks()
+{
+    final long cells = ArraySize;
+
+    TimeKernel( new BenchKernel( "EstimateHeightStar" ) {
+        void Run() { EstimateHeightStar( BenchDT ); }
+        long Bytes() { return 12 * cells; } } );
+
+    TimeKernel( new BenchKernel( "JacobiIterationAccel" ) {
+        void Run() { JacobiIterationAccel( StateJacobiTmp, StateAccelStar,
+                                           StateHeightStar, BenchDT ); }
+        long Bytes() { return 12 * cells; } } );
+
+    TimeKernel( new BenchKernel( "AccumulateEstimate" ) {
+        void Run() { AccumulateEstimate( 0.0 ); }
+        long Bytes() { return 24 * cells; } } );
+
+    String[] solverNames = { "Jacobi", "CG", "red-black" };
+    int savedSolver = AccelSolver;
+    for ( int s = 0; s < solverNames.length; ++s )
+    {
+        AccelSolver = s;
+        SetInitialState();
+        TimeKernel( new BenchKernel( "TimeStepFirstOrder " + solverNames[s] ) {
+            void Run() { TimeStepFirstOrder( BenchDT ); } } );
+        SetInitialState();
+        TimeKernel( new BenchKernel( "TimeStepRK2 " + solverNames[s] ) {
+            void Run() { TimeStepRK2( BenchDT ); } } );
+        SetInitialState();
+        TimeKernel( new BenchKernel( "TimeStepRK4 " + solverNames[s] ) {
+            void Run() { TimeStepRK4( BenchDT ); } } );
+    }
+    AccelSolver = savedSolver;
+}
+
+// Parse the arguments following --bench, then run every benchmark at every
+// size.
+static void RunBenchmarksFromArgs( String[] i_args )
+{
+    int[] backends = { KernelBackend };
+    for ( int a = 0; a < i_args.length; ++a )
+    {
+        String[] kv = split( i_args[a], '=' );
+        if ( kv.length != 2 )
+        {
+            continue;
+        }
+        if ( kv[0].equals( "sizes" ) )
+        {
+            BenchSizes = parseInt( split( kv[1], ',' ) );
+        }
+        else if ( kv[0].equals( "warmup" ) )
+        {
+            BenchWarmupSeconds = parseFloat( kv[1] );
+        }
+        else if ( kv[0].equals( "measure" ) )
+        {
+            BenchMeasureSeconds = parseFloat( kv[1] );
+        }
+        else if ( kv[0].equals( "trials" ) )
+        {
+            BenchTrials = parseInt( kv[1] );
+        }
+        else if ( kv[0].equals( "backend" ) )
+        {
+            backends = kv[1].equals( "both" ) ? new int[] { KB_Scalar, KB_Flat } :
+                new int[] { kv[1].equals( "scalar" ) ? KB_Scalar : KB_Flat };
+        }
+    }
+
+    for ( int s = 0; s < BenchSizes.length; ++s )
+    {
+        ResizeGrid( BenchSizes[s], BenchSizes[s] );
+        if ( !CheckKernelBackends() )
+        {
+            println( "The kernel backends disagree at " + NX + "x" + NY );
+        }
+        for ( int b = 0; b < backends.length; ++b )
+        {
+            KernelBackend = backends[b];
+            println( KernelBackendNames[KernelBackend] + " kernels:" );
+            RunKernelBenchmarks();
+        }
+    }
+}
+
+// With --bench, run the benchmarks. The solver's state and functions are
+// static, so this never constructs the sketch, and needs no display.
+// Otherwise, start the sketch as usual.
+static public void main( String[] args )
+{
+    if ( args.length > 0 && args[0].equals( "--bench" ) )
+    {
+        RunBenchmarksFromArgs( subset( args, 1 ) );
+    }
+    else
+    {
+        PApplet.main( concat( new String[] { "WaveEqn2D_Sketch" }, args ) );
+    }
+}
@@ -0,0 +1,140 @@
+// Conjugate gradient solve for the implicit acceleration.
+//
+// JacobiIterationAccel solves, at every interior point,
+//   (1 + 4 kappa) a[i,j] - kappa (a_left + a_right + a_down + a_up) = rhs
+// where rhs = gamma * Laplacian( h_star ), and a is zero on the boundary.
+// That's a symmetric positive definite system, so instead of a fixed number
+// of Jacobi sweeps we can run conjugate gradient until the residual is
+// small enough. The matrix is never built; we apply the stencil directly.
+// The boundary values are zero, so boundary neighbors simply drop out.
+
+// 0 for Jacobi, 1 for conjugate gradient, 2 for red-black SOR.
+static int AccelSolver = 0;
+
+// Stop when |residual| < CGTolerance * |rhs|, or after CGMaxIterations.
+static float CGTolerance = 0.0001;
+static int CGMaxIterations = 100;
+
+// Print a line for every acceleration solve.
+static boolean ReportSolves = false;
+
+// Work vectors.
+static float[] CGRhs = new float[ArraySize];
+static float[] CGResidual = new float[ArraySize];
+static float[] CGDirection = new float[ArraySize];
+static float[] CGProduct = new float[ArraySize];
+
+// What the last solve did.
+static int CGLastIterations = 0;
+static float CGLastResidual = 0.0;
+
+// o_y = A * i_x over the interior.
+static void CGApplyAccel( float[] i_x, float[] o_y, float i_kappa )
+{
+    float diag = 1.0 + 4.0 * i_kappa;
+    for (int j = 1; j < NY-1; ++j) {
+        for (int i = 1; i < NX-1; ++i) {
+            float sum = 0.0;
+            if (i > 1)    { sum += i_x[IX(i-1,j)]; }
+            if (i < NX-2) { sum += i_x[IX(i+1,j)]; }
+            if (j > 1)    { sum += i_x[IX(i,j-1)]; }
+            if (j < NY-2) { sum += i_x[IX(i,j+1)]; }
+            o_y[IX(i,j)] = diag * i_x[IX(i,j)] - i_kappa * sum;
+        }
+    }
+}
+
+static float CGDot( float[] i_a, float[] i_b )
+{
+    double sum = 0.0;
+    for (int j = 1; j < NY-1; ++j) {
+        for (int i = 1; i < NX-1; ++i) {
+            sum += i_a[IX(i,j)] * i_b[IX(i,j)];
+        }
+    }
+    return ( float )sum;
+}
+
+// Solve for acceleration by preconditioned conjugate gradient. The
+// diagonal is constant, so the preconditioner is just a scale.
+static void ConjugateGradientSolveAccel( int i_hStar, float i_dt )
+{
+    long startTime = System.nanoTime();
+
+    float kappa = sq( WaveSpeed ) * sq( i_dt ) / sq( DX );
+    float gamma = sq( WaveSpeed ) / sq( DX );
+    float invDiag = 1.0 / ( 1.0 + 4.0 * kappa );
+
+    // Build the right hand side.
+    FillArray( StateAccelStar, 0.0 );
+    java.util.Arrays.fill( CGRhs, 0.0 );
+    java.util.Arrays.fill( CGResidual, 0.0 );
+    java.util.Arrays.fill( CGDirection, 0.0 );
+    for (int j = 1; j < NY-1; ++j) {
+        for (int i = 1; i < NX-1; ++i) {
+            float h_star_left = State[i_hStar][IX(i-1,j)];
+            float h_star_right = State[i_hStar][IX(i+1,j)];
+            float h_star_down = State[i_hStar][IX(i,j-1)];
+            float h_star_up = State[i_hStar][IX(i,j+1)];
+            float h_star_cen = State[i_hStar][IX(i,j)];
+
+            CGRhs[IX(i,j)] = gamma *
+                (h_star_left + h_star_right + h_star_down + h_star_up -
+                 (4.0 * h_star_cen));
+        }
+    }
+
+    // Starting from a = 0, the residual is the right hand side.
+    float[] a = State[StateAccelStar];
+    float[] r = CGResidual;
+    float[] p = CGDirection;
+    float[] q = CGProduct;
+    for (int j = 1; j < NY-1; ++j) {
+        for (int i = 1; i < NX-1; ++i) {
+            r[IX(i,j)] = CGRhs[IX(i,j)];
+            p[IX(i,j)] = invDiag * r[IX(i,j)];
+        }
+    }
+
+    float rhsNorm = sqrt( CGDot( CGRhs, CGRhs ) );
+    float rz = invDiag * CGDot( r, r );
+    float rNorm = rhsNorm;
+    int iter = 0;
+    while ( iter < CGMaxIterations && rNorm > CGTolerance * rhsNorm )
+    {
+        CGApplyAccel( p, q, kappa );
+        float alpha = rz / CGDot( p, q );
+
+        for (int j = 1; j < NY-1; ++j) {
+            for (int i = 1; i < NX-1; ++i) {
+                a[IX(i,j)] += alpha * p[IX(i,j)];
+                r[IX(i,j)] -= alpha * q[IX(i,j)];
+            }
+        }
+
+        float rzNew = invDiag * CGDot( r, r );
+        float beta = rzNew / rz;
+        rz = rzNew;
+
+        for (int j = 1; j < NY-1; ++j) {
+            for (int i = 1; i < NX-1; ++i) {
+                p[IX(i,j)] = invDiag * r[IX(i,j)] + beta * p[IX(i,j)];
+            }
+        }
+
+        rNorm = sqrt( CGDot( r, r ) );
+        ++iter;
+    }
+
+    EnforceAccelBoundaryConditions( StateAccelStar );
+
+    CGLastIterations = iter;
+    CGLastResidual = ( rhsNorm > 0.0 ) ? rNorm / rhsNorm : 0.0;
+    if ( ReportSolves )
+    {
+        println( "accel CG " + NX + "x" + NY + ": " + iter +
+                 " iterations, relative residual " + CGLastResidual + ", " +
+                 ( ( float )( System.nanoTime() - startTime ) / 1.0e6 ) +
+                 " ms" );
+    }
+}
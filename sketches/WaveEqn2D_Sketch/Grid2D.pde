@@ -0,0 +1,165 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// GRID LAYOUT AND FIELD STORAGE
+//
+// Every solver sketch stores its fields the same way: a set of one
+// dimensional float arrays, one per field, indexed by IX(i,j), with current
+// and previous versions of some of them swapped by exchanging handles.
+// Grid2D describes that layout once - the interior size, how many ghost
+// (halo) cells surround it, and the row stride - and FieldSet allocates a
+// set of fields that share it. Both are plain classes with no Processing
+// dependencies, so this tab can be copied into any of the sketches as is.
+//
+// Cells are addressed with the halo included, the way the smoke solver
+// does it: with a halo of 1, i runs from 0 to NX+1, the interior is 1 to NX,
+// and 0 and NX+1 are ghost cells. With a halo of 0 (as in the wave sketches)
+// the boundary cells are just the outermost interior cells.
+//
+// Rows can optionally be padded so that each one starts on a 64 byte
+// (16 float) boundary relative to the start of the array. Padding cells are
+// never part of the interior or the halo; whole-array loops touch them
+// harmlessly.
+//
+// Inner loops shouldn't call IX for every element. RowStart(j) gives the
+// index of cell (0,j), after which the neighbors of index a are a-1, a+1,
+// a-Stride and a+Stride:
+//
+//   for ( int j = 1; j <= NY; ++j )
+//   {
+//       int a = grid.RowStart( j ) + 1;
+//       for ( int i = 1; i <= NX; ++i, ++a ) { ... }
+//   }
+//-*****************************************************************************
+//-*****************************************************************************
+
+// Floats per 64 byte cache line.
+static final int FloatsPerCacheLine = 16;
+
+//-*****************************************************************************
+static class Grid2D
+{
+    // Interior size, halo width, and the total width and height of each
+    // row and column, including the halo on both sides.
+    final int NX;
+    final int NY;
+    final int Halo;
+    final int Width;
+    final int Height;
+
+    // Distance between the start of one row and the next, and the total
+    // array size. Stride is at least Width.
+    final int Stride;
+    final int Size;
+
+    Grid2D( int i_nx, int i_ny, int i_halo, boolean i_padRows )
+    {
+        NX = i_nx;
+        NY = i_ny;
+        Halo = i_halo;
+        Width = i_nx + 2*i_halo;
+        Height = i_ny + 2*i_halo;
+        if ( i_padRows )
+        {
+            Stride = FloatsPerCacheLine *
+                ( ( Width + FloatsPerCacheLine - 1 ) / FloatsPerCacheLine );
+        }
+        else
+        {
+            Stride = Width;
+        }
+        Size = Stride * Height;
+    }
+
+    // Index of cell (i,j), with the halo included in i and j.
+    int IX( int i, int j )
+    {
+        return i + Stride*j;
+    }
+
+    // Index of cell (0,j).
+    int RowStart( int j )
+    {
+        return Stride*j;
+    }
+}
+
+//-*****************************************************************************
+// A set of fields that share a grid. Fields are referred to by handle (their
+// index into Data), and a current/previous pair of fields is swapped in O(1)
+// by exchanging their handles - see SwapU() and friends in the smoke solver,
+// or SwapVel() in the wave and advection sketches.
+//
+// A field is stored either as floats, in Data, or as 16 bit half floats, in
+// Half, never both; the other entry is null. Every field starts as floats.
+// Only the smoke solver keeps half floats (see its HalfFields tab). A field
+// that only some solvers use can instead start unallocated, with both
+// entries null, until Allocate().
+//-*****************************************************************************
+static class FieldSet
+{
+    final Grid2D Grid;
+    final float[][] Data;
+    final short[][] Half;
+
+    FieldSet( Grid2D i_grid, int i_numFields )
+    {
+        this( i_grid, i_numFields, true );
+    }
+
+    FieldSet( Grid2D i_grid, int i_numFields, boolean i_allocate )
+    {
+        Grid = i_grid;
+        Data = i_allocate ? new float[i_numFields][i_grid.Size] :
+            new float[i_numFields][];
+        Half = new short[i_numFields][];
+    }
+
+    int NumFields()
+    {
+        return Data.length;
+    }
+
+    float[] Field( int i_handle )
+    {
+        return Data[i_handle];
+    }
+
+    boolean IsHalf( int i_handle )
+    {
+        return Half[i_handle] != null;
+    }
+
+    boolean IsAllocated( int i_handle )
+    {
+        return Data[i_handle] != null || Half[i_handle] != null;
+    }
+
+    // Give an unallocated field its floats, zeroed.
+    void Allocate( int i_handle )
+    {
+        if ( !IsAllocated( i_handle ) )
+        {
+            Data[i_handle] = new float[Grid.Size];
+        }
+    }
+
+    void Release( int i_handle )
+    {
+        Data[i_handle] = null;
+        Half[i_handle] = null;
+    }
+
+    void Fill( int i_handle, float i_value )
+    {
+        java.util.Arrays.fill( Data[i_handle], i_value );
+    }
+
+    void Copy( int i_src, int i_dst )
+    {
+        System.arraycopy( Data[i_src], 0, Data[i_dst], 0, Grid.Size );
+    }
+}
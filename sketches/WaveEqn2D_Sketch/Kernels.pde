@@ -0,0 +1,155 @@
+// Kernel backends for the simple loops of the time step.
+//
+// CopyArray, FillArray, the height and velocity estimates,
+// AccumulateEstimate and the Jacobi acceleration sweep look up State[x]
+// and call IX() for every cell, which keeps the JIT from turning them
+// into SIMD code most of the time. KernelBackend picks between the
+// original loops (KB_Scalar) and versions that look the arrays up once
+// and run one flat loop with a fixed bound (KB_Flat), which is the shape
+// the JIT's superword pass vectorizes. Copying and filling go to
+// System.arraycopy and Arrays.fill. Unrolling the loops by hand hides
+// that shape from the JIT, and measured several times slower.
+//
+// Both backends do the same float operations in the same order for every
+// cell, so they give bit-for-bit the same result. CheckKernelBackends runs
+// each kernel both ways from the same random state and compares them; the
+// benchmarks run it before timing anything.
+
+static int KB_Scalar = 0;
+static int KB_Flat = 1;
+static int KernelBackend = KB_Flat;
+static String[] KernelBackendNames = { "scalar", "flat" };
+
+// o[a] = x[a] + i_scale * y[a] for every element.
+static void AddScaledArrays( float[] o, float[] x, float i_scale, float[] y )
+{
+    int n = ArraySize;
+    for ( int a = 0; a < n; ++a )
+    {
+        o[a] = x[a] + ( i_scale * y[a] );
+    }
+}
+
+// The two updates of AccumulateEstimate, one flat loop each.
+static void AccumulateEstimateFlat( float i_dt )
+{
+    AddScaledArrays( State[StateHeight], State[StateHeight], i_dt,
+                     State[StateVelStar] );
+    AddScaledArrays( State[StateVel], State[StateVel], i_dt,
+                     State[StateAccelStar] );
+}
+
+// The Jacobi acceleration sweep of JacobiIterationAccel, on the interior,
+// as one flat loop per row.
+static void JacobiIterationAccelFlat( float[] aOld, float[] aNew, float[] h,
+                               float kappa, float gamma )
+{
+    float diag = 1.0 + 4.0 * kappa;
+    float offDiag = -kappa;
+    int S = GridStride;
+    for ( int j = 1; j < NY-1; ++j )
+    {
+        int aEnd = IX(NX-1,j);
+        for ( int a = IX(1,j); a < aEnd; ++a )
+        {
+            float rhs = gamma * ( h[a-1] + h[a+1] + h[a-S] + h[a+S] -
+                                  ( 4.0 * h[a] ) );
+            float off = offDiag * ( aOld[a-1] + aOld[a+1] +
+                                    aOld[a-S] + aOld[a+S] );
+            aNew[a] = ( rhs - off ) / diag;
+        }
+    }
+}
+
+// Run one of the checked kernels on the current state.
+static String[] CheckedKernelNames = { "CopyArray", "FillArray",
+                                "EstimateHeightStar", "EstimateVelStar",
+                                "AccumulateEstimate", "JacobiIterationAccel" };
+
+static void RunCheckedKernel( int i_kernel )
+{
+    switch ( i_kernel )
+    {
+    case 0: CopyArray( StateHeight, StateHeightStar ); break;
+    case 1: FillArray( StateAccelStar, 0.25 ); break;
+    case 2: EstimateHeightStar( 0.37 ); break;
+    case 3: EstimateVelStar( 0.37 ); break;
+    case 4: AccumulateEstimate( 0.37 ); break;
+    default: JacobiIterationAccel( StateJacobiTmp, StateAccelStar,
+                                   StateHeightStar, 0.37 ); break;
+    }
+}
+
+static float[][] CopyState()
+{
+    float[][] copy = new float[StateSize][];
+    for ( int s = 0; s < StateSize; ++s )
+    {
+        copy[s] = State[s].clone();
+    }
+    return copy;
+}
+
+static void SetState( float[][] i_from )
+{
+    for ( int s = 0; s < StateSize; ++s )
+    {
+        System.arraycopy( i_from[s], 0, State[s], 0, ArraySize );
+    }
+}
+
+// Run every checked kernel with both backends from the same random state
+// and compare the results bit for bit. Prints the kernels that differ and
+// returns whether they all matched, leaving the state and backend as they
+// were.
+static boolean CheckKernelBackends()
+{
+    int savedBackend = KernelBackend;
+    float[][] saved = CopyState();
+
+    java.util.Random rand = new java.util.Random( 1 );
+    for ( int s = 0; s < StateSize; ++s )
+    {
+        for ( int i = 0; i < ArraySize; ++i )
+        {
+            State[s][i] = 2.0 * rand.nextFloat() - 1.0;
+        }
+    }
+    float[][] start = CopyState();
+
+    boolean allMatch = true;
+    for ( int k = 0; k < CheckedKernelNames.length; ++k )
+    {
+        KernelBackend = KB_Scalar;
+        SetState( start );
+        RunCheckedKernel( k );
+        float[][] expected = CopyState();
+
+        KernelBackend = KB_Flat;
+        SetState( start );
+        RunCheckedKernel( k );
+
+        int mismatches = 0;
+        for ( int s = 0; s < StateSize; ++s )
+        {
+            for ( int i = 0; i < ArraySize; ++i )
+            {
+                if ( Float.floatToRawIntBits( State[s][i] ) !=
+                     Float.floatToRawIntBits( expected[s][i] ) )
+                {
+                    ++mismatches;
+                }
+            }
+        }
+        if ( mismatches > 0 )
+        {
+            println( "Kernel " + CheckedKernelNames[k] + ": " + mismatches +
+                     " values differ between the scalar and flat backends" );
+            allMatch = false;
+        }
+    }
+
+    SetState( saved );
+    KernelBackend = savedBackend;
+    return allMatch;
+}
@@ -0,0 +1,102 @@
+// Perlin noise, for the initial heights.
+//
+// Processing's noise() and noiseSeed() belong to the PApplet, and --bench
+// runs without ever constructing it (see main() in the Benchmark tab), so
+// SetInitialState uses this copy instead. It's the same noise - the same
+// table of random values from the same seed, the same cosine easing and
+// the same four octaves - so it gives exactly the values noise() does.
+
+static int NoiseYWrapBits = 4;
+static int NoiseZWrapBits = 8;
+static int NoiseSize = 4095;
+static int NoiseOctaves = 4;
+static float NoiseFalloff = 0.5;
+
+// The random values, and the cosine table Processing eases them with: half
+// a degree per entry, over a whole turn.
+static float[] NoiseValues = null;
+static int NoiseTwoPi = 720;
+static int NoisePi = NoiseTwoPi / 2;
+static float[] NoiseCosTable = MakeNoiseCosTable();
+
+static float[] MakeNoiseCosTable()
+{
+    float[] table = new float[NoiseTwoPi];
+    for ( int i = 0; i < NoiseTwoPi; ++i )
+    {
+        table[i] = ( float )Math.cos( i * DEG_TO_RAD * 0.5 );
+    }
+    return table;
+}
+
+// Refill the random values from i_seed, as noiseSeed() does.
+static void NoiseSeed( long i_seed )
+{
+    java.util.Random random = new java.util.Random( i_seed );
+    NoiseValues = new float[NoiseSize + 1];
+    for ( int i = 0; i <= NoiseSize; ++i )
+    {
+        NoiseValues[i] = random.nextFloat();
+    }
+}
+
+static float NoiseEase( float i_t )
+{
+    return 0.5 * ( 1.0 - NoiseCosTable[( int )( i_t * NoisePi ) % NoiseTwoPi] );
+}
+
+// noise( x, y ), which is noise( x, y, 0 ).
+static float Noise( float x, float y )
+{
+    if ( NoiseValues == null )
+    {
+        NoiseSeed( new java.util.Random().nextLong() );
+    }
+    float[] p = NoiseValues;
+
+    x = abs( x );
+    y = abs( y );
+    int xi = ( int )x;
+    int yi = ( int )y;
+    int zi = 0;
+    float xf = x - xi;
+    float yf = y - yi;
+    float zf = 0.0;
+
+    float r = 0.0;
+    float ampl = 0.5;
+    for ( int o = 0; o < NoiseOctaves; ++o )
+    {
+        int of = xi + ( yi << NoiseYWrapBits ) + ( zi << NoiseZWrapBits );
+        float rxf = NoiseEase( xf );
+        float ryf = NoiseEase( yf );
+
+        float n1 = p[of & NoiseSize];
+        n1 += rxf * ( p[( of + 1 ) & NoiseSize] - n1 );
+        float n2 = p[( of + ( 1 << NoiseYWrapBits ) ) & NoiseSize];
+        n2 += rxf * ( p[( of + ( 1 << NoiseYWrapBits ) + 1 ) & NoiseSize] - n2 );
+        n1 += ryf * ( n2 - n1 );
+
+        of += 1 << NoiseZWrapBits;
+        n2 = p[of & NoiseSize];
+        n2 += rxf * ( p[( of + 1 ) & NoiseSize] - n2 );
+        float n3 = p[( of + ( 1 << NoiseYWrapBits ) ) & NoiseSize];
+        n3 += rxf * ( p[( of + ( 1 << NoiseYWrapBits ) + 1 ) & NoiseSize] - n3 );
+        n2 += ryf * ( n3 - n2 );
+
+        n1 += NoiseEase( zf ) * ( n2 - n1 );
+
+        r += n1 * ampl;
+        ampl *= NoiseFalloff;
+        xi <<= 1;
+        xf *= 2.0;
+        yi <<= 1;
+        yf *= 2.0;
+        zi <<= 1;
+        zf *= 2.0;
+        if ( xf >= 1.0 ) { ++xi; xf -= 1.0; }
+        if ( yf >= 1.0 ) { ++yi; yf -= 1.0; }
+        if ( zf >= 1.0 ) { ++zi; zf -= 1.0; }
+    }
+    return r;
+}
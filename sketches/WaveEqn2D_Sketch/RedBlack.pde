@@ -0,0 +1,56 @@
+// Red-black Gauss-Seidel / SOR solve for the implicit acceleration.
+//
+// Jacobi iteration needs StateJacobiTmp to ping-pong into, because every
+// new value is computed from the old ones. Gauss-Seidel uses each new value
+// as soon as it's available, so it works in place and converges about twice
+// as fast per sweep. To keep the cells within a sweep independent of each
+// other, we color the grid like a checkerboard and update all the red cells
+// (i+j even) from their black neighbors, then all the black cells from the
+// new red ones.
+//
+// Over-relaxation pushes each cell past its Gauss-Seidel value:
+//   a = ( 1 - SOROmega ) * a + SOROmega * a_gs
+// SOROmega = 1 is plain Gauss-Seidel, and values up to 2 are allowed.
+
+// The over-relaxation factor.
+static float SOROmega = 1.2;
+
+// Sweeps per solve. Each is one red and one black half-sweep.
+static int RedBlackIterations = 10;
+
+// Solve for acceleration, in place in StateAccelStar.
+static void RedBlackSolveAccel( int i_hStar, float i_dt )
+{
+    float kappa = sq( WaveSpeed ) * sq( i_dt ) / sq( DX );
+    float gamma = sq( WaveSpeed ) / sq( DX );
+    float coefficient_diagonal = 1.0 + 4.0 * kappa;
+
+    // Initialize acceleration to zero. The boundary stays at zero.
+    FillArray( StateAccelStar, 0.0 );
+    float[] a = State[StateAccelStar];
+    float[] h = State[i_hStar];
+    int S = GridStride;
+
+    for ( int iter = 0; iter < RedBlackIterations; ++iter )
+    {
+        for ( int c = 0; c < 2; ++c )
+        {
+            for (int j = 1; j < NY-1; ++j) {
+                int nEnd = IX(NX-1,j);
+                for (int n = IX(1 + ((j + 1 + c) & 1),j); n < nEnd; n += 2) {
+                    float rhs = gamma *
+                        (h[n-1] + h[n+1] + h[n-S] + h[n+S] - (4.0 * h[n]));
+
+                    float sum_neighbors = a[n-1] + a[n+1] + a[n-S] + a[n+S];
+
+                    float a_gs = (rhs + kappa * sum_neighbors) /
+                        coefficient_diagonal;
+
+                    a[n] += SOROmega * (a_gs - a[n]);
+                }
+            }
+        }
+    }
+
+    EnforceAccelBoundaryConditions( StateAccelStar );
+}
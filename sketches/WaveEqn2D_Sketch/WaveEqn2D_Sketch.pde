@@ -1,59 +1,70 @@
-float WaveSpeed = 0.5;
+static float WaveSpeed = 0.5;
 
-float WorldSize = 10.0;
-int NX = 64;
-int NY = 64;
-int ArraySize = NX * NY;
-float DX = WorldSize / NX;
-float DY = WorldSize / NY;
+static float WorldSize = 10.0;
+static int NX = 64;
+static int NY = 64;
 
-float LX = WorldSize;
-float LY = WorldSize;
-float LZ = WorldSize / 2.0;
+// Whether to pad each row of the grids out to a whole number of cache
+// lines. See the Grid2D tab.
+static boolean PadGridRows = false;
 
-int StateSize = 8;
-float[][] State = new float[StateSize][ArraySize];
-int StateHeight = 0;
-int StateVel = 1;
-int StateHeightPrev = 2;
-int StateVelPrev = 3;
-int StateVelStar = 4;
-int StateAccelStar = 5;
-int StateHeightStar = 6;
-int StateJacobiTmp = 7;
+// The layout of our arrays: no halo, the outermost cells are the boundary,
+// and GridStride floats from one row to the next. GridStride is NX unless
+// the rows are padded. ArraySize counts the padding.
+static Grid2D SimGrid = new Grid2D( NX, NY, 0, PadGridRows );
+static int GridStride = SimGrid.Stride;
+static int ArraySize = SimGrid.Size;
+static float DX = WorldSize / NX;
+static float DY = WorldSize / NY;
 
-float StateCurrentTime = 0.0;
+static float LX = WorldSize;
+static float LY = WorldSize;
+static float LZ = WorldSize / 2.0;
 
-int PixelsPerCell = 8;
+static int StateSize = 8;
+static FieldSet SimFields = new FieldSet( SimGrid, StateSize );
+static float[][] State = SimFields.Data;
+static int StateHeight = 0;
+static int StateVel = 1;
+static int StateHeightPrev = 2;
+static int StateVelPrev = 3;
+static int StateVelStar = 4;
+static int StateAccelStar = 5;
+static int StateHeightStar = 6;
+static int StateJacobiTmp = 7;
 
-int WindowWidth = PixelsPerCell * NX;
-int WindowHeight = PixelsPerCell * NY;
+static float StateCurrentTime = 0.0;
 
-boolean InputActive = false;
-int InputIndexX = 0;
-int InputIndexY = 0;
-float InputHeight = 0;
+static int PixelsPerCell = 8;
 
-PImage StateImage = createImage( NX, NY, RGB );
+static int WindowWidth = PixelsPerCell * NX;
+static int WindowHeight = PixelsPerCell * NY;
+
+static boolean InputActive = false;
+static int InputIndexX = 0;
+static int InputIndexY = 0;
+static float InputHeight = 0;
+
+static PImage StateImage = new PImage( NX, NY, RGB );
 
 
 // Index an element of a grid in the state array
-int IX( int i, int j )
+static int IX( int i, int j )
 {
-    return ( i + NX*j ); 
+    return ( i + GridStride*j ); 
 }
 
-float snoise( float x, float y )
+static float snoise( float x, float y )
 {
-   return ( 2.0 * noise( x, y )) - 1.0;
+   return ( 2.0 * Noise( x, y )) - 1.0;
 }
 
-float anoise( float x, float y )
+static float anoise( float x, float y )
 {
    return ( -2.0 * abs( snoise( x, y )) ) + 1.0;
 }
 
-void EnforceAccelBoundaryConditions( int io_a )
+static void EnforceAccelBoundaryConditions( int io_a )
 {
     for (int j = 0; j < NY; ++j) {
         if (j == 0 || j == (NY-1)) {
@@ -67,7 +78,7 @@ void EnforceAccelBoundaryConditions( int io_a )
     }
 }
 
-void EnforceVelBoundaryConditions( int io_v )
+static void EnforceVelBoundaryConditions( int io_v )
 {
     for (int j = 0; j < NY; ++j) {
         if (j == 0) {
@@ -85,7 +96,7 @@ void EnforceVelBoundaryConditions( int io_v )
     }
 }
 
-void EnforceHeightBoundaryConditions( int io_h )
+static void EnforceHeightBoundaryConditions( int io_h )
 {
     for (int j = 0; j < NY; ++j) {
         if (j == 0) {
@@ -133,25 +144,35 @@ void EnforceHeightBoundaryConditions( int io_h )
     }
 }
 
-void CopyArray( int i_src, int o_dst )
+static void CopyArray( int i_src, int o_dst )
 {
+    if ( KernelBackend == KB_Flat )
+    {
+        SimFields.Copy( i_src, o_dst );
+        return;
+    }
     for ( int i = 0; i < ArraySize; ++i )
     {
         State[o_dst][i] = State[i_src][i];
     }
 }
 
-void FillArray( int o_a, float i_val )
+static void FillArray( int o_a, float i_val )
 {
+    if ( KernelBackend == KB_Flat )
+    {
+        SimFields.Fill( o_a, i_val );
+        return;
+    }
     for ( int i = 0; i < ArraySize; ++i )
     {
         State[o_a][i] = i_val;
     }
 }
 
-void SetInitialState()
+static void SetInitialState()
 {
-    noiseSeed( 0 );
+    NoiseSeed( 0 );
     for (int j = 0; j < NY; ++j) {
         for (int i = 0; i < NX; ++i) {
             float worldX = 2341.17 + DX * ( float )i;
@@ -168,6 +189,7 @@ void SetInitialState()
     EnforceHeightBoundaryConditions( StateHeight );
     EnforceVelBoundaryConditions( StateVel );
     StateCurrentTime = 0.0;
+    ResetAdaptiveTimeStep();
     
     CopyArray( StateHeight, StateHeightPrev );
     CopyArray( StateVel, StateVelPrev );
@@ -185,21 +207,21 @@ void setup()
     textSize( 24 );
 }
 
-void SwapHeight()
+static void SwapHeight()
 {
     int tmp = StateHeight;
     StateHeight = StateHeightPrev;
     StateHeightPrev = tmp;
 }
 
-void SwapVel()
+static void SwapVel()
 {
     int tmp = StateVel;
     StateVel = StateVelPrev;
     StateVelPrev = tmp;
 }
 
-void SwapState()
+static void SwapState()
 {
     SwapHeight();
     SwapVel();
@@ -228,29 +250,45 @@ void GetInput()
 }
 
 // Estimate height star
-void EstimateHeightStar( float i_dt )
+static void EstimateHeightStar( float i_dt )
 {
-    for ( int i = 0; i < ArraySize; ++i )
+    if ( KernelBackend == KB_Flat )
+    {
+        AddScaledArrays( State[StateHeightStar], State[StateHeightPrev], i_dt,
+                         State[StateVelStar] );
+    }
+    else
     {
-        State[StateHeightStar][i] = State[StateHeightPrev][i] + 
-                ( i_dt * State[StateVelStar][i] );
+        for ( int i = 0; i < ArraySize; ++i )
+        {
+            State[StateHeightStar][i] = State[StateHeightPrev][i] + 
+                    ( i_dt * State[StateVelStar][i] );
+        }
     }
     EnforceHeightBoundaryConditions( StateHeightStar );
 }
 
 // Estimate vel star
-void EstimateVelStar( float i_dt )
+static void EstimateVelStar( float i_dt )
 {
-    for ( int i = 0; i < ArraySize; ++i )
+    if ( KernelBackend == KB_Flat )
     {
-        State[StateVelStar][i] = State[StateVelPrev][i] + 
-                ( i_dt * State[StateAccelStar][i] );
+        AddScaledArrays( State[StateVelStar], State[StateVelPrev], i_dt,
+                         State[StateAccelStar] );
+    }
+    else
+    {
+        for ( int i = 0; i < ArraySize; ++i )
+        {
+            State[StateVelStar][i] = State[StateVelPrev][i] + 
+                    ( i_dt * State[StateAccelStar][i] );
+        }
     }
     EnforceVelBoundaryConditions( StateVelStar );
 }
 
 // Jacobi iteration to get temp acceleration
-void JacobiIterationAccel( int i_aOld, int o_aNew, int i_hStar, float i_dt )
+static void JacobiIterationAccel( int i_aOld, int o_aNew, int i_hStar, float i_dt )
 {
     float kappa = sq( WaveSpeed ) * sq( i_dt ) / sq( DX );
     float gamma = sq( WaveSpeed ) / sq( DX );
@@ -258,6 +296,14 @@ void JacobiIterationAccel( int i_aOld, int o_aNew, int i_hStar, float i_dt )
     float coefficient_off_diagonal = -kappa;
     float rhs_coefficient_gain = gamma;
 
+    if ( KernelBackend == KB_Flat )
+    {
+        JacobiIterationAccelFlat( State[i_aOld], State[o_aNew], State[i_hStar],
+                                  kappa, gamma );
+        EnforceAccelBoundaryConditions( o_aNew );
+        return;
+    }
+
     for (int j = 1; j < NY-1; ++j) {
         for (int i = 1; i < NX-1; ++i) {
             float a_left = State[i_aOld][IX(i-1,j)];
@@ -287,7 +333,7 @@ void JacobiIterationAccel( int i_aOld, int o_aNew, int i_hStar, float i_dt )
 }
 
 // Solve for acceleration.
-void JacobiSolveAccel( int i_hStar, float i_dt )
+static void JacobiSolveAccel( int i_hStar, float i_dt )
 {  
     // Initialize acceleration to zero.
     FillArray( StateAccelStar, 0.0 );
@@ -303,14 +349,30 @@ void JacobiSolveAccel( int i_hStar, float i_dt )
     }
 }
 
-void EstimateAccelStar( float i_dt )
+static void EstimateAccelStar( float i_dt )
 {
-    JacobiSolveAccel( StateHeightStar, i_dt );
+    if ( AccelSolver == 1 )
+    {
+        ConjugateGradientSolveAccel( StateHeightStar, i_dt );
+    }
+    else if ( AccelSolver == 2 )
+    {
+        RedBlackSolveAccel( StateHeightStar, i_dt );
+    }
+    else
+    {
+        JacobiSolveAccel( StateHeightStar, i_dt );
+    }
 }
 
 // Accumulate estimate
-void AccumulateEstimate( float i_dt )
+static void AccumulateEstimate( float i_dt )
 {
+    if ( KernelBackend == KB_Flat )
+    {
+        AccumulateEstimateFlat( i_dt );
+        return;
+    }
     for ( int i = 0; i < ArraySize; ++i )
     {
         State[StateHeight][i] += i_dt * State[StateVelStar][i];
@@ -319,7 +381,7 @@ void AccumulateEstimate( float i_dt )
 }
 
 // Time Step function.
-void TimeStepFirstOrder( float i_dt )
+static void TimeStepFirstOrder( float i_dt )
 {
     // Swap state
     SwapState();
@@ -344,7 +406,7 @@ void TimeStepFirstOrder( float i_dt )
 }
 
 // Time Step function.
-void TimeStepRK2( float i_dt )
+static void TimeStepRK2( float i_dt )
 {
     // Swap state
     SwapState();
@@ -375,7 +437,7 @@ void TimeStepRK2( float i_dt )
 }
 
 // Time Step function.
-void TimeStepRK4( float i_dt )
+static void TimeStepRK4( float i_dt )
 {
     // Swap state
     SwapState();
@@ -417,13 +479,13 @@ void TimeStepRK4( float i_dt )
     StateCurrentTime += i_dt;
 }
 
-float schlick(float n2, float cos_theta) {
+static float schlick(float n2, float cos_theta) {
     float n1 = 1.0;
     float R0 = sq((n1 - n2)/(n1 + n2));
     return R0 + (1.0 - R0)*pow(1.0 - cos_theta, 5.0);  
 }
 
-float kSpecular(PVector In, PVector Nn, PVector Ln, float m )
+static float kSpecular(PVector In, PVector Nn, PVector Ln, float m )
 {
     PVector Vn = PVector.mult(In, -1.0);
     PVector H = PVector.add(Ln, Vn);
@@ -433,7 +495,7 @@ float kSpecular(PVector In, PVector Nn, PVector Ln, float m )
     return pow( d, m/2 );
 }
 
-float kDiffuse(PVector Nn, PVector Ln)
+static float kDiffuse(PVector Nn, PVector Ln)
 {
     float d = Nn.dot(Ln);
     return constrain( d, 0, 1 );
@@ -531,7 +593,7 @@ void DrawHeightField( int i_field ) {
             pixg = (sun_spec_g + sun_diff_g + moon_spec_g + moon_diff_g);
             pixb = (sun_spec_b + sun_diff_b + moon_spec_b + moon_diff_b);
 
-            StateImage.pixels[IX(i,j)] = color( pixr, pixg, pixb );
+            StateImage.pixels[i + NX*j] = color( pixr, pixg, pixb );
         }
     }
     StateImage.updatePixels();
@@ -545,7 +607,14 @@ void draw()
     background( 0.5 );
 
     GetInput();
-    TimeStepRK2( 1.0 / 24.0 );
+    if ( UseAdaptiveTimeStep )
+    {
+        AdaptiveTimeStepRK2( 1.0 / 24.0 );
+    }
+    else
+    {
+        TimeStepRK2( 1.0 / 24.0 );
+    }
     DrawHeightField(StateHeight);
 
     // Label.
@@ -561,5 +630,17 @@ void keyReleased()
     {
         SetInitialState();
     }  
+    // 's' cycles through the Jacobi, conjugate gradient and red-black
+    // SOR solvers.
+    if ( key == 115 )
+    {
+        AccelSolver = ( AccelSolver + 1 ) % 3;
+    }
+    // 'a' turns the error controlled RK2 steps on and off.
+    if ( key == 97 )
+    {
+        UseAdaptiveTimeStep = !UseAdaptiveTimeStep;
+        ResetAdaptiveTimeStep();
+    }
 }
 
@@ -153,14 +153,65 @@ void JacobiSolveHeight( float i_dt )
     }
 }
 
+// Red-black Gauss-Seidel / SOR alternative to JacobiSolveHeight.
+// Gauss-Seidel uses each new height as soon as it's computed, so it can
+// solve in place in StateHeight without StateJacobiTmp, and converges
+// about twice as fast per sweep as Jacobi. The odd points only depend on
+// even points and vice versa, so we update all the odd points, then all
+// the even ones. SOROmega > 1 over-relaxes each update.
+boolean UseRedBlack = false;
+float SOROmega = 1.5;
+int RedBlackIterations = 10;
+
+void RedBlackSolveHeight( float i_dt )
+{
+    float aij = -sq( WaveSpeed ) * sq( i_dt ) / sq( DX );
+    float aii = 1.0 + ( 2.0 * sq( WaveSpeed ) * sq( i_dt ) / sq( DX ) );
+
+    // Start from the previous height.
+    CopyArray( StateHeightPrev, StateHeight );
+
+    for ( int iter = 0; iter < RedBlackIterations; ++iter )
+    {
+        for ( int first = 1; first <= 2; ++first )
+        {
+            for ( int i = first; i < ArraySize-1; i += 2 )
+            {
+                float hLeft = State[StateHeight][i-1];
+                float hRight = State[StateHeight][i+1];
+
+                float hp = State[StateHeightPrev][i];
+                float hpp = State[StateHeightPrevPrev][i];
+
+                float bi = ( 2.0 * hp ) - hpp;
+
+                float sumOffDiag = ( aij * hLeft ) + ( aij * hRight );
+
+                float hGS = ( bi - sumOffDiag ) / aii;
+                State[StateHeight][i] += SOROmega *
+                    ( hGS - State[StateHeight][i] );
+            }
+        }
+
+        EnforceBoundaryConditions( StateHeight );
+    }
+}
+
 // Time Step function.
 void TimeStep( float i_dt )
 {
     // Rotate state.
     RotateState();
     
-    // Jacobi-solve height.
-    JacobiSolveHeight( i_dt );
+    // Solve height.
+    if ( UseRedBlack )
+    {
+        RedBlackSolveHeight( i_dt );
+    }
+    else
+    {
+        JacobiSolveHeight( i_dt );
+    }
     
     if ( InputActive )
     {
@@ -211,4 +262,9 @@ void keyReleased()
     {
         SetInitialState();
     }  
+    // 's' switches between the Jacobi and red-black SOR solvers.
+    if ( key == 115 )
+    {
+        UseRedBlack = !UseRedBlack;
+    }
 }
@@ -0,0 +1,276 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// ACTIVE TILES
+//
+// Smoke usually fills only a small part of the domain, but the density
+// stages - advect, diffuse, damp and add the input - sweep every cell,
+// whether there's anything there or not. With UseActiveTiles on, the
+// interior is split into TileSize by TileSize tiles, and the density
+// stages only visit the tiles that could have smoke in them this step.
+//
+// A tile is active if, at the end of the last step, any of its cells had
+// more than TileThreshold density. Everything else is exactly zero, in both
+// density arrays: when a tile drops below the threshold, it's cleared. Over
+// one step, density can move at most as far as the fastest velocity
+// carries it (plus a cell for the bilinear lookup), and spread
+// DiffuseIterations cells by diffusion. So each step we process the active
+// tiles plus enough neighbors to cover that reach, and the tiles under the
+// input stamps. Every cell outside that set is zero before the step and
+// stays zero after it, since nothing nonzero can reach it. Afterwards, the
+// processed tiles are checked again and the empty ones retired.
+//
+// Velocity is still solved everywhere, since the pressure solve is global.
+// Density diffusion always uses the Jacobi sweeps on tiles, since they're
+// the only diffusion solver that stays local.
+//
+// The cost of the density stages then grows with the area the smoke
+// covers, rather than with the size of the grid. The only result that
+// differs from the untiled solver is that density below TileThreshold, at
+// the edge of the smoke, is dropped.
+//-*****************************************************************************
+//-*****************************************************************************
+
+static boolean UseActiveTiles = false;
+static int TileSize = 16;
+static float TileThreshold = 1.0e-4;
+
+// The tile grid, and which tiles are active.
+static int TileNX = 0;
+static int TileNY = 0;
+static boolean[] TileActive = null;
+static int NumActiveTiles = 0;
+
+// The tiles being processed this step, as a list of tile indices.
+static boolean[] TileProcessed = null;
+static int[] ProcessedTiles = null;
+static int NumProcessedTiles = 0;
+
+//-*****************************************************************************
+// A loop over the cells from i0 up to i1 in rows j0 up to j1.
+static abstract class TileKernel
+{
+    abstract void Block( int i0, int i1, int j0, int j1 );
+}
+
+//-*****************************************************************************
+// Make the tile grid for the current grid size, with every tile active, so
+// whatever density is there gets looked at once before any is skipped.
+//-*****************************************************************************
+static void ActivateAllTiles()
+{
+    TileNX = ( NX + TileSize - 1 ) / TileSize;
+    TileNY = ( NY + TileSize - 1 ) / TileSize;
+    int numTiles = TileNX * TileNY;
+    if ( TileActive == null || TileActive.length != numTiles )
+    {
+        TileActive = new boolean[numTiles];
+        TileProcessed = new boolean[numTiles];
+        ProcessedTiles = new int[numTiles];
+    }
+    java.util.Arrays.fill( TileActive, true );
+    NumActiveTiles = numTiles;
+}
+
+//-*****************************************************************************
+static void SetUseActiveTiles( boolean i_use )
+{
+    UseActiveTiles = i_use;
+    if ( UseActiveTiles )
+    {
+        LeaveHalfDensity();
+        ActivateAllTiles();
+    }
+}
+
+//-*****************************************************************************
+static int TileBeginI( int i_tx ) { return 1 + i_tx * TileSize; }
+static int TileEndI( int i_tx ) { return min( NX+1, 1 + ( i_tx + 1 ) * TileSize ); }
+static int TileBeginJ( int i_ty ) { return 1 + i_ty * TileSize; }
+static int TileEndJ( int i_ty ) { return min( NY+1, 1 + ( i_ty + 1 ) * TileSize ); }
+
+//-*****************************************************************************
+// Mark the tiles from (tx0,ty0) to (tx1,ty1) inclusive, clamped to the tile
+// grid, as processed.
+static void MarkTilesProcessed( int tx0, int ty0, int tx1, int ty1 )
+{
+    tx0 = max( tx0, 0 );
+    ty0 = max( ty0, 0 );
+    tx1 = min( tx1, TileNX-1 );
+    ty1 = min( ty1, TileNY-1 );
+    for ( int ty = ty0; ty <= ty1; ++ty )
+    {
+        for ( int tx = tx0; tx <= tx1; ++tx )
+        {
+            TileProcessed[tx + TileNX*ty] = true;
+        }
+    }
+}
+
+//-*****************************************************************************
+// Pick the tiles to process this step: the active ones, grown by the
+// distance density can travel, plus the ones under the input source.
+// Called after the velocity is solved, since that's what moves density.
+//-*****************************************************************************
+static void UpdateActiveTiles()
+{
+    if ( TileActive == null || TileNX * TileNY != TileActive.length ||
+         TileNX != ( NX + TileSize - 1 ) / TileSize ||
+         TileNY != ( NY + TileSize - 1 ) / TileSize )
+    {
+        ActivateAllTiles();
+    }
+
+    // How many cells density can move this step.
+    float reach = ( MaxAbsVelocity() * DT / DXY ) + 1.0 +
+        ( float )DiffuseIterations;
+    int grow = max( 1, ceil( reach / ( float )TileSize ) );
+
+    java.util.Arrays.fill( TileProcessed, false );
+    for ( int ty = 0; ty < TileNY; ++ty )
+    {
+        for ( int tx = 0; tx < TileNX; ++tx )
+        {
+            if ( TileActive[tx + TileNX*ty] )
+            {
+                MarkTilesProcessed( tx - grow, ty - grow,
+                                    tx + grow, ty + grow );
+            }
+        }
+    }
+
+    // The tiles under the input's stamps, which were made before this.
+    if ( !IsEmptyBox( DenInputBox ) )
+    {
+        MarkTilesProcessed( ( DenInputBox[0] - 1 ) / TileSize,
+                            ( DenInputBox[2] - 1 ) / TileSize,
+                            ( DenInputBox[1] - 2 ) / TileSize,
+                            ( DenInputBox[3] - 2 ) / TileSize );
+    }
+
+    NumProcessedTiles = 0;
+    for ( int t = 0; t < TileProcessed.length; ++t )
+    {
+        if ( TileProcessed[t] )
+        {
+            ProcessedTiles[NumProcessedTiles++] = t;
+        }
+    }
+}
+
+//-*****************************************************************************
+// Run i_kernel over every processed tile, in parallel if we can.
+//-*****************************************************************************
+static void RunProcessedTiles( final TileKernel i_kernel )
+{
+    RunRows( 0, NumProcessedTiles, new RowKernel() { void Rows( int t0, int t1 ) {
+        for ( int t = t0; t < t1; ++t )
+        {
+            int tx = ProcessedTiles[t] % TileNX;
+            int ty = ProcessedTiles[t] / TileNX;
+            i_kernel.Block( TileBeginI( tx ), TileEndI( tx ),
+                            TileBeginJ( ty ), TileEndJ( ty ) );
+        }
+    } } );
+}
+
+//-*****************************************************************************
+static void AdvectOnTiles( int i_OldQ, int o_NewQ, final int i_GridU,
+                    final int i_GridV, int i_bType )
+{
+    final int[] oldQs = { i_OldQ };
+    final int[] newQs = { o_NewQ };
+    RunProcessedTiles( new TileKernel() { void Block( int i0, int i1,
+                                                      int j0, int j1 ) {
+        SemiLagrangianAdvectBlock( oldQs, newQs, i_GridU, i_GridV,
+                                   i0, i1, j0, j1 );
+    } } );
+    EnforceBoundaryConditions( o_NewQ, i_bType );
+}
+
+//-*****************************************************************************
+// The Jacobi sweeps of Diffuse, on the processed tiles only.
+//-*****************************************************************************
+static void DiffuseOnTiles( int i_OldQ, int o_NewQ, float i_visc, int i_bType )
+{
+    final float k = DT * i_visc * sq( DXY );
+    int SRC = o_NewQ;
+    int DST = i_OldQ;
+    for ( int iters = 0; iters < DiffuseIterations; ++iters )
+    {
+        int tmp = SRC; SRC = DST; DST = tmp;
+
+        final int src = SRC;
+        final int dst = DST;
+        RunProcessedTiles( new TileKernel() { void Block( int i0, int i1,
+                                                          int j0, int j1 ) {
+            DiffuseBlock( src, dst, k, i0, i1, j0, j1 );
+        } } );
+        EnforceBoundaryConditions( DST, i_bType );
+    }
+}
+
+//-*****************************************************************************
+static void DampOnTiles( final int io_grid, float i_damp )
+{
+    final float mult = pow( constrain( 1.0 - i_damp, 0.0, 1.0 ), DT );
+    RunProcessedTiles( new TileKernel() { void Block( int i0, int i1,
+                                                      int j0, int j1 ) {
+        float[] Q = State[io_grid];
+        for ( int j = j0; j < j1; ++j )
+        {
+            if ( KernelBackend == KB_Flat )
+            {
+                ScaleRange( Q, mult, IX(i0,j), IX(i1,j) );
+                continue;
+            }
+            for ( int a = IX(i0,j); a < IX(i1,j); ++a )
+            {
+                Q[a] *= mult;
+            }
+        }
+    } } );
+    EnforceBoundaryConditions( io_grid, BC_NoNegate );
+}
+
+//-*****************************************************************************
+// After the density stages: keep the processed tiles that still have
+// density in them, and clear the rest, in both density arrays.
+//-*****************************************************************************
+static void RetireEmptyTiles()
+{
+    RunProcessedTiles( new TileKernel() { void Block( int i0, int i1,
+                                                      int j0, int j1 ) {
+        float[] D = State[GridDensity];
+        float maxAbs = 0.0;
+        for ( int j = j0; j < j1; ++j )
+        {
+            for ( int a = IX(i0,j); a < IX(i1,j); ++a )
+            {
+                maxAbs = max( maxAbs, abs( D[a] ) );
+            }
+        }
+
+        int tile = ( ( i0 - 1 ) / TileSize ) + TileNX * ( ( j0 - 1 ) / TileSize );
+        TileActive[tile] = ( maxAbs > TileThreshold );
+        if ( !TileActive[tile] )
+        {
+            float[] P = State[GridPrevDensity];
+            for ( int j = j0; j < j1; ++j )
+            {
+                java.util.Arrays.fill( D, IX(i0,j), IX(i1,j), 0.0 );
+                java.util.Arrays.fill( P, IX(i0,j), IX(i1,j), 0.0 );
+            }
+        }
+    } } );
+    EnforceBoundaryConditions( GridDensity, BC_NoNegate );
+
+    NumActiveTiles = 0;
+    for ( int t = 0; t < TileActive.length; ++t )
+    {
+        NumActiveTiles += TileActive[t] ? 1 : 0;
+    }
+}
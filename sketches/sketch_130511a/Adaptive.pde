@@ -0,0 +1,105 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// ADAPTIVE TIME STEPPING
+//
+// Each frame (one draw(), or one batch step) advances the simulation by
+// FrameDT. Normally that's a single FluidTimeStep with DT = FrameDT, which
+// has to be small enough for the fastest flow we'll ever see, and is
+// wasted on every frame where nothing much is moving.
+//
+// With UseAdaptiveTimeStep on, a frame is instead split into as many
+// substeps as the flow needs. The Courant (CFL) number of a step is how
+// many cells the fastest velocity moves in it:
+//   CFL = max( |U|, |V| ) * DT / DXY
+// Semi-Lagrangian advection is stable at any CFL, but it smears and loses
+// detail when each step traces back across many cells, so we pick DT to
+// keep the CFL at or below TargetCFL. A quiet frame is a single step of
+// FrameDT; a violent one is split, up to MaxSubsteps times. The velocity is
+// measured again before each substep, since the last one may have sped it
+// up.
+//
+// The input is spread evenly over the substeps, so a frame adds the same
+// density and momentum however many substeps it takes.
+//-*****************************************************************************
+//-*****************************************************************************
+
+static boolean UseAdaptiveTimeStep = false;
+static float TargetCFL = 2.0;
+static int MaxSubsteps = 16;
+
+// The time one frame advances. DT is set to it between frames.
+static float FrameDT = DT;
+
+// The substeps taken by the last frame, and its largest CFL number.
+static int LastSubsteps = 1;
+static float LastMaxCFL = 0.0;
+
+//-*****************************************************************************
+// The largest velocity component magnitude over the interior (of the whole
+// grid, when it's split across processes).
+//-*****************************************************************************
+static float MaxAbsVelocity()
+{
+    if ( Use3D )
+    {
+        return MaxAbsVelocity3D();
+    }
+    float[] U = State[GridU];
+    float[] V = State[GridV];
+    float maxVel = 0.0;
+    int jEnd = OwnedRowEnd();
+    for ( int j = OwnedRowBegin(); j < jEnd; ++j )
+    {
+        int a = IX(1,j);
+        for ( int i = 1; i <= NX; ++i, ++a )
+        {
+            maxVel = max( maxVel, max( abs( U[a] ), abs( V[a] ) ) );
+        }
+    }
+    return DistMax( maxVel );
+}
+
+//-*****************************************************************************
+// Advance the simulation by one frame, with one FluidTimeStep or with
+// CFL-limited substeps.
+//-*****************************************************************************
+static void AdvanceFrame()
+{
+    if ( !UseAdaptiveTimeStep )
+    {
+        DT = FrameDT;
+        FluidTimeStep();
+        ++SimStep;
+        return;
+    }
+
+    float minDT = FrameDT / ( float )MaxSubsteps;
+    float remaining = FrameDT;
+    LastSubsteps = 0;
+    LastMaxCFL = 0.0;
+    while ( remaining > 0.0 )
+    {
+        float maxVel = MaxAbsVelocity();
+        float dt = ( maxVel > 0.0 ) ? TargetCFL * DXY / maxVel : remaining;
+        dt = constrain( dt, minDT, remaining );
+
+        // Don't leave a sliver of a step at the end of the frame.
+        if ( remaining - dt < 0.25 * minDT )
+        {
+            dt = remaining;
+        }
+
+        DT = dt;
+        FluidTimeStep();
+        remaining -= dt;
+        ++LastSubsteps;
+        LastMaxCFL = max( LastMaxCFL, maxVel * dt / DXY );
+    }
+
+    DT = FrameDT;
+    ++SimStep;
+}
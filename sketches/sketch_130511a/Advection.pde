@@ -0,0 +1,512 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// ADVECTION MODES
+//
+// Plain semi-Lagrangian advection traces each cell back one step along
+// the velocity and resamples the old field there with bilinear
+// interpolation. Every step, that blurs the field by about a cell, and the
+// only way to keep more detail is more cells. Each field (the density, and
+// the velocity) instead has an AdvectionMode, which picks three things:
+//
+// How the cell is traced back (Trace):
+//   TR_Euler   one step along the velocity at the cell, as before.
+//   TR_RK2     the midpoint method.
+//   TR_RK4     classic fourth order Runge-Kutta. The velocity is sampled
+//              bilinearly at each stage, as in the
+//              FluidSemiLagrangianAdvectionRK4 sketch.
+//
+// How the old field is resampled (Sampler):
+//   AS_Linear  bilinear.
+//   AS_Cubic   monotonic cubic (Fedkiw, Stam and Jensen 2001): a cubic
+//              Hermite through the four nearest samples on each axis, with
+//              the slopes zeroed wherever they disagree in sign with the
+//              data, so it can't overshoot. The result is also clamped to
+//              the two samples either side.
+//
+// Whether the result is corrected (Scheme):
+//   AC_None        plain semi-Lagrangian.
+//   AC_MacCormack  advect forward, advect the result backward, and add
+//                  half the difference between where we started and where
+//                  we got back to - that's the error of one advection
+//                  (Selle et al. 2008). Where the corrected value falls
+//                  outside the old values around the traced-back point,
+//                  the plain result is kept instead, which keeps it stable.
+//   AC_BFECC       the same error estimate, but subtracted from the old
+//                  field before one more advection, with the same limit.
+//
+// Both corrections cancel the leading error term, making advection second
+// order, for two or three advection passes. All of these are far less
+// diffusive than doubling the resolution, which costs eight times as much
+// (four times the cells, and twice the steps to keep the same CFL).
+//
+// With the default mode the existing bilinear kernel is used unchanged,
+// unless the velocity is staggered (see the MACGrid tab).
+// Active tiles (see the ActiveTiles tab) run the uncorrected modes on
+// tiles, and the corrected ones on the whole grid, since their later
+// passes read intermediate fields that are only valid on the tiles
+// processed this step.
+//-*****************************************************************************
+//-*****************************************************************************
+
+static int TR_Euler = 0;
+static int TR_RK2 = 1;
+static int TR_RK4 = 2;
+static String[] TraceNames = { "euler", "rk2", "rk4" };
+
+static int AS_Linear = 0;
+static int AS_Cubic = 1;
+static String[] SamplerNames = { "linear", "cubic" };
+
+static int AC_None = 0;
+static int AC_MacCormack = 1;
+static int AC_BFECC = 2;
+static String[] SchemeNames = { "semilagrangian", "maccormack", "bfecc" };
+
+static class AdvectionMode
+{
+    int Trace = TR_Euler;
+    int Sampler = AS_Linear;
+    int Scheme = AC_None;
+
+    boolean IsDefault()
+    {
+        return Trace == TR_Euler && Sampler == AS_Linear && Scheme == AC_None;
+    }
+
+    String Name()
+    {
+        return SchemeNames[Scheme] + "," + SamplerNames[Sampler] + "," +
+            TraceNames[Trace];
+    }
+}
+
+static AdvectionMode DensityAdvection = new AdvectionMode();
+static AdvectionMode VelocityAdvection = new AdvectionMode();
+
+// Scratch fields for the corrected schemes, one per field advected at
+// once, made on first use.
+static float[][] AdvectScratch = new float[0][0];
+
+// The lists of old, new and round trip fields that AdvectFieldsWithMode
+// hands to the passes, by the number of fields, made on first use.
+static float[][][][] AdvectFieldLists = new float[0][][][];
+
+// Each thread's traced-back point and sample range. The passes run on the
+// worker threads, so these can't be shared, but a band shouldn't allocate
+// them either.
+static class AdvectTemps
+{
+    final float[] Pos = new float[2];
+    final float[] Range = new float[2];
+}
+
+static ThreadLocal<AdvectTemps> AdvectWorkerTemps = new ThreadLocal<AdvectTemps>()
+{
+    protected AdvectTemps initialValue()
+    {
+        return new AdvectTemps();
+    }
+};
+
+//-*****************************************************************************
+// Set a mode from a comma separated list of names, in any order, like
+// "maccormack,cubic,rk2". Names that aren't given are left alone.
+//-*****************************************************************************
+static void ParseAdvectionMode( String i_names, AdvectionMode o_mode )
+{
+    String[] names = split( i_names, ',' );
+    for ( int n = 0; n < names.length; ++n )
+    {
+        for ( int k = 0; k < TraceNames.length; ++k )
+        {
+            if ( names[n].equals( TraceNames[k] ) ) { o_mode.Trace = k; }
+        }
+        for ( int k = 0; k < SamplerNames.length; ++k )
+        {
+            if ( names[n].equals( SamplerNames[k] ) ) { o_mode.Sampler = k; }
+        }
+        for ( int k = 0; k < SchemeNames.length; ++k )
+        {
+            if ( names[n].equals( SchemeNames[k] ) ) { o_mode.Scheme = k; }
+        }
+    }
+}
+
+//-*****************************************************************************
+// Bilinear sample of q at grid position (x,y), where cell (i,j) is at
+// (i,j), clamped to the grid like the bilinear kernel.
+//-*****************************************************************************
+static float SampleLinear( float[] q, float x, float y )
+{
+    int i0 = ( int )floor( x );
+    float fx = x - ( float )i0;
+    i0 = constrain( i0, 0, GX-1 );
+    int j0 = ( int )floor( y );
+    float fy = y - ( float )j0;
+    j0 = constrain( j0, 0, GY-1 );
+    int i1 = min( i0+1, GX-1 );
+    int j1 = min( j0+1, GY-1 );
+
+    float down = lerp( q[IX(i0,j0)], q[IX(i1,j0)], fx );
+    float up = lerp( q[IX(i0,j1)], q[IX(i1,j1)], fx );
+    return lerp( down, up, fy );
+}
+
+//-*****************************************************************************
+// The monotonic cubic through fm1, f0, f1, f2 at t between f0 and f1.
+static float MonotonicCubic( float fm1, float f0, float f1, float f2, float t )
+{
+    float delta = f1 - f0;
+    float d0 = 0.5 * ( f1 - fm1 );
+    float d1 = 0.5 * ( f2 - f0 );
+    if ( d0 * delta <= 0.0 ) { d0 = 0.0; }
+    if ( d1 * delta <= 0.0 ) { d1 = 0.0; }
+    float v = f0 + t * ( d0 + t * ( ( 3.0 * delta - 2.0 * d0 - d1 ) +
+                                    t * ( d0 + d1 - 2.0 * delta ) ) );
+    return constrain( v, min( f0, f1 ), max( f0, f1 ) );
+}
+
+//-*****************************************************************************
+// Monotonic cubic sample of q at grid position (x,y).
+static float SampleCubic( float[] q, float x, float y )
+{
+    int i = ( int )floor( x );
+    float fx = x - ( float )i;
+    int j = ( int )floor( y );
+    float fy = y - ( float )j;
+    if ( i < 0 || i >= GX-1 ) { fx = 0.0; }
+    if ( j < 0 || j >= GY-1 ) { fy = 0.0; }
+
+    int im1 = constrain( i-1, 0, GX-1 );
+    int i0 = constrain( i, 0, GX-1 );
+    int i1 = constrain( i+1, 0, GX-1 );
+    int i2 = constrain( i+2, 0, GX-1 );
+    int am1 = IX( 0, constrain( j-1, 0, GY-1 ) );
+    int a0 = IX( 0, constrain( j, 0, GY-1 ) );
+    int a1 = IX( 0, constrain( j+1, 0, GY-1 ) );
+    int a2 = IX( 0, constrain( j+2, 0, GY-1 ) );
+    return MonotonicCubic(
+        MonotonicCubic( q[am1+im1], q[am1+i0], q[am1+i1], q[am1+i2], fx ),
+        MonotonicCubic( q[a0+im1], q[a0+i0], q[a0+i1], q[a0+i2], fx ),
+        MonotonicCubic( q[a1+im1], q[a1+i0], q[a1+i1], q[a1+i2], fx ),
+        MonotonicCubic( q[a2+im1], q[a2+i0], q[a2+i1], q[a2+i2], fx ),
+        fy );
+}
+
+//-*****************************************************************************
+static float Sample( float[] q, float x, float y, int i_sampler )
+{
+    return ( i_sampler == AS_Cubic ) ? SampleCubic( q, x, y ) :
+        SampleLinear( q, x, y );
+}
+
+//-*****************************************************************************
+// The range of q over the four samples around (x,y), into o_range.
+static void SampleRange( float[] q, float x, float y, float[] o_range )
+{
+    int i0 = constrain( ( int )floor( x ), 0, GX-1 );
+    int j0 = constrain( ( int )floor( y ), 0, GY-1 );
+    int i1 = min( i0+1, GX-1 );
+    int j1 = min( j0+1, GY-1 );
+    float q00 = q[IX(i0,j0)];
+    float q10 = q[IX(i1,j0)];
+    float q01 = q[IX(i0,j1)];
+    float q11 = q[IX(i1,j1)];
+    o_range[0] = min( min( q00, q10 ), min( q01, q11 ) );
+    o_range[1] = max( max( q00, q10 ), max( q01, q11 ) );
+}
+
+//-*****************************************************************************
+// Trace cell (i,j) through the velocity (U,V) for a time i_dt - backward
+// in time for a positive i_dt - and put the grid position it lands on in
+// o_pos.
+//-*****************************************************************************
+static void TraceCell( float[] U, float[] V, int i, int j, float i_dt, int i_trace,
+                float[] o_pos )
+{
+    float s = i_dt / DXY;
+    float x = ( float )i;
+    float y = ( float )j;
+    int a = IX(i,j);
+    if ( i_trace == TR_Euler )
+    {
+        o_pos[0] = x - s * U[a];
+        o_pos[1] = y - s * V[a];
+    }
+    else if ( i_trace == TR_RK2 )
+    {
+        float xm = x - 0.5 * s * U[a];
+        float ym = y - 0.5 * s * V[a];
+        o_pos[0] = x - s * SampleLinear( U, xm, ym );
+        o_pos[1] = y - s * SampleLinear( V, xm, ym );
+    }
+    else
+    {
+        float u1 = U[a];
+        float v1 = V[a];
+        float x2 = x - 0.5 * s * u1;
+        float y2 = y - 0.5 * s * v1;
+        float u2 = SampleLinear( U, x2, y2 );
+        float v2 = SampleLinear( V, x2, y2 );
+        float x3 = x - 0.5 * s * u2;
+        float y3 = y - 0.5 * s * v2;
+        float u3 = SampleLinear( U, x3, y3 );
+        float v3 = SampleLinear( V, x3, y3 );
+        float x4 = x - s * u3;
+        float y4 = y - s * v3;
+        float u4 = SampleLinear( U, x4, y4 );
+        float v4 = SampleLinear( V, x4, y4 );
+        o_pos[0] = x - s * ( u1 + 2.0 * u2 + 2.0 * u3 + u4 ) / 6.0;
+        o_pos[1] = y - s * ( v1 + 2.0 * v2 + 2.0 * v3 + v4 ) / 6.0;
+    }
+}
+
+//-*****************************************************************************
+// Trace a value of a field of type i_bType back from cell (i,j), and put
+// the position to sample the field at, in its own cells, in o_pos. On a
+// staggered grid (see the MACGrid tab) the value lives on a face.
+//-*****************************************************************************
+static void TraceField( float[] U, float[] V, int i, int j, float i_dt,
+                 int i_trace, int i_bType, float[] o_pos )
+{
+    if ( !UseMACGrid )
+    {
+        TraceCell( U, V, i, j, i_dt, i_trace, o_pos );
+        return;
+    }
+    float ox = StaggerX( i_bType );
+    float oy = StaggerY( i_bType );
+    TracePointMAC( U, V, ( float )i + ox, ( float )j + oy, i_dt, i_trace,
+                   o_pos );
+    o_pos[0] -= ox;
+    o_pos[1] -= oy;
+}
+
+//-*****************************************************************************
+// Advect the fields i_olds into o_news over cells i_iBegin up to i_iEnd of
+// rows i_jBegin up to i_jEnd, tracing back through (U,V) for i_dt. A
+// negative i_dt advects backward in time.
+//-*****************************************************************************
+static void AdvectBlockMode( float[][] i_olds, float[][] o_news,
+                      float[] U, float[] V, float i_dt, AdvectionMode i_mode,
+                      int[] i_bTypes,
+                      int i_iBegin, int i_iEnd, int i_jBegin, int i_jEnd )
+{
+    float[] pos = AdvectWorkerTemps.get().Pos;
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
+    {
+        int a = IX(i_iBegin,j);
+        for ( int i = i_iBegin; i < i_iEnd; ++i, ++a )
+        {
+            for ( int f = 0; f < o_news.length; ++f )
+            {
+                if ( f == 0 || UseMACGrid )
+                {
+                    TraceField( U, V, i, j, i_dt, i_mode.Trace, i_bTypes[f],
+                                pos );
+                }
+                o_news[f][a] = Sample( i_olds[f], pos[0], pos[1],
+                                       i_mode.Sampler );
+            }
+        }
+    }
+}
+
+//-*****************************************************************************
+// Set the side boundaries of rows i_jBegin up to i_jEnd of every field.
+static void SetFieldSideBoundaries( float[][] io_qs, int[] i_bTypes,
+                             int i_jBegin, int i_jEnd )
+{
+    for ( int f = 0; f < io_qs.length; ++f )
+    {
+        SetSideBoundariesFor( io_qs[f], i_bTypes[f], i_jBegin, i_jEnd );
+    }
+}
+
+static void SetFieldEndBoundaries( float[][] io_qs, int[] i_bTypes )
+{
+    for ( int f = 0; f < io_qs.length; ++f )
+    {
+        SetEndBoundariesFor( io_qs[f], i_bTypes[f] );
+    }
+}
+
+//-*****************************************************************************
+// One advection pass over the whole interior, and the boundaries.
+//-*****************************************************************************
+static void AdvectPass( final float[][] i_olds, final float[][] o_news,
+                 final float[] U, final float[] V, final float i_dt,
+                 final AdvectionMode i_mode, final int[] i_bTypes )
+{
+    RunInteriorRows( new RowKernel() { void Rows( int j0, int j1 ) {
+        AdvectBlockMode( i_olds, o_news, U, V, i_dt, i_mode, i_bTypes,
+                         1, NX+1, j0, j1 );
+        SetFieldSideBoundaries( o_news, i_bTypes, j0, j1 );
+    } } );
+    SetFieldEndBoundaries( o_news, i_bTypes );
+}
+
+//-*****************************************************************************
+// The last pass of both corrections. For every cell, i_corr holds either
+// the corrected value itself (MacCormack) or a corrected old field to
+// resample at the traced-back point (BFECC). Wherever the result falls
+// outside the old field's values around the traced-back point, the plain
+// semi-Lagrangian value already in io_news is kept.
+//-*****************************************************************************
+static void LimitCorrectionBlock( float[][] i_olds, float[][] i_corr,
+                           float[][] io_news, float[] U, float[] V,
+                           AdvectionMode i_mode, int[] i_bTypes,
+                           int i_iBegin, int i_iEnd, int i_jBegin, int i_jEnd )
+{
+    boolean resample = ( i_mode.Scheme == AC_BFECC );
+    AdvectTemps temps = AdvectWorkerTemps.get();
+    float[] pos = temps.Pos;
+    float[] range = temps.Range;
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
+    {
+        int a = IX(i_iBegin,j);
+        for ( int i = i_iBegin; i < i_iEnd; ++i, ++a )
+        {
+            for ( int f = 0; f < io_news.length; ++f )
+            {
+                if ( f == 0 || UseMACGrid )
+                {
+                    TraceField( U, V, i, j, DT, i_mode.Trace, i_bTypes[f],
+                                pos );
+                }
+                float r = resample ?
+                    Sample( i_corr[f], pos[0], pos[1], i_mode.Sampler ) :
+                    i_corr[f][a];
+                SampleRange( i_olds[f], pos[0], pos[1], range );
+                if ( r >= range[0] && r <= range[1] )
+                {
+                    io_news[f][a] = r;
+                }
+            }
+        }
+    }
+}
+
+//-*****************************************************************************
+// Advect the fields i_OldQs into o_NewQs by the velocity (i_GridU,i_GridV)
+// with i_mode.
+//-*****************************************************************************
+static void AdvectFieldsWithMode( int[] i_OldQs, int[] o_NewQs,
+                           int i_GridU, int i_GridV, final int[] i_bTypes,
+                           final AdvectionMode i_mode )
+{
+    if ( i_mode.IsDefault() && !UseMACGrid )
+    {
+        SemiLagrangianAdvectFields( i_OldQs, o_NewQs, i_GridU, i_GridV,
+                                    i_bTypes );
+        return;
+    }
+
+    int numFields = o_NewQs.length;
+    if ( AdvectFieldLists.length <= numFields )
+    {
+        AdvectFieldLists = ( float[][][][] )expand( AdvectFieldLists,
+                                                    numFields + 1 );
+    }
+    if ( AdvectFieldLists[numFields] == null )
+    {
+        AdvectFieldLists[numFields] = new float[3][numFields][];
+    }
+    final float[][] olds = AdvectFieldLists[numFields][0];
+    final float[][] news = AdvectFieldLists[numFields][1];
+    for ( int f = 0; f < numFields; ++f )
+    {
+        olds[f] = State[i_OldQs[f]];
+        news[f] = State[o_NewQs[f]];
+    }
+    final float[] U = State[i_GridU];
+    final float[] V = State[i_GridV];
+
+    AdvectPass( olds, news, U, V, DT, i_mode, i_bTypes );
+    if ( i_mode.Scheme != AC_None )
+    {
+        CorrectAdvection( olds, news, U, V, i_mode, i_bTypes );
+    }
+
+    // Keep the lists, but not the fields, which may be resized or let go.
+    java.util.Arrays.fill( olds, null );
+    java.util.Arrays.fill( news, null );
+}
+
+//-*****************************************************************************
+// MacCormack or BFECC, after the forward pass has advected i_olds into
+// io_news.
+//-*****************************************************************************
+static void CorrectAdvection( final float[][] i_olds, final float[][] io_news,
+                       final float[] U, final float[] V,
+                       final AdvectionMode i_mode, final int[] i_bTypes )
+{
+    // Back again, from the new fields to where we started.
+    int numFields = io_news.length;
+    if ( AdvectScratch.length < numFields ||
+         AdvectScratch[0].length != GridArraySize )
+    {
+        AdvectScratch = new float[max( 2, numFields )][GridArraySize];
+    }
+    final float[][] back = AdvectFieldLists[numFields][2];
+    for ( int f = 0; f < numFields; ++f )
+    {
+        back[f] = AdvectScratch[f];
+    }
+    AdvectPass( io_news, back, U, V, -DT, i_mode, i_bTypes );
+
+    // Half the round trip's error. MacCormack adds it to the new fields;
+    // BFECC subtracts it from the old ones, to be advected again.
+    final boolean bfecc = ( i_mode.Scheme == AC_BFECC );
+    RunInteriorRows( new RowKernel() { void Rows( int j0, int j1 ) {
+        for ( int f = 0; f < back.length; ++f )
+        {
+            float[] q0 = i_olds[f];
+            float[] q1 = io_news[f];
+            float[] qb = back[f];
+            int aEnd = IX(NX+1,j1-1);
+            for ( int a = IX(1,j0); a < aEnd; ++a )
+            {
+                qb[a] = ( bfecc ? q0[a] : q1[a] ) + 0.5 * ( q0[a] - qb[a] );
+            }
+        }
+        if ( bfecc )
+        {
+            SetFieldSideBoundaries( back, i_bTypes, j0, j1 );
+        }
+    } } );
+    if ( bfecc )
+    {
+        SetFieldEndBoundaries( back, i_bTypes );
+    }
+
+    RunInteriorRows( new RowKernel() { void Rows( int j0, int j1 ) {
+        LimitCorrectionBlock( i_olds, back, io_news, U, V, i_mode, i_bTypes,
+                              1, NX+1, j0, j1 );
+        SetFieldSideBoundaries( io_news, i_bTypes, j0, j1 );
+    } } );
+    SetFieldEndBoundaries( io_news, i_bTypes );
+}
+
+//-*****************************************************************************
+// The uncorrected modes on the processed tiles only.
+static void AdvectOnTilesWithMode( int i_OldQ, int o_NewQ, int i_GridU,
+                            int i_GridV, int i_bType,
+                            final AdvectionMode i_mode )
+{
+    final int[] bTypes = { i_bType };
+    final float[][] olds = { State[i_OldQ] };
+    final float[][] news = { State[o_NewQ] };
+    final float[] U = State[i_GridU];
+    final float[] V = State[i_GridV];
+    RunProcessedTiles( new TileKernel() { void Block( int i0, int i1,
+                                                      int j0, int j1 ) {
+        AdvectBlockMode( olds, news, U, V, DT, i_mode, bTypes,
+                         i0, i1, j0, j1 );
+    } } );
+    EnforceBoundaryConditions( o_NewQ, i_bType );
+}
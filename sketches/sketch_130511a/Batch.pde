@@ -0,0 +1,456 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// BATCH (HEADLESS) RUNNER
+//
+// Running the sketch normally, FluidTimeStep is called once per draw(), so
+// the solver can never go faster than the display frame rate, and every
+// step pays for drawing the density. In batch mode we never open a window
+// and never draw - we just run the time step as fast as we can, driven by
+// a script instead of the mouse, and write out only the frames we ask for.
+//
+// Launch from the command line with:
+//   java sketch_130511a --batch steps=10000 frames=100 out=frames \
+//       script=input.txt stats=100 cache=frames.smk \
+//       checkpoint=500 checkpointdir=checkpoints resume=1 cfl=2 \
+//       denadvect=maccormack,cubic veladvect=bfecc,rk2 mac=1 \
+//       size=256 depth=256 render=png renderscale=2 rendervel=1 half=1
+//
+// denadvect and veladvect set the advection mode of the density and the
+// velocity; see the Advection tab for the names. mac=1 staggers the
+// velocity (see the MACGrid tab). size=N runs an N by N grid, and depth=N
+// runs the 3D solver, N cells deep (see the Smoke3D tab). render=png or
+// render=raw writes the frames through the offline renderer, on its own
+// thread, instead of as PGM files (see the Renderer tab). warmstart=1
+// starts each pressure solve from the last step's pressure, and
+// warmstart=2 from its extrapolation; jacobitol and jacobiiters set when
+// the Jacobi iterations stop (see the WarmStart tab). half=1 keeps the
+// density in half floats (see the HalfFields tab).
+//
+// Every argument after --batch is optional. The solver's state and
+// functions are static members of the sketch, so batch mode runs them
+// without ever constructing the PApplet: it needs no display, and works
+// with java.awt.headless=true. Only setup(), draw() and the code that
+// reads the mouse and keys are instance methods.
+//-*****************************************************************************
+//-*****************************************************************************
+
+// The input script. Each keyframe holds an emitter that is active from
+// its first step to its last step (inclusive), at a position in window
+// pixels, moving with a velocity in pixels per step. If EmitDensity is
+// zero, the keyframe only adds velocity, like a right-mouse drag.
+static int NumScriptKeys = 0;
+static int[] ScriptFirstStep = new int[0];
+static int[] ScriptLastStep = new int[0];
+static float[] ScriptPosX = new float[0];
+static float[] ScriptPosY = new float[0];
+static float[] ScriptVelX = new float[0];
+static float[] ScriptVelY = new float[0];
+static boolean[] ScriptEmitDensity = new boolean[0];
+
+// Batch settings.
+static int BatchSteps = 1000;
+static int BatchFrameInterval = 0;
+static String BatchOutputDir = "frames";
+static String BatchScriptFile = null;
+static String BatchCacheFile = null;
+static boolean BatchResume = false;
+static boolean BatchRender = false;
+
+//-*****************************************************************************
+static void AddScriptKey( int i_first, int i_last,
+                   float i_posX, float i_posY,
+                   float i_velX, float i_velY,
+                   boolean i_emitDensity )
+{
+    ScriptFirstStep = append( ScriptFirstStep, i_first );
+    ScriptLastStep = append( ScriptLastStep, i_last );
+    ScriptPosX = append( ScriptPosX, i_posX );
+    ScriptPosY = append( ScriptPosY, i_posY );
+    ScriptVelX = append( ScriptVelX, i_velX );
+    ScriptVelY = append( ScriptVelY, i_velY );
+    ScriptEmitDensity = ( boolean[] )expand( ScriptEmitDensity,
+                                             NumScriptKeys + 1 );
+    ScriptEmitDensity[NumScriptKeys] = i_emitDensity;
+    ++NumScriptKeys;
+}
+
+//-*****************************************************************************
+// Load an input script. One keyframe per line:
+//   firstStep lastStep posX posY velX velY emitDensity
+// Blank lines and lines starting with '#' are ignored.
+//-*****************************************************************************
+static void LoadScript( String i_fileName )
+{
+    String[] lines = loadStrings( new java.io.File( i_fileName ) );
+    if ( lines == null )
+    {
+        println( "Could not read script: " + i_fileName );
+        return;
+    }
+
+    for ( int l = 0; l < lines.length; ++l )
+    {
+        String line = trim( lines[l] );
+        if ( line.length() == 0 || line.charAt( 0 ) == '#' )
+        {
+            continue;
+        }
+
+        String[] tok = splitTokens( line );
+        if ( tok.length < 7 )
+        {
+            println( "Bad script line " + ( l+1 ) + ": " + line );
+            continue;
+        }
+
+        AddScriptKey( parseInt( tok[0] ), parseInt( tok[1] ),
+                      parseFloat( tok[2] ), parseFloat( tok[3] ),
+                      parseFloat( tok[4] ), parseFloat( tok[5] ),
+                      parseInt( tok[6] ) != 0 );
+    }
+}
+
+//-*****************************************************************************
+// If no script is given, emit from a source that circles the middle of
+// the domain, so that there's always something to simulate.
+//-*****************************************************************************
+static void MakeDefaultScript( int i_numSteps )
+{
+    float cenX = 0.5 * WindowWidth;
+    float cenY = 0.5 * WindowHeight;
+    float radius = 0.25 * min( WindowWidth, WindowHeight );
+    int keyLength = 10;
+    for ( int step = 0; step < i_numSteps; step += keyLength )
+    {
+        float theta = TWO_PI * ( float )step / 600.0;
+        float posX = cenX + radius * cos( theta );
+        float posY = cenY + radius * sin( theta );
+        float speed = radius * TWO_PI / 600.0;
+        AddScriptKey( step, step + keyLength - 1, posX, posY,
+                      -speed * sin( theta ), speed * cos( theta ),
+                      true );
+    }
+}
+
+//-*****************************************************************************
+// Set the input from the script for the given step. Every keyframe that
+// covers the step is an emitter, and the input source is left at the last
+// one.
+//-*****************************************************************************
+static void GetScriptedInput( int i_step )
+{
+    InputDensityActive = false;
+    InputVelocityActive = false;
+    ClearEmitters();
+
+    for ( int k = 0; k < NumScriptKeys; ++k )
+    {
+        if ( i_step < ScriptFirstStep[k] || i_step > ScriptLastStep[k] )
+        {
+            continue;
+        }
+
+        float t = ( float )( i_step - ScriptFirstStep[k] );
+        InputPosX = ScriptPosX[k] + t * ScriptVelX[k];
+        InputPosY = ScriptPosY[k] + t * ScriptVelY[k];
+        InputPrevPosX = InputPosX - ScriptVelX[k];
+        InputPrevPosY = InputPosY - ScriptVelY[k];
+        InputVelocityActive = true;
+        InputDensityActive = ScriptEmitDensity[k];
+        AddInputEmitter();
+    }
+}
+
+//-*****************************************************************************
+// Quantize rows i_jBegin up to i_jEnd of a scalar field's interior to bytes,
+// clamping to [0,1].
+//-*****************************************************************************
+static void ScalarRowsToBytes( int i_field, int i_jBegin, int i_jEnd, byte[] o_pixels )
+{
+    int p = 0;
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
+    {
+        for ( int i = 1; i <= NX; ++i )
+        {
+            float d = constrain( FieldValue( i_field, IX(i,j) ), 0.0, 1.0 );
+            o_pixels[p++] = ( byte )( int )( 255.0 * d + 0.5 );
+        }
+    }
+}
+
+//-*****************************************************************************
+// Write the interior of a scalar field as an 8-bit binary PGM. This doesn't
+// touch StateImage or any of the drawing functions.
+//-*****************************************************************************
+static void WriteScalarFieldPGM( int i_field, String i_fileName )
+{
+    byte[] header = ( "P5\n" + NX + " " + NY + "\n255\n" ).getBytes();
+    byte[] pixels = new byte[NX*NY];
+    ScalarRowsToBytes( i_field, 1, NY+1, pixels );
+
+    try
+    {
+        java.io.OutputStream out =
+            createOutput( new java.io.File( i_fileName ) );
+        out.write( header );
+        out.write( pixels );
+        out.close();
+    }
+    catch ( java.io.IOException e )
+    {
+        println( "Could not write frame: " + i_fileName );
+    }
+}
+
+//-*****************************************************************************
+// Run the given number of steps as fast as possible, writing the density
+// every i_frameInterval steps (never, if it's zero).
+//-*****************************************************************************
+static void RunBatch( int i_numSteps, int i_frameInterval, String i_outDir )
+{
+    long startTime = System.nanoTime();
+    int numFrames = 0;
+
+    if ( BatchRender )
+    {
+        StartRenderer( i_outDir );
+    }
+
+    // A restored checkpoint picks up from the step it was saved at.
+    int firstStep = SimStep;
+    for ( int step = firstStep; step < i_numSteps; ++step )
+    {
+        GetScriptedInput( step );
+        AdvanceFrame();
+
+        // With cache=, every step goes to the frame cache.
+        if ( FrameCacheWritable )
+        {
+            AppendFrame( step + 1 );
+        }
+
+        if ( i_frameInterval > 0 && ( ( step + 1 ) % i_frameInterval ) == 0 )
+        {
+            if ( BatchRender )
+            {
+                QueueRenderFrame( step + 1 );
+            }
+            else
+            {
+                WriteScalarFieldPGM( GridDensity,
+                                     i_outDir + "/density." +
+                                     nf( step + 1, 6 ) + ".pgm" );
+            }
+            ++numFrames;
+        }
+
+        if ( CheckpointInterval > 0 && ( ( step + 1 ) % CheckpointInterval ) == 0 )
+        {
+            SaveCheckpoint( CheckpointDir );
+        }
+    }
+
+    // The time includes writing the last of the rendered frames.
+    FinishRenderer();
+
+    float seconds = ( float )( System.nanoTime() - startTime ) / 1.0e9;
+    int numSteps = i_numSteps - firstStep;
+    println( "Ran " + numSteps + " steps of " + NX + "x" + NY +
+             " in " + seconds + " seconds (" +
+             ( ( float )numSteps / seconds ) + " steps/sec), wrote " +
+             numFrames + " frames." );
+}
+
+//-*****************************************************************************
+// Split a key=value argument at its first '=', so that the value can hold
+// more of them (jvm=-Dkey=value). Without an '=', the argument is returned
+// alone.
+//-*****************************************************************************
+static String[] SplitKeyValue( String i_arg )
+{
+    int eq = i_arg.indexOf( '=' );
+    if ( eq < 0 )
+    {
+        return new String[] { i_arg };
+    }
+    return new String[] { i_arg.substring( 0, eq ), i_arg.substring( eq + 1 ) };
+}
+
+//-*****************************************************************************
+// Parse the key=value arguments of a batch run. Unknown keys are ignored.
+//-*****************************************************************************
+static void ParseBatchArgs( String[] i_args )
+{
+    for ( int a = 0; a < i_args.length; ++a )
+    {
+        String[] kv = SplitKeyValue( i_args[a] );
+        if ( kv.length != 2 )
+        {
+            continue;
+        }
+        if ( kv[0].equals( "steps" ) )
+        {
+            BatchSteps = parseInt( kv[1] );
+        }
+        else if ( kv[0].equals( "frames" ) )
+        {
+            BatchFrameInterval = parseInt( kv[1] );
+        }
+        else if ( kv[0].equals( "out" ) )
+        {
+            BatchOutputDir = kv[1];
+        }
+        else if ( kv[0].equals( "script" ) )
+        {
+            BatchScriptFile = kv[1];
+        }
+        else if ( kv[0].equals( "cache" ) )
+        {
+            BatchCacheFile = kv[1];
+        }
+        else if ( kv[0].equals( "checkpoint" ) )
+        {
+            CheckpointInterval = parseInt( kv[1] );
+        }
+        else if ( kv[0].equals( "checkpointdir" ) )
+        {
+            CheckpointDir = kv[1];
+        }
+        else if ( kv[0].equals( "resume" ) )
+        {
+            BatchResume = kv[1].equals( "1" );
+        }
+        else if ( kv[0].equals( "cfl" ) )
+        {
+            TargetCFL = parseFloat( kv[1] );
+            UseAdaptiveTimeStep = TargetCFL > 0.0;
+        }
+        else if ( kv[0].equals( "render" ) )
+        {
+            BatchRender = true;
+            RenderFormat = kv[1].equals( "raw" ) ? RF_Raw : RF_PNG;
+        }
+        else if ( kv[0].equals( "renderscale" ) )
+        {
+            RenderScale = max( 1, parseInt( kv[1] ) );
+        }
+        else if ( kv[0].equals( "rendervel" ) )
+        {
+            RenderVelocity = kv[1].equals( "1" );
+        }
+        else if ( kv[0].equals( "size" ) )
+        {
+            int n = parseInt( kv[1] );
+            ResizeGrid( n, n );
+        }
+        else if ( kv[0].equals( "depth" ) )
+        {
+            Depth3D = parseInt( kv[1] );
+        }
+        else if ( kv[0].equals( "mac" ) )
+        {
+            SetUseMACGrid( kv[1].equals( "1" ) );
+        }
+        else if ( kv[0].equals( "denadvect" ) )
+        {
+            ParseAdvectionMode( kv[1], DensityAdvection );
+        }
+        else if ( kv[0].equals( "veladvect" ) )
+        {
+            ParseAdvectionMode( kv[1], VelocityAdvection );
+        }
+        else if ( kv[0].equals( "warmstart" ) )
+        {
+            PressureWarmStart = constrain( parseInt( kv[1] ), PW_Zero,
+                                           PW_Extrapolate );
+        }
+        else if ( kv[0].equals( "jacobitol" ) )
+        {
+            JacobiTolerance = parseFloat( kv[1] );
+        }
+        else if ( kv[0].equals( "jacobiiters" ) )
+        {
+            JacobiMaxIterations = max( 1, parseInt( kv[1] ) );
+        }
+        else if ( kv[0].equals( "half" ) )
+        {
+            SetUseHalfDensity( kv[1].equals( "1" ) );
+        }
+        else if ( kv[0].equals( "stats" ) )
+        {
+            StatsDumpInterval = parseInt( kv[1] );
+            CollectStats = StatsDumpInterval > 0;
+        }
+    }
+}
+
+//-*****************************************************************************
+// Parse the arguments following --batch, then run.
+//-*****************************************************************************
+static void RunBatchFromArgs( String[] i_args )
+{
+    ParseBatchArgs( i_args );
+
+    if ( Depth3D > 0 )
+    {
+        SetUse3D( true );
+    }
+
+    if ( BatchScriptFile != null )
+    {
+        LoadScript( BatchScriptFile );
+    }
+    else
+    {
+        MakeDefaultScript( BatchSteps );
+    }
+
+    // Resuming restores the latest checkpoint, after which the run carries
+    // on to the same total number of steps.
+    if ( BatchResume )
+    {
+        RestoreLatestCheckpoint( CheckpointDir );
+    }
+
+    if ( BatchCacheFile != null )
+    {
+        CreateFrameCache( BatchCacheFile );
+    }
+
+    RunBatch( BatchSteps, BatchFrameInterval, BatchOutputDir );
+    CloseFrameCache();
+}
+
+//-*****************************************************************************
+// With --batch, run the solver without a window. With --bench, run the
+// kernel benchmarks instead (see the Benchmark tab). With --distributed or
+// --worker, run split across processes (see the Distributed tab). None of
+// them constructs the sketch. Otherwise, start the sketch as usual.
+//-*****************************************************************************
+static public void main( String[] args )
+{
+    if ( args.length > 0 && args[0].equals( "--batch" ) )
+    {
+        RunBatchFromArgs( subset( args, 1 ) );
+    }
+    else if ( args.length > 0 && args[0].equals( "--bench" ) )
+    {
+        RunBenchmarksFromArgs( subset( args, 1 ) );
+    }
+    else if ( args.length > 0 && args[0].equals( "--distributed" ) )
+    {
+        RunDistributedFromArgs( subset( args, 1 ) );
+    }
+    else if ( args.length > 0 && args[0].equals( "--worker" ) )
+    {
+        RunWorkerFromArgs( subset( args, 1 ) );
+    }
+    else
+    {
+        PApplet.main( concat( new String[] { "sketch_130511a" }, args ) );
+    }
+}
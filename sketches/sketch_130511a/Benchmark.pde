@@ -0,0 +1,352 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// KERNEL BENCHMARKS
+//
+// The frame rate tells us very little about where the time goes, since it
+// includes drawing and is capped by the display. Instead, the benchmarks
+// run each stage of the solver on its own, over a range of grid sizes,
+// and report how long it takes per interior cell, and how fast it moves
+// data through memory.
+//
+// Each benchmark is timed the way a microbenchmark harness would do it:
+// the kernel is first run for BenchWarmupSeconds so that the JIT has
+// compiled it, then run repeatedly for BenchMeasureSeconds in each of
+// BenchTrials trials. We report the best trial, which is the one least
+// disturbed by the garbage collector and everything else on the machine.
+//
+// The bytes per cell are the minimum a kernel has to read and write from
+// the State arrays (4 bytes per float); neighbor reads are assumed to hit
+// the cache. GB/s is those bytes over the measured time, so it's a lower
+// bound on the real memory traffic.
+//
+// Launch from the command line with:
+//   java -Xmx2g sketch_130511a --bench sizes=64,128,256,512,1024,2048
+//
+// Every argument after --bench is optional. The largest grids need a
+// bigger heap than the JVM's default. backend=scalar, flat or both
+// picks the kernel backends to time (see the Kernels tab); the two are
+// checked against each other at every size first.
+//-*****************************************************************************
+//-*****************************************************************************
+
+// Benchmark settings.
+static float BenchWarmupSeconds = 0.5;
+static float BenchMeasureSeconds = 0.5;
+static int BenchTrials = 3;
+static int[] BenchSizes = { 64, 128, 256, 512, 1024, 2048 };
+
+//-*****************************************************************************
+// A kernel to be timed. Cells is the number of cells it works on, and
+// Bytes the number of bytes it reads and writes, for one call of Run.
+static abstract class BenchKernel
+{
+    String Name;
+    BenchKernel( String i_name ) { Name = i_name; }
+    abstract void Run();
+    long Cells() { return ( long )NX * ( long )NY; }
+    long Bytes() { return 0; }
+}
+
+//-*****************************************************************************
+// Reallocate the simulation for a new interior size. Everything that
+// depends on the grid size is rebuilt, and the state is cleared.
+//-*****************************************************************************
+static void ResizeGrid( int i_nx, int i_ny )
+{
+    NX = i_nx;
+    NY = i_ny;
+    DXY = LX / ( float )NX;
+    LY = DXY * ( float )NY;
+    WindowWidth = NX * CellPixels;
+    WindowHeight = NY * CellPixels;
+    GX = NX+2;
+    GY = NY+2;
+
+    SimGrid = new Grid2D( NX, NY, 1, PadGridRows );
+    GridStride = SimGrid.Stride;
+    GridArraySize = SimGrid.Size;
+    SimFields = NewSimFields( SimGrid );
+    State = SimFields.Data;
+    StateHalf = SimFields.Half;
+    ApplyFieldStorage();
+    StateImage = new PImage( GX, GY, RGB );
+
+    CGResidual = new float[GridArraySize];
+    CGPrecond = new float[GridArraySize];
+    CGDirection = new float[GridArraySize];
+    CGProduct = new float[GridArraySize];
+
+    // The multigrid hierarchy is rebuilt on its next use.
+    MGNumLevels = 0;
+    InvalidateInputBoxes();
+    ResetPressureHistory();
+}
+
+//-*****************************************************************************
+// Fill the velocity and density with a smooth swirl, so that the kernels
+// see realistic values rather than zeros.
+//-*****************************************************************************
+static void FillBenchState()
+{
+    for ( int j = 0; j < GY; ++j )
+    {
+        for ( int i = 0; i < GX; ++i )
+        {
+            float x = TWO_PI * ( float )i / ( float )GX;
+            float y = TWO_PI * ( float )j / ( float )GY;
+            State[GridU][IX(i,j)] = 2.0 * sin( x ) * cos( y );
+            State[GridV][IX(i,j)] = -2.0 * cos( x ) * sin( y );
+            SetFieldValue( GridDensity, IX(i,j),
+                           0.5 + 0.5 * sin( 3.0 * x + y ) );
+        }
+    }
+    CopyArray( GridU, GridPrevU );
+    CopyArray( GridV, GridPrevV );
+    CopyArray( GridDensity, GridPrevDensity );
+}
+
+//-*****************************************************************************
+// Time one kernel, print a line, and return the best ns per cell.
+//-*****************************************************************************
+static float TimeKernel( BenchKernel i_kernel )
+{
+    long warmupEnd = System.nanoTime() + ( long )( BenchWarmupSeconds * 1.0e9 );
+    while ( System.nanoTime() < warmupEnd )
+    {
+        i_kernel.Run();
+    }
+
+    double bestNanosPerRun = Double.MAX_VALUE;
+    for ( int t = 0; t < BenchTrials; ++t )
+    {
+        long measureNanos = ( long )( BenchMeasureSeconds * 1.0e9 );
+        long startTime = System.nanoTime();
+        long elapsed = 0;
+        int runs = 0;
+        do
+        {
+            i_kernel.Run();
+            ++runs;
+            elapsed = System.nanoTime() - startTime;
+        }
+        while ( elapsed < measureNanos );
+
+        bestNanosPerRun = Math.min( bestNanosPerRun,
+                                    ( double )elapsed / ( double )runs );
+    }
+
+    double nsPerCell = bestNanosPerRun / ( double )i_kernel.Cells();
+    String line = String.format( "%-28s %5dx%-5d %10.3f ns/cell",
+                                 i_kernel.Name, NX, NY, nsPerCell );
+    if ( i_kernel.Bytes() > 0 )
+    {
+        // Bytes per nanosecond is GB/s.
+        line += String.format( " %8.2f GB/s",
+                               ( double )i_kernel.Bytes() / bestNanosPerRun );
+    }
+    println( line );
+    return ( float )nsPerCell;
+}
+
+//-*****************************************************************************
+// Run every kernel benchmark at the current grid size.
+//-*****************************************************************************
+static void RunKernelBenchmarks()
+{
+    FillBenchState();
+    final long cells = ( long )NX * ( long )NY;
+
+    TimeKernel( new BenchKernel( "DampArray" ) {
+        // No damping, so that thousands of runs don't leave the density
+        // denormal, which would slow this and everything after it.
+        void Run() { DampArray( GridDensity, 0.0 ); }
+        long Cells() { return ( long )GX * ( long )GY; }
+        long Bytes() { return 8 * Cells(); } } );
+
+    TimeKernel( new BenchKernel( "CopyArray" ) {
+        void Run() { CopyArray( GridDensity, GridTemp0 ); }
+        long Cells() { return ( long )GX * ( long )GY; }
+        long Bytes() { return 8 * Cells(); } } );
+
+    final int[] wholeBox = { 0, GX, 0, GY };
+    TimeKernel( new BenchKernel( "AddScaledBox" ) {
+        void Run() { AddScaledBox( GridTemp0, 1.0e-6, GridDensity,
+                                   wholeBox ); }
+        long Cells() { return ( long )GX * ( long )GY; }
+        long Bytes() { return 12 * Cells(); } } );
+
+    TimeKernel( new BenchKernel( "EnforceBoundaryConditions" ) {
+        void Run() { EnforceBoundaryConditions( GridU, BC_NegateX ); }
+        long Cells() { return 2 * ( long )( NX + NY ); }
+        long Bytes() { return 8 * Cells(); } } );
+
+    // One field advected through the bilinear resample, and three fields
+    // sharing one set of weights as in the time step.
+    TimeKernel( new BenchKernel( "SemiLagrangianAdvect x1" ) {
+        void Run() { SemiLagrangianAdvect( GridPrevDensity, GridDensity,
+                                           GridPrevU, GridPrevV,
+                                           BC_NoNegate ); }
+        long Bytes() { return 16 * cells; } } );
+
+    TimeKernel( new BenchKernel( "SemiLagrangianAdvect x3" ) {
+        void Run() { SemiLagrangianAdvectFields(
+                         new int[] { GridPrevU, GridPrevV, GridPrevDensity },
+                         new int[] { GridU, GridV, GridDensity },
+                         GridPrevU, GridPrevV,
+                         new int[] { BC_NegateX, BC_NegateY, BC_NoNegate } ); }
+        long Bytes() { return 32 * cells; } } );
+
+    // The density through each correction, with the cubic sampler and an
+    // RK2 trace (see the Advection tab).
+    final AdvectionMode benchMode = new AdvectionMode();
+    benchMode.Sampler = AS_Cubic;
+    benchMode.Trace = TR_RK2;
+    for ( int scheme = AC_None; scheme <= AC_BFECC; ++scheme )
+    {
+        benchMode.Scheme = scheme;
+        TimeKernel( new BenchKernel( "Advect " + SchemeNames[scheme] ) {
+            void Run() { AdvectFieldsWithMode( new int[] { GridPrevDensity },
+                                               new int[] { GridDensity },
+                                               GridPrevU, GridPrevV,
+                                               new int[] { BC_NoNegate },
+                                               benchMode ); } } );
+    }
+
+    // Diffuse and the pressure solves run a whole solve per call; the bytes
+    // count every sweep.
+    int savedDiffuseSolver = DiffuseSolver;
+    DiffuseSolver = DS_Jacobi;
+    TimeKernel( new BenchKernel( "Diffuse (Jacobi)" ) {
+        void Run() { Diffuse( GridPrevDensity, GridDensity, D_viscosity,
+                              BC_NoNegate ); }
+        long Bytes() { return DiffuseIterations * 8 * cells; } } );
+    DiffuseSolver = savedDiffuseSolver;
+
+    TimeKernel( new BenchKernel( "ComputeDivergence" ) {
+        void Run() { ComputeDivergence( GridU, GridV, GridTemp0 ); }
+        long Bytes() { return 12 * cells; } } );
+
+    // The solves all start from zero, so every run does the same work.
+    NeedTemp2();
+    TimeKernel( new BenchKernel( "Pressure (Jacobi x10)" ) {
+        void Run() { ComputePressureViaJacobiIterations( GridTemp0,
+                                                         GridPressure,
+                                                         GridTemp2, false ); }
+        long Bytes() { return JacobiMaxIterations * 12 * cells; } } );
+
+    TimeKernel( new BenchKernel( "Pressure (red-black SOR)" ) {
+        void Run() { ComputePressureViaRedBlackSOR( GridTemp0, GridPressure,
+                                                    false ); }
+        long Bytes() { return RedBlackPressureIterations * 12 * cells; } } );
+
+    TimeKernel( new BenchKernel( "Pressure (multigrid)" ) {
+        void Run() { ComputePressureViaMultigrid( GridTemp0, GridPressure,
+                                                  false ); } } );
+
+    TimeKernel( new BenchKernel( "Pressure (CG)" ) {
+        void Run() { ComputePressureViaConjugateGradient( GridTemp0,
+                                                          GridPressure,
+                                                          false ); } } );
+
+    TimeKernel( new BenchKernel( "ApplyNegativeGradient" ) {
+        void Run() { ApplyNegativeGradientOfPressureToVelocity( GridPressure,
+                                                                GridU,
+                                                                GridV ); }
+        long Bytes() { return 20 * cells; } } );
+
+    // The density stages again, on half floats (see the HalfFields tab):
+    // 2 bytes per density value instead of 4. Only the first and last
+    // diffusion sweeps touch the half floats.
+    boolean savedHalf = UseHalfDensity;
+    SetUseHalfDensity( true );
+    TimeKernel( new BenchKernel( "DampArray (half)" ) {
+        void Run() { DampArray( GridDensity, 0.0 ); }
+        long Cells() { return ( long )GX * ( long )GY; }
+        long Bytes() { return 4 * Cells(); } } );
+
+    TimeKernel( new BenchKernel( "SemiLagrangianAdvect x1 (half)" ) {
+        void Run() { SemiLagrangianAdvectHalf( GridPrevDensity, GridDensity,
+                                               GridPrevU, GridPrevV ); }
+        long Bytes() { return 12 * cells; } } );
+
+    savedDiffuseSolver = DiffuseSolver;
+    DiffuseSolver = DS_Jacobi;
+    TimeKernel( new BenchKernel( "Diffuse (Jacobi, half)" ) {
+        void Run() { DiffuseHalfField( GridPrevDensity, GridDensity,
+                                       D_viscosity ); }
+        long Bytes() { return ( DiffuseIterations * 8 - 4 ) * cells; } } );
+    DiffuseSolver = savedDiffuseSolver;
+    SetUseHalfDensity( savedHalf );
+
+    // The whole step, with the current solver choices and no input.
+    FillBenchState();
+    InputDensityActive = false;
+    InputVelocityActive = false;
+    ClearEmitters();
+    TimeKernel( new BenchKernel( "FluidTimeStep" ) {
+        void Run() { FluidTimeStep(); } } );
+}
+
+//-*****************************************************************************
+// Parse the arguments following --bench, then run every benchmark at
+// every size.
+//-*****************************************************************************
+static void RunBenchmarksFromArgs( String[] i_args )
+{
+    int[] backends = { KernelBackend };
+    for ( int a = 0; a < i_args.length; ++a )
+    {
+        String[] kv = SplitKeyValue( i_args[a] );
+        if ( kv.length != 2 )
+        {
+            continue;
+        }
+        if ( kv[0].equals( "sizes" ) )
+        {
+            BenchSizes = parseInt( split( kv[1], ',' ) );
+        }
+        else if ( kv[0].equals( "warmup" ) )
+        {
+            BenchWarmupSeconds = parseFloat( kv[1] );
+        }
+        else if ( kv[0].equals( "measure" ) )
+        {
+            BenchMeasureSeconds = parseFloat( kv[1] );
+        }
+        else if ( kv[0].equals( "trials" ) )
+        {
+            BenchTrials = parseInt( kv[1] );
+        }
+        else if ( kv[0].equals( "backend" ) )
+        {
+            backends = kv[1].equals( "both" ) ? new int[] { KB_Scalar, KB_Flat } :
+                new int[] { kv[1].equals( "scalar" ) ? KB_Scalar : KB_Flat };
+        }
+        else if ( kv[0].equals( "threads" ) )
+        {
+            NumWorkerThreads = parseInt( kv[1] );
+            UseParallelKernels = NumWorkerThreads > 1;
+        }
+    }
+
+    for ( int s = 0; s < BenchSizes.length; ++s )
+    {
+        ResizeGrid( BenchSizes[s], BenchSizes[s] );
+        if ( !CheckKernelBackends() )
+        {
+            println( "The kernel backends disagree at " + NX + "x" + NY );
+        }
+        for ( int b = 0; b < backends.length; ++b )
+        {
+            KernelBackend = backends[b];
+            println( "Kernel benchmarks, " + NumWorkerThreads + " thread(s), " +
+                     ( PadGridRows ? "padded" : "unpadded" ) + " rows, " +
+                     KernelBackendNames[KernelBackend] + " kernels" );
+            RunKernelBenchmarks();
+        }
+    }
+}
@@ -0,0 +1,390 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// CHECKPOINTS
+//
+// A checkpoint holds everything needed to carry on a simulation exactly
+// where it left off: every State array, which array each handle (GridU,
+// GridPrevU, ...) currently points at, the step count and time, and the
+// solver parameters. Restoring one and continuing gives bit-for-bit the
+// same result as never having stopped.
+//
+// Most checkpoints are deltas. A full checkpoint is written every
+// CheckpointFullInterval checkpoints, and is kept in memory as the base;
+// the ones in between store each value's bits XORed with the base's bits.
+// Fields that haven't changed much since the base turn into long runs of
+// zero bits, which the deflate compression that every checkpoint goes
+// through squeezes down to almost nothing - and a delta never depends on
+// anything but its full checkpoint, so restoring is at most two reads.
+//
+// The arrays are stored by role, in the order of the handles, not by which
+// physical array holds them, so a delta compares GridU against GridU even
+// if they've been swapped since the base. Only the GX by GY cells are
+// stored, not any row padding, so a checkpoint doesn't depend on the
+// layout. Each file is written to a temporary name and then renamed, so a
+// crash while writing never leaves a broken checkpoint behind. Half float
+// fields (see the HalfFields tab) are stored as the floats they decode to,
+// which encode back to the same bits, so a checkpoint reads the same
+// whichever way the density is kept.
+//
+// File (all inside a deflate stream):
+//   int magic 'SMCP', int version, int kind (0 full, 1 delta)
+//   int step of this checkpoint, int step of its full base
+//   int NX, int NY, int number of arrays
+//   the handles, one int per array
+//   int step, float time, then the parameters and the velocity layout
+//   the arrays, by role, as the raw bits of GX*GY floats (XORed with the
+//   base for a delta)
+//-*****************************************************************************
+//-*****************************************************************************
+
+import java.util.zip.*;
+
+static int CheckpointMagic = 0x534D4350;
+static int CheckpointVersion = 4;
+static int CK_Full = 0;
+static int CK_Delta = 1;
+
+// Steps between checkpoints in batch mode (zero for none), checkpoints
+// between full ones, and where they go.
+static int CheckpointInterval = 0;
+static int CheckpointFullInterval = 10;
+static String CheckpointDir = "checkpoints";
+
+// The number of frames advanced by AdvanceFrame, and the simulated time,
+// advanced by FluidTimeStep.
+static int SimStep = 0;
+static float SimTime = 0.0;
+
+// The last full checkpoint, by role, as float bits.
+static int[][] CheckpointBase = null;
+static int CheckpointBaseStep = -1;
+static int CheckpointsSinceFull = 0;
+
+//-*****************************************************************************
+// The handles, in role order. Restoring assigns them in the same order.
+static int[] GetHandles()
+{
+    return new int[] { GridPrevU, GridU, GridPrevV, GridV,
+                       GridPrevDensity, GridDensity,
+                       GridInputU, GridInputV, GridInputDensity,
+                       GridTemp0, GridPressure, GridTemp2,
+                       GridPrevPressure };
+}
+
+static void SetHandles( int[] i_h )
+{
+    GridPrevU = i_h[0]; GridU = i_h[1];
+    GridPrevV = i_h[2]; GridV = i_h[3];
+    GridPrevDensity = i_h[4]; GridDensity = i_h[5];
+    GridInputU = i_h[6]; GridInputV = i_h[7]; GridInputDensity = i_h[8];
+    GridTemp0 = i_h[9]; GridPressure = i_h[10]; GridTemp2 = i_h[11];
+    GridPrevPressure = i_h[12];
+}
+
+//-*****************************************************************************
+static String CheckpointFileName( String i_dir, int i_step, int i_kind )
+{
+    return i_dir + "/checkpoint." + nf( i_step, 8 ) +
+        ( ( i_kind == CK_Full ) ? ".full" : ".delta" );
+}
+
+//-*****************************************************************************
+// Write a checkpoint of the current state into i_dir, full or delta as
+// the schedule says, and return its file name (null if it failed).
+//-*****************************************************************************
+static String SaveCheckpoint( String i_dir )
+{
+    // Only the 2D solver is checkpointed; see the Smoke3D tab.
+    if ( Use3D )
+    {
+        println( "Checkpoints don't hold the 3D grid" );
+        return null;
+    }
+    boolean full = ( CheckpointBase == null ||
+                     CheckpointsSinceFull + 1 >= CheckpointFullInterval ||
+                     CheckpointBase[0].length != GX * GY );
+    int kind = full ? CK_Full : CK_Delta;
+    int[] handles = GetHandles();
+    String fileName = CheckpointFileName( i_dir, SimStep, kind );
+
+    if ( full )
+    {
+        CheckpointBase = new int[handles.length][GX * GY];
+        CheckpointBaseStep = SimStep;
+    }
+
+    java.io.File file = new java.io.File( fileName );
+    java.io.File tmpFile = new java.io.File( fileName + ".tmp" );
+    file.getAbsoluteFile().getParentFile().mkdirs();
+    try
+    {
+        java.io.DataOutputStream out = new java.io.DataOutputStream(
+            new java.io.BufferedOutputStream(
+                new DeflaterOutputStream(
+                    new java.io.FileOutputStream( tmpFile ),
+                    new Deflater( Deflater.BEST_SPEED ), 1 << 16 ),
+                1 << 16 ) );
+
+        out.writeInt( CheckpointMagic );
+        out.writeInt( CheckpointVersion );
+        out.writeInt( kind );
+        out.writeInt( SimStep );
+        out.writeInt( CheckpointBaseStep );
+        out.writeInt( NX );
+        out.writeInt( NY );
+        out.writeInt( handles.length );
+        for ( int h = 0; h < handles.length; ++h )
+        {
+            out.writeInt( handles[h] );
+        }
+        WriteCheckpointParameters( out );
+
+        for ( int r = 0; r < handles.length; ++r )
+        {
+            int field = handles[r];
+            int[] base = CheckpointBase[r];
+            // An unallocated temporary is stored as zeros.
+            boolean allocated = SimFields.IsAllocated( field );
+            int b = 0;
+            for ( int j = 0; j < GY; ++j )
+            {
+                int a = IX(0,j);
+                for ( int i = 0; i < GX; ++i, ++a, ++b )
+                {
+                    int bits = allocated ?
+                        Float.floatToRawIntBits( FieldValue( field, a ) ) : 0;
+                    if ( full )
+                    {
+                        base[b] = bits;
+                        out.writeInt( bits );
+                    }
+                    else
+                    {
+                        out.writeInt( bits ^ base[b] );
+                    }
+                }
+            }
+        }
+        out.close();
+    }
+    catch ( java.io.IOException e )
+    {
+        println( "Could not write checkpoint " + fileName + ": " + e );
+        tmpFile.delete();
+        if ( full )
+        {
+            CheckpointBase = null;
+        }
+        return null;
+    }
+
+    file.delete();
+    if ( !tmpFile.renameTo( file ) )
+    {
+        println( "Could not rename checkpoint " + tmpFile );
+        return null;
+    }
+    CheckpointsSinceFull = full ? 0 : CheckpointsSinceFull + 1;
+    return fileName;
+}
+
+//-*****************************************************************************
+static void WriteCheckpointParameters( java.io.DataOutputStream out )
+    throws java.io.IOException
+{
+    out.writeInt( SimStep );
+    out.writeFloat( SimTime );
+    out.writeFloat( LX );
+    out.writeFloat( DT );
+    out.writeFloat( D_viscosity );
+    out.writeFloat( V_viscosity );
+    out.writeFloat( D_damp );
+    out.writeFloat( V_damp );
+    out.writeFloat( EmissionRate );
+    out.writeFloat( DenEmissionRadius );
+    out.writeFloat( VelEmissionRadius );
+    out.writeFloat( Vscale );
+    out.writeInt( PressureSolver );
+    out.writeInt( DiffuseSolver );
+    out.writeInt( UseMACGrid ? 1 : 0 );
+    out.writeInt( PressureWarmStart );
+    out.writeInt( PressureHistory );
+    out.writeInt( JacobiMaxIterations );
+    out.writeFloat( JacobiTolerance );
+    out.writeInt( UseHalfDensity ? 1 : 0 );
+}
+
+static void ReadCheckpointParameters( java.io.DataInputStream in )
+    throws java.io.IOException
+{
+    SimStep = in.readInt();
+    SimTime = in.readFloat();
+    LX = in.readFloat();
+    DT = in.readFloat();
+    D_viscosity = in.readFloat();
+    V_viscosity = in.readFloat();
+    D_damp = in.readFloat();
+    V_damp = in.readFloat();
+    EmissionRate = in.readFloat();
+    DenEmissionRadius = in.readFloat();
+    VelEmissionRadius = in.readFloat();
+    Vscale = in.readFloat();
+    PressureSolver = in.readInt();
+    DiffuseSolver = in.readInt();
+    // The velocity arrays are restored as they are, so this just says how
+    // to read them.
+    UseMACGrid = ( in.readInt() == 1 );
+    PressureWarmStart = in.readInt();
+    PressureHistory = in.readInt();
+    JacobiMaxIterations = in.readInt();
+    JacobiTolerance = in.readFloat();
+    // The storage is switched once the handles are restored.
+    UseHalfDensity = ( in.readInt() == 1 );
+    DXY = LX / ( float )NX;
+    LY = DXY * ( float )NY;
+    FrameDT = DT;
+}
+
+//-*****************************************************************************
+// Restore a checkpoint. A delta first restores its full checkpoint, from
+// the same directory, unless that's already the base in memory. Returns
+// false, leaving the state alone as far as possible, if it can't be read.
+//-*****************************************************************************
+static boolean RestoreCheckpoint( String i_fileName )
+{
+    if ( Use3D )
+    {
+        println( "Checkpoints don't hold the 3D grid" );
+        return false;
+    }
+    java.io.File file = new java.io.File( i_fileName );
+    try
+    {
+        java.io.DataInputStream in = new java.io.DataInputStream(
+            new java.io.BufferedInputStream(
+                new InflaterInputStream(
+                    new java.io.FileInputStream( file ) ), 1 << 16 ) );
+        try
+        {
+            if ( in.readInt() != CheckpointMagic ||
+                 in.readInt() != CheckpointVersion )
+            {
+                println( i_fileName + " is not a checkpoint" );
+                return false;
+            }
+            int kind = in.readInt();
+            int step = in.readInt();
+            int baseStep = in.readInt();
+            int nx = in.readInt();
+            int ny = in.readInt();
+            int[] handles = new int[in.readInt()];
+            for ( int h = 0; h < handles.length; ++h )
+            {
+                handles[h] = in.readInt();
+            }
+            if ( handles.length != NUM_ARRAYS )
+            {
+                println( i_fileName + " has the wrong number of arrays" );
+                return false;
+            }
+
+            if ( kind == CK_Delta &&
+                 ( CheckpointBase == null || CheckpointBaseStep != baseStep ||
+                   nx != NX || ny != NY ) )
+            {
+                String baseName = CheckpointFileName(
+                    file.getAbsoluteFile().getParent(), baseStep, CK_Full );
+                if ( !RestoreCheckpoint( baseName ) )
+                {
+                    return false;
+                }
+            }
+
+            if ( nx != NX || ny != NY )
+            {
+                ResizeGrid( nx, ny );
+            }
+            ReadCheckpointParameters( in );
+            SetHandles( handles );
+            SetUseHalfDensity( UseHalfDensity );
+
+            if ( kind == CK_Full )
+            {
+                CheckpointBase = new int[handles.length][GX * GY];
+                CheckpointBaseStep = step;
+            }
+            for ( int r = 0; r < handles.length; ++r )
+            {
+                int field = handles[r];
+                int[] base = CheckpointBase[r];
+                boolean allocated = SimFields.IsAllocated( field );
+                int b = 0;
+                for ( int j = 0; j < GY; ++j )
+                {
+                    int a = IX(0,j);
+                    for ( int i = 0; i < GX; ++i, ++a, ++b )
+                    {
+                        int bits = in.readInt();
+                        if ( kind == CK_Full )
+                        {
+                            base[b] = bits;
+                        }
+                        else
+                        {
+                            bits ^= base[b];
+                        }
+                        if ( allocated )
+                        {
+                            SetFieldValue( field, a,
+                                           Float.intBitsToFloat( bits ) );
+                        }
+                    }
+                }
+            }
+            CheckpointsSinceFull = 0;
+            ActivateAllTiles();
+            InvalidateInputBoxes();
+            return true;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    catch ( java.io.IOException e )
+    {
+        println( "Could not read checkpoint " + i_fileName + ": " + e );
+        return false;
+    }
+}
+
+//-*****************************************************************************
+// Restore the most recent checkpoint in i_dir, if there is one.
+//-*****************************************************************************
+static boolean RestoreLatestCheckpoint( String i_dir )
+{
+    String[] names = new java.io.File( i_dir ).list();
+    if ( names == null )
+    {
+        return false;
+    }
+
+    // The step is zero padded, so the names sort by step, and a full
+    // checkpoint sorts after a delta of the same step.
+    names = sort( names );
+    for ( int n = names.length - 1; n >= 0; --n )
+    {
+        if ( names[n].startsWith( "checkpoint." ) &&
+             ( names[n].endsWith( ".full" ) || names[n].endsWith( ".delta" ) ) &&
+             RestoreCheckpoint( i_dir + "/" + names[n] ) )
+        {
+            println( "Restored " + names[n] + " at step " + SimStep );
+            return true;
+        }
+    }
+    return false;
+}
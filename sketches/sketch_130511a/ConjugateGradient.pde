@@ -0,0 +1,254 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// PRECONDITIONED CONJUGATE GRADIENT
+//
+// Both the pressure solve and the implicit diffusion are linear systems of
+// the same shape: at every interior cell,
+//
+//   Diag * Q[i,j] - Off * ( Q[i,j-1] + Q[i-1,j] + Q[i+1,j] + Q[i,j+1] ) = B
+//
+// For pressure, multiplying Laplacian( P ) = Div through by -DXY^2 gives
+// Diag = 4, Off = 1, B = -DXY^2 * Div. For diffusion (see Diffuse), with
+// k = DT * viscosity * DXY^2, it's Diag = 1 + 4k, Off = k, B = Qold.
+//
+// That matrix is symmetric and positive (semi-)definite, which is exactly
+// what conjugate gradient needs. We never build the matrix - we just apply
+// the stencil to a whole grid at a time. Like the multigrid solver, the
+// boundary conditions are folded into the stencil: a neighbor in the ghost
+// layer is the center value, possibly negated, so it moves into the
+// diagonal. The preconditioner is the inverse of that diagonal.
+//
+// Unlike the Jacobi loops, CG stops when the residual is small enough,
+// rather than after a fixed number of sweeps.
+//-*****************************************************************************
+//-*****************************************************************************
+
+static int PS_ConjugateGradient = 2;
+
+// Which solver Diffuse uses.
+static int DS_Jacobi = 0;
+static int DS_ConjugateGradient = 1;
+static int DiffuseSolver = DS_Jacobi;
+
+// Stop when |residual| < CGTolerance * |B|, or after CGMaxIterations.
+static float CGTolerance = 0.001;
+static int CGMaxIterations = 500;
+
+// Print a line for every pressure and diffusion solve.
+static boolean ReportSolves = false;
+
+// Work vectors. The solution lives in the State array being solved for.
+static float[] CGResidual = new float[GridArraySize];
+static float[] CGPrecond = new float[GridArraySize];
+static float[] CGDirection = new float[GridArraySize];
+static float[] CGProduct = new float[GridArraySize];
+
+// What the last solve did.
+static int CGLastIterations = 0;
+static float CGLastResidual = 0.0;
+
+//-*****************************************************************************
+// The diagonal of the operator at (i,j), including the folded-in ghosts.
+static float CGDiagonal( int i, int j, float i_diag, float i_off, int i_bType )
+{
+    float d = i_diag;
+    if ( i == 1 )  { d -= i_off * GhostSignX( i_bType ); }
+    if ( i == NX ) { d -= i_off * GhostSignX( i_bType ); }
+    if ( j == 1 )  { d -= i_off * GhostSignY( i_bType ); }
+    if ( j == NY ) { d -= i_off * GhostSignY( i_bType ); }
+    return d;
+}
+
+//-*****************************************************************************
+// o_y = A * i_x, over the interior.
+//-*****************************************************************************
+static void CGApply( float[] i_x, float[] o_y, float i_diag, float i_off,
+              int i_bType )
+{
+    float sx = GhostSignX( i_bType );
+    float sy = GhostSignY( i_bType );
+    for ( int j = 1; j <= NY; ++j )
+    {
+        for ( int i = 1; i <= NX; ++i )
+        {
+            int a = IX(i,j);
+            float xc = i_x[a];
+            float left  = ( i > 1 )  ? i_x[a-1]  : sx * xc;
+            float right = ( i < NX ) ? i_x[a+1]  : sx * xc;
+            float down  = ( j > 1 )  ? i_x[a-GridStride] : sy * xc;
+            float up    = ( j < NY ) ? i_x[a+GridStride] : sy * xc;
+            o_y[a] = ( i_diag * xc ) - i_off * ( left + right + down + up );
+        }
+    }
+}
+
+//-*****************************************************************************
+static float CGDot( float[] i_a, float[] i_b )
+{
+    double sum = 0.0;
+    for ( int j = 1; j <= NY; ++j )
+    {
+        for ( int i = 1; i <= NX; ++i )
+        {
+            sum += i_a[IX(i,j)] * i_b[IX(i,j)];
+        }
+    }
+    return ( float )sum;
+}
+
+//-*****************************************************************************
+// Solve A * State[io_x] = i_b, using whatever is in State[io_x] as the
+// initial guess. i_b may be CGResidual itself, in which case it is
+// overwritten by the residual. Returns the number of iterations.
+//-*****************************************************************************
+static int SolveViaConjugateGradient( float[] i_b, int io_x,
+                               float i_diag, float i_off, int i_bType )
+{
+    float[] x = State[io_x];
+    float[] r = CGResidual;
+    float[] z = CGPrecond;
+    float[] p = CGDirection;
+    float[] q = CGProduct;
+
+    // r = b - A x
+    CGApply( x, q, i_diag, i_off, i_bType );
+    float bNorm = sqrt( CGDot( i_b, i_b ) );
+    for ( int a = 0; a < GridArraySize; ++a )
+    {
+        r[a] = i_b[a] - q[a];
+    }
+
+    // z = M^-1 r, p = z
+    for ( int j = 1; j <= NY; ++j )
+    {
+        for ( int i = 1; i <= NX; ++i )
+        {
+            int a = IX(i,j);
+            z[a] = r[a] / CGDiagonal( i, j, i_diag, i_off, i_bType );
+            p[a] = z[a];
+        }
+    }
+    float rz = CGDot( r, z );
+
+    int iter = 0;
+    float rNorm = sqrt( CGDot( r, r ) );
+    while ( iter < CGMaxIterations && rNorm > CGTolerance * bNorm )
+    {
+        CGApply( p, q, i_diag, i_off, i_bType );
+        float pq = CGDot( p, q );
+        if ( pq <= 0.0 )
+        {
+            break;
+        }
+        float alpha = rz / pq;
+
+        for ( int j = 1; j <= NY; ++j )
+        {
+            for ( int i = 1; i <= NX; ++i )
+            {
+                int a = IX(i,j);
+                x[a] += alpha * p[a];
+                r[a] -= alpha * q[a];
+                z[a] = r[a] / CGDiagonal( i, j, i_diag, i_off, i_bType );
+            }
+        }
+
+        float rzNew = CGDot( r, z );
+        float beta = rzNew / rz;
+        rz = rzNew;
+
+        for ( int j = 1; j <= NY; ++j )
+        {
+            for ( int i = 1; i <= NX; ++i )
+            {
+                int a = IX(i,j);
+                p[a] = z[a] + beta * p[a];
+            }
+        }
+
+        rNorm = sqrt( CGDot( r, r ) );
+        ++iter;
+    }
+
+    CGLastIterations = iter;
+    CGLastResidual = ( bNorm > 0.0 ) ? rNorm / bNorm : 0.0;
+    return iter;
+}
+
+//-*****************************************************************************
+// Pressure, via CG. As with multigrid, only the zero-mean part of the
+// divergence can be removed on a closed box, so that's what we solve for.
+// Starts from zero, or from o_Pressure if i_warmStart.
+//-*****************************************************************************
+static void ComputePressureViaConjugateGradient( int i_Div, int o_Pressure,
+                                          boolean i_warmStart )
+{
+    long startTime = System.nanoTime();
+
+    // B = -DXY^2 * ( Div - mean( Div ) ), built in place in the residual.
+    float[] b = CGResidual;
+    double mean = 0.0;
+    for ( int j = 1; j <= NY; ++j )
+    {
+        for ( int i = 1; i <= NX; ++i )
+        {
+            mean += State[i_Div][IX(i,j)];
+        }
+    }
+    mean /= ( double )( NX * NY );
+
+    java.util.Arrays.fill( b, 0.0 );
+    for ( int j = 1; j <= NY; ++j )
+    {
+        for ( int i = 1; i <= NX; ++i )
+        {
+            b[IX(i,j)] = -sq( DXY ) *
+                ( State[i_Div][IX(i,j)] - ( float )mean );
+        }
+    }
+
+    if ( !i_warmStart )
+    {
+        ZeroArray( o_Pressure );
+    }
+    SolveViaConjugateGradient( b, o_Pressure, 4.0, 1.0, BC_NoNegate );
+    EnforceBoundaryConditions( o_Pressure, BC_NoNegate );
+
+    ReportSolve( "pressure CG", CGLastIterations, CGLastResidual,
+                 System.nanoTime() - startTime );
+}
+
+//-*****************************************************************************
+// Diffusion, via CG. This solves the implicit system described above
+// Diffuse directly, using the old value as the initial guess.
+//-*****************************************************************************
+static void DiffuseViaConjugateGradient( int i_OldQ, int o_NewQ, float i_visc,
+                                  int i_bType )
+{
+    long startTime = System.nanoTime();
+    float k = DT * i_visc * sq( DXY );
+
+    CopyArray( i_OldQ, o_NewQ );
+    SolveViaConjugateGradient( State[i_OldQ], o_NewQ,
+                               1.0 + 4.0*k, k, i_bType );
+    EnforceBoundaryConditions( o_NewQ, i_bType );
+
+    ReportSolve( "diffuse CG", CGLastIterations, CGLastResidual,
+                 System.nanoTime() - startTime );
+}
+
+//-*****************************************************************************
+static void ReportSolve( String i_name, int i_iterations, float i_residual,
+                  long i_nanos )
+{
+    if ( ReportSolves )
+    {
+        println( i_name + " " + NX + "x" + NY + ": " + i_iterations +
+                 " iterations, relative residual " + i_residual + ", " +
+                 ( ( float )i_nanos / 1.0e6 ) + " ms" );
+    }
+}
@@ -0,0 +1,664 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// DOMAIN DECOMPOSITION ACROSS PROCESSES
+//
+// A big enough grid doesn't fit in one JVM. In distributed mode the grid
+// is cut into horizontal slabs, one per worker process, and each worker
+// holds and steps only its own slab. The workers can all be on one host,
+// or on several; they talk over TCP, which on one host is just loopback.
+//
+// Each worker's State is an ordinary grid, NX wide, so every kernel runs
+// on it unchanged. Its interior is the rows it owns, plus DistOverlap rows
+// copied from each neighbor, and its ghost rows are either the walls (at
+// the bottom of the first slab and the top of the last) or more rows from
+// the neighbors. All of those borrowed rows are refreshed whenever a
+// stage finishes a field: SetEndBoundaries, which ends every Jacobi
+// pressure and diffusion sweep, every advection, the divergence and the
+// gradient, fills the walls a slab has and then swaps DistOverlap+1 rows
+// with each neighbor. A stage computes the borrowed rows too, from stale
+// neighbors, but they're thrown away by the swap. The rows a worker owns
+// come out as they would on one big grid, except for rounding: the
+// advection's back-traced positions are in local rows, which round a
+// little differently from the same positions in global rows.
+//
+// Semi-Lagrangian advection reaches back along the velocity, so the
+// overlap has to cover the farthest trace: distributed runs always use
+// adaptive substepping with TargetCFL at most DistOverlap. The largest
+// velocity that picks the substeps, and the divergence and residual
+// measurements of the stats, are reduced over all the workers through
+// rank 0, so every worker takes the same steps.
+//
+// Only the stages that are purely local sweeps are supported: the Jacobi
+// pressure and diffusion solvers and the default advection, on a
+// collocated grid, in 2D, without active tiles, checkpoints, the frame
+// cache or the renderer.
+//
+// Launch every worker on one host with:
+//   java sketch_130511a --distributed ranks=4 jvm=-Xmx2g \
+//       steps=1000 frames=100 out=frames size=4096 script=input.txt
+// which starts four worker JVMs and waits for them. jvm= passes options
+// (comma separated) to each worker. Across hosts, start each worker
+// yourself, with the same arguments and its own rank:
+//   java sketch_130511a --worker rank=2 ranks=4 hosts=a,b,c,d port=47000 \
+//       steps=1000 size=4096
+// Worker r listens on port+r, on the r-th host. Rank 0 gathers the frames
+// and prints the timing.
+//-*****************************************************************************
+//-*****************************************************************************
+
+import java.nio.*;
+import java.nio.channels.*;
+
+// This worker, and how many there are. One means not distributed.
+static int DistRank = 0;
+static int DistRanks = 1;
+
+// Where the workers listen: worker r on DistBasePort + r, on DistHosts[r]
+// (or the only host, if there's just one).
+static int DistBasePort = 47000;
+static String[] DistHosts = { "127.0.0.1" };
+
+// Rows borrowed from each neighbor, beyond the ghost row.
+static int DistOverlap = 3;
+
+// The whole grid's height, this worker's first owned row in it (counting
+// from 1, like the interior), and which of its own rows those are:
+// local row j is global row j + DistRowOffset, and the owned rows are
+// DistOwnedBegin up to DistOwnedEnd.
+static int DistGlobalNY = 0;
+static int DistRowOffset = 0;
+static int DistOwnedBegin = 1;
+static int DistOwnedEnd = 1;
+
+// Links to the neighbors below and above, and to rank 0 (or, on rank 0,
+// from every other rank, by rank).
+static SocketChannel DistDown = null;
+static SocketChannel DistUp = null;
+static SocketChannel DistRoot = null;
+static SocketChannel[] DistLeaves = new SocketChannel[0];
+
+static ByteBuffer DistHaloBuffer = null;
+static ByteBuffer DistScalarBuffer = ByteBuffer.allocateDirect( 8 );
+static byte[] DistFrameRows = new byte[0];
+
+static int DK_Halo = 0;
+static int DK_Root = 1;
+
+//-*****************************************************************************
+// The owned rows of the local grid, which are the whole interior when we
+// aren't distributed.
+static int OwnedRowBegin()
+{
+    return ( DistRanks > 1 ) ? DistOwnedBegin : 1;
+}
+
+static int OwnedRowEnd()
+{
+    return ( DistRanks > 1 ) ? DistOwnedEnd : NY+1;
+}
+
+// The height of the whole grid.
+static int GlobalNY()
+{
+    return ( DistRanks > 1 ) ? DistGlobalNY : NY;
+}
+
+//-*****************************************************************************
+// Cut i_globalNY rows into slabs and make this worker's grid, NX wide.
+//-*****************************************************************************
+static void SetupSlab( int i_globalNY )
+{
+    DistGlobalNY = i_globalNY;
+    int rowBegin = 1 + ( DistRank * i_globalNY ) / DistRanks;
+    int rowEnd = 1 + ( ( DistRank + 1 ) * i_globalNY ) / DistRanks;
+    int overlapBelow = ( DistRank > 0 ) ? DistOverlap : 0;
+    int overlapAbove = ( DistRank < DistRanks - 1 ) ? DistOverlap : 0;
+
+    ResizeGrid( NX, ( rowEnd - rowBegin ) + overlapBelow + overlapAbove );
+    DistRowOffset = rowBegin - 1 - overlapBelow;
+    DistOwnedBegin = 1 + overlapBelow;
+    DistOwnedEnd = DistOwnedBegin + ( rowEnd - rowBegin );
+    DistHaloBuffer = ByteBuffer.allocateDirect(
+        4 * ( DistOverlap + 1 ) * GridStride );
+}
+
+//-*****************************************************************************
+// Connect to the neighbors and to rank 0. Every worker listens first, then
+// connects down and to the root (retrying until they're listening), then
+// accepts whoever connects to it, who say who they are.
+//-*****************************************************************************
+static void ConnectDistributed()
+{
+    try
+    {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReuseAddress( true );
+        server.socket().bind( new java.net.InetSocketAddress(
+            DistBasePort + DistRank ) );
+
+        if ( DistRank > 0 )
+        {
+            DistDown = DistConnect( DistRank - 1, DK_Halo );
+            DistRoot = DistConnect( 0, DK_Root );
+        }
+
+        int expected = ( ( DistRank < DistRanks - 1 ) ? 1 : 0 ) +
+            ( ( DistRank == 0 ) ? DistRanks - 1 : 0 );
+        DistLeaves = new SocketChannel[DistRanks];
+        for ( int c = 0; c < expected; ++c )
+        {
+            SocketChannel ch = server.accept();
+            ch.socket().setTcpNoDelay( true );
+            java.io.DataInputStream hello = new java.io.DataInputStream(
+                ch.socket().getInputStream() );
+            int rank = hello.readInt();
+            int kind = hello.readInt();
+            if ( kind == DK_Halo )
+            {
+                DistUp = ch;
+            }
+            else
+            {
+                DistLeaves[rank] = ch;
+            }
+        }
+        server.close();
+    }
+    catch ( java.io.IOException e )
+    {
+        throw new RuntimeException( e );
+    }
+}
+
+static SocketChannel DistConnect( int i_rank, int i_kind ) throws java.io.IOException
+{
+    String host = DistHosts[ min( i_rank, DistHosts.length - 1 ) ];
+    java.net.InetSocketAddress addr =
+        new java.net.InetSocketAddress( host, DistBasePort + i_rank );
+    for ( int attempt = 0; ; ++attempt )
+    {
+        try
+        {
+            SocketChannel ch = SocketChannel.open( addr );
+            ch.socket().setTcpNoDelay( true );
+            java.io.DataOutputStream hello = new java.io.DataOutputStream(
+                ch.socket().getOutputStream() );
+            hello.writeInt( DistRank );
+            hello.writeInt( i_kind );
+            hello.flush();
+            return ch;
+        }
+        catch ( java.io.IOException e )
+        {
+            if ( attempt >= 600 )
+            {
+                throw e;
+            }
+            try
+            {
+                Thread.sleep( 100 );
+            }
+            catch ( InterruptedException ie )
+            {
+                throw new RuntimeException( ie );
+            }
+        }
+    }
+}
+
+static void CloseDistributed()
+{
+    SocketChannel[] links = { DistDown, DistUp, DistRoot };
+    try
+    {
+        for ( int l = 0; l < links.length; ++l )
+        {
+            if ( links[l] != null )
+            {
+                links[l].close();
+            }
+        }
+        for ( int r = 0; r < DistLeaves.length; ++r )
+        {
+            if ( DistLeaves[r] != null )
+            {
+                DistLeaves[r].close();
+            }
+        }
+    }
+    catch ( java.io.IOException e )
+    {
+        println( "Could not close links: " + e );
+    }
+    DistDown = DistUp = DistRoot = null;
+    DistLeaves = new SocketChannel[0];
+}
+
+//-*****************************************************************************
+// Blocking whole-buffer writes and reads.
+static void DistWrite( SocketChannel i_ch, ByteBuffer i_buf ) throws java.io.IOException
+{
+    while ( i_buf.hasRemaining() )
+    {
+        i_ch.write( i_buf );
+    }
+}
+
+static void DistRead( SocketChannel i_ch, ByteBuffer o_buf ) throws java.io.IOException
+{
+    while ( o_buf.hasRemaining() )
+    {
+        if ( i_ch.read( o_buf ) < 0 )
+        {
+            throw new java.io.EOFException( "Worker link closed" );
+        }
+    }
+}
+
+static void DistSendRows( SocketChannel i_ch, float[] q, int i_offset, int i_count )
+    throws java.io.IOException
+{
+    ByteBuffer buf = DistHaloBuffer;
+    buf.clear();
+    buf.asFloatBuffer().put( q, i_offset, i_count );
+    buf.limit( 4 * i_count );
+    DistWrite( i_ch, buf );
+}
+
+static void DistReceiveRows( SocketChannel i_ch, float[] q, int i_offset, int i_count )
+    throws java.io.IOException
+{
+    ByteBuffer buf = DistHaloBuffer;
+    buf.clear();
+    buf.limit( 4 * i_count );
+    DistRead( i_ch, buf );
+    buf.flip();
+    buf.asFloatBuffer().get( q, i_offset, i_count );
+}
+
+//-*****************************************************************************
+// Swap the borrowed rows of q with both neighbors: the top DistOverlap+1
+// owned rows go up, into the neighbor's ghost and overlap rows, and the
+// bottom ones go down. Even ranks send first and odd ranks receive first,
+// so that no two neighbors are ever both blocked sending to each other.
+//-*****************************************************************************
+static void DistExchangeHalo( float[] q )
+{
+    int count = ( DistOverlap + 1 ) * GridStride;
+    boolean even = ( DistRank % 2 ) == 0;
+    try
+    {
+        // Upward.
+        if ( even && DistUp != null )
+        {
+            DistSendRows( DistUp, q, IX( 0, DistOwnedEnd - DistOverlap - 1 ), count );
+        }
+        if ( DistDown != null )
+        {
+            DistReceiveRows( DistDown, q, IX( 0, 0 ), count );
+        }
+        if ( !even && DistUp != null )
+        {
+            DistSendRows( DistUp, q, IX( 0, DistOwnedEnd - DistOverlap - 1 ), count );
+        }
+
+        // Downward.
+        if ( even && DistDown != null )
+        {
+            DistSendRows( DistDown, q, IX( 0, DistOwnedBegin ), count );
+        }
+        if ( DistUp != null )
+        {
+            DistReceiveRows( DistUp, q, IX( 0, DistOwnedEnd ), count );
+        }
+        if ( !even && DistDown != null )
+        {
+            DistSendRows( DistDown, q, IX( 0, DistOwnedBegin ), count );
+        }
+    }
+    catch ( java.io.IOException e )
+    {
+        throw new RuntimeException( e );
+    }
+}
+
+//-*****************************************************************************
+// SetEndBoundaries for a slab: the walls it has, with their corners, and
+// then the rows from its neighbors.
+//-*****************************************************************************
+static void SetSlabEndBoundaries( float[] q, float i_sy )
+{
+    int S = GridStride;
+    if ( DistRank == 0 )
+    {
+        int bottom = IX( 1, 0 );
+        for ( int i = 0; i < NX; ++i )
+        {
+            q[bottom+i] = i_sy * q[bottom+S+i];
+        }
+        q[IX(0,0)] = 0.5 * ( q[IX(1,0)] + q[IX(0,1)] );
+        q[IX(NX+1,0)] = 0.5 * ( q[IX(NX,0)] + q[IX(NX+1,1)] );
+    }
+    if ( DistRank == DistRanks - 1 )
+    {
+        int top = IX( 1, NY+1 );
+        for ( int i = 0; i < NX; ++i )
+        {
+            q[top+i] = i_sy * q[top-S+i];
+        }
+        q[IX(0,NY+1)] = 0.5 * ( q[IX(1,NY+1)] + q[IX(0,NY)] );
+        q[IX(NX+1,NY+1)] = 0.5 * ( q[IX(NX,NY+1)] + q[IX(NX+1,NY)] );
+    }
+    DistExchangeHalo( q );
+}
+
+//-*****************************************************************************
+// Combine one value from every worker, in rank order, and give every worker
+// the result. Identity when we aren't distributed.
+//-*****************************************************************************
+static double DistReduce( double i_value, boolean i_max )
+{
+    if ( DistRanks < 2 )
+    {
+        return i_value;
+    }
+
+    ByteBuffer buf = DistScalarBuffer;
+    try
+    {
+        if ( DistRank == 0 )
+        {
+            double result = i_value;
+            for ( int r = 1; r < DistRanks; ++r )
+            {
+                buf.clear();
+                DistRead( DistLeaves[r], buf );
+                double v = buf.getDouble( 0 );
+                result = i_max ? Math.max( result, v ) : result + v;
+            }
+            for ( int r = 1; r < DistRanks; ++r )
+            {
+                buf.clear();
+                buf.putDouble( 0, result );
+                DistWrite( DistLeaves[r], buf );
+            }
+            return result;
+        }
+
+        buf.clear();
+        buf.putDouble( 0, i_value );
+        DistWrite( DistRoot, buf );
+        buf.clear();
+        DistRead( DistRoot, buf );
+        return buf.getDouble( 0 );
+    }
+    catch ( java.io.IOException e )
+    {
+        throw new RuntimeException( e );
+    }
+}
+
+static double DistSum( double i_value )
+{
+    return DistReduce( i_value, false );
+}
+
+static float DistMax( float i_value )
+{
+    return ( float )DistReduce( i_value, true );
+}
+
+//-*****************************************************************************
+// Write a scalar field of the whole grid as a PGM: every worker sends its
+// owned rows to rank 0, which writes them in order, one slab at a time.
+//-*****************************************************************************
+static void DistWriteScalarFieldPGM( int i_field, String i_fileName )
+{
+    int ownedBytes = NX * ( DistOwnedEnd - DistOwnedBegin );
+    int maxBytes = NX * ( ( DistGlobalNY + DistRanks - 1 ) / DistRanks );
+    if ( DistFrameRows.length < maxBytes )
+    {
+        DistFrameRows = new byte[maxBytes];
+    }
+    ScalarRowsToBytes( i_field, DistOwnedBegin, DistOwnedEnd, DistFrameRows );
+
+    try
+    {
+        if ( DistRank != 0 )
+        {
+            DistWrite( DistRoot, ByteBuffer.wrap( DistFrameRows, 0, ownedBytes ) );
+            return;
+        }
+
+        java.io.OutputStream out =
+            createOutput( new java.io.File( i_fileName ) );
+        out.write( ( "P5\n" + NX + " " + DistGlobalNY + "\n255\n" ).getBytes() );
+        out.write( DistFrameRows, 0, ownedBytes );
+        for ( int r = 1; r < DistRanks; ++r )
+        {
+            int rows = ( ( r + 1 ) * DistGlobalNY ) / DistRanks -
+                ( r * DistGlobalNY ) / DistRanks;
+            ByteBuffer buf = ByteBuffer.wrap( DistFrameRows, 0, NX * rows );
+            DistRead( DistLeaves[r], buf );
+            out.write( DistFrameRows, 0, NX * rows );
+        }
+        out.close();
+    }
+    catch ( java.io.IOException e )
+    {
+        throw new RuntimeException( e );
+    }
+}
+
+//-*****************************************************************************
+// Move the emitters from the whole grid's pixels to the slab's.
+static void ShiftEmittersToSlab()
+{
+    float shift = ( float )( DistRowOffset * CellPixels );
+    for ( int e = 0; e < NumEmitters; ++e )
+    {
+        EmitterPosY[e] -= shift;
+        EmitterPrevPosY[e] -= shift;
+    }
+}
+
+//-*****************************************************************************
+// Run one worker. Takes the batch arguments, plus rank=, ranks=, port=,
+// hosts= and overlap=.
+//-*****************************************************************************
+static void RunWorkerFromArgs( String[] i_args )
+{
+    // The size is only applied to the slab, so that no worker ever
+    // allocates the whole grid.
+    int globalNX = NX;
+    int globalNY = NY;
+    String[] batchArgs = new String[0];
+    for ( int a = 0; a < i_args.length; ++a )
+    {
+        String[] kv = SplitKeyValue( i_args[a] );
+        if ( kv.length != 2 )
+        {
+            continue;
+        }
+        if ( kv[0].equals( "rank" ) )
+        {
+            DistRank = parseInt( kv[1] );
+        }
+        else if ( kv[0].equals( "ranks" ) )
+        {
+            DistRanks = parseInt( kv[1] );
+        }
+        else if ( kv[0].equals( "port" ) )
+        {
+            DistBasePort = parseInt( kv[1] );
+        }
+        else if ( kv[0].equals( "hosts" ) )
+        {
+            DistHosts = split( kv[1], ',' );
+        }
+        else if ( kv[0].equals( "overlap" ) )
+        {
+            DistOverlap = max( 1, parseInt( kv[1] ) );
+        }
+        else if ( kv[0].equals( "size" ) )
+        {
+            globalNX = globalNY = parseInt( kv[1] );
+        }
+        else
+        {
+            batchArgs = append( batchArgs, i_args[a] );
+        }
+    }
+    ParseBatchArgs( batchArgs );
+
+    if ( Depth3D > 0 || UseMACGrid || UseActiveTiles ||
+         BatchCacheFile != null || CheckpointInterval > 0 || BatchResume ||
+         BatchRender || UseHalfDensity || !DensityAdvection.IsDefault() ||
+         !VelocityAdvection.IsDefault() )
+    {
+        println( "Distributed runs don't support 3D, mac, tiles, checkpoints, " +
+                 "the frame cache, the renderer, half float density or " +
+                 "other advection modes" );
+        return;
+    }
+    if ( DistRanks < 1 || DistRank < 0 || DistRank >= DistRanks ||
+         globalNY / DistRanks < DistOverlap + 1 )
+    {
+        println( "Can't split " + globalNY + " rows into " + DistRanks +
+                 " slabs of at least " + ( DistOverlap + 1 ) + " rows" );
+        return;
+    }
+
+    // The script is in the whole grid's pixels.
+    NX = globalNX;
+    WindowWidth = globalNX * CellPixels;
+    WindowHeight = globalNY * CellPixels;
+    if ( BatchScriptFile != null )
+    {
+        LoadScript( BatchScriptFile );
+    }
+    else
+    {
+        MakeDefaultScript( BatchSteps );
+    }
+
+    PressureSolver = PS_Jacobi;
+    DiffuseSolver = DS_Jacobi;
+    UseAdaptiveTimeStep = true;
+    TargetCFL = min( TargetCFL, ( float )DistOverlap );
+    if ( DistRanks > 1 )
+    {
+        SetupSlab( globalNY );
+        ConnectDistributed();
+    }
+    else
+    {
+        ResizeGrid( globalNX, globalNY );
+    }
+
+    long startTime = System.nanoTime();
+    int numFrames = 0;
+    for ( int step = 0; step < BatchSteps; ++step )
+    {
+        GetScriptedInput( step );
+        ShiftEmittersToSlab();
+        AdvanceFrame();
+
+        if ( BatchFrameInterval > 0 && ( ( step + 1 ) % BatchFrameInterval ) == 0 )
+        {
+            String fileName = BatchOutputDir + "/density." + nf( step + 1, 6 ) +
+                ".pgm";
+            if ( DistRanks > 1 )
+            {
+                DistWriteScalarFieldPGM( GridDensity, fileName );
+            }
+            else
+            {
+                WriteScalarFieldPGM( GridDensity, fileName );
+            }
+            ++numFrames;
+        }
+    }
+
+    // The slowest worker's time is the run's.
+    float seconds = DistMax( ( float )( System.nanoTime() - startTime ) / 1.0e9 );
+    if ( DistRank == 0 )
+    {
+        println( "Ran " + BatchSteps + " steps of " + NX + "x" + GlobalNY() +
+                 " on " + DistRanks + " workers in " + seconds + " seconds (" +
+                 ( ( float )BatchSteps / seconds ) + " steps/sec), wrote " +
+                 numFrames + " frames." );
+    }
+    CloseDistributed();
+}
+
+//-*****************************************************************************
+// Start ranks= workers on this host, as child JVMs, and wait for them.
+// jvm= gives their JVM options, comma separated; everything else is passed
+// on to them.
+//-*****************************************************************************
+static void RunDistributedFromArgs( String[] i_args )
+{
+    int ranks = 2;
+    String[] jvmOptions = new String[0];
+    String[] workerArgs = new String[0];
+    for ( int a = 0; a < i_args.length; ++a )
+    {
+        String[] kv = SplitKeyValue( i_args[a] );
+        if ( kv.length == 2 && kv[0].equals( "ranks" ) )
+        {
+            ranks = max( 1, parseInt( kv[1] ) );
+        }
+        else if ( kv.length == 2 && kv[0].equals( "jvm" ) )
+        {
+            jvmOptions = split( kv[1], ',' );
+        }
+        else
+        {
+            workerArgs = append( workerArgs, i_args[a] );
+        }
+    }
+
+    String javaBin = System.getProperty( "java.home" ) + "/bin/java";
+    Process[] workers = new Process[ranks];
+    try
+    {
+        for ( int r = 0; r < ranks; ++r )
+        {
+            java.util.List<String> cmd = new java.util.ArrayList<String>();
+            cmd.add( javaBin );
+            cmd.addAll( java.util.Arrays.asList( jvmOptions ) );
+            cmd.add( "-cp" );
+            cmd.add( System.getProperty( "java.class.path" ) );
+            cmd.add( "sketch_130511a" );
+            cmd.add( "--worker" );
+            cmd.add( "rank=" + r );
+            cmd.add( "ranks=" + ranks );
+            cmd.addAll( java.util.Arrays.asList( workerArgs ) );
+            workers[r] = new ProcessBuilder( cmd ).inheritIO().start();
+        }
+        for ( int r = 0; r < ranks; ++r )
+        {
+            int code = workers[r].waitFor();
+            if ( code != 0 )
+            {
+                println( "Worker " + r + " exited with " + code );
+            }
+        }
+    }
+    catch ( Exception e )
+    {
+        println( "Could not run the workers: " + e );
+        for ( int r = 0; r < ranks; ++r )
+        {
+            if ( workers[r] != null )
+            {
+                workers[r].destroy();
+            }
+        }
+    }
+}
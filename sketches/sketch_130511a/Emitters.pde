@@ -0,0 +1,312 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// EMITTERS
+//
+// Each step, every emitter adds a Gaussian splat of density and/or
+// velocity around its position:
+//   v = constrain( 2 exp( -( 2.21 r / Radius )^2 ), 0, 1 )
+// where r is the distance in pixels from the emitter to a cell's center.
+// That used to be evaluated for every cell of the grid, and the input
+// grids were zeroed in full whenever there was no input, but the Gaussian
+// is negligible a couple of radii out. So each emitter only stamps the
+// box of cells where it's more than EmissionCutoff, and the input grids
+// are only cleared over the boxes stamped last step. The cost of the input
+// is then the number of emitters times the stamp area, not the grid size.
+//
+// The Gaussian is separable: exp( -a( dx^2 + dy^2 ) ) is exp( -a dx^2 )
+// times exp( -a dy^2 ). So a stamp is built from two short rows of
+// weights, one per column and one per row of its box, and every cell is
+// just a product - one exp per row and column instead of one per cell.
+//
+// The emitters are rebuilt every step from the input: GetMouseInput adds
+// the mouse, and GetScriptedInput adds every script keyframe that covers
+// the step, so several can run at once.
+//-*****************************************************************************
+//-*****************************************************************************
+
+// Stamps stop where the weight falls below this.
+static float EmissionCutoff = 1.0e-6;
+
+// The emitters for this step, by position (in window pixels), previous
+// position, and what they emit.
+static int NumEmitters = 0;
+static float[] EmitterPosX = new float[4];
+static float[] EmitterPosY = new float[4];
+static float[] EmitterPrevPosX = new float[4];
+static float[] EmitterPrevPosY = new float[4];
+static boolean[] EmitterDensity = new boolean[4];
+static boolean[] EmitterVelocity = new boolean[4];
+
+// The boxes of cells the input grids were stamped over, as { i0, i1, j0,
+// j1 }, half open. Anything outside them is zero. After a resize or a
+// restore, the input grids may hold anything, so the boxes cover the whole
+// grid, ghost cells and all.
+static int[] DenInputBox = { 0, GX, 0, GY };
+static int[] VelInputBox = { 0, GX, 0, GY };
+
+// The box of the stamp being built, and its weights by column and by row.
+static int[] StampBoxTmp = new int[4];
+static float[] StampWeightX = new float[64];
+static float[] StampWeightY = new float[64];
+
+//-*****************************************************************************
+static void ClearEmitters()
+{
+    NumEmitters = 0;
+}
+
+//-*****************************************************************************
+static void AddEmitter( float i_posX, float i_posY,
+                 float i_prevPosX, float i_prevPosY,
+                 boolean i_density, boolean i_velocity )
+{
+    if ( NumEmitters == EmitterPosX.length )
+    {
+        int n = 2 * NumEmitters;
+        EmitterPosX = expand( EmitterPosX, n );
+        EmitterPosY = expand( EmitterPosY, n );
+        EmitterPrevPosX = expand( EmitterPrevPosX, n );
+        EmitterPrevPosY = expand( EmitterPrevPosY, n );
+        EmitterDensity = ( boolean[] )expand( EmitterDensity, n );
+        EmitterVelocity = ( boolean[] )expand( EmitterVelocity, n );
+    }
+    EmitterPosX[NumEmitters] = i_posX;
+    EmitterPosY[NumEmitters] = i_posY;
+    EmitterPrevPosX[NumEmitters] = i_prevPosX;
+    EmitterPrevPosY[NumEmitters] = i_prevPosY;
+    EmitterDensity[NumEmitters] = i_density;
+    EmitterVelocity[NumEmitters] = i_velocity;
+    ++NumEmitters;
+}
+
+//-*****************************************************************************
+// Add the current input source (InputPosX and friends) as an emitter, if
+// it's emitting anything.
+static void AddInputEmitter()
+{
+    if ( InputDensityActive || InputVelocityActive )
+    {
+        AddEmitter( InputPosX, InputPosY, InputPrevPosX, InputPrevPosY,
+                    InputDensityActive, InputVelocityActive );
+    }
+}
+
+//-*****************************************************************************
+// The input grids may hold anything; clear them in full on the next step.
+static void InvalidateInputBoxes()
+{
+    int[][] boxes = { DenInputBox, VelInputBox };
+    for ( int b = 0; b < boxes.length; ++b )
+    {
+        boxes[b][0] = 0; boxes[b][1] = GX;
+        boxes[b][2] = 0; boxes[b][3] = GY;
+    }
+}
+
+//-*****************************************************************************
+static boolean IsEmptyBox( int[] i_box )
+{
+    return i_box[0] >= i_box[1] || i_box[2] >= i_box[3];
+}
+
+//-*****************************************************************************
+// The box of interior cells a stamp of radius i_radius (in pixels) at
+// (i_posX,i_posY) covers, into o_box. Returns false if it misses the grid.
+//-*****************************************************************************
+static boolean StampBox( float i_posX, float i_posY, float i_radius, int[] o_box )
+{
+    float reach = i_radius * sqrt( log( 2.0 / EmissionCutoff ) ) / 2.21;
+
+    // Cell i's center is at CellPixels * ( i + 0.5 ) pixels.
+    o_box[0] = max( 1, ceil( ( i_posX - reach ) / CellPixels - 0.5 ) );
+    o_box[1] = min( NX+1, floor( ( i_posX + reach ) / CellPixels - 0.5 ) + 1 );
+    o_box[2] = max( 1, ceil( ( i_posY - reach ) / CellPixels - 0.5 ) );
+    o_box[3] = min( NY+1, floor( ( i_posY + reach ) / CellPixels - 0.5 ) + 1 );
+    return !IsEmptyBox( o_box );
+}
+
+//-*****************************************************************************
+// o_w[k] = exp( -( 2.21 r / i_radius )^2 ) for the cells i_begin + k, up to
+// i_end, where r is the distance from i_pos to the cell's center.
+//-*****************************************************************************
+static float[] StampWeights( float[] o_w, float i_pos, float i_radius,
+                      int i_begin, int i_end )
+{
+    if ( o_w.length < i_end - i_begin )
+    {
+        o_w = new float[2 * ( i_end - i_begin )];
+    }
+    for ( int i = i_begin; i < i_end; ++i )
+    {
+        float r = CellPixels * ( 0.5 + ( float )i ) - i_pos;
+        o_w[i - i_begin] = exp( -sq( 2.21 * r / i_radius ) );
+    }
+    return o_w;
+}
+
+//-*****************************************************************************
+// Grow io_box to cover i_box as well.
+static void UnionBox( int[] io_box, int[] i_box )
+{
+    if ( IsEmptyBox( io_box ) )
+    {
+        arrayCopy( i_box, io_box );
+        return;
+    }
+    io_box[0] = min( io_box[0], i_box[0] );
+    io_box[1] = max( io_box[1], i_box[1] );
+    io_box[2] = min( io_box[2], i_box[2] );
+    io_box[3] = max( io_box[3], i_box[3] );
+}
+
+//-*****************************************************************************
+// Zero i_grid over i_box.
+static void ClearBox( int i_grid, int[] i_box )
+{
+    short[] h = StateHalf[i_grid];
+    if ( h != null )
+    {
+        for ( int j = i_box[2]; j < i_box[3]; ++j )
+        {
+            java.util.Arrays.fill( h, IX(i_box[0],j), IX(i_box[1],j),
+                                   ( short )0 );
+        }
+        return;
+    }
+    float[] q = State[i_grid];
+    for ( int j = i_box[2]; j < i_box[3]; ++j )
+    {
+        java.util.Arrays.fill( q, IX(i_box[0],j), IX(i_box[1],j), 0.0 );
+    }
+}
+
+static void EmptyBox( int[] o_box )
+{
+    o_box[0] = o_box[1] = o_box[2] = o_box[3] = 0;
+}
+
+//-*****************************************************************************
+// State[io_dst] += i_scale * State[i_src] over i_box.
+static void AddScaledBox( int io_dst, float i_scale, int i_src, int[] i_box )
+{
+    if ( StateHalf[io_dst] != null || StateHalf[i_src] != null )
+    {
+        AddScaledHalfBox( io_dst, i_scale, i_src, i_box );
+        return;
+    }
+    if ( KernelBackend == KB_Flat )
+    {
+        float[] y = State[io_dst];
+        float[] x = State[i_src];
+        for ( int j = i_box[2]; j < i_box[3]; ++j )
+        {
+            AddScaledRange( y, i_scale, x, IX(i_box[0],j), IX(i_box[1],j) );
+        }
+        return;
+    }
+
+    for ( int j = i_box[2]; j < i_box[3]; ++j )
+    {
+        for ( int i = i_box[0]; i < i_box[1]; ++i )
+        {
+            State[io_dst][IX(i,j)] += i_scale * State[i_src][IX(i,j)];
+        }
+    }
+}
+
+//-*****************************************************************************
+// Stamp every density emitter into the input density.
+//-*****************************************************************************
+static void GetInputSourceDensity()
+{
+    ClearBox( GridInputDensity, DenInputBox );
+    EmptyBox( DenInputBox );
+
+    float[] In = State[GridInputDensity];
+    short[] InHalf = StateHalf[GridInputDensity];
+    int[] box = StampBoxTmp;
+    for ( int e = 0; e < NumEmitters; ++e )
+    {
+        if ( !EmitterDensity[e] ||
+             !StampBox( EmitterPosX[e], EmitterPosY[e], DenEmissionRadius,
+                        box ) )
+        {
+            continue;
+        }
+
+        StampWeightX = StampWeights( StampWeightX, EmitterPosX[e],
+                                     DenEmissionRadius, box[0], box[1] );
+        StampWeightY = StampWeights( StampWeightY, EmitterPosY[e],
+                                     DenEmissionRadius, box[2], box[3] );
+        for ( int j = box[2]; j < box[3]; ++j )
+        {
+            float wy = 2.0 * StampWeightY[j - box[2]];
+            int a = IX(box[0],j);
+            for ( int i = box[0]; i < box[1]; ++i, ++a )
+            {
+                float v = min( wy * StampWeightX[i - box[0]], 1.0 );
+                if ( InHalf != null )
+                {
+                    AddToHalf( InHalf, a, EmissionRate * v );
+                }
+                else
+                {
+                    In[a] += EmissionRate * v;
+                }
+            }
+        }
+        UnionBox( DenInputBox, box );
+    }
+}
+
+//-*****************************************************************************
+// Stamp every velocity emitter into the input velocity. An emitter's
+// velocity is how far it moved over the last frame.
+//-*****************************************************************************
+static void GetInputSourceVelocity()
+{
+    ClearBox( GridInputU, VelInputBox );
+    ClearBox( GridInputV, VelInputBox );
+    EmptyBox( VelInputBox );
+
+    float[] InU = State[GridInputU];
+    float[] InV = State[GridInputV];
+    int[] box = StampBoxTmp;
+    for ( int e = 0; e < NumEmitters; ++e )
+    {
+        if ( !EmitterVelocity[e] ||
+             !StampBox( EmitterPosX[e], EmitterPosY[e], VelEmissionRadius,
+                        box ) )
+        {
+            continue;
+        }
+
+        VstrokeAlpha = 0.5;
+
+        // Pixels per frame, to cells per frame, to simulation units.
+        float scale = Vscale * DXY / ( FrameDT * ( float )CellPixels );
+        float velX = ( EmitterPosX[e] - EmitterPrevPosX[e] ) * scale;
+        float velY = ( EmitterPosY[e] - EmitterPrevPosY[e] ) * scale;
+
+        StampWeightX = StampWeights( StampWeightX, EmitterPosX[e],
+                                     VelEmissionRadius, box[0], box[1] );
+        StampWeightY = StampWeights( StampWeightY, EmitterPosY[e],
+                                     VelEmissionRadius, box[2], box[3] );
+        for ( int j = box[2]; j < box[3]; ++j )
+        {
+            float wy = 2.0 * StampWeightY[j - box[2]];
+            int a = IX(box[0],j);
+            for ( int i = box[0]; i < box[1]; ++i, ++a )
+            {
+                float v = min( wy * StampWeightX[i - box[0]], 1.0 );
+                InU[a] += velX * v;
+                InV[a] += velY * v;
+            }
+        }
+        UnionBox( VelInputBox, box );
+    }
+}
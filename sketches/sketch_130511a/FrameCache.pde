@@ -0,0 +1,534 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// FRAME CACHE
+//
+// Drawing a frame throws the simulation state away; the only way to see
+// step 500 again is to simulate 500 steps. The frame cache records the
+// density and velocity of each step to a file instead, and can read any
+// recorded frame back into State for replay or scrubbing, without
+// simulating anything.
+//
+// The file is append-only. It starts with a fixed header, followed by one
+// fixed-size record per frame, so frame k always lives at
+//   FrameCacheHeaderBytes + k * FrameCacheFrameBytes
+// and can be found without reading the frames before it. Each record holds
+// the step it came from, then the interior of each field, row by row, as
+// either 32 bit floats or 16 bit half floats. Half floats are about three
+// significant digits - plenty for replay - at half the size. The frame
+// count in the header is updated after every frame, so a file that was
+// never closed properly is still readable up to its last whole frame.
+//
+// The file is accessed through memory mappings, a chunk of frames at a
+// time. Frames are written directly from the State rows into the mapped
+// pages, and read directly back into them; nothing is staged in between,
+// and the operating system writes the pages out to disk in its own time.
+//
+// Header (little endian):
+//    0 int   magic 'SMK1'
+//    4 int   version
+//    8 int   NX
+//   12 int   NY
+//   16 int   number of fields
+//   20 int   encoding (0 = float32, 1 = float16)
+//   24 int   number of frames
+//   28 int   unused
+//   32 long  bytes per frame
+//-*****************************************************************************
+//-*****************************************************************************
+
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+static int FrameCacheMagic = 0x534D4B31;
+static int FrameCacheVersion = 1;
+static int FrameCacheHeaderBytes = 64;
+static int FC_Float32 = 0;
+static int FC_Float16 = 1;
+
+// Whether new caches store half floats.
+static boolean FrameCacheUseFloat16 = true;
+
+// The fields we record, in order. These are read when a frame is written
+// or read, so they follow the current handles after a swap.
+static int FrameCacheNumFields = 3;
+static int FrameCacheField( int i_f )
+{
+    return ( i_f == 0 ) ? GridDensity : ( ( i_f == 1 ) ? GridU : GridV );
+}
+
+// The open cache, if there is one.
+static java.io.RandomAccessFile FrameCacheFile = null;
+static FileChannel FrameCacheChannel = null;
+static boolean FrameCacheWritable = false;
+static int FrameCacheEncoding = FC_Float32;
+static int FrameCacheNX = 0;
+static int FrameCacheNY = 0;
+static long FrameCacheFrameBytes = 0;
+static int FrameCacheFrameCount = 0;
+static MappedByteBuffer FrameCacheHeader = null;
+
+// The currently mapped chunk of frames.
+static int FrameCacheChunkFrames = 1;
+static int FrameCacheChunkFirst = -1;
+static MappedByteBuffer FrameCacheChunk = null;
+
+// Recording and playback from the sketch window.
+static boolean FrameCacheRecording = false;
+static boolean FrameCachePlayback = false;
+static String FrameCacheFileName = "frames.smk";
+
+//-*****************************************************************************
+// Convert a float to the nearest IEEE half float, and back. Values too big
+// for a half become infinity; values too small become zero.
+//-*****************************************************************************
+static short FloatToHalf( float i_f )
+{
+    int bits = Float.floatToRawIntBits( i_f );
+    int sign = ( bits >>> 16 ) & 0x8000;
+    int exp = ( bits >>> 23 ) & 0xFF;
+    int mant = bits & 0x7FFFFF;
+
+    if ( exp == 0xFF )
+    {
+        // Inf or NaN. Keep NaNs NaN.
+        return ( short )( sign | 0x7C00 | ( ( mant != 0 ) ? 0x200 : 0 ) );
+    }
+
+    int e = exp - 127 + 15;
+    if ( e >= 0x1F )
+    {
+        return ( short )( sign | 0x7C00 );
+    }
+    if ( e <= 0 )
+    {
+        // Subnormal half, or zero.
+        if ( e < -10 )
+        {
+            return ( short )sign;
+        }
+        mant |= 0x800000;
+        int shift = 14 - e;
+        int h = mant >> shift;
+        int rem = mant & ( ( 1 << shift ) - 1 );
+        int half = 1 << ( shift - 1 );
+        if ( rem > half || ( rem == half && ( h & 1 ) != 0 ) )
+        {
+            ++h;
+        }
+        return ( short )( sign | h );
+    }
+
+    // Round to nearest even. A carry out of the mantissa correctly bumps
+    // the exponent, and overflows to infinity.
+    int h = ( e << 10 ) | ( mant >> 13 );
+    int rem = mant & 0x1FFF;
+    if ( rem > 0x1000 || ( rem == 0x1000 && ( h & 1 ) != 0 ) )
+    {
+        ++h;
+    }
+    return ( short )( sign | h );
+}
+
+static float HalfToFloat( short i_h )
+{
+    int h = i_h & 0xFFFF;
+    int sign = ( h & 0x8000 ) << 16;
+    int exp = ( h >>> 10 ) & 0x1F;
+    int mant = h & 0x3FF;
+
+    if ( exp == 0 )
+    {
+        // Zero or subnormal: mant * 2^-24.
+        float f = ( float )mant * 5.9604645e-8;
+        return ( sign != 0 ) ? -f : f;
+    }
+    if ( exp == 0x1F )
+    {
+        return Float.intBitsToFloat( sign | 0x7F800000 | ( mant << 13 ) );
+    }
+    return Float.intBitsToFloat( sign | ( ( exp - 15 + 127 ) << 23 ) |
+                                 ( mant << 13 ) );
+}
+
+//-*****************************************************************************
+static long FrameCacheOffset( int i_frame )
+{
+    return ( long )FrameCacheHeaderBytes + ( long )i_frame * FrameCacheFrameBytes;
+}
+
+//-*****************************************************************************
+// Open a new cache for writing at the current grid size, replacing any
+// file that's there.
+//-*****************************************************************************
+static boolean CreateFrameCache( String i_fileName )
+{
+    CloseFrameCache();
+    try
+    {
+        java.io.File file = new java.io.File( i_fileName );
+        file.delete();
+        FrameCacheFile = new java.io.RandomAccessFile( file, "rw" );
+        FrameCacheChannel = FrameCacheFile.getChannel();
+        FrameCacheWritable = true;
+        FrameCacheEncoding = FrameCacheUseFloat16 ? FC_Float16 : FC_Float32;
+        FrameCacheNX = NX;
+        FrameCacheNY = NY;
+        FrameCacheFrameCount = 0;
+
+        // The step number, then the fields, padded to 8 bytes.
+        int valueBytes = ( FrameCacheEncoding == FC_Float16 ) ? 2 : 4;
+        long payload = ( long )FrameCacheNumFields * NX * NY * valueBytes;
+        FrameCacheFrameBytes = ( ( 8 + payload + 7 ) / 8 ) * 8;
+        FrameCacheChunkFrames = ( int )Math.max( 1L,
+            Math.min( 64L, ( 1L << 28 ) / FrameCacheFrameBytes ) );
+
+        FrameCacheHeader = FrameCacheChannel.map(
+            FileChannel.MapMode.READ_WRITE, 0, FrameCacheHeaderBytes );
+        FrameCacheHeader.order( ByteOrder.LITTLE_ENDIAN );
+        FrameCacheHeader.putInt( 0, FrameCacheMagic );
+        FrameCacheHeader.putInt( 4, FrameCacheVersion );
+        FrameCacheHeader.putInt( 8, NX );
+        FrameCacheHeader.putInt( 12, NY );
+        FrameCacheHeader.putInt( 16, FrameCacheNumFields );
+        FrameCacheHeader.putInt( 20, FrameCacheEncoding );
+        FrameCacheHeader.putInt( 24, 0 );
+        FrameCacheHeader.putLong( 32, FrameCacheFrameBytes );
+        return true;
+    }
+    catch ( java.io.IOException e )
+    {
+        println( "Could not create frame cache " + i_fileName + ": " + e );
+        CloseFrameCache();
+        return false;
+    }
+}
+
+//-*****************************************************************************
+// Open an existing cache for reading. Returns false if it can't be read,
+// or doesn't match the current grid size.
+//-*****************************************************************************
+static boolean OpenFrameCache( String i_fileName )
+{
+    CloseFrameCache();
+    try
+    {
+        FrameCacheFile = new java.io.RandomAccessFile( i_fileName, "r" );
+        FrameCacheChannel = FrameCacheFile.getChannel();
+        FrameCacheWritable = false;
+
+        FrameCacheHeader = FrameCacheChannel.map(
+            FileChannel.MapMode.READ_ONLY, 0, FrameCacheHeaderBytes );
+        FrameCacheHeader.order( ByteOrder.LITTLE_ENDIAN );
+        if ( FrameCacheHeader.getInt( 0 ) != FrameCacheMagic ||
+             FrameCacheHeader.getInt( 4 ) != FrameCacheVersion )
+        {
+            println( i_fileName + " is not a frame cache" );
+            CloseFrameCache();
+            return false;
+        }
+        FrameCacheNX = FrameCacheHeader.getInt( 8 );
+        FrameCacheNY = FrameCacheHeader.getInt( 12 );
+        FrameCacheEncoding = FrameCacheHeader.getInt( 20 );
+        FrameCacheFrameCount = FrameCacheHeader.getInt( 24 );
+        FrameCacheFrameBytes = FrameCacheHeader.getLong( 32 );
+        FrameCacheChunkFrames = ( int )Math.max( 1L,
+            Math.min( 64L, ( 1L << 28 ) / FrameCacheFrameBytes ) );
+
+        if ( FrameCacheNX != NX || FrameCacheNY != NY ||
+             FrameCacheHeader.getInt( 16 ) != FrameCacheNumFields )
+        {
+            println( i_fileName + " is " + FrameCacheNX + "x" + FrameCacheNY +
+                     ", but the grid is " + NX + "x" + NY );
+            CloseFrameCache();
+            return false;
+        }
+
+        // Don't trust a frame count past the end of the file.
+        long available = ( FrameCacheChannel.size() - FrameCacheHeaderBytes ) /
+            FrameCacheFrameBytes;
+        FrameCacheFrameCount = ( int )Math.min( FrameCacheFrameCount, available );
+        return true;
+    }
+    catch ( java.io.IOException e )
+    {
+        println( "Could not open frame cache " + i_fileName + ": " + e );
+        CloseFrameCache();
+        return false;
+    }
+}
+
+//-*****************************************************************************
+// Flush and close the cache. A written file is trimmed to its last frame.
+//-*****************************************************************************
+static void CloseFrameCache()
+{
+    if ( FrameCacheChannel == null )
+    {
+        return;
+    }
+
+    try
+    {
+        if ( FrameCacheWritable )
+        {
+            if ( FrameCacheChunk != null )
+            {
+                FrameCacheChunk.force();
+            }
+            FrameCacheHeader.force();
+        }
+        FrameCacheChunk = null;
+        FrameCacheHeader = null;
+        FrameCacheChunkFirst = -1;
+        if ( FrameCacheWritable )
+        {
+            // Mapping a chunk grows the file to the end of the chunk. Some
+            // platforms won't shrink a file while it's still mapped, in
+            // which case the padding stays; the header says how many
+            // frames there really are.
+            try
+            {
+                FrameCacheChannel.truncate(
+                    FrameCacheOffset( FrameCacheFrameCount ) );
+            }
+            catch ( java.io.IOException e )
+            {
+            }
+        }
+        FrameCacheChannel.close();
+        FrameCacheFile.close();
+    }
+    catch ( java.io.IOException e )
+    {
+        println( "Could not close frame cache: " + e );
+    }
+    FrameCacheChannel = null;
+    FrameCacheFile = null;
+    FrameCacheWritable = false;
+}
+
+//-*****************************************************************************
+// A little endian view of the given frame's record, mapping its chunk if
+// needed.
+//-*****************************************************************************
+static ByteBuffer FrameCacheRecord( int i_frame ) throws java.io.IOException
+{
+    int first = ( i_frame / FrameCacheChunkFrames ) * FrameCacheChunkFrames;
+    if ( first != FrameCacheChunkFirst || FrameCacheChunk == null )
+    {
+        FileChannel.MapMode mode = FrameCacheWritable ?
+            FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        long start = FrameCacheOffset( first );
+        long length = ( long )FrameCacheChunkFrames * FrameCacheFrameBytes;
+        if ( !FrameCacheWritable )
+        {
+            length = Math.min( length, FrameCacheChannel.size() - start );
+        }
+        FrameCacheChunk = FrameCacheChannel.map( mode, start, length );
+        FrameCacheChunkFirst = first;
+    }
+
+    ByteBuffer record = FrameCacheChunk.duplicate();
+    int begin = ( int )( ( long )( i_frame - first ) * FrameCacheFrameBytes );
+    record.position( begin );
+    record.limit( begin + ( int )FrameCacheFrameBytes );
+    return record.slice().order( ByteOrder.LITTLE_ENDIAN );
+}
+
+//-*****************************************************************************
+// Append the current state as a new frame, tagged with i_step.
+//-*****************************************************************************
+static void AppendFrame( int i_step )
+{
+    if ( FrameCacheChannel == null || !FrameCacheWritable )
+    {
+        return;
+    }
+
+    try
+    {
+        ByteBuffer record = FrameCacheRecord( FrameCacheFrameCount );
+        record.putInt( 0, i_step );
+        record.position( 8 );
+        ByteBuffer payload = record.slice().order( ByteOrder.LITTLE_ENDIAN );
+
+        if ( FrameCacheEncoding == FC_Float16 )
+        {
+            ShortBuffer out = payload.asShortBuffer();
+            for ( int f = 0; f < FrameCacheNumFields; ++f )
+            {
+                // A half float density is already what we'd write.
+                short[] qh = StateHalf[FrameCacheField( f )];
+                float[] q = State[FrameCacheField( f )];
+                for ( int j = 1; j <= NY; ++j )
+                {
+                    if ( qh != null )
+                    {
+                        out.put( qh, IX(1,j), NX );
+                        continue;
+                    }
+                    int a = IX(1,j);
+                    for ( int i = 1; i <= NX; ++i, ++a )
+                    {
+                        out.put( FloatToHalf( q[a] ) );
+                    }
+                }
+            }
+        }
+        else
+        {
+            FloatBuffer out = payload.asFloatBuffer();
+            for ( int f = 0; f < FrameCacheNumFields; ++f )
+            {
+                int field = FrameCacheField( f );
+                float[] q = State[field];
+                for ( int j = 1; j <= NY; ++j )
+                {
+                    if ( q == null )
+                    {
+                        for ( int i = 1; i <= NX; ++i )
+                        {
+                            out.put( FieldValue( field, IX(i,j) ) );
+                        }
+                        continue;
+                    }
+                    out.put( q, IX(1,j), NX );
+                }
+            }
+        }
+
+        ++FrameCacheFrameCount;
+        FrameCacheHeader.putInt( 24, FrameCacheFrameCount );
+    }
+    catch ( java.io.IOException e )
+    {
+        println( "Could not write frame: " + e );
+        CloseFrameCache();
+    }
+}
+
+//-*****************************************************************************
+// Read frame i_frame into State, and return the step it was recorded at
+// (or -1 if there's no such frame).
+//-*****************************************************************************
+static int ReadFrame( int i_frame )
+{
+    if ( FrameCacheChannel == null || i_frame < 0 ||
+         i_frame >= FrameCacheFrameCount )
+    {
+        return -1;
+    }
+
+    try
+    {
+        ByteBuffer record = FrameCacheRecord( i_frame );
+        int step = record.getInt( 0 );
+        record.position( 8 );
+        ByteBuffer payload = record.slice().order( ByteOrder.LITTLE_ENDIAN );
+
+        if ( FrameCacheEncoding == FC_Float16 )
+        {
+            ShortBuffer in = payload.asShortBuffer();
+            for ( int f = 0; f < FrameCacheNumFields; ++f )
+            {
+                short[] qh = StateHalf[FrameCacheField( f )];
+                float[] q = State[FrameCacheField( f )];
+                for ( int j = 1; j <= NY; ++j )
+                {
+                    if ( qh != null )
+                    {
+                        in.get( qh, IX(1,j), NX );
+                        continue;
+                    }
+                    int a = IX(1,j);
+                    for ( int i = 1; i <= NX; ++i, ++a )
+                    {
+                        q[a] = HalfToFloat( in.get() );
+                    }
+                }
+            }
+        }
+        else
+        {
+            FloatBuffer in = payload.asFloatBuffer();
+            for ( int f = 0; f < FrameCacheNumFields; ++f )
+            {
+                int field = FrameCacheField( f );
+                float[] q = State[field];
+                for ( int j = 1; j <= NY; ++j )
+                {
+                    if ( q == null )
+                    {
+                        for ( int i = 1; i <= NX; ++i )
+                        {
+                            SetFieldValue( field, IX(i,j), in.get() );
+                        }
+                        continue;
+                    }
+                    in.get( q, IX(1,j), NX );
+                }
+            }
+        }
+
+        EnforceBoundaryConditions( GridDensity, BC_NoNegate );
+        EnforceBoundaryConditions( GridU, BC_NegateX );
+        EnforceBoundaryConditions( GridV, BC_NegateY );
+        // The pressure we have was solved for some other velocity.
+        ResetPressureHistory();
+        return step;
+    }
+    catch ( java.io.IOException e )
+    {
+        println( "Could not read frame " + i_frame + ": " + e );
+        return -1;
+    }
+}
+
+//-*****************************************************************************
+// 'c' starts and stops recording into FrameCacheFileName. 'o' starts and
+// stops playback from it; while playing, the mouse x position picks the
+// frame.
+//-*****************************************************************************
+void ToggleFrameCacheRecording()
+{
+    FrameCachePlayback = false;
+    FrameCacheRecording = !FrameCacheRecording;
+    if ( FrameCacheRecording )
+    {
+        FrameCacheRecording = CreateFrameCache( sketchPath( FrameCacheFileName ) );
+    }
+    else
+    {
+        println( "Recorded " + FrameCacheFrameCount + " frames" );
+        CloseFrameCache();
+    }
+}
+
+void ToggleFrameCachePlayback()
+{
+    if ( FrameCacheRecording )
+    {
+        ToggleFrameCacheRecording();
+    }
+    FrameCachePlayback = !FrameCachePlayback;
+    if ( FrameCachePlayback )
+    {
+        FrameCachePlayback = OpenFrameCache( sketchPath( FrameCacheFileName ) ) &&
+            FrameCacheFrameCount > 0;
+    }
+    else
+    {
+        CloseFrameCache();
+    }
+}
+
+// The frame under the mouse.
+void ScrubFrameCache()
+{
+    int frame = ( int )( ( float )FrameCacheFrameCount * mouseX / ( float )width );
+    ReadFrame( constrain( frame, 0, FrameCacheFrameCount - 1 ) );
+}
@@ -0,0 +1,524 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// HALF FLOAT DENSITY
+//
+// The density is passive: nothing in the solver depends on it being
+// exact, it's only carried along by the velocity and drawn. With
+// UseHalfDensity, it's kept in 16 bit half floats (see FloatToHalf in the
+// FrameCache tab) instead of floats, which halves the memory it takes, and
+// the bytes the density stages read and write:
+//
+//   GridDensity, GridPrevDensity    the density, current and previous.
+//   GridInputDensity                what the density emitters stamp.
+//
+// The velocity input isn't passive - it's added straight into the
+// velocity, and rounding it would change the flow - so GridInputU and
+// GridInputV stay floats, with the velocity, the pressure and the
+// temporaries. The pressure solves need those exact, and the temporaries
+// are shared with the velocity stages.
+//
+// The half fields live in SimFields.Half (StateHalf here), and their
+// entries in State are null, so nothing can read them by accident as
+// floats. The kernels that work on them decode each value through
+// HalfTable, which holds every half float's value, and encode what they
+// write with EncodeHalf. The generic ones (ZeroArray, CopyArray,
+// DampArray, the boundaries, the boxes) check for a half field
+// themselves. Advection has its own half kernel below for the default
+// mode, and the Jacobi diffusion ping-pongs between the half float
+// density and GridTemp0, which is free at that point, so the default
+// step never needs GridTemp2. Anything else - another advection mode, a
+// staggered velocity, the other diffusion solvers - decodes into
+// GridTemp0, runs the float code into GridTemp2, and encodes the result
+// back, which allocates GridTemp2 on first use.
+//
+// With the default solvers that's nine float fields and three half ones,
+// 42 bytes a cell instead of 48; the stats line reports what the fields
+// take as field_bytes.
+//
+// Half floats have about three significant digits, so the density is
+// rounded a little at every stage; that's plenty to look at, but the run
+// won't match a float one bit for bit. The 3D solver, active tiles and
+// distributed runs only work on floats, so switching to any of them
+// switches the density back.
+//
+// Switching converts the fields in place, keeping their values, so it can
+// be done at any time - from the command line with half=1, or with 'h'.
+//-*****************************************************************************
+//-*****************************************************************************
+
+static boolean UseHalfDensity = false;
+
+// The half float arrays of SimFields, by handle; null for float fields.
+static short[][] StateHalf = SimFields.Half;
+
+// Every half float's value, indexed by its 16 bits.
+static float[] HalfTable = MakeHalfTable();
+
+static float[] MakeHalfTable()
+{
+    float[] table = new float[65536];
+    for ( int h = 0; h < 65536; ++h )
+    {
+        table[h] = HalfToFloat( ( short )h );
+    }
+    return table;
+}
+
+//-*****************************************************************************
+// FloatToHalf, quickly. Almost every value is either in the range of the
+// normal half floats, where rounding to nearest even is one add and a
+// shift of the float's bits, or so small that it rounds to zero; only
+// the rest take the long way. The result is the same either way.
+//-*****************************************************************************
+static short EncodeHalf( float i_f )
+{
+    int bits = Float.floatToRawIntBits( i_f );
+    int abs = bits & 0x7FFFFFFF;
+    int sign = ( bits >>> 16 ) & 0x8000;
+    if ( abs >= 0x38800000 && abs < 0x477FF000 )
+    {
+        // Rebias the exponent from 127 to 15, and round away the low 13
+        // bits; a carry out of the mantissa correctly bumps the exponent.
+        return ( short )( sign | ( ( abs - 0x38000000 + 0x0FFF +
+                                     ( ( abs >>> 13 ) & 1 ) ) >>> 13 ) );
+    }
+    if ( abs < 0x33000000 )
+    {
+        return ( short )sign;
+    }
+    return FloatToHalf( i_f );
+}
+
+//-*****************************************************************************
+// Whether the field a handle holds is one that's kept in half floats.
+static boolean IsHalfRole( int i_handle )
+{
+    return i_handle == GridDensity || i_handle == GridPrevDensity ||
+        i_handle == GridInputDensity;
+}
+
+//-*****************************************************************************
+// Store every field the way UseHalfDensity says, converting the ones that
+// aren't. The density pair only ever swaps with itself, but a restored
+// checkpoint can put any role in any array.
+//-*****************************************************************************
+static void ApplyFieldStorage()
+{
+    for ( int h = 0; h < NUM_ARRAYS; ++h )
+    {
+        boolean half = UseHalfDensity && IsHalfRole( h );
+        if ( half && StateHalf[h] == null )
+        {
+            StateHalf[h] = new short[GridArraySize];
+            EncodeRange( State[h], StateHalf[h], 0, GridArraySize );
+            State[h] = null;
+        }
+        else if ( !half && StateHalf[h] != null )
+        {
+            State[h] = new float[GridArraySize];
+            DecodeRange( StateHalf[h], State[h], 0, GridArraySize );
+            StateHalf[h] = null;
+        }
+    }
+}
+
+//-*****************************************************************************
+static void SetUseHalfDensity( boolean i_use )
+{
+    if ( i_use && ( Use3D || UseActiveTiles || DistRanks > 1 ) )
+    {
+        println( "Half float density doesn't work with 3D, active tiles or " +
+                 "distributed runs" );
+        i_use = false;
+    }
+    UseHalfDensity = i_use;
+    ApplyFieldStorage();
+}
+
+// Called when switching to something that only works on floats.
+static void LeaveHalfDensity()
+{
+    if ( UseHalfDensity )
+    {
+        println( "Switching the density back to floats" );
+        SetUseHalfDensity( false );
+    }
+}
+
+//-*****************************************************************************
+// The bytes the fields of SimFields take right now, floats and half floats
+// together, for the stats line.
+//-*****************************************************************************
+static long SimFieldBytes()
+{
+    long bytes = 0;
+    for ( int h = 0; h < NUM_ARRAYS; ++h )
+    {
+        if ( State[h] != null )
+        {
+            bytes += 4L * State[h].length;
+        }
+        if ( StateHalf[h] != null )
+        {
+            bytes += 2L * StateHalf[h].length;
+        }
+    }
+    return bytes;
+}
+
+//-*****************************************************************************
+// One value of a field, however it's stored. For the code that isn't a
+// kernel - drawing, files - and doesn't care about the cost of the check.
+//-*****************************************************************************
+static float FieldValue( int i_field, int a )
+{
+    short[] q = StateHalf[i_field];
+    return ( q != null ) ? HalfTable[q[a] & 0xFFFF] : State[i_field][a];
+}
+
+static void SetFieldValue( int i_field, int a, float i_value )
+{
+    short[] q = StateHalf[i_field];
+    if ( q != null )
+    {
+        q[a] = EncodeHalf( i_value );
+    }
+    else
+    {
+        State[i_field][a] = i_value;
+    }
+}
+
+//-*****************************************************************************
+// A float copy of a whole field, in o_dst if it's the right size.
+static float[] CopyFieldInto( float[] o_dst, int i_field )
+{
+    short[] q = StateHalf[i_field];
+    if ( q == null )
+    {
+        return CopyInto( o_dst, State[i_field] );
+    }
+    if ( o_dst == null || o_dst.length != q.length )
+    {
+        o_dst = new float[q.length];
+    }
+    DecodeRange( q, o_dst, 0, q.length );
+    return o_dst;
+}
+
+//-*****************************************************************************
+static void DecodeRange( short[] i_src, float[] o_dst, int i_begin, int i_end )
+{
+    float[] T = HalfTable;
+    for ( int a = i_begin; a < i_end; ++a )
+    {
+        o_dst[a] = T[i_src[a] & 0xFFFF];
+    }
+}
+
+static void EncodeRange( float[] i_src, short[] o_dst, int i_begin, int i_end )
+{
+    for ( int a = i_begin; a < i_end; ++a )
+    {
+        o_dst[a] = EncodeHalf( i_src[a] );
+    }
+}
+
+//-*****************************************************************************
+// CopyArray, when either field is half floats.
+static void CopyHalfArray( int i_src, int i_dst )
+{
+    short[] src = StateHalf[i_src];
+    short[] dst = StateHalf[i_dst];
+    if ( src != null && dst != null )
+    {
+        System.arraycopy( src, 0, dst, 0, GridArraySize );
+    }
+    else if ( src != null )
+    {
+        DecodeRange( src, State[i_dst], 0, GridArraySize );
+    }
+    else
+    {
+        EncodeRange( State[i_src], dst, 0, GridArraySize );
+    }
+}
+
+//-*****************************************************************************
+// q *= i_mult from i_begin up to i_end.
+static void ScaleHalfRange( short[] q, float i_mult, int i_begin, int i_end )
+{
+    float[] T = HalfTable;
+    for ( int a = i_begin; a < i_end; ++a )
+    {
+        q[a] = EncodeHalf( i_mult * T[q[a] & 0xFFFF] );
+    }
+}
+
+//-*****************************************************************************
+// AddScaledBox, when either field is half floats. The emitters add the
+// half float input density to the half float density.
+//-*****************************************************************************
+static void AddScaledHalfBox( int io_dst, float i_scale, int i_src, int[] i_box )
+{
+    float[] T = HalfTable;
+    short[] yh = StateHalf[io_dst];
+    float[] yf = State[io_dst];
+    short[] xh = StateHalf[i_src];
+    float[] xf = State[i_src];
+    for ( int j = i_box[2]; j < i_box[3]; ++j )
+    {
+        int aEnd = IX(i_box[1],j);
+        for ( int a = IX(i_box[0],j); a < aEnd; ++a )
+        {
+            float x = ( xh != null ) ? T[xh[a] & 0xFFFF] : xf[a];
+            if ( yh != null )
+            {
+                yh[a] = EncodeHalf( T[yh[a] & 0xFFFF] + i_scale * x );
+            }
+            else
+            {
+                yf[a] += i_scale * x;
+            }
+        }
+    }
+}
+
+// q[a] += i_value, for the emitter stamps.
+static void AddToHalf( short[] q, int a, float i_value )
+{
+    q[a] = EncodeHalf( HalfTable[q[a] & 0xFFFF] + i_value );
+}
+
+//-*****************************************************************************
+// The boundaries of a half float field, as SetSideBoundaries and
+// SetEndBoundaries do them. Copying a ghost copies its bits, and negating
+// it flips the sign bit, so only the corners are decoded.
+//-*****************************************************************************
+static void SetHalfBoundaries( short[] q, float i_sx, float i_sy )
+{
+    SetHalfSideBoundaries( q, i_sx, 1, NY+1 );
+    SetHalfEndBoundaries( q, i_sy );
+}
+
+static void SetHalfSideBoundaries( short[] q, float i_sx, int i_jBegin, int i_jEnd )
+{
+    int flip = ( i_sx > 0.0 ) ? 0 : 0x8000;
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
+    {
+        int a = IX( 0, j );
+        q[a] = ( short )( q[a+1] ^ flip );
+        q[a+NX+1] = ( short )( q[a+NX] ^ flip );
+    }
+}
+
+static void SetHalfEndBoundaries( short[] q, float i_sy )
+{
+    int S = GridStride;
+    int bottom = IX( 1, 0 );
+    int top = IX( 1, NY+1 );
+    if ( i_sy > 0.0 )
+    {
+        System.arraycopy( q, bottom + S, q, bottom, NX );
+        System.arraycopy( q, top - S, q, top, NX );
+    }
+    else
+    {
+        for ( int i = 0; i < NX; ++i )
+        {
+            q[bottom+i] = ( short )( q[bottom+S+i] ^ 0x8000 );
+            q[top+i] = ( short )( q[top-S+i] ^ 0x8000 );
+        }
+    }
+
+    float[] T = HalfTable;
+    q[IX(0,0)] = EncodeHalf(
+        0.5 * ( T[q[IX(1,0)] & 0xFFFF] + T[q[IX(0,1)] & 0xFFFF] ) );
+    q[IX(0,NY+1)] = EncodeHalf(
+        0.5 * ( T[q[IX(1,NY+1)] & 0xFFFF] + T[q[IX(0,NY)] & 0xFFFF] ) );
+    q[IX(NX+1,0)] = EncodeHalf(
+        0.5 * ( T[q[IX(NX,0)] & 0xFFFF] + T[q[IX(NX+1,1)] & 0xFFFF] ) );
+    q[IX(NX+1,NY+1)] = EncodeHalf(
+        0.5 * ( T[q[IX(NX,NY+1)] & 0xFFFF] + T[q[IX(NX+1,NY)] & 0xFFFF] ) );
+}
+
+//-*****************************************************************************
+// Advect a half float field, with no negation at the boundaries.
+//-*****************************************************************************
+static void AdvectHalfField( int i_OldQ, int o_NewQ, int i_GridU, int i_GridV,
+                      AdvectionMode i_mode )
+{
+    if ( i_mode.IsDefault() && !UseMACGrid )
+    {
+        SemiLagrangianAdvectHalf( i_OldQ, o_NewQ, i_GridU, i_GridV );
+        return;
+    }
+    NeedTemp2();
+    CopyArray( i_OldQ, GridTemp0 );
+    AdvectOneOld[0] = GridTemp0;
+    AdvectOneNew[0] = GridTemp2;
+    AdvectOneBType[0] = BC_NoNegate;
+    AdvectFieldsWithMode( AdvectOneOld, AdvectOneNew, i_GridU, i_GridV,
+                          AdvectOneBType, i_mode );
+    CopyArray( GridTemp2, o_NewQ );
+}
+
+//-*****************************************************************************
+// SemiLagrangianAdvectFields, for one half float field.
+static void SemiLagrangianAdvectHalf( final int i_OldQ, final int o_NewQ,
+                               final int i_GridU, final int i_GridV )
+{
+    RunInteriorRows( new RowKernel() { void Rows( int j0, int j1 ) {
+        SemiLagrangianAdvectHalfRows( i_OldQ, o_NewQ, i_GridU, i_GridV,
+                                      j0, j1 );
+        SetHalfSideBoundaries( StateHalf[o_NewQ], 1.0, j0, j1 );
+    } } );
+    SetHalfEndBoundaries( StateHalf[o_NewQ], 1.0 );
+}
+
+// The back-trace is SemiLagrangianAdvectBlock's, with the samples decoded
+// and the result encoded.
+static void SemiLagrangianAdvectHalfRows( int i_OldQ, int o_NewQ,
+                                   int i_GridU, int i_GridV,
+                                   int i_jBegin, int i_jEnd )
+{
+    float[] T = HalfTable;
+    float[] U = State[i_GridU];
+    float[] V = State[i_GridV];
+    short[] OldQ = StateHalf[i_OldQ];
+    short[] NewQ = StateHalf[o_NewQ];
+    for ( int j=i_jBegin; j<i_jEnd; ++j )
+    {
+        float SimPosY = DXY * ( 0.5 + ( float )j );
+        int a = IX(1,j);
+        for ( int i=1; i<=NX; ++i, ++a )
+        {
+            float SimPosX = DXY * ( 0.5 + ( float )i );
+
+            float GridSamplePosX = ( ( SimPosX - DT * U[a] ) / DXY ) - 0.5;
+            float GridSamplePosY = ( ( SimPosY - DT * V[a] ) / DXY ) - 0.5;
+
+            int MinI = ( int )floor( GridSamplePosX );
+            float InterpU = GridSamplePosX - ( float )MinI;
+            MinI = constrain( MinI, 0, GX-1 );
+
+            int MinJ = ( int )floor( GridSamplePosY );
+            float InterpV = GridSamplePosY - ( float )MinJ;
+            MinJ = constrain( MinJ, 0, GY-1 );
+
+            int MaxI = constrain( MinI+1, 0, GX-1 );
+            int MaxJ = constrain( MinJ+1, 0, GY-1 );
+
+            float Qdown = lerp( T[OldQ[IX(MinI,MinJ)] & 0xFFFF],
+                                T[OldQ[IX(MaxI,MinJ)] & 0xFFFF], InterpU );
+            float Qup = lerp( T[OldQ[IX(MinI,MaxJ)] & 0xFFFF],
+                              T[OldQ[IX(MaxI,MaxJ)] & 0xFFFF], InterpU );
+
+            NewQ[a] = EncodeHalf( lerp( Qdown, Qup, InterpV ) );
+        }
+    }
+}
+
+//-*****************************************************************************
+// Diffuse a half float field, with no negation at the boundaries. The
+// Jacobi sweeps ping-pong between GridTemp0, in floats, and o_NewQ itself,
+// in half floats, starting from i_OldQ and finishing in o_NewQ, so they
+// don't need GridTemp2. That rounds the density on every other sweep
+// rather than only on the last, which is well inside what half floats
+// hold, and the sweeps into o_NewQ move half the bytes.
+//-*****************************************************************************
+static class DiffuseHalfKernel extends RowKernel
+{
+    int src = 0;
+    int dst = 0;
+    float k = 0.0;
+
+    void Rows( int j0, int j1 )
+    {
+        DiffuseHalfRows( src, dst, k, j0, j1 );
+    }
+}
+static DiffuseHalfKernel DiffuseHalfSweep = new DiffuseHalfKernel();
+
+static void DiffuseHalfField( int i_OldQ, int o_NewQ, float i_visc )
+{
+    if ( DiffuseSolver != DS_Jacobi )
+    {
+        NeedTemp2();
+        CopyArray( i_OldQ, GridTemp0 );
+        Diffuse( GridTemp0, GridTemp2, i_visc, BC_NoNegate );
+        CopyArray( GridTemp2, o_NewQ );
+        return;
+    }
+
+    DiffuseHalfSweep.k = DT * i_visc * sq( DXY );
+    int SRC = i_OldQ;
+    for ( int iters = 0; iters < DiffuseIterations; ++iters )
+    {
+        // Count back from the last sweep, which goes into o_NewQ.
+        int DST = ( ( DiffuseIterations - 1 - iters ) % 2 == 0 ) ?
+            o_NewQ : GridTemp0;
+
+        DiffuseHalfSweep.src = SRC;
+        DiffuseHalfSweep.dst = DST;
+        RunInteriorRows( DiffuseHalfSweep );
+        EnforceBoundaryConditions( DST, BC_NoNegate );
+        SRC = DST;
+    }
+}
+
+// DiffuseBlock's sweep, over whole rows, from and to fields stored either
+// way.
+static void DiffuseHalfRows( int SRC, int DST, float k, int i_jBegin, int i_jEnd )
+{
+    if ( StateHalf[SRC] == null && StateHalf[DST] == null )
+    {
+        DiffuseRows( SRC, DST, k, i_jBegin, i_jEnd );
+        return;
+    }
+
+    float[] T = HalfTable;
+    short[] srcHalf = StateHalf[SRC];
+    float[] src = State[SRC];
+    short[] dstHalf = StateHalf[DST];
+    float[] dst = State[DST];
+    int S = GridStride;
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
+    {
+        int aEnd = IX(NX+1,j);
+        for ( int a = IX(1,j); a < aEnd; ++a )
+        {
+            float q;
+            if ( srcHalf != null )
+            {
+                q = ( T[srcHalf[a] & 0xFFFF] +
+                      k * ( T[srcHalf[a-S] & 0xFFFF] +
+                            T[srcHalf[a-1] & 0xFFFF] +
+                            T[srcHalf[a+1] & 0xFFFF] +
+                            T[srcHalf[a+S] & 0xFFFF] ) )
+                    / ( 1.0 + 4.0*k );
+            }
+            else
+            {
+                q = ( src[a] +
+                      k * ( src[a-S] +
+                            src[a-1] +
+                            src[a+1] +
+                            src[a+S] ) )
+                    / ( 1.0 + 4.0*k );
+            }
+            if ( dstHalf != null )
+            {
+                dstHalf[a] = EncodeHalf( q );
+            }
+            else
+            {
+                dst[a] = q;
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// KERNEL BACKENDS
+//
+// The simplest stages - zeroing, copying, damping, adding the input, and
+// the Jacobi sweeps of diffusion and pressure - are plain float loops, and
+// could run several cells per instruction on SIMD hardware. The JIT only
+// manages that some of the time, though: written the obvious way, the
+// loops look up State[x] and call IX() for every cell, and the compiler
+// has to prove those don't change before it can vectorize anything.
+//
+// So each of those stages has two backends, picked at run time by
+// KernelBackend:
+//
+//   KB_Scalar  the original loops.
+//   KB_Flat    the arrays are looked up once, outside the loop, and each
+//              row is a single flat range of indices with a bound that
+//              doesn't change. That's the shape the JIT's superword pass
+//              turns into SIMD instructions. Zeroing and copying go to
+//              Arrays.fill and System.arraycopy, which are intrinsics.
+//
+// Unrolling by hand looks like it ought to help, but it hides the pattern
+// from the superword pass, and measured several times slower than the
+// flat loops on a current JVM.
+//
+// Every cell is computed with exactly the same float operations, in the
+// same order, by both backends, so the results are bit-for-bit identical.
+// CheckKernelBackends runs each kernel both ways on the same random
+// state and reports any cell that differs; the benchmarks run it before
+// timing anything.
+//-*****************************************************************************
+//-*****************************************************************************
+
+static int KB_Scalar = 0;
+static int KB_Flat = 1;
+static int KernelBackend = KB_Flat;
+static String[] KernelBackendNames = { "scalar", "flat" };
+
+//-*****************************************************************************
+// q[a] *= i_mult for a from i_begin up to i_end.
+static void ScaleRange( float[] q, float i_mult, int i_begin, int i_end )
+{
+    for ( int a = i_begin; a < i_end; ++a )
+    {
+        q[a] *= i_mult;
+    }
+}
+
+//-*****************************************************************************
+// y[a] += i_scale * x[a] for a from i_begin up to i_end.
+static void AddScaledRange( float[] y, float i_scale, float[] x,
+                     int i_begin, int i_end )
+{
+    for ( int a = i_begin; a < i_end; ++a )
+    {
+        y[a] += i_scale * x[a];
+    }
+}
+
+//-*****************************************************************************
+// The Jacobi diffusion sweep of DiffuseBlock, one flat range per row.
+//-*****************************************************************************
+static void DiffuseBlockFlat( float[] src, float[] dst, float k,
+                       int i_iBegin, int i_iEnd, int i_jBegin, int i_jEnd )
+{
+    int S = GridStride;
+    float denom = 1.0 + 4.0*k;
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
+    {
+        int aEnd = IX(i_iEnd,j);
+        for ( int a = IX(i_iBegin,j); a < aEnd; ++a )
+        {
+            dst[a] = ( src[a] +
+                       k * ( src[a-S] + src[a-1] + src[a+1] + src[a+S] ) ) /
+                denom;
+        }
+    }
+}
+
+//-*****************************************************************************
+// The Jacobi pressure sweep of JacobiPressureRows, one flat range per row.
+//-*****************************************************************************
+static void JacobiPressureRowsFlat( float[] Div, float[] src, float[] dst,
+                             int i_jBegin, int i_jEnd )
+{
+    int S = GridStride;
+    float h2 = DXY * DXY;
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
+    {
+        int aEnd = IX(NX+1,j);
+        for ( int a = IX(1,j); a < aEnd; ++a )
+        {
+            dst[a] = ( ( src[a-S] + src[a-1] + src[a+1] + src[a+S] ) -
+                       ( h2 * Div[a] ) ) / 4.0;
+        }
+    }
+}
+
+//-*****************************************************************************
+// Run one of the kernels we check, on the current state.
+static int NUM_CHECKED_KERNELS = 6;
+static String[] CheckedKernelNames = { "ZeroArray", "CopyArray", "DampArray",
+                                "AddScaledBox", "DiffuseRows",
+                                "JacobiPressureRows" };
+
+static void RunCheckedKernel( int i_kernel )
+{
+    switch ( i_kernel )
+    {
+    case 0: ZeroArray( GridTemp0 ); break;
+    case 1: CopyArray( GridU, GridTemp0 ); break;
+    case 2: DampArray( GridDensity, 0.1 ); break;
+    case 3: AddScaledBox( GridU, DT, GridInputU,
+                          new int[] { 1, NX+1, 1, NY+1 } ); break;
+    case 4: DiffuseRows( GridDensity, GridTemp0, 0.37, 1, NY+1 ); break;
+    default: JacobiPressureRows( GridPressure, GridPrevU, GridTemp0, 1, NY+1 );
+        break;
+    }
+}
+
+static float[][] CopyState()
+{
+    float[][] copy = new float[State.length][];
+    for ( int s = 0; s < State.length; ++s )
+    {
+        copy[s] = ( State[s] != null ) ? State[s].clone() : null;
+    }
+    return copy;
+}
+
+static void SetState( float[][] i_from )
+{
+    for ( int s = 0; s < State.length; ++s )
+    {
+        if ( State[s] == null )
+        {
+            continue;
+        }
+        System.arraycopy( i_from[s], 0, State[s], 0, State[s].length );
+    }
+}
+
+//-*****************************************************************************
+// Run every checked kernel with each backend, starting from the same random
+// state, and compare every float of the result bit for bit. Prints each
+// kernel that differs, and returns whether they all matched. The state and
+// the backend are left as they were.
+//-*****************************************************************************
+static boolean CheckKernelBackends()
+{
+    int savedBackend = KernelBackend;
+    float[][] saved = CopyState();
+
+    java.util.Random rand = new java.util.Random( 1 );
+    for ( int s = 0; s < State.length; ++s )
+    {
+        if ( State[s] == null )
+        {
+            continue;
+        }
+        for ( int a = 0; a < State[s].length; ++a )
+        {
+            State[s][a] = 2.0 * rand.nextFloat() - 1.0;
+        }
+    }
+    float[][] start = CopyState();
+
+    boolean allMatch = true;
+    for ( int k = 0; k < NUM_CHECKED_KERNELS; ++k )
+    {
+        KernelBackend = KB_Scalar;
+        SetState( start );
+        RunCheckedKernel( k );
+        float[][] expected = CopyState();
+
+        KernelBackend = KB_Flat;
+        SetState( start );
+        RunCheckedKernel( k );
+
+        int mismatches = 0;
+        for ( int s = 0; s < State.length; ++s )
+        {
+            if ( State[s] == null )
+            {
+                continue;
+            }
+            for ( int a = 0; a < State[s].length; ++a )
+            {
+                if ( Float.floatToRawIntBits( State[s][a] ) !=
+                     Float.floatToRawIntBits( expected[s][a] ) )
+                {
+                    ++mismatches;
+                }
+            }
+        }
+        if ( mismatches > 0 )
+        {
+            println( "Kernel " + CheckedKernelNames[k] + ": " + mismatches +
+                     " values differ between the scalar and flat backends" );
+            allMatch = false;
+        }
+    }
+
+    SetState( saved );
+    KernelBackend = savedBackend;
+    return allMatch;
+}
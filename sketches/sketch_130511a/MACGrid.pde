@@ -0,0 +1,236 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// STAGGERED (MAC) VELOCITY GRID
+//
+// Normally U and V are stored at cell centers, like the density, and the
+// divergence and the pressure gradient are central differences across two
+// cells. Taken together, those make a Laplacian that skips every other
+// cell, while every pressure solver here solves the compact 5-point one.
+// The two don't agree about a checkerboard pattern: the projection can't
+// see it in the divergence, so no number of iterations ever removes it.
+//
+// With UseMACGrid, the velocity is staggered instead (Harlow and Welch
+// 1965). The arrays are the same, but U[IX(i,j)] is the x velocity on the
+// face between cells (i,j) and (i+1,j), and V[IX(i,j)] is the y velocity on
+// the face between (i,j) and (i,j+1). Then
+//   div(i,j) = ( U(i,j) - U(i-1,j) + V(i,j) - V(i,j-1) ) / DXY
+//   U(i,j) -= ( P(i+1,j) - P(i,j) ) / DXY
+//   V(i,j) -= ( P(i,j+1) - P(i,j) ) / DXY
+// are one cell wide, and together they make exactly the 5-point Laplacian
+// the solvers use, with the walls' zero flux matching their Neumann
+// boundaries. A converged solve leaves no divergence at all.
+//
+// The walls sit on faces: U is zero on faces 0 and NX, and V on faces 0 and
+// NY, with the faces outside the walls zeroed too. The velocity along a
+// wall is copied into the ghost cells beyond it, as before.
+//
+// Advection traces every value back from where it lives - a cell center
+// or a face - sampling U and V at their own positions, so it always goes
+// through the traced kernels in the Advection tab, whatever the mode.
+// The emitters still stamp velocity at cell centers, which is half a cell
+// off on the faces; it's a smooth splat, so that doesn't show.
+//-*****************************************************************************
+//-*****************************************************************************
+
+static boolean UseMACGrid = false;
+
+//-*****************************************************************************
+// Switch the velocity layout, moving the current velocity onto the faces
+// or back to the centers by averaging neighbors.
+//-*****************************************************************************
+static void SetUseMACGrid( boolean i_use )
+{
+    if ( i_use == UseMACGrid )
+    {
+        return;
+    }
+
+    // The pressure of the other discretization is no guess for this one.
+    ResetPressureHistory();
+
+    float[] U = State[GridU];
+    float[] V = State[GridV];
+    int S = GridStride;
+    for ( int j = 0; j < GY; ++j )
+    {
+        if ( i_use )
+        {
+            for ( int i = 0; i < GX-1; ++i )
+            {
+                U[IX(i,j)] = 0.5 * ( U[IX(i,j)] + U[IX(i+1,j)] );
+            }
+        }
+        else
+        {
+            for ( int i = GX-1; i > 0; --i )
+            {
+                U[IX(i,j)] = 0.5 * ( U[IX(i-1,j)] + U[IX(i,j)] );
+            }
+        }
+    }
+    if ( i_use )
+    {
+        for ( int a = 0; a < IX(0,GY-1); ++a )
+        {
+            V[a] = 0.5 * ( V[a] + V[a+S] );
+        }
+    }
+    else
+    {
+        for ( int a = IX(GX-1,GY-1); a >= S; --a )
+        {
+            V[a] = 0.5 * ( V[a-S] + V[a] );
+        }
+    }
+
+    UseMACGrid = i_use;
+    EnforceBoundaryConditions( GridU, BC_NegateX );
+    EnforceBoundaryConditions( GridV, BC_NegateY );
+}
+
+//-*****************************************************************************
+// Where a field of the given boundary type lives in its cell, in cells:
+// the x velocity is half a cell right, the y velocity half a cell up.
+static float StaggerX( int i_bType )
+{
+    return ( UseMACGrid && i_bType == BC_NegateX ) ? 0.5 : 0.0;
+}
+
+static float StaggerY( int i_bType )
+{
+    return ( UseMACGrid && i_bType == BC_NegateY ) ? 0.5 : 0.0;
+}
+
+//-*****************************************************************************
+// The boundaries of a staggered velocity component, for rows i_jBegin up
+// to i_jEnd: U is zeroed on the walls and beyond them, and V is copied
+// into the side ghost cells.
+//-*****************************************************************************
+static void SetFaceSideBoundaries( float[] q, int i_bType, int i_jBegin, int i_jEnd )
+{
+    if ( i_bType != BC_NegateX )
+    {
+        SetSideBoundaries( q, 1.0, i_jBegin, i_jEnd );
+        return;
+    }
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
+    {
+        q[IX(0,j)] = 0.0;
+        q[IX(NX,j)] = 0.0;
+        q[IX(NX+1,j)] = 0.0;
+    }
+}
+
+//-*****************************************************************************
+// And the bottom and top: U is copied into the ghost rows, corners and
+// all, and V is zeroed on the walls and beyond them.
+//-*****************************************************************************
+static void SetFaceEndBoundaries( float[] q, int i_bType )
+{
+    if ( i_bType == BC_NegateX )
+    {
+        System.arraycopy( q, IX(0,1), q, IX(0,0), GX );
+        System.arraycopy( q, IX(0,NY), q, IX(0,NY+1), GX );
+        return;
+    }
+    java.util.Arrays.fill( q, IX(0,0), IX(GX,0), 0.0 );
+    java.util.Arrays.fill( q, IX(0,NY), IX(GX,NY), 0.0 );
+    java.util.Arrays.fill( q, IX(0,NY+1), IX(GX,NY+1), 0.0 );
+}
+
+//-*****************************************************************************
+// The divergence of each cell from the velocity on its four faces.
+static void ComputeDivergenceRowsMAC( int i_gridU, int i_gridV, int o_gridDiv,
+                               int i_jBegin, int i_jEnd )
+{
+    float[] U = State[i_gridU];
+    float[] V = State[i_gridV];
+    float[] Div = State[o_gridDiv];
+    int S = GridStride;
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
+    {
+        int aEnd = IX(NX+1,j);
+        for ( int a = IX(1,j); a < aEnd; ++a )
+        {
+            Div[a] = ( ( U[a] - U[a-1] ) + ( V[a] - V[a-S] ) ) / DXY;
+        }
+    }
+}
+
+//-*****************************************************************************
+// Subtract the pressure gradient across each face from its velocity.
+static void ApplyNegativeGradientRowsMAC( int i_pressure, int o_velU, int o_velV,
+                                   int i_jBegin, int i_jEnd )
+{
+    float[] P = State[i_pressure];
+    float[] U = State[o_velU];
+    float[] V = State[o_velV];
+    int S = GridStride;
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
+    {
+        int aEnd = IX(NX+1,j);
+        for ( int a = IX(1,j); a < aEnd; ++a )
+        {
+            U[a] -= ( P[a+1] - P[a] ) / DXY;
+            V[a] -= ( P[a+S] - P[a] ) / DXY;
+        }
+    }
+}
+
+//-*****************************************************************************
+// The staggered velocity at grid position (x,y), where cell (i,j) is at
+// (i,j).
+static float SampleFaceU( float[] U, float x, float y )
+{
+    return SampleLinear( U, x - 0.5, y );
+}
+
+static float SampleFaceV( float[] V, float x, float y )
+{
+    return SampleLinear( V, x, y - 0.5 );
+}
+
+//-*****************************************************************************
+// Trace the point (x,y) back through the staggered velocity (U,V) for a
+// time i_dt, like TraceCell.
+//-*****************************************************************************
+static void TracePointMAC( float[] U, float[] V, float x, float y, float i_dt,
+                    int i_trace, float[] o_pos )
+{
+    float s = i_dt / DXY;
+    float u1 = SampleFaceU( U, x, y );
+    float v1 = SampleFaceV( V, x, y );
+    if ( i_trace == TR_Euler )
+    {
+        o_pos[0] = x - s * u1;
+        o_pos[1] = y - s * v1;
+    }
+    else if ( i_trace == TR_RK2 )
+    {
+        float xm = x - 0.5 * s * u1;
+        float ym = y - 0.5 * s * v1;
+        o_pos[0] = x - s * SampleFaceU( U, xm, ym );
+        o_pos[1] = y - s * SampleFaceV( V, xm, ym );
+    }
+    else
+    {
+        float x2 = x - 0.5 * s * u1;
+        float y2 = y - 0.5 * s * v1;
+        float u2 = SampleFaceU( U, x2, y2 );
+        float v2 = SampleFaceV( V, x2, y2 );
+        float x3 = x - 0.5 * s * u2;
+        float y3 = y - 0.5 * s * v2;
+        float u3 = SampleFaceU( U, x3, y3 );
+        float v3 = SampleFaceV( V, x3, y3 );
+        float x4 = x - s * u3;
+        float y4 = y - s * v3;
+        float u4 = SampleFaceU( U, x4, y4 );
+        float v4 = SampleFaceV( V, x4, y4 );
+        o_pos[0] = x - s * ( u1 + 2.0 * u2 + 2.0 * u3 + u4 ) / 6.0;
+        o_pos[1] = y - s * ( v1 + 2.0 * v2 + 2.0 * v3 + v4 ) / 6.0;
+    }
+}
@@ -0,0 +1,332 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// MULTIGRID PRESSURE SOLVER
+//
+// Jacobi iteration only moves information one cell per sweep, so the
+// number of sweeps needed to remove the divergence grows with the size of
+// the grid. Ten sweeps is plenty at 16x16 and nowhere near enough at
+// 512x512. Multigrid gets around this by noticing that the error left over
+// after a few sweeps is smooth - and a smooth error can be represented
+// (and solved for) on a grid half the size, where it is cheap to remove.
+// Doing that recursively is called a V-cycle:
+//
+//   Smooth a few times on the fine grid.
+//   Compute the residual, r = Div - Laplacian( P ).
+//   Restrict the residual to a grid half the size.
+//   Solve Laplacian( E ) = r on the coarse grid, recursively.
+//   Prolong E back to the fine grid and add it to P.
+//   Smooth a few more times.
+//
+// Each V-cycle costs a small constant times the number of cells, and
+// reduces the residual by roughly a constant factor regardless of the grid
+// size, so we can stop on a residual target instead of an iteration count.
+//
+// The grids are cell-centered, just like the State arrays, and the
+// boundary condition is the same as EnforceBoundaryConditions with
+// BC_NoNegate - the ghost cell copies the adjacent interior value. Rather
+// than keep ghost cells up to date on every level, we fold that condition
+// into the stencil: a neighbor outside the grid has the same value as the
+// center, so it simply drops out of both the sum and the diagonal.
+//-*****************************************************************************
+//-*****************************************************************************
+
+// Which pressure solver EnforceIncompressibility uses.
+static int PS_Jacobi = 0;
+static int PS_Multigrid = 1;
+static int PressureSolver = PS_Multigrid;
+
+// Stop when the RMS residual falls below this fraction of the RMS
+// divergence, or after MultigridMaxCycles V-cycles.
+static float MultigridTolerance = 0.001;
+static int MultigridMaxCycles = 10;
+
+// Smoothing sweeps before and after the coarse grid correction, and on
+// the coarsest grid.
+static int MultigridPreSmooth = 2;
+static int MultigridPostSmooth = 2;
+static int MultigridCoarseSmooth = 32;
+
+// The levels. Level 0 is the simulation grid. Pressure on level 0 points
+// directly at the State array being solved for; the rest are owned here.
+static int MGNumLevels = 0;
+static int[] MGNX;
+static int[] MGNY;
+static int[] MGStride;
+static float[] MGDXY;
+static float[][] MGPressure;
+static float[][] MGRhs;
+static float[][] MGResidual;
+
+// What the last solve did.
+static int MGLastCycles = 0;
+static float MGLastResidual = 0.0;
+
+//-*****************************************************************************
+static void InitMultigrid()
+{
+    // Count levels. Coarsening stops once either side gets down to a
+    // handful of cells.
+    int nx = NX;
+    int ny = NY;
+    MGNumLevels = 1;
+    while ( min( nx, ny ) > 4 )
+    {
+        nx = ( nx + 1 ) / 2;
+        ny = ( ny + 1 ) / 2;
+        ++MGNumLevels;
+    }
+
+    MGNX = new int[MGNumLevels];
+    MGNY = new int[MGNumLevels];
+    MGStride = new int[MGNumLevels];
+    MGDXY = new float[MGNumLevels];
+    MGPressure = new float[MGNumLevels][];
+    MGRhs = new float[MGNumLevels][];
+    MGResidual = new float[MGNumLevels][];
+
+    nx = NX;
+    ny = NY;
+    float h = DXY;
+    for ( int l = 0; l < MGNumLevels; ++l )
+    {
+        // Level 0 shares the layout of the State arrays, padding and all.
+        int stride = ( l == 0 ) ? GridStride : nx + 2;
+        int size = ( l == 0 ) ? GridArraySize : stride * ( ny + 2 );
+        MGNX[l] = nx;
+        MGNY[l] = ny;
+        MGStride[l] = stride;
+        MGDXY[l] = h;
+        MGPressure[l] = ( l == 0 ) ? null : new float[size];
+        MGRhs[l] = new float[size];
+        MGResidual[l] = new float[size];
+
+        nx = ( nx + 1 ) / 2;
+        ny = ( ny + 1 ) / 2;
+        h *= 2.0;
+    }
+}
+
+//-*****************************************************************************
+// Red-black Gauss-Seidel smoothing on level l. Solves in place, so there
+// is no need for a second pressure array.
+//-*****************************************************************************
+static void MGSmooth( int l, int i_sweeps )
+{
+    int nx = MGNX[l];
+    int ny = MGNY[l];
+    int gx = MGStride[l];
+    float h2 = sq( MGDXY[l] );
+    float[] p = MGPressure[l];
+    float[] f = MGRhs[l];
+
+    for ( int sweep = 0; sweep < i_sweeps; ++sweep )
+    {
+        for ( int parity = 0; parity < 2; ++parity )
+        {
+            for ( int j = 1; j <= ny; ++j )
+            {
+                int row = gx * j;
+                for ( int i = 1 + ( ( j + parity + 1 ) & 1 ); i <= nx; i += 2 )
+                {
+                    int a = row + i;
+                    float sum = 0.0;
+                    float count = 0.0;
+                    if ( i > 1 )  { sum += p[a-1];  count += 1.0; }
+                    if ( i < nx ) { sum += p[a+1];  count += 1.0; }
+                    if ( j > 1 )  { sum += p[a-gx]; count += 1.0; }
+                    if ( j < ny ) { sum += p[a+gx]; count += 1.0; }
+                    p[a] = ( sum - h2 * f[a] ) / count;
+                }
+            }
+        }
+    }
+}
+
+//-*****************************************************************************
+// Compute r = f - Laplacian( p ) on level l, and return its RMS.
+//-*****************************************************************************
+static float MGComputeResidual( int l )
+{
+    int nx = MGNX[l];
+    int ny = MGNY[l];
+    int gx = MGStride[l];
+    float invH2 = 1.0 / sq( MGDXY[l] );
+    float[] p = MGPressure[l];
+    float[] f = MGRhs[l];
+    float[] r = MGResidual[l];
+
+    double sumSq = 0.0;
+    for ( int j = 1; j <= ny; ++j )
+    {
+        int row = gx * j;
+        for ( int i = 1; i <= nx; ++i )
+        {
+            int a = row + i;
+            float lap = 0.0;
+            if ( i > 1 )  { lap += p[a-1]  - p[a]; }
+            if ( i < nx ) { lap += p[a+1]  - p[a]; }
+            if ( j > 1 )  { lap += p[a-gx] - p[a]; }
+            if ( j < ny ) { lap += p[a+gx] - p[a]; }
+            r[a] = f[a] - ( lap * invH2 );
+            sumSq += r[a] * r[a];
+        }
+    }
+    return ( float )Math.sqrt( sumSq / ( double )( nx * ny ) );
+}
+
+//-*****************************************************************************
+// Average each 2x2 block of the residual on level l into the right hand
+// side of level l+1. When a fine side has an odd number of cells, the last
+// coarse cell only has one child in that direction.
+//-*****************************************************************************
+static void MGRestrict( int l )
+{
+    int fnx = MGNX[l];
+    int fny = MGNY[l];
+    int fgx = MGStride[l];
+    int cnx = MGNX[l+1];
+    int cny = MGNY[l+1];
+    int cgx = MGStride[l+1];
+    float[] r = MGResidual[l];
+    float[] fc = MGRhs[l+1];
+
+    for ( int J = 1; J <= cny; ++J )
+    {
+        int j0 = 2*J - 1;
+        int j1 = min( j0 + 1, fny );
+        for ( int I = 1; I <= cnx; ++I )
+        {
+            int i0 = 2*I - 1;
+            int i1 = min( i0 + 1, fnx );
+            fc[I + cgx*J] = 0.25 * ( r[i0 + fgx*j0] + r[i1 + fgx*j0] +
+                                     r[i0 + fgx*j1] + r[i1 + fgx*j1] );
+        }
+    }
+}
+
+//-*****************************************************************************
+// Bilinearly interpolate the correction from level l+1 and add it to the
+// pressure on level l. Each fine cell sits a quarter of a coarse cell away
+// from its parent's center, which gives the usual 9/3/3/1 weights. Coarse
+// neighbors outside the grid take the parent's value, as per the boundary
+// condition.
+//-*****************************************************************************
+static void MGProlongAndCorrect( int l )
+{
+    int fnx = MGNX[l];
+    int fny = MGNY[l];
+    int fgx = MGStride[l];
+    int cnx = MGNX[l+1];
+    int cny = MGNY[l+1];
+    int cgx = MGStride[l+1];
+    float[] p = MGPressure[l];
+    float[] e = MGPressure[l+1];
+
+    for ( int j = 1; j <= fny; ++j )
+    {
+        int J = ( j + 1 ) / 2;
+        int Jn = constrain( ( ( j & 1 ) == 1 ) ? J - 1 : J + 1, 1, cny );
+        for ( int i = 1; i <= fnx; ++i )
+        {
+            int I = ( i + 1 ) / 2;
+            int In = constrain( ( ( i & 1 ) == 1 ) ? I - 1 : I + 1, 1, cnx );
+
+            p[i + fgx*j] += ( 9.0 * e[I  + cgx*J]  +
+                              3.0 * e[In + cgx*J]  +
+                              3.0 * e[I  + cgx*Jn] +
+                              1.0 * e[In + cgx*Jn] ) / 16.0;
+        }
+    }
+}
+
+//-*****************************************************************************
+static void MGVCycle( int l )
+{
+    if ( l == MGNumLevels - 1 )
+    {
+        MGSmooth( l, MultigridCoarseSmooth );
+        return;
+    }
+
+    MGSmooth( l, MultigridPreSmooth );
+    MGComputeResidual( l );
+    MGRestrict( l );
+
+    // The coarse level solves for a correction, starting from zero.
+    java.util.Arrays.fill( MGPressure[l+1], 0.0 );
+    MGVCycle( l + 1 );
+
+    MGProlongAndCorrect( l );
+    MGSmooth( l, MultigridPostSmooth );
+}
+
+//-*****************************************************************************
+// Solve Laplacian( Pressure ) = Divergence by V-cycles until the residual
+// target is met. On a closed box, only the part of the divergence with
+// zero mean can be removed by a pressure, so we solve against that part.
+// Starts from zero, or from o_Pressure if i_warmStart, in which case the
+// guess may already be good enough for no V-cycles at all.
+//-*****************************************************************************
+static void ComputePressureViaMultigrid( int i_Div, int o_Pressure,
+                                  boolean i_warmStart )
+{
+    long startTime = System.nanoTime();
+    if ( MGNumLevels == 0 )
+    {
+        InitMultigrid();
+    }
+
+    float[] f = MGRhs[0];
+    double mean = 0.0;
+    for ( int j = 1; j <= NY; ++j )
+    {
+        for ( int i = 1; i <= NX; ++i )
+        {
+            mean += State[i_Div][IX(i,j)];
+        }
+    }
+    mean /= ( double )( NX * NY );
+
+    double sumSq = 0.0;
+    for ( int j = 1; j <= NY; ++j )
+    {
+        for ( int i = 1; i <= NX; ++i )
+        {
+            float d = State[i_Div][IX(i,j)] - ( float )mean;
+            f[IX(i,j)] = d;
+            sumSq += d * d;
+        }
+    }
+    float rhsNorm = ( float )Math.sqrt( sumSq / ( double )( NX * NY ) );
+
+    MGPressure[0] = State[o_Pressure];
+    if ( !i_warmStart )
+    {
+        ZeroArray( o_Pressure );
+    }
+
+    MGLastCycles = 0;
+    MGLastResidual = 0.0;
+    if ( rhsNorm > 0.0 )
+    {
+        // A zero guess leaves the whole right hand side as the residual.
+        MGLastResidual = i_warmStart ? MGComputeResidual( 0 ) : rhsNorm;
+        while ( MGLastCycles < MultigridMaxCycles &&
+                MGLastResidual > MultigridTolerance * rhsNorm )
+        {
+            MGVCycle( 0 );
+            ++MGLastCycles;
+            MGLastResidual = MGComputeResidual( 0 );
+        }
+    }
+
+    EnforceBoundaryConditions( o_Pressure, BC_NoNegate );
+
+    ReportSolve( "pressure multigrid", MGLastCycles,
+                 ( rhsNorm > 0.0 ) ? MGLastResidual / rhsNorm : 0.0,
+                 System.nanoTime() - startTime );
+}
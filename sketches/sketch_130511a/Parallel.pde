@@ -0,0 +1,160 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// PARALLEL KERNELS
+//
+// Every stage of the time step is a loop over the rows of the grid, where
+// each output cell only depends on the inputs - never on another output
+// cell of the same stage. That means the rows can be split into bands and
+// computed by different threads at the same time, and the result is
+// exactly the same as doing them one after another.
+//
+// A stage that wants to run in parallel wraps its row loop in a RowKernel
+// and hands it to RunRows. RunRows splits the rows into one band per
+// worker, runs the bands on a fixed pool of threads, and doesn't return
+// until all of them are done. That wait is the barrier between stages -
+// boundary conditions, and the next stage, always see a finished grid.
+//
+// The band tasks are made once per pool, and the stages that run every
+// solver iteration keep their RowKernels too, so a sweep hands out work
+// without allocating anything of its own. That means RunRows is only ever
+// called from the simulation thread, and never from inside a kernel.
+//-*****************************************************************************
+//-*****************************************************************************
+
+import java.util.concurrent.*;
+
+// Whether to split kernels across threads, and how many threads to use.
+static boolean UseParallelKernels = true;
+static int NumWorkerThreads = Runtime.getRuntime().availableProcessors();
+
+// Grids with fewer interior cells than this are always run serially, since
+// handing the work out costs more than the work itself.
+static int MinParallelCells = 64 * 64;
+
+// The pool is made on first use.
+static ExecutorService WorkerPool = null;
+static int WorkerPoolSize = 0;
+
+//-*****************************************************************************
+// A row loop. Rows computes rows i_jBegin up to (not including) i_jEnd.
+static abstract class RowKernel
+{
+    abstract void Rows( int i_jBegin, int i_jEnd );
+}
+
+//-*****************************************************************************
+// One band of a RunRows call. RunRows fills these in rather than making
+// new tasks every time.
+static class RowBand implements Callable<Object>
+{
+    RowKernel kernel = null;
+    int jBegin = 0;
+    int jEnd = 0;
+
+    public Object call()
+    {
+        kernel.Rows( jBegin, jEnd );
+        return null;
+    }
+}
+
+// The bands for the current pool. RowBandLists.get( n ) is the first n of
+// them, ready to hand to invokeAll.
+static RowBand[] RowBands = new RowBand[0];
+static java.util.List<java.util.List<Callable<Object>>> RowBandLists =
+    new java.util.ArrayList<java.util.List<Callable<Object>>>();
+
+//-*****************************************************************************
+static void StartWorkerPool()
+{
+    if ( WorkerPool != null )
+    {
+        WorkerPool.shutdown();
+    }
+
+    // Daemon threads, so that an idle pool never keeps the sketch alive.
+    WorkerPoolSize = NumWorkerThreads;
+    WorkerPool = Executors.newFixedThreadPool( WorkerPoolSize,
+        new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, "SimWorker" );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+
+    RowBands = new RowBand[WorkerPoolSize];
+    RowBandLists.clear();
+    RowBandLists.add( new java.util.ArrayList<Callable<Object>>() );
+    for ( int b = 0; b < WorkerPoolSize; ++b )
+    {
+        RowBands[b] = new RowBand();
+        java.util.List<Callable<Object>> bands =
+            new java.util.ArrayList<Callable<Object>>( b + 1 );
+        for ( int c = 0; c <= b; ++c )
+        {
+            bands.add( RowBands[c] );
+        }
+        RowBandLists.add( bands );
+    }
+}
+
+//-*****************************************************************************
+// Run i_kernel over rows i_jBegin up to (not including) i_jEnd, in parallel
+// if we can, and wait for it to finish.
+//-*****************************************************************************
+static void RunRows( int i_jBegin, int i_jEnd, RowKernel i_kernel )
+{
+    int numRows = i_jEnd - i_jBegin;
+    if ( !UseParallelKernels || NumWorkerThreads < 2 ||
+         numRows < 2 || NX * NY < MinParallelCells )
+    {
+        i_kernel.Rows( i_jBegin, i_jEnd );
+        return;
+    }
+
+    if ( WorkerPool == null || WorkerPoolSize != NumWorkerThreads )
+    {
+        StartWorkerPool();
+    }
+
+    int numBands = min( WorkerPoolSize, numRows );
+    for ( int b = 0; b < numBands; ++b )
+    {
+        RowBand band = RowBands[b];
+        band.kernel = i_kernel;
+        band.jBegin = i_jBegin + ( b * numRows ) / numBands;
+        band.jEnd = i_jBegin + ( ( b + 1 ) * numRows ) / numBands;
+    }
+
+    try
+    {
+        java.util.List<Future<Object>> done =
+            WorkerPool.invokeAll( RowBandLists.get( numBands ) );
+        for ( int b = 0; b < done.size(); ++b )
+        {
+            done.get( b ).get();
+        }
+    }
+    catch ( InterruptedException e )
+    {
+        throw new RuntimeException( e );
+    }
+    catch ( ExecutionException e )
+    {
+        throw new RuntimeException( e.getCause() );
+    }
+}
+
+//-*****************************************************************************
+// Run i_kernel over the interior rows, 1 to NY.
+static void RunInteriorRows( RowKernel i_kernel )
+{
+    RunRows( 1, NY+1, i_kernel );
+}
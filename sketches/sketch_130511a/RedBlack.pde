@@ -0,0 +1,167 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// RED-BLACK GAUSS-SEIDEL / SOR
+//
+// Jacobi iteration computes every new value from the old values, so it
+// needs two arrays to ping-pong between. Gauss-Seidel instead uses each
+// new value as soon as it is computed, which lets it work in place and
+// converge roughly twice as fast per sweep. Visiting the cells in order
+// would make each cell depend on the one before it, though, so we color the
+// grid like a checkerboard: a red cell's four neighbors are all black, and
+// vice versa. We update all of the red cells from the black ones, then all
+// of the black cells from the (new) red ones. Within a color, every cell is
+// independent, so each half-sweep can be run with RunRows just like the
+// Jacobi sweeps.
+//
+// Successive over-relaxation (SOR) pushes each cell past its Gauss-Seidel
+// value by a factor Omega:
+//   Q = ( 1 - Omega ) * Q + Omega * Qgs
+// Omega = 1 is plain Gauss-Seidel. Values between 1 and 2 converge faster
+// for smooth problems like the pressure solve; the best value depends on
+// the grid size, so it's left as a parameter.
+//-*****************************************************************************
+//-*****************************************************************************
+
+static int PS_RedBlackSOR = 3;
+static int DS_RedBlackSOR = 2;
+
+// The over-relaxation factor, between 1 (Gauss-Seidel) and 2.
+static float SOROmega = 1.7;
+
+// Sweeps for the pressure and diffusion solves. Each sweep is one red and
+// one black half-sweep.
+static int RedBlackPressureIterations = 10;
+static int RedBlackDiffuseIterations = 4;
+
+//-*****************************************************************************
+// The first interior i of the given color in row j. Red cells (color 0)
+// have i+j even.
+static int FirstOfColor( int j, int i_color )
+{
+    return 1 + ( ( j + 1 + i_color ) & 1 );
+}
+
+//-*****************************************************************************
+// The half-sweeps, as kernels the solves below fill in and reuse for every
+// sweep.
+static class RedBlackPressureKernel extends RowKernel
+{
+    int div = 0;
+    int pressure = 0;
+    int color = 0;
+
+    void Rows( int j0, int j1 )
+    {
+        RedBlackPressureRows( div, pressure, color, j0, j1 );
+    }
+}
+static RedBlackPressureKernel RedBlackPressureSweep = new RedBlackPressureKernel();
+
+static class RedBlackDiffuseKernel extends RowKernel
+{
+    int oldQ = 0;
+    int newQ = 0;
+    float k = 0.0;
+    int color = 0;
+
+    void Rows( int j0, int j1 )
+    {
+        RedBlackDiffuseRows( oldQ, newQ, k, color, j0, j1 );
+    }
+}
+static RedBlackDiffuseKernel RedBlackDiffuseSweep = new RedBlackDiffuseKernel();
+
+//-*****************************************************************************
+// Pressure, in place. Solves the same equation as the Jacobi iterations
+// above, Laplacian( Pressure ) = Divergence, but doesn't need GridTemp2.
+// Starts from zero, or from o_Pressure if i_warmStart.
+//-*****************************************************************************
+static void ComputePressureViaRedBlackSOR( int i_Div, int o_Pressure,
+                                    boolean i_warmStart )
+{
+    if ( !i_warmStart )
+    {
+        ZeroArray( o_Pressure );
+    }
+
+    RedBlackPressureSweep.div = i_Div;
+    RedBlackPressureSweep.pressure = o_Pressure;
+    for ( int iter = 0; iter < RedBlackPressureIterations; ++iter )
+    {
+        for ( int c = 0; c < 2; ++c )
+        {
+            RedBlackPressureSweep.color = c;
+            RunInteriorRows( RedBlackPressureSweep );
+        }
+        EnforceBoundaryConditions( o_Pressure, BC_NoNegate );
+    }
+}
+
+//-*****************************************************************************
+static void RedBlackPressureRows( int i_Div, int io_Pressure, int i_color,
+                           int i_jBegin, int i_jEnd )
+{
+    float[] P = State[io_Pressure];
+    float[] D = State[i_Div];
+    float h2 = DXY * DXY;
+    int S = GridStride;
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
+    {
+        for ( int i = FirstOfColor( j, i_color ); i <= NX; i += 2 )
+        {
+            int a = IX(i,j);
+            float gs = ( ( P[a-S] + P[a-1] + P[a+1] + P[a+S] ) -
+                         ( h2 * D[a] ) ) / 4.0;
+            P[a] += SOROmega * ( gs - P[a] );
+        }
+    }
+}
+
+//-*****************************************************************************
+// Diffusion, in place. This solves the implicit system described above
+// Diffuse,
+//   ( 1 + 4k ) Q - k ( Qdown + Qleft + Qright + Qup ) = Qold
+// starting from Q = Qold, and leaves i_OldQ untouched.
+//-*****************************************************************************
+static void DiffuseViaRedBlackSOR( int i_OldQ, int o_NewQ,
+                            float i_visc, int i_bType )
+{
+    CopyArray( i_OldQ, o_NewQ );
+
+    RedBlackDiffuseSweep.oldQ = i_OldQ;
+    RedBlackDiffuseSweep.newQ = o_NewQ;
+    RedBlackDiffuseSweep.k = DT * i_visc * sq( DXY );
+    for ( int iter = 0; iter < RedBlackDiffuseIterations; ++iter )
+    {
+        for ( int c = 0; c < 2; ++c )
+        {
+            RedBlackDiffuseSweep.color = c;
+            RunInteriorRows( RedBlackDiffuseSweep );
+        }
+        EnforceBoundaryConditions( o_NewQ, i_bType );
+    }
+}
+
+//-*****************************************************************************
+static void RedBlackDiffuseRows( int i_OldQ, int io_NewQ, float k, int i_color,
+                          int i_jBegin, int i_jEnd )
+{
+    float[] Q = State[io_NewQ];
+    float[] Qold = State[i_OldQ];
+    int S = GridStride;
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
+    {
+        for ( int i = FirstOfColor( j, i_color ); i <= NX; i += 2 )
+        {
+            int a = IX(i,j);
+            float gs = ( Qold[a] +
+                         k * ( Q[a-S] + Q[a-1] + Q[a+1] + Q[a+S] ) ) /
+                ( 1.0 + 4.0*k );
+            Q[a] += SOROmega * ( gs - Q[a] );
+        }
+    }
+}
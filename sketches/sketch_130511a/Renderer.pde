@@ -0,0 +1,421 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// OFFLINE RENDERER
+//
+// DrawScalarField and DrawVelocityField go through Processing's drawing
+// calls - color() for every pixel, and a line() with its own stroke() for
+// every cell - which at large grid sizes take longer than the time step
+// itself. And in a batch run, writing a frame stops the solver until the
+// file is written.
+//
+// The renderer does neither. A density maps to a color through DensityLUT,
+// a table of packed RGB ints made once with the same ramp as
+// DrawScalarField, so a pixel is one table lookup. Velocity lines, if
+// wanted, are stepped straight into the same int[] buffer, with their
+// color from VelocityLUT. Nothing here calls into Processing, so it can
+// all run on a thread of its own.
+//
+// A frame is queued by copying the fields it needs into a snapshot and
+// handing that to the render thread, which renders and writes it while
+// the solver carries on. There are only RenderQueueLength snapshots; when
+// all of them are waiting to be written, QueueRenderFrame blocks until one
+// is free. That bounds the memory, and means a slow disk slows the solver
+// down rather than piling up frames. A snapshot always goes back to the
+// free queue, whatever happens to its frame, and if the render thread dies
+// anyway, QueueRenderFrame throws rather than waiting for it forever.
+//
+// Frames are written as PNG files, one per frame, or as raw 8-bit RGB, all
+// appended to one file that can be piped straight into a video encoder:
+//   ffmpeg -f rawvideo -pix_fmt rgb24 -s <W>x<H> -i density.rgb out.mp4
+// where W and H are the grid size times RenderScale.
+//-*****************************************************************************
+//-*****************************************************************************
+
+static int RF_PNG = 0;
+static int RF_Raw = 1;
+static String[] RenderFormatNames = { "png", "raw" };
+
+static int RenderFormat = RF_PNG;
+
+// Pixels per cell, and whether to draw the velocity lines.
+static int RenderScale = 1;
+static boolean RenderVelocity = false;
+static float RenderVelocityAlpha = 0.5;
+
+// Snapshots that can be waiting to be written at once.
+static int RenderQueueLength = 4;
+
+// Table sizes. The density is clamped to 0..1 and the velocity line's
+// brightness goes from 0 to 1, so these are the steps in each.
+static int DensityLUTSize = 1024;
+static int VelocityLUTSize = 256;
+static int[] DensityLUT = MakeDensityLUT();
+static int[] VelocityLUT = MakeVelocityLUT();
+
+//-*****************************************************************************
+static int PackRGB( float r, float g, float b )
+{
+    return 0xFF000000 |
+        ( ( int )( 255.0 * constrain( r, 0.0, 1.0 ) ) << 16 ) |
+        ( ( int )( 255.0 * constrain( g, 0.0, 1.0 ) ) << 8 ) |
+        ( int )( 255.0 * constrain( b, 0.0, 1.0 ) );
+}
+
+//-*****************************************************************************
+// The color ramp of DrawScalarField.
+static int[] MakeDensityLUT()
+{
+    int[] lut = new int[DensityLUTSize];
+    for ( int n = 0; n < DensityLUTSize; ++n )
+    {
+        float d = ( float )n / ( float )( DensityLUTSize - 1 );
+        lut[n] = PackRGB( 0.9 * ( 1.0 - d ), 0.9 * ( 1.0 - ( d*d ) ),
+                          0.9 * ( 1.0 - ( d*d*d ) ) );
+    }
+    return lut;
+}
+
+// The hue, saturation and brightness of DrawVelocityField, by brightness.
+static int[] MakeVelocityLUT()
+{
+    int[] lut = new int[VelocityLUTSize];
+    for ( int n = 0; n < VelocityLUTSize; ++n )
+    {
+        float vmag = ( float )n / ( float )( VelocityLUTSize - 1 );
+        lut[n] = java.awt.Color.HSBtoRGB( map( vmag, 0, 1, 0, 0.025 ),
+                                          map( vmag, 0, 1, 1, 0.9 ),
+                                          vmag );
+    }
+    return lut;
+}
+
+//-*****************************************************************************
+static int DensityColor( float d )
+{
+    int n = ( int )( constrain( d, 0.0, 1.0 ) * ( float )( DensityLUTSize - 1 ) +
+                     0.5 );
+    return DensityLUT[n];
+}
+
+//-*****************************************************************************
+// The fields of one frame, copied out of State, and where they go.
+//-*****************************************************************************
+static class RenderSnapshot
+{
+    int NX, NY, Stride;
+    int Step;
+    float[] Density;
+    float[] U;
+    float[] V;
+    int[] Pixels;
+    String FileName;
+}
+
+static java.util.concurrent.ArrayBlockingQueue<RenderSnapshot> RenderFreeQueue = null;
+static java.util.concurrent.ArrayBlockingQueue<RenderSnapshot> RenderWorkQueue = null;
+static Thread RenderThread = null;
+static java.io.OutputStream RenderRawOut = null;
+static String RenderOutDir = "frames";
+static volatile int RenderFramesWritten = 0;
+
+// What ended the render thread, if it wasn't told to stop.
+static volatile Throwable RenderFailure = null;
+
+// How long QueueRenderFrame waits for a free snapshot between checks that
+// the render thread is still alive.
+static int RenderPollMillis = 100;
+
+// The raw bytes and the image of the last frame written, reused while the
+// size stays the same. Only the render thread touches these.
+static byte[] RenderRGB = null;
+static java.awt.image.BufferedImage RenderImage = null;
+
+// A snapshot with a null file name tells the render thread to stop.
+static RenderSnapshot RenderStop = new RenderSnapshot();
+
+//-*****************************************************************************
+// Start the render thread, writing into i_outDir.
+//-*****************************************************************************
+static void StartRenderer( String i_outDir )
+{
+    FinishRenderer();
+
+    RenderOutDir = i_outDir;
+    RenderFramesWritten = 0;
+    RenderFailure = null;
+    RenderFreeQueue = new java.util.concurrent.ArrayBlockingQueue<RenderSnapshot>(
+        RenderQueueLength );
+    RenderWorkQueue = new java.util.concurrent.ArrayBlockingQueue<RenderSnapshot>(
+        RenderQueueLength + 1 );
+    for ( int n = 0; n < RenderQueueLength; ++n )
+    {
+        RenderFreeQueue.add( new RenderSnapshot() );
+    }
+
+    if ( RenderFormat == RF_Raw )
+    {
+        RenderRawOut = createOutput( new java.io.File( i_outDir,
+                                                       "density.rgb" ) );
+        RenderRawOut = new java.io.BufferedOutputStream( RenderRawOut,
+                                                         1 << 20 );
+    }
+
+    RenderThread = new Thread( new Runnable() { public void run() {
+        RenderLoop();
+    } }, "Renderer" );
+    RenderThread.setDaemon( true );
+    RenderThread.start();
+}
+
+//-*****************************************************************************
+// Copy the current density (and velocity, if it's drawn) into a free
+// snapshot and queue it for the render thread. Blocks while every snapshot
+// is still waiting to be written, and throws if the render thread has
+// died.
+//-*****************************************************************************
+static void QueueRenderFrame( int i_step )
+{
+    RenderSnapshot snap = null;
+    try
+    {
+        while ( snap == null )
+        {
+            if ( !RenderThread.isAlive() )
+            {
+                throw new RuntimeException( "The render thread has stopped",
+                                            RenderFailure );
+            }
+            snap = RenderFreeQueue.poll(
+                RenderPollMillis, java.util.concurrent.TimeUnit.MILLISECONDS );
+        }
+    }
+    catch ( InterruptedException e )
+    {
+        throw new RuntimeException( e );
+    }
+
+    snap.NX = NX;
+    snap.NY = NY;
+    snap.Stride = GridStride;
+    snap.Step = i_step;
+    snap.Density = CopyFieldInto( snap.Density, GridDensity );
+    if ( RenderVelocity )
+    {
+        snap.U = CopyInto( snap.U, State[GridU] );
+        snap.V = CopyInto( snap.V, State[GridV] );
+    }
+    snap.FileName = new java.io.File( RenderOutDir, "density." +
+                                      nf( i_step, 6 ) + ".png" ).getPath();
+    RenderWorkQueue.add( snap );
+}
+
+static float[] CopyInto( float[] o_dst, float[] i_src )
+{
+    if ( o_dst == null || o_dst.length != i_src.length )
+    {
+        o_dst = new float[i_src.length];
+    }
+    System.arraycopy( i_src, 0, o_dst, 0, i_src.length );
+    return o_dst;
+}
+
+//-*****************************************************************************
+// Wait for every queued frame to be written, and stop the render thread.
+//-*****************************************************************************
+static void FinishRenderer()
+{
+    if ( RenderThread == null )
+    {
+        return;
+    }
+    // If the render thread has died the queue may be full, but then there's
+    // nothing to tell.
+    RenderWorkQueue.offer( RenderStop );
+    try
+    {
+        RenderThread.join();
+        if ( RenderRawOut != null )
+        {
+            RenderRawOut.close();
+        }
+    }
+    catch ( Exception e )
+    {
+        println( "Could not finish rendering: " + e );
+    }
+    if ( RenderFailure != null )
+    {
+        println( "Rendering stopped early: " + RenderFailure );
+    }
+    RenderThread = null;
+    RenderRawOut = null;
+}
+
+//-*****************************************************************************
+static void RenderLoop()
+{
+    while ( true )
+    {
+        RenderSnapshot snap;
+        try
+        {
+            snap = RenderWorkQueue.take();
+        }
+        catch ( InterruptedException e )
+        {
+            return;
+        }
+        if ( snap == RenderStop )
+        {
+            return;
+        }
+
+        try
+        {
+            RenderSnapshotPixels( snap );
+            WriteRenderedFrame( snap );
+            ++RenderFramesWritten;
+        }
+        catch ( java.io.IOException e )
+        {
+            println( "Could not write frame " + snap.Step + ": " + e );
+        }
+        catch ( RuntimeException e )
+        {
+            // Anything else is a bug; stop, and let QueueRenderFrame see it.
+            RenderFailure = e;
+            println( "Could not render frame " + snap.Step + ": " + e );
+            return;
+        }
+        finally
+        {
+            RenderFreeQueue.add( snap );
+        }
+    }
+}
+
+//-*****************************************************************************
+// Render a snapshot's interior into its Pixels, RenderScale pixels a cell,
+// top row first.
+//-*****************************************************************************
+static void RenderSnapshotPixels( RenderSnapshot snap )
+{
+    int w = snap.NX * RenderScale;
+    int h = snap.NY * RenderScale;
+    if ( snap.Pixels == null || snap.Pixels.length != w * h )
+    {
+        snap.Pixels = new int[w * h];
+    }
+    int[] pix = snap.Pixels;
+
+    for ( int j = 1; j <= snap.NY; ++j )
+    {
+        int a = 1 + j * snap.Stride;
+        int row = ( j - 1 ) * RenderScale * w;
+        for ( int i = 0; i < snap.NX; ++i, ++a )
+        {
+            int c = DensityColor( snap.Density[a] );
+            java.util.Arrays.fill( pix, row + i * RenderScale,
+                                   row + ( i + 1 ) * RenderScale, c );
+        }
+        for ( int r = 1; r < RenderScale; ++r )
+        {
+            System.arraycopy( pix, row, pix, row + r * w, w );
+        }
+    }
+
+    if ( snap.U != null && RenderVelocity )
+    {
+        RenderVelocityLines( snap, pix, w, h );
+    }
+}
+
+//-*****************************************************************************
+// A line from each cell's center along its velocity, as DrawVelocityField
+// draws them, scaled to the render's pixels, blended over the density.
+//-*****************************************************************************
+static void RenderVelocityLines( RenderSnapshot snap, int[] pix, int w, int h )
+{
+    float lengthScale = 20.0 * ( float )RenderScale /
+        ( ( float )CellPixels * Vscale );
+    int blend = ( int )( 256.0 * RenderVelocityAlpha );
+    for ( int j = 1; j <= snap.NY; ++j )
+    {
+        int a = 1 + j * snap.Stride;
+        for ( int i = 1; i <= snap.NX; ++i, ++a )
+        {
+            float dx = lengthScale * snap.U[a];
+            float dy = lengthScale * snap.V[a];
+            float len = sqrt( dx * dx + dy * dy );
+            float vmag = map( len * ( float )CellPixels / ( float )RenderScale,
+                              0, 5, 0.1, 1 );
+            int c = VelocityLUT[( int )( constrain( vmag, 0.0, 1.0 ) *
+                                         ( float )( VelocityLUTSize - 1 ) )];
+
+            float x0 = ( ( float )i - 0.5 ) * RenderScale;
+            float y0 = ( ( float )j - 0.5 ) * RenderScale;
+            int steps = max( 1, ( int )ceil( max( abs( dx ), abs( dy ) ) ) );
+            for ( int s = 0; s <= steps; ++s )
+            {
+                float t = ( float )s / ( float )steps;
+                int px = ( int )( x0 + t * dx );
+                int py = ( int )( y0 + t * dy );
+                if ( px >= 0 && px < w && py >= 0 && py < h )
+                {
+                    int p = px + py * w;
+                    pix[p] = BlendRGB( pix[p], c, blend );
+                }
+            }
+        }
+    }
+}
+
+// i_over blended over i_under by i_blend / 256.
+static int BlendRGB( int i_under, int i_over, int i_blend )
+{
+    int rb = ( ( ( i_over & 0xFF00FF ) * i_blend +
+                 ( i_under & 0xFF00FF ) * ( 256 - i_blend ) ) >> 8 ) & 0xFF00FF;
+    int g = ( ( ( i_over & 0xFF00 ) * i_blend +
+                ( i_under & 0xFF00 ) * ( 256 - i_blend ) ) >> 8 ) & 0xFF00;
+    return 0xFF000000 | rb | g;
+}
+
+//-*****************************************************************************
+static void WriteRenderedFrame( RenderSnapshot snap ) throws java.io.IOException
+{
+    int w = snap.NX * RenderScale;
+    int h = snap.NY * RenderScale;
+    if ( RenderFormat == RF_Raw )
+    {
+        if ( RenderRGB == null || RenderRGB.length != 3 * w * h )
+        {
+            RenderRGB = new byte[3 * w * h];
+        }
+        byte[] rgb = RenderRGB;
+        for ( int p = 0, b = 0; p < w * h; ++p )
+        {
+            int c = snap.Pixels[p];
+            rgb[b++] = ( byte )( c >> 16 );
+            rgb[b++] = ( byte )( c >> 8 );
+            rgb[b++] = ( byte )c;
+        }
+        RenderRawOut.write( rgb );
+        return;
+    }
+
+    if ( RenderImage == null || RenderImage.getWidth() != w ||
+         RenderImage.getHeight() != h )
+    {
+        RenderImage = new java.awt.image.BufferedImage(
+            w, h, java.awt.image.BufferedImage.TYPE_INT_RGB );
+    }
+    java.awt.image.BufferedImage img = RenderImage;
+    img.setRGB( 0, 0, w, h, snap.Pixels, 0, w );
+    java.io.File file = new java.io.File( snap.FileName );
+    file.getAbsoluteFile().getParentFile().mkdirs();
+    javax.imageio.ImageIO.write( img, "png", file );
+}
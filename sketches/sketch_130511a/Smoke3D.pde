@@ -0,0 +1,662 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// 3D SMOKE
+//
+// With Use3D on, FluidTimeStep runs a volumetric version of the pipeline
+// instead - input, advect, damp, diffuse, project - on an NX by NY by NZ
+// grid, indexed by IX3(i,j,k) with the same one-cell halo:
+//   IX3(i,j,k) = i + GX * ( j + GY * k )
+// The window and the batch frames show the density seen through the
+// depth: each column of cells is summed, and turned into an opacity,
+//   1 - exp( -Opacity3D * sum )
+// which goes into the 2D density, so drawing, the frame cache and the
+// PGM frames all work as they are. The 2D velocity gets the middle slice.
+//
+// The velocity is staggered, as on the MAC grid (see the MACGrid tab):
+// U(i,j,k) is on the face between cells i and i+1, V between j and j+1,
+// W between k and k+1. The divergence and the gradient are one cell wide,
+// so the projection is exactly the 7-point Laplacian the pressure solve
+// uses.
+//
+// Memory is what limits the grid size in 3D, so the pipeline only uses
+// eight arrays, not the twelve of the 2D solver:
+//   - the density, and the velocity, current and previous, as in 2D;
+//   - one scratch array, which holds the old density while advecting it
+//     and its right hand side while diffusing it, and the divergence
+//     while projecting.
+// There are no input grids - the emitters add straight into the density
+// and the velocity - and diffusion and the pressure solve are red-black
+// SOR (see the RedBlack tab), which works in place. Once the velocity has
+// been advected, the previous velocity arrays are free, so they hold the
+// velocity's right hand side while diffusing, and then the pressure.
+// That's 32 bytes a cell: 70 MB at 128^3, and 550 MB at 256^3, which
+// needs a bigger heap than the JVM's default (-Xmx1g).
+//
+// Every sweep runs over z slices with RunRows, so it's split across
+// threads like the 2D kernels, and the boundaries are set once the sweep
+// is done. The emitters sit in the middle of the depth.
+//-*****************************************************************************
+//-*****************************************************************************
+
+static boolean Use3D = false;
+
+// The depth of the grid, in cells, and with the halo. Depth3D is the depth
+// to use the next time the 3D grid is made; zero means the same as NX.
+static int Depth3D = 0;
+static int NZ = 0;
+static int GZ = 2;
+
+// Opacity per unit of density, for the view through the depth.
+static float Opacity3D = 0.1;
+
+// Red-black SOR sweeps for the pressure and diffusion solves.
+static int PressureIterations3D = 20;
+static int DiffuseIterations3D = 4;
+
+static int NUM_ARRAYS_3D = 8;
+static float[][] State3D = new float[0][0];
+static int Grid3PrevU = 0;
+static int Grid3U = 1;
+static int Grid3PrevV = 2;
+static int Grid3V = 3;
+static int Grid3PrevW = 4;
+static int Grid3W = 5;
+static int Grid3Density = 6;
+static int Grid3Scratch = 7;
+
+// What a field's boundaries are: a cell centered scalar, or the velocity
+// across the faces of one of the axes.
+static int BC3_Scalar = -1;
+static int BC3_FaceX = 0;
+static int BC3_FaceY = 1;
+static int BC3_FaceZ = 2;
+
+//-*****************************************************************************
+static int IX3( int i, int j, int k )
+{
+    return i + GX * ( j + GY * k );
+}
+
+//-*****************************************************************************
+// Switch to the 3D solver and back. The 3D grid is made, zeroed, each time
+// it's switched on, and dropped when it's switched off.
+//-*****************************************************************************
+static void SetUse3D( boolean i_use )
+{
+    // The 2D pressure was left behind when the 3D solver took over.
+    ResetPressureHistory();
+    Use3D = i_use;
+    if ( !Use3D )
+    {
+        State3D = new float[0][0];
+        return;
+    }
+
+    LeaveHalfDensity();
+    NZ = ( Depth3D > 0 ) ? Depth3D : NX;
+    GZ = NZ + 2;
+    State3D = new float[NUM_ARRAYS_3D][GX * GY * GZ];
+    ZeroArray( GridU );
+    ZeroArray( GridV );
+    ZeroArray( GridDensity );
+}
+
+//-*****************************************************************************
+// Run i_kernel over the interior z slices, 1 to NZ.
+static void RunInteriorSlices( RowKernel i_kernel )
+{
+    RunRows( 1, NZ+1, i_kernel );
+}
+
+//-*****************************************************************************
+// Set the ghost cells of q, where i_bType is a BC3_ type. Along the axis of
+// a face velocity the wall faces, and those beyond them, are zero;
+// otherwise the ghost cells copy the cells inside them. The axes are done
+// one after the other over the whole grid, so the edges and corners come
+// out right too.
+//-*****************************************************************************
+static void EnforceBoundaryConditions3D( float[] q, int i_bType )
+{
+    int[] n = { GX, GY, GZ };
+    int[] last = { NX, NY, NZ };
+    for ( int axis = 0; axis < 3; ++axis )
+    {
+        if ( axis == i_bType )
+        {
+            SetLayer3D( q, n, axis, 0, -1 );
+            SetLayer3D( q, n, axis, last[axis], -1 );
+            SetLayer3D( q, n, axis, last[axis] + 1, -1 );
+        }
+        else
+        {
+            SetLayer3D( q, n, axis, 0, 1 );
+            SetLayer3D( q, n, axis, last[axis] + 1, last[axis] );
+        }
+    }
+}
+
+//-*****************************************************************************
+// Set the layer of cells at index i_dst along i_axis to a copy of the layer
+// at i_src, or to zero if i_src is negative.
+static void SetLayer3D( float[] q, int[] n, int i_axis, int i_dst, int i_src )
+{
+    int[] stride = { 1, GX, GX * GY };
+    int a1 = ( i_axis + 1 ) % 3;
+    int a2 = ( i_axis + 2 ) % 3;
+    for ( int v = 0; v < n[a2]; ++v )
+    {
+        for ( int u = 0; u < n[a1]; ++u )
+        {
+            int base = u * stride[a1] + v * stride[a2];
+            q[base + i_dst * stride[i_axis]] =
+                ( i_src < 0 ) ? 0.0 : q[base + i_src * stride[i_axis]];
+        }
+    }
+}
+
+//-*****************************************************************************
+// Trilinear sample of q at grid position (x,y,z), clamped to the grid.
+static float SampleLinear3D( float[] q, float x, float y, float z )
+{
+    int i0 = ( int )floor( x );
+    float fx = x - ( float )i0;
+    i0 = constrain( i0, 0, GX-1 );
+    int j0 = ( int )floor( y );
+    float fy = y - ( float )j0;
+    j0 = constrain( j0, 0, GY-1 );
+    int k0 = ( int )floor( z );
+    float fz = z - ( float )k0;
+    k0 = constrain( k0, 0, GZ-1 );
+    int di = ( i0 < GX-1 ) ? 1 : 0;
+    int dj = ( j0 < GY-1 ) ? GX : 0;
+    int dk = ( k0 < GZ-1 ) ? GX * GY : 0;
+
+    int a = IX3( i0, j0, k0 );
+    float q00 = lerp( q[a], q[a+di], fx );
+    float q10 = lerp( q[a+dj], q[a+dj+di], fx );
+    float q01 = lerp( q[a+dk], q[a+dk+di], fx );
+    float q11 = lerp( q[a+dk+dj], q[a+dk+dj+di], fx );
+    return lerp( lerp( q00, q10, fy ), lerp( q01, q11, fy ), fz );
+}
+
+//-*****************************************************************************
+// The cells to average to get velocity component i_comp at the position a
+// field of type i_bType lives at, as index offsets. The position is always
+// either on the component's own face, or halfway between two or four of
+// them, so this is the trilinear sample there without any weights.
+//-*****************************************************************************
+static int[] VelocityTaps3D( int i_comp, int i_bType )
+{
+    int[] stride = { 1, GX, GX * GY };
+    int[] taps = { 0 };
+    for ( int d = 0; d < 3; ++d )
+    {
+        // Where the field is, less where the component is, along d.
+        int diff = ( ( d == i_bType ) ? 1 : 0 ) - ( ( d == i_comp ) ? 1 : 0 );
+        if ( diff == 0 )
+        {
+            continue;
+        }
+        int[] more = new int[2 * taps.length];
+        for ( int t = 0; t < taps.length; ++t )
+        {
+            more[2*t] = taps[t];
+            more[2*t+1] = taps[t] + diff * stride[d];
+        }
+        taps = more;
+    }
+    return taps;
+}
+
+static float SumTaps( float[] q, int a, int[] taps )
+{
+    float sum = 0.0;
+    for ( int t = 0; t < taps.length; ++t )
+    {
+        sum += q[a + taps[t]];
+    }
+    return sum;
+}
+
+//-*****************************************************************************
+// Advect State3D[i_old] into State3D[o_new] through the previous velocity
+// (for the velocity itself) or the current one (for the density). A face
+// velocity's values live half a cell along its axis, but the trace is done
+// in the field's own cells, so that half cell cancels out; only the taps
+// that average the velocity at the face depend on where it lives.
+//-*****************************************************************************
+static void Advect3D( final int i_old, final int o_new, final int i_gridU,
+               final int i_gridV, final int i_gridW, final int i_bType )
+{
+    final int[] tapsU = VelocityTaps3D( 0, i_bType );
+    final int[] tapsV = VelocityTaps3D( 1, i_bType );
+    final int[] tapsW = VelocityTaps3D( 2, i_bType );
+    RunInteriorSlices( new RowKernel() { void Rows( int k0, int k1 ) {
+        float[] Q = State3D[i_old];
+        float[] Qnew = State3D[o_new];
+        float[] U = State3D[i_gridU];
+        float[] V = State3D[i_gridV];
+        float[] W = State3D[i_gridW];
+        float s = DT / DXY;
+        float su = s / ( float )tapsU.length;
+        float sv = s / ( float )tapsV.length;
+        float sw = s / ( float )tapsW.length;
+        for ( int k = k0; k < k1; ++k )
+        {
+            for ( int j = 1; j <= NY; ++j )
+            {
+                int a = IX3( 1, j, k );
+                for ( int i = 1; i <= NX; ++i, ++a )
+                {
+                    // Back along the velocity, in the field's own cells.
+                    float x = ( float )i - su * SumTaps( U, a, tapsU );
+                    float y = ( float )j - sv * SumTaps( V, a, tapsV );
+                    float z = ( float )k - sw * SumTaps( W, a, tapsW );
+                    Qnew[a] = SampleLinear3D( Q, x, y, z );
+                }
+            }
+        }
+    } } );
+    EnforceBoundaryConditions3D( State3D[o_new], i_bType );
+}
+
+//-*****************************************************************************
+// Multiply q by pow( 1 - i_damp, DT ), everywhere.
+static void Damp3D( float[] q, float i_damp )
+{
+    float mult = pow( constrain( 1.0 - i_damp, 0.0, 1.0 ), DT );
+    ScaleRange( q, mult, 0, q.length );
+}
+
+//-*****************************************************************************
+// One red or black half-sweep of Diffuse3D, reused for every sweep.
+static class Diffuse3DKernel extends RowKernel
+{
+    int q = 0;
+    int rhs = 0;
+    float k = 0.0;
+    int color = 0;
+
+    void Rows( int k0, int k1 )
+    {
+        float[] Q = State3D[q];
+        float[] Qold = State3D[rhs];
+        int SY = GX;
+        int SZ = GX * GY;
+        for ( int kk = k0; kk < k1; ++kk )
+        {
+            for ( int j = 1; j <= NY; ++j )
+            {
+                for ( int i = FirstOfColor( j + kk, color ); i <= NX; i += 2 )
+                {
+                    int a = IX3( i, j, kk );
+                    float gs = ( Qold[a] +
+                                 k * ( Q[a-1] + Q[a+1] +
+                                       Q[a-SY] + Q[a+SY] +
+                                       Q[a-SZ] + Q[a+SZ] ) ) /
+                        ( 1.0 + 6.0*k );
+                    Q[a] += SOROmega * ( gs - Q[a] );
+                }
+            }
+        }
+    }
+}
+static Diffuse3DKernel Diffuse3DSweep = new Diffuse3DKernel();
+
+//-*****************************************************************************
+// Diffuse State3D[io_q] in place with red-black SOR, as in
+// DiffuseViaRedBlackSOR, keeping its starting value in State3D[i_rhs].
+//-*****************************************************************************
+static void Diffuse3D( int io_q, int i_rhs, float i_visc, int i_bType )
+{
+    System.arraycopy( State3D[io_q], 0, State3D[i_rhs], 0,
+                      State3D[io_q].length );
+    Diffuse3DSweep.q = io_q;
+    Diffuse3DSweep.rhs = i_rhs;
+    Diffuse3DSweep.k = DT * i_visc * sq( DXY );
+    for ( int iter = 0; iter < DiffuseIterations3D; ++iter )
+    {
+        for ( int c = 0; c < 2; ++c )
+        {
+            Diffuse3DSweep.color = c;
+            RunInteriorSlices( Diffuse3DSweep );
+        }
+        EnforceBoundaryConditions3D( State3D[io_q], i_bType );
+    }
+}
+
+//-*****************************************************************************
+// The divergence of each cell from the velocity on its six faces.
+static void ComputeDivergence3D( final int o_div )
+{
+    RunInteriorSlices( new RowKernel() { void Rows( int k0, int k1 ) {
+        float[] U = State3D[Grid3U];
+        float[] V = State3D[Grid3V];
+        float[] W = State3D[Grid3W];
+        float[] Div = State3D[o_div];
+        int SY = GX;
+        int SZ = GX * GY;
+        for ( int k = k0; k < k1; ++k )
+        {
+            for ( int j = 1; j <= NY; ++j )
+            {
+                int aEnd = IX3( NX+1, j, k );
+                for ( int a = IX3( 1, j, k ); a < aEnd; ++a )
+                {
+                    Div[a] = ( ( U[a] - U[a-1] ) + ( V[a] - V[a-SY] ) +
+                               ( W[a] - W[a-SZ] ) ) / DXY;
+                }
+            }
+        }
+    } } );
+}
+
+//-*****************************************************************************
+// The RMS and maximum absolute value of the divergence over the interior,
+// as { rms, max }, using State3D[i_tmp].
+//-*****************************************************************************
+static float[] MeasureDivergence3D( int i_tmp )
+{
+    ComputeDivergence3D( i_tmp );
+    float[] D = State3D[i_tmp];
+    double sumSq = 0.0;
+    float maxAbs = 0.0;
+    for ( int k = 1; k <= NZ; ++k )
+    {
+        for ( int j = 1; j <= NY; ++j )
+        {
+            int a = IX3( 1, j, k );
+            for ( int i = 1; i <= NX; ++i, ++a )
+            {
+                sumSq += D[a] * D[a];
+                maxAbs = max( maxAbs, abs( D[a] ) );
+            }
+        }
+    }
+    return new float[] {
+        ( float )Math.sqrt( sumSq / ( ( double )NX * NY * NZ ) ), maxAbs };
+}
+
+//-*****************************************************************************
+// One red or black pressure half-sweep, reused for every sweep.
+static class Pressure3DKernel extends RowKernel
+{
+    int div = 0;
+    int pressure = 0;
+    int color = 0;
+
+    void Rows( int k0, int k1 )
+    {
+        float[] P = State3D[pressure];
+        float[] D = State3D[div];
+        float h2 = DXY * DXY;
+        int SY = GX;
+        int SZ = GX * GY;
+        for ( int k = k0; k < k1; ++k )
+        {
+            for ( int j = 1; j <= NY; ++j )
+            {
+                for ( int i = FirstOfColor( j + k, color ); i <= NX; i += 2 )
+                {
+                    int a = IX3( i, j, k );
+                    float gs = ( ( P[a-1] + P[a+1] + P[a-SY] +
+                                   P[a+SY] + P[a-SZ] + P[a+SZ] ) -
+                                 ( h2 * D[a] ) ) / 6.0;
+                    P[a] += SOROmega * ( gs - P[a] );
+                }
+            }
+        }
+    }
+}
+static Pressure3DKernel Pressure3DSweep = new Pressure3DKernel();
+
+//-*****************************************************************************
+// Make the velocity divergence free: solve Laplacian( P ) = Div with
+// red-black SOR, then subtract the gradient of P. The divergence goes in
+// i_div and the pressure in o_pressure, both of which are scratch.
+//-*****************************************************************************
+static void EnforceIncompressibility3D( final int i_div, final int o_pressure )
+{
+    ComputeDivergence3D( i_div );
+
+    java.util.Arrays.fill( State3D[o_pressure], 0.0 );
+    Pressure3DSweep.div = i_div;
+    Pressure3DSweep.pressure = o_pressure;
+    for ( int iter = 0; iter < PressureIterations3D; ++iter )
+    {
+        for ( int c = 0; c < 2; ++c )
+        {
+            Pressure3DSweep.color = c;
+            RunInteriorSlices( Pressure3DSweep );
+        }
+        EnforceBoundaryConditions3D( State3D[o_pressure], BC3_Scalar );
+    }
+
+    RunInteriorSlices( new RowKernel() { void Rows( int k0, int k1 ) {
+        float[] P = State3D[o_pressure];
+        float[] U = State3D[Grid3U];
+        float[] V = State3D[Grid3V];
+        float[] W = State3D[Grid3W];
+        int SY = GX;
+        int SZ = GX * GY;
+        for ( int k = k0; k < k1; ++k )
+        {
+            for ( int j = 1; j <= NY; ++j )
+            {
+                int aEnd = IX3( NX+1, j, k );
+                for ( int a = IX3( 1, j, k ); a < aEnd; ++a )
+                {
+                    U[a] -= ( P[a+1] - P[a] ) / DXY;
+                    V[a] -= ( P[a+SY] - P[a] ) / DXY;
+                    W[a] -= ( P[a+SZ] - P[a] ) / DXY;
+                }
+            }
+        }
+    } } );
+    EnforceBoundaryConditions3D( State3D[Grid3U], BC3_FaceX );
+    EnforceBoundaryConditions3D( State3D[Grid3V], BC3_FaceY );
+    EnforceBoundaryConditions3D( State3D[Grid3W], BC3_FaceZ );
+}
+
+//-*****************************************************************************
+// Add every emitter, as a Gaussian ball in the middle of the depth, straight
+// into the density and the velocity, for one step. The weights are the
+// same as the 2D stamps' (see the Emitters tab), with the depth in pixels
+// too.
+//-*****************************************************************************
+static void IntegrateEmitters3D()
+{
+    float zc = CellPixels * ( 0.5 + 0.5 * ( float )( NZ + 1 ) );
+    for ( int e = 0; e < NumEmitters; ++e )
+    {
+        if ( EmitterDensity[e] )
+        {
+            StampBall3D( State3D[Grid3Density], null, EmitterPosX[e],
+                         EmitterPosY[e], zc, DenEmissionRadius,
+                         DT * EmissionRate, 0.0 );
+        }
+        if ( EmitterVelocity[e] )
+        {
+            VstrokeAlpha = 0.5;
+            float scale = Vscale * DXY / ( FrameDT * ( float )CellPixels );
+            StampBall3D( State3D[Grid3U], State3D[Grid3V], EmitterPosX[e],
+                         EmitterPosY[e], zc, VelEmissionRadius,
+                         DT * ( EmitterPosX[e] - EmitterPrevPosX[e] ) * scale,
+                         DT * ( EmitterPosY[e] - EmitterPrevPosY[e] ) * scale );
+        }
+    }
+    EnforceBoundaryConditions3D( State3D[Grid3Density], BC3_Scalar );
+    EnforceBoundaryConditions3D( State3D[Grid3U], BC3_FaceX );
+    EnforceBoundaryConditions3D( State3D[Grid3V], BC3_FaceY );
+}
+
+//-*****************************************************************************
+// Add i_amountA (and i_amountB, if io_b isn't null) times the emission
+// weight around the given position, in pixels, over the box of cells where
+// the weight is above EmissionCutoff.
+//-*****************************************************************************
+static void StampBall3D( float[] io_a, float[] io_b, float i_posX, float i_posY,
+                  float i_posZ, float i_radius,
+                  float i_amountA, float i_amountB )
+{
+    float reach = i_radius * sqrt( log( 2.0 / EmissionCutoff ) ) / 2.21;
+    int[] lo = new int[3];
+    int[] hi = new int[3];
+    float[] pos = { i_posX, i_posY, i_posZ };
+    int[] n = { NX, NY, NZ };
+    for ( int d = 0; d < 3; ++d )
+    {
+        lo[d] = max( 1, ceil( ( pos[d] - reach ) / CellPixels - 0.5 ) );
+        hi[d] = min( n[d], floor( ( pos[d] + reach ) / CellPixels - 0.5 ) );
+    }
+    for ( int k = lo[2]; k <= hi[2]; ++k )
+    {
+        float dz = CellPixels * ( 0.5 + ( float )k ) - i_posZ;
+        for ( int j = lo[1]; j <= hi[1]; ++j )
+        {
+            float dy = CellPixels * ( 0.5 + ( float )j ) - i_posY;
+            int a = IX3( lo[0], j, k );
+            for ( int i = lo[0]; i <= hi[0]; ++i, ++a )
+            {
+                float dx = CellPixels * ( 0.5 + ( float )i ) - i_posX;
+                float r2 = dx * dx + dy * dy + dz * dz;
+                float w = min( 2.0 * exp( -sq( 2.21 / i_radius ) * r2 ), 1.0 );
+                io_a[a] += i_amountA * w;
+                if ( io_b != null )
+                {
+                    io_b[a] += i_amountB * w;
+                }
+            }
+        }
+    }
+}
+
+//-*****************************************************************************
+// The view through the depth into the 2D density, and the middle slice of
+// the velocity, at the cell centers, into the 2D velocity.
+//-*****************************************************************************
+static void ProjectToView3D()
+{
+    float[] D3 = State3D[Grid3Density];
+    float[] U3 = State3D[Grid3U];
+    float[] V3 = State3D[Grid3V];
+    float[] D = State[GridDensity];
+    float[] U = State[GridU];
+    float[] V = State[GridV];
+    int SZ = GX * GY;
+    int kMid = ( NZ + 1 ) / 2;
+    for ( int j = 1; j <= NY; ++j )
+    {
+        for ( int i = 1; i <= NX; ++i )
+        {
+            float sum = 0.0;
+            for ( int a = IX3( i, j, 1 ); a <= IX3( i, j, NZ ); a += SZ )
+            {
+                sum += D3[a];
+            }
+            D[IX(i,j)] = 1.0 - exp( -Opacity3D * sum );
+
+            int m = IX3( i, j, kMid );
+            U[IX(i,j)] = 0.5 * ( U3[m-1] + U3[m] );
+            V[IX(i,j)] = 0.5 * ( V3[m-GX] + V3[m] );
+        }
+    }
+}
+
+//-*****************************************************************************
+// The largest velocity component magnitude over the interior faces, for
+// the adaptive time step.
+//-*****************************************************************************
+static float MaxAbsVelocity3D()
+{
+    float maxVel = 0.0;
+    for ( int f = Grid3U; f <= Grid3W; f += 2 )
+    {
+        float[] q = State3D[f];
+        for ( int a = 0; a < q.length; ++a )
+        {
+            maxVel = max( maxVel, abs( q[a] ) );
+        }
+    }
+    return maxVel;
+}
+
+//-*****************************************************************************
+static void SwapVelocity3D()
+{
+    int tmp = Grid3U; Grid3U = Grid3PrevU; Grid3PrevU = tmp;
+    tmp = Grid3V; Grid3V = Grid3PrevV; Grid3PrevV = tmp;
+    tmp = Grid3W; Grid3W = Grid3PrevW; Grid3PrevW = tmp;
+}
+
+//-*****************************************************************************
+// One time step of the 3D pipeline, in the same order as FluidTimeStep.
+//-*****************************************************************************
+static void FluidTimeStep3D()
+{
+    long t;
+
+    t = StatsBegin();
+    IntegrateEmitters3D();
+    StatsEnd( STAGE_Input, t );
+
+    // Velocity. Once it's advected, the previous velocity is free.
+    t = StatsBegin();
+    SwapVelocity3D();
+    Advect3D( Grid3PrevU, Grid3U, Grid3PrevU, Grid3PrevV, Grid3PrevW,
+              BC3_FaceX );
+    Advect3D( Grid3PrevV, Grid3V, Grid3PrevU, Grid3PrevV, Grid3PrevW,
+              BC3_FaceY );
+    Advect3D( Grid3PrevW, Grid3W, Grid3PrevU, Grid3PrevV, Grid3PrevW,
+              BC3_FaceZ );
+    StatsEnd( STAGE_Advect, t );
+    t = StatsBegin();
+    Damp3D( State3D[Grid3U], V_damp );
+    Damp3D( State3D[Grid3V], V_damp );
+    Damp3D( State3D[Grid3W], V_damp );
+    StatsEnd( STAGE_Damp, t );
+    t = StatsBegin();
+    Diffuse3D( Grid3U, Grid3PrevU, V_viscosity, BC3_FaceX );
+    Diffuse3D( Grid3V, Grid3PrevV, V_viscosity, BC3_FaceY );
+    Diffuse3D( Grid3W, Grid3PrevW, V_viscosity, BC3_FaceZ );
+    StatsEnd( STAGE_Diffuse, t );
+
+    if ( CollectStats )
+    {
+        float[] before = MeasureDivergence3D( Grid3Scratch );
+        DivRMSBefore = before[0];
+        DivMaxBefore = before[1];
+    }
+    t = StatsBegin();
+    EnforceIncompressibility3D( Grid3Scratch, Grid3PrevU );
+    StatsEnd( STAGE_Project, t );
+    if ( CollectStats )
+    {
+        float[] after = MeasureDivergence3D( Grid3Scratch );
+        DivRMSAfter = after[0];
+        DivMaxAfter = after[1];
+        PressureIterations = PressureIterations3D;
+    }
+
+    // Density, with the scratch array as its previous value.
+    t = StatsBegin();
+    int tmp = Grid3Density; Grid3Density = Grid3Scratch; Grid3Scratch = tmp;
+    Advect3D( Grid3Scratch, Grid3Density, Grid3U, Grid3V, Grid3W,
+              BC3_Scalar );
+    StatsEnd( STAGE_Advect, t );
+    t = StatsBegin();
+    Diffuse3D( Grid3Density, Grid3Scratch, D_viscosity, BC3_Scalar );
+    StatsEnd( STAGE_Diffuse, t );
+    t = StatsBegin();
+    Damp3D( State3D[Grid3Density], D_damp );
+    StatsEnd( STAGE_Damp, t );
+
+    ProjectToView3D();
+
+    SimTime += DT;
+    StatsStepDone();
+}
@@ -0,0 +1,294 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// TIME STEP STATISTICS
+//
+// When CollectStats is on, FluidTimeStep records how long each stage of
+// the step takes, how divergent the velocity is before and after the
+// projection, and how far the pressure solve got. When it's off, every
+// stage pays for one boolean test and nothing else: no clock reads, no
+// extra divergence passes.
+//
+// The counters are plain globals, so anything holding the sketch can read
+// them directly. Every StatsDumpInterval steps (if it's not zero), the
+// averages since the last dump are printed as a single line of name=value
+// pairs, which is easy to grep or scrape from a log, and the interval
+// counters start over. The 's' key toggles collection, and batch mode
+// takes stats=N to collect and dump every N steps.
+//
+// Divergence is measured over the interior, as an RMS (L2 norm divided by
+// the square root of the number of cells, so that it doesn't grow with the
+// grid) and a maximum absolute value.
+//-*****************************************************************************
+//-*****************************************************************************
+
+static boolean CollectStats = false;
+static int StatsDumpInterval = 0;
+
+// The stages we time.
+static int STAGE_Input = 0;
+static int STAGE_Advect = 1;
+static int STAGE_Damp = 2;
+static int STAGE_Diffuse = 3;
+static int STAGE_External = 4;
+static int STAGE_Project = 5;
+static int NUM_STAGES = 6;
+static String[] StageNames = { "input", "advect", "damp", "diffuse", "external",
+                        "project" };
+
+// Nanoseconds spent in each stage, since the last dump and in total.
+static long[] StageNanos = new long[NUM_STAGES];
+static long[] StageTotalNanos = new long[NUM_STAGES];
+
+// Steps since the last dump and in total.
+static int StatsIntervalSteps = 0;
+static long StatsTotalSteps = 0;
+
+// Divergence around the last projection.
+static float DivRMSBefore = 0.0;
+static float DivMaxBefore = 0.0;
+static float DivRMSAfter = 0.0;
+static float DivMaxAfter = 0.0;
+
+// What the last pressure solve did: iterations (or V-cycles) and, for the
+// Jacobi solver, the RMS residual after each iteration.
+static int PressureIterations = 0;
+static int JacobiLastIterations = 0;
+static float[] JacobiResiduals = new float[10];
+
+//-*****************************************************************************
+// Start timing a stage. Returns zero, without reading the clock, when
+// stats are off.
+static long StatsBegin()
+{
+    return CollectStats ? System.nanoTime() : 0;
+}
+
+//-*****************************************************************************
+static void StatsEnd( int i_stage, long i_startTime )
+{
+    if ( CollectStats )
+    {
+        long nanos = System.nanoTime() - i_startTime;
+        StageNanos[i_stage] += nanos;
+        StageTotalNanos[i_stage] += nanos;
+    }
+}
+
+//-*****************************************************************************
+// Compute the divergence of the velocity into i_tmp and return its RMS and
+// maximum absolute value over the interior, as { rms, max }. Split across
+// processes, these are over the whole grid.
+//-*****************************************************************************
+static float[] MeasureDivergence( int i_gridU, int i_gridV, int i_tmp )
+{
+    ComputeDivergence( i_gridU, i_gridV, i_tmp );
+    float[] D = State[i_tmp];
+    double sumSq = 0.0;
+    float maxAbs = 0.0;
+    int jEnd = OwnedRowEnd();
+    for ( int j = OwnedRowBegin(); j < jEnd; ++j )
+    {
+        int a = IX(1,j);
+        for ( int i = 1; i <= NX; ++i, ++a )
+        {
+            sumSq += D[a] * D[a];
+            maxAbs = max( maxAbs, abs( D[a] ) );
+        }
+    }
+    sumSq = DistSum( sumSq );
+    return new float[] {
+        ( float )Math.sqrt( sumSq / ( double )( NX * GlobalNY() ) ),
+        DistMax( maxAbs ) };
+}
+
+//-*****************************************************************************
+// The RMS of a field over the interior.
+//-*****************************************************************************
+static float FieldRMS( int i_field )
+{
+    float[] Q = State[i_field];
+    double sumSq = 0.0;
+    int jEnd = OwnedRowEnd();
+    for ( int j = OwnedRowBegin(); j < jEnd; ++j )
+    {
+        int a = IX(1,j);
+        for ( int i = 1; i <= NX; ++i, ++a )
+        {
+            sumSq += Q[a] * Q[a];
+        }
+    }
+    sumSq = DistSum( sumSq );
+    return ( float )Math.sqrt( sumSq / ( double )( NX * GlobalNY() ) );
+}
+
+//-*****************************************************************************
+// The RMS of Divergence - Laplacian( Pressure ) over the interior, for a
+// pressure whose ghost cells have been filled.
+//-*****************************************************************************
+static float PressureResidualRMS( int i_Div, int i_Pressure )
+{
+    float[] P = State[i_Pressure];
+    float[] D = State[i_Div];
+    int S = GridStride;
+    float invH2 = 1.0 / ( DXY * DXY );
+    double sumSq = 0.0;
+    int jEnd = OwnedRowEnd();
+    for ( int j = OwnedRowBegin(); j < jEnd; ++j )
+    {
+        int a = IX(1,j);
+        for ( int i = 1; i <= NX; ++i, ++a )
+        {
+            float lap = ( P[a-S] + P[a-1] + P[a+1] + P[a+S] - 4.0*P[a] ) *
+                invH2;
+            float r = D[a] - lap;
+            sumSq += r * r;
+        }
+    }
+    sumSq = DistSum( sumSq );
+    return ( float )Math.sqrt( sumSq / ( double )( NX * GlobalNY() ) );
+}
+
+//-*****************************************************************************
+// The projection, with divergence measured on either side of it when
+// stats are on. The measurements aren't counted in the stage time.
+//-*****************************************************************************
+static void EnforceIncompressibilityWithStats()
+{
+    if ( !CollectStats )
+    {
+        EnforceIncompressibility();
+        return;
+    }
+
+    float[] before = MeasureDivergence( GridU, GridV, GridTemp0 );
+    DivRMSBefore = before[0];
+    DivMaxBefore = before[1];
+
+    long startTime = StatsBegin();
+    EnforceIncompressibility();
+    StatsEnd( STAGE_Project, startTime );
+
+    if ( PressureSolver == PS_Multigrid )
+    {
+        PressureIterations = MGLastCycles;
+    }
+    else if ( PressureSolver == PS_ConjugateGradient )
+    {
+        PressureIterations = CGLastIterations;
+    }
+    else if ( PressureSolver == PS_RedBlackSOR )
+    {
+        PressureIterations = RedBlackPressureIterations;
+    }
+    else
+    {
+        PressureIterations = JacobiLastIterations;
+    }
+
+    float[] after = MeasureDivergence( GridU, GridV, GridTemp0 );
+    DivRMSAfter = after[0];
+    DivMaxAfter = after[1];
+}
+
+//-*****************************************************************************
+// Count a finished step, and dump if it's time.
+//-*****************************************************************************
+static void StatsStepDone()
+{
+    if ( !CollectStats )
+    {
+        return;
+    }
+
+    ++StatsIntervalSteps;
+    ++StatsTotalSteps;
+    if ( StatsDumpInterval > 0 && StatsIntervalSteps >= StatsDumpInterval )
+    {
+        if ( DistRank == 0 )
+        {
+            println( StatsReport() );
+        }
+        ResetIntervalStats();
+    }
+}
+
+//-*****************************************************************************
+static void ResetIntervalStats()
+{
+    StatsIntervalSteps = 0;
+    java.util.Arrays.fill( StageNanos, 0 );
+}
+
+//-*****************************************************************************
+// One line of name=value pairs: the mean milliseconds per step in each
+// stage since the last dump, and the most recent convergence numbers.
+//-*****************************************************************************
+static String StatsReport()
+{
+    StringBuilder sb = new StringBuilder();
+    sb.append( "step=" ).append( StatsTotalSteps );
+    sb.append( " grid=" ).append( NX ).append( "x" ).append( GlobalNY() );
+    sb.append( " field_bytes=" ).append( SimFieldBytes() );
+    if ( DistRanks > 1 )
+    {
+        sb.append( " ranks=" ).append( DistRanks );
+    }
+
+    float steps = max( 1, StatsIntervalSteps );
+    long totalNanos = 0;
+    for ( int s = 0; s < NUM_STAGES; ++s )
+    {
+        sb.append( " " ).append( StageNames[s] ).append( "_ms=" )
+          .append( nf( ( float )StageNanos[s] / ( 1.0e6 * steps ), 1, 4 ) );
+        totalNanos += StageNanos[s];
+    }
+    sb.append( " step_ms=" )
+      .append( nf( ( float )totalNanos / ( 1.0e6 * steps ), 1, 4 ) );
+
+    sb.append( " div_rms_before=" ).append( DivRMSBefore );
+    sb.append( " div_max_before=" ).append( DivMaxBefore );
+    sb.append( " div_rms_after=" ).append( DivRMSAfter );
+    sb.append( " div_max_after=" ).append( DivMaxAfter );
+    sb.append( " pressure_iters=" ).append( PressureIterations );
+    if ( PressureWarmStart != PW_Zero )
+    {
+        sb.append( " warm_start=" )
+          .append( PressureWarmStartNames[PressureWarmStart] );
+    }
+    if ( UseHalfDensity )
+    {
+        sb.append( " density=half" );
+    }
+    if ( UseAdaptiveTimeStep )
+    {
+        sb.append( " substeps=" ).append( LastSubsteps );
+        sb.append( " cfl=" ).append( LastMaxCFL );
+    }
+    if ( Use3D )
+    {
+        sb.append( " depth=" ).append( NZ );
+    }
+    if ( UseMACGrid )
+    {
+        sb.append( " mac=1" );
+    }
+    if ( UseActiveTiles )
+    {
+        sb.append( " active_tiles=" ).append( NumActiveTiles )
+          .append( "/" ).append( TileNX * TileNY );
+    }
+
+    if ( PressureSolver == PS_Jacobi )
+    {
+        sb.append( " jacobi_residuals=" );
+        for ( int k = 0; k < JacobiLastIterations; ++k )
+        {
+            sb.append( ( k > 0 ) ? "," : "" ).append( JacobiResiduals[k] );
+        }
+    }
+    return sb.toString();
+}
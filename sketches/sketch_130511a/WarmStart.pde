@@ -0,0 +1,100 @@
+//-*****************************************************************************
+// Copyright (c) 2011-2013 Christopher Jon Horvath. All rights reserved.
+//-*****************************************************************************
+
+//-*****************************************************************************
+//-*****************************************************************************
+// WARM-STARTED PRESSURE
+//
+// The pressure that makes the velocity divergence free changes little from
+// one step to the next, but every solver used to start from zero and find
+// it all over again. The pressure is now kept in State, as GridPressure,
+// and with PressureWarmStart the next solve starts from it instead:
+//
+//   PW_Zero         start from zero, as before.
+//   PW_Previous     start from the last step's pressure.
+//   PW_Extrapolate  start from 2 P(n) - P(n-1), continuing the pressure's
+//                   trend from the last two steps, which are kept in
+//                   GridPressure and GridPrevPressure. This only helps
+//                   when the pressure changes smoothly; with emitters
+//                   stirring the smoke, PW_Previous usually does better.
+//
+// A guess only pays off with a solver that stops on a residual. Multigrid
+// and CG already do, and with a good guess multigrid may not need any
+// V-cycles at all. The Jacobi iterations stop on JacobiTolerance, a
+// fraction of the divergence (which is the residual of zero pressure),
+// when it's above zero, after at most JacobiMaxIterations. Red-black SOR
+// always does its fixed number of sweeps, which just converge further
+// from a warm start.
+//
+// Nothing is extrapolated from steps that haven't happened: after a
+// resize, or switching the pressure solver, the staggered grid or the 3D
+// solver, the solves fall back to what's available until there's enough
+// history. The pressure and the history count are
+// saved in checkpoints, so a resumed run starts from the same guess.
+//-*****************************************************************************
+//-*****************************************************************************
+
+static int PW_Zero = 0;
+static int PW_Previous = 1;
+static int PW_Extrapolate = 2;
+static int PressureWarmStart = PW_Zero;
+static String[] PressureWarmStartNames = { "zero", "previous", "extrapolate" };
+
+// Stop the Jacobi iterations when the residual is below this fraction of
+// the divergence. Zero always does JacobiMaxIterations.
+static float JacobiTolerance = 0.0;
+static int JacobiMaxIterations = 10;
+
+// How many consecutive steps' pressures we have: GridPressure holds the
+// last if it's at least one, and GridPrevPressure the one before if it's
+// two.
+static int PressureHistory = 0;
+
+//-*****************************************************************************
+// Forget the pressures we have, when they no longer belong to this state.
+static void ResetPressureHistory()
+{
+    PressureHistory = 0;
+}
+
+//-*****************************************************************************
+// Get GridPressure ready to be solved for. Returns true if it holds a
+// guess the solver should start from, false if the solver should start
+// from zero.
+//-*****************************************************************************
+static boolean PrepareInitialPressure()
+{
+    int mode = min( PressureWarmStart, PressureHistory );
+    if ( PressureWarmStart == PW_Extrapolate )
+    {
+        if ( mode == PW_Extrapolate )
+        {
+            // Build the guess over the previous pressure, ghost cells and
+            // all, and swap it in, so that the last pressure becomes the
+            // previous one.
+            float[] P = State[GridPressure];
+            float[] Pprev = State[GridPrevPressure];
+            for ( int a = 0; a < GridArraySize; ++a )
+            {
+                Pprev[a] = 2.0 * P[a] - Pprev[a];
+            }
+            int tmp = GridPressure;
+            GridPressure = GridPrevPressure;
+            GridPrevPressure = tmp;
+        }
+        else if ( mode == PW_Previous )
+        {
+            CopyArray( GridPressure, GridPrevPressure );
+        }
+    }
+    return mode != PW_Zero;
+}
+
+//-*****************************************************************************
+// Count a pressure solve. Only extrapolation keeps the one before.
+static void PressureSolved()
+{
+    PressureHistory = ( PressureWarmStart == PW_Extrapolate ) ?
+        min( PressureHistory + 1, 2 ) : 1;
+}
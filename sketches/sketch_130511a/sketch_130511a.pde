@@ -9,69 +9,79 @@
 //-*****************************************************************************
 
 // Grid resolution per side. Rectangular
-int NX = 62;
-int NY = 62;
+static int NX = 62;
+static int NY = 62;
 
 // The size of the sim, in "world" units.
-float LX = 100.0;
+static float LX = 100.0;
 
 // Size, in "world" units, of a grid cell.
 // Our cells are uniform (square) so DX & DY are the same.
-float DXY = LX / ( float )NX;
+static float DXY = LX / ( float )NX;
 
 // Y size, keeping square cells.
-float LY = DXY * ( float )NY;
+static float LY = DXY * ( float )NY;
 
 // The size of each grid cell, in pixels.
 // This is for drawing
-int CellPixels = 8;
+static int CellPixels = 8;
 
 // The rate at which we inject density
 // into the grid by painting with the
 // mouse.
-float EmissionRate = 2.0;
-float DenEmissionRadius = 15.0;
-float VelEmissionRadius = 20.0;
+static float EmissionRate = 2.0;
+static float DenEmissionRadius = 15.0;
+static float VelEmissionRadius = 20.0;
 
 // The rate at which density
 // diffuses (dissipates)
-float D_viscosity = 0.00001;
+static float D_viscosity = 0.00001;
 
 // The rate at which velocity
 // dissipates  
-float V_viscosity = 0.00001;
+static float V_viscosity = 0.00001;
 
 // The rate at which density decays.
-float D_damp = 0.01;
+static float D_damp = 0.01;
 
 // The rate at which velocity decays.
-float V_damp = 0.0001;
+static float V_damp = 0.0001;
 
 // Our time step 
-float DT = 1.0; 
+static float DT = 1.0; 
 
 // A scale on input velocity 
-float Vscale = 0.75;
+static float Vscale = 0.75;
 
 // Our Window will be made of "gridRes" cells,
 // where each cell is "cellSize" pixels big.
-int WindowWidth = NX * CellPixels;
-int WindowHeight = NY * CellPixels;
+static int WindowWidth = NX * CellPixels;
+static int WindowHeight = NY * CellPixels;
 
 // Our simulation grids (Our State) will be one cell larger in each
 // dimension to accomodate boundary conditions.
-int GX = NX+2;
-int GY = NY+2;
+static int GX = NX+2;
+static int GY = NY+2;
+
+// Whether to pad each row of the grids out to a whole number of cache
+// lines. See the Grid2D tab.
+static boolean PadGridRows = false;
+
+// The layout of our arrays: a one cell halo around the interior for the
+// boundary conditions, and GridStride floats from one row to the next.
+// GridStride is GX unless the rows are padded.
+static Grid2D SimGrid = new Grid2D( NX, NY, 1, PadGridRows );
+static int GridStride = SimGrid.Stride;
 
 // The length of all of our (one-dimensional)
 // arrays. We use 1d arrays rather than matrices
 // mostly for efficiency reasons.
-int GridArraySize = GX*GY;
+static int GridArraySize = SimGrid.Size;
 
 // Whether to display velocities.
-boolean DisplayVelocity = false;
+static boolean DisplayVelocity = false;
 
-PImage StateImage = createImage( GX, GY, RGB );
+static PImage StateImage = new PImage( GX, GY, RGB );
 
 
 //-*****************************************************************************
@@ -91,51 +101,105 @@ PImage StateImage = createImage( GX, GY, RGB );
 // 7  Input V
 // 8  Input Density
 // 9  Divergence
-// 10 DiffusionTemp
-// 11 NUM_ARRAYS
-int NUM_ARRAYS = 12;
-float[][] State = new float[NUM_ARRAYS][GridArraySize];
-int GridPrevU = 0;
-int GridU = 1;
-int GridPrevV = 2;
-int GridV = 3;
-int GridPrevDensity = 4;
-int GridDensity = 5;
-int GridInputU = 6;
-int GridInputV = 7;
-int GridInputDensity = 8;
-int GridTemp0 = 9;
-int GridTemp1 = 10;
-int GridTemp2 = 11;
-
-float VstrokeAlpha = 0.5;
+// 10 Pressure
+// 11 DiffusionTemp
+// 12 Previous Pressure
+// 13 NUM_ARRAYS
+static int NUM_ARRAYS = 13;
+static int GridPrevU = 0;
+static int GridU = 1;
+static int GridPrevV = 2;
+static int GridV = 3;
+static int GridPrevDensity = 4;
+static int GridDensity = 5;
+static int GridInputU = 6;
+static int GridInputV = 7;
+static int GridInputDensity = 8;
+static int GridTemp0 = 9;
+static int GridPressure = 10;
+static int GridTemp2 = 11;
+static int GridPrevPressure = 12;
+static FieldSet SimFields = NewSimFields( SimGrid );
+static float[][] State = SimFields.Data;
+
+static float VstrokeAlpha = 0.5;
 
 // Index an element of a grid in the state array
-int IX( int i, int j )
+static int IX( int i, int j )
 {
-    return ( i + GX*j ); 
+    return ( i + GridStride*j ); 
+}
+
+//-*****************************************************************************
+// Only the Jacobi pressure solve, and the half float density's fallbacks
+// (see the HalfFields tab), ping-pong through GridTemp2, so it isn't
+// allocated until one of them asks for it with NeedTemp2().
+// Changing the pressure solver lets it go again.
+//-*****************************************************************************
+static FieldSet NewSimFields( Grid2D i_grid )
+{
+    FieldSet fields = new FieldSet( i_grid, NUM_ARRAYS, false );
+    for ( int h = 0; h < NUM_ARRAYS; ++h )
+    {
+        if ( h != GridTemp2 )
+        {
+            fields.Allocate( h );
+        }
+    }
+    return fields;
+}
+
+static void NeedTemp2()
+{
+    SimFields.Allocate( GridTemp2 );
+}
+
+static void ReleaseTemp2()
+{
+    SimFields.Release( GridTemp2 );
 }
 
 //-*****************************************************************************
 // Swap current arrays (velocity or density) with previous arrays.
-void SwapU() { int tmp = GridU; GridU = GridPrevU; GridPrevU = tmp; }
-void SwapV() { int tmp = GridV; GridV = GridPrevV; GridPrevV = tmp; }
-void SwapVelocity() { SwapU(); SwapV(); }
-void SwapDensity()
+static void SwapU() { int tmp = GridU; GridU = GridPrevU; GridPrevU = tmp; }
+static void SwapV() { int tmp = GridV; GridV = GridPrevV; GridPrevV = tmp; }
+static void SwapVelocity() { SwapU(); SwapV(); }
+static void SwapDensity()
 { int tmp = GridDensity; GridDensity = GridPrevDensity; GridPrevDensity = tmp; }
-void SwapArrays() { SwapU(); SwapV(); SwapDensity(); }
+static void SwapArrays() { SwapU(); SwapV(); SwapDensity(); }
 
 //-*****************************************************************************
-void ZeroArray( int i_array )
+static void ZeroArray( int i_array )
 {
+    if ( StateHalf[i_array] != null )
+    {
+        java.util.Arrays.fill( StateHalf[i_array], 0, GridArraySize,
+                               ( short )0 );
+        return;
+    }
+    if ( KernelBackend == KB_Flat )
+    {
+        java.util.Arrays.fill( State[i_array], 0, GridArraySize, 0.0 );
+        return;
+    }
     for ( int a = 0; a < GridArraySize; ++a )
     {
         State[i_array][a] = 0.0;
     }
 }
 
-void CopyArray( int i_src, int i_dst )
+static void CopyArray( int i_src, int i_dst )
 {
+    if ( StateHalf[i_src] != null || StateHalf[i_dst] != null )
+    {
+        CopyHalfArray( i_src, i_dst );
+        return;
+    }
+    if ( KernelBackend == KB_Flat )
+    {
+        System.arraycopy( State[i_src], 0, State[i_dst], 0, GridArraySize );
+        return;
+    }
     for ( int a = 0; a < GridArraySize; ++a )
     {
         State[i_dst][a] = State[i_src][a];
@@ -148,161 +212,194 @@ void CopyArray( int i_src, int i_dst )
 //-*****************************************************************************
 //-*****************************************************************************
 
+// The input source, in window pixels. The solver only ever reads these,
+// never the mouse directly, so that the same time step can be driven
+// either by the mouse (GetMouseInput, below) or by a script when running
+// in batch mode (see the Batch tab).
+static boolean InputDensityActive = false;
+static boolean InputVelocityActive = false;
+static float InputPosX = 0.0;
+static float InputPosY = 0.0;
+static float InputPrevPosX = 0.0;
+static float InputPrevPosY = 0.0;
+
 //-*****************************************************************************
-// Add density based on mouse clicking
+// Copy the mouse state into the input source.
 //-*****************************************************************************
-void GetInputSourceDensity()
+void GetMouseInput()
 {
-    if ( mousePressed == true && mouseButton == LEFT ) 
-    {
-        for ( int j = 0; j < GY; ++j ) 
-        {
-            float cellMidPointY = CellPixels * ( 0.5 + ( float )j );
+    InputDensityActive = ( mousePressed == true && mouseButton == LEFT );
+    InputVelocityActive = mousePressed;
+    InputPosX = mouseX;
+    InputPosY = mouseY;
+    InputPrevPosX = pmouseX;
+    InputPrevPosY = pmouseY;
+    ClearEmitters();
+    AddInputEmitter();
+}
 
-            for ( int i = 0; i < GX; ++i ) 
-            {
-                float cellMidPointX = CellPixels * ( 0.5 + ( float )i );
+// GetInputSourceDensity and GetInputSourceVelocity stamp the input from
+// every emitter into the input grids. See the Emitters tab.
 
-                float r = dist( mouseX, mouseY, cellMidPointX, cellMidPointY );
-                float er2 = sq( 2.21 * r / DenEmissionRadius );
-                float v = constrain( 2.0 * exp( -er2 ), 0.0, 1.0 );
+//-*****************************************************************************
+//-*****************************************************************************
+// PHYSICS FUNCTIONS
+//-*****************************************************************************
+//-*****************************************************************************
 
-                State[GridInputDensity][IX(i,j)] = EmissionRate * v;
-            } 
-        }
-    } 
-    else 
+//-*****************************************************************************
+// Damping
+static void DampArray( final int io_grid, float i_damp )
+{
+    final float mult = pow( constrain( 1.0 - i_damp, 0.0, 1.0 ), DT );
+    RunRows( 0, GY, new RowKernel() { void Rows( int j0, int j1 ) {
+        DampRows( io_grid, mult, j0, j1 );
+    } } );
+}
+
+static void DampRows( int io_grid, float i_mult, int i_jBegin, int i_jEnd )
+{
+    if ( StateHalf[io_grid] != null )
+    {
+        ScaleHalfRange( StateHalf[io_grid], i_mult, IX( 0, i_jBegin ),
+                        IX( 0, i_jEnd ) );
+        return;
+    }
+    if ( KernelBackend == KB_Flat )
+    {
+        ScaleRange( State[io_grid], i_mult, IX( 0, i_jBegin ),
+                    IX( 0, i_jEnd ) );
+        return;
+    }
+    for ( int a = IX( 0, i_jBegin ); a < IX( 0, i_jEnd ); ++a )
     {
-        ZeroArray( GridInputDensity );
-    } 
+        State[io_grid][a] *= i_mult;    
+    }
 }
 
 //-*****************************************************************************
-// Derive the velocity of the mouse
-// when it's clicked; add the resulting
-// velocities to the grid velocity.
+// The boundary conditions are enforced on the I selector of the arrays.
+// There are three types of boundary condition application - no negation,
+// just copying at the boundary, then negating in the x-direction only,
+// then negating in the y-direction only.
+static int BC_NoNegate = 0;
+static int BC_NegateX = 1;
+static int BC_NegateY = 2;
+
+// The sign each type gives a ghost cell relative to its interior neighbor,
+// across the left and right boundaries (X) and the bottom and top (Y).
+// Looking the sign up once per call, and multiplying by it, keeps the type
+// out of the loops entirely.
+static float[] BCSignX = { 1.0, -1.0, 1.0 };
+static float[] BCSignY = { 1.0, 1.0, -1.0 };
+static float GhostSignX( int i_bType ) { return BCSignX[i_bType]; }
+static float GhostSignY( int i_bType ) { return BCSignY[i_bType]; }
+
 //-*****************************************************************************
-void GetInputSourceVelocity()
+static void EnforceBoundaryConditions( int io_grid, int i_bType )
 {
-    //if ( mousePressed == true && mouseButton == RIGHT ) 
-    if ( mousePressed ) 
+    // The half float density is never staggered. See the HalfFields tab.
+    if ( StateHalf[io_grid] != null )
     {
-        VstrokeAlpha = 0.5;  
-
-        float PixelVelX = ( mouseX - pmouseX ) / DT;
-        float PixelVelY = ( mouseY - pmouseY ) / DT;
-        float GridVelX = PixelVelX / ( float )CellPixels;
-        float GridVelY = PixelVelY / ( float )CellPixels;
-        float SimVelX = GridVelX * DXY;
-        float SimVelY = GridVelY * DXY;
+        SetHalfBoundaries( StateHalf[io_grid], GhostSignX( i_bType ),
+                           GhostSignY( i_bType ) );
+        return;
+    }
+    float[] q = State[io_grid];
+    SetSideBoundariesFor( q, i_bType, 1, NY+1 );
+    SetEndBoundariesFor( q, i_bType );
+}
 
-        for ( int j = 0; j < GY; ++j ) 
-        {
-            float cellMidPointY = CellPixels * ( 0.5 + ( float )j );
+//-*****************************************************************************
+// The side and end boundaries of a field of the given type, which for the
+// velocity depend on whether it's staggered (see the MACGrid tab).
+//-*****************************************************************************
+static void SetSideBoundariesFor( float[] q, int i_bType, int i_jBegin, int i_jEnd )
+{
+    if ( UseMACGrid && i_bType != BC_NoNegate )
+    {
+        SetFaceSideBoundaries( q, i_bType, i_jBegin, i_jEnd );
+        return;
+    }
+    SetSideBoundaries( q, GhostSignX( i_bType ), i_jBegin, i_jEnd );
+}
 
-            for ( int i = 0; i < GX; ++i ) 
-            {
-                float cellMidPointX = CellPixels * ( 0.5 + ( float )i );
-
-                float r = dist( mouseX, mouseY, cellMidPointX, cellMidPointY );
-                float er2 = sq( 2.21 * r / VelEmissionRadius );
-                float v = constrain( 2.0 * exp( -er2 ), 0.0, 1.0 );
-      
-                State[GridInputU][IX(i,j)] = SimVelX * Vscale * v;
-                State[GridInputV][IX(i,j)] = SimVelY * Vscale * v;
-            } 
-        }
-    } 
-    else 
+static void SetEndBoundariesFor( float[] q, int i_bType )
+{
+    if ( UseMACGrid && i_bType != BC_NoNegate )
     {
-        ZeroArray( GridInputU );
-        ZeroArray( GridInputV );
+        SetFaceEndBoundaries( q, i_bType );
+        return;
     }
+    SetEndBoundaries( q, GhostSignY( i_bType ) );
 }
 
 //-*****************************************************************************
+// The left and right ghost cells of rows i_jBegin up to i_jEnd, from the
+// cells just inside them.
+//
+// Walking down the columns touches a new cache line for every cell, so the
+// sweeps that fill whole interior rows - diffusion, the Jacobi pressure
+// iterations, advection, divergence and the gradient - call this for their
+// own band of rows straight after computing it, while the rows are still
+// in cache, and then only call SetEndBoundaries once the sweep is done.
 //-*****************************************************************************
-// PHYSICS FUNCTIONS
-//-*****************************************************************************
-//-*****************************************************************************
-
-//-*****************************************************************************
-// Damping
-void DampArray( int io_grid, float i_damp )
+static void SetSideBoundaries( float[] q, float i_sx, int i_jBegin, int i_jEnd )
 {
-    float mult = pow( constrain( 1.0 - i_damp, 0.0, 1.0 ), DT );
-    for ( int a = 0; a < GridArraySize; ++a )
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
     {
-        State[io_grid][a] *= mult;    
+        int a = IX( 0, j );
+        q[a] = i_sx * q[a+1];
+        q[a+NX+1] = i_sx * q[a+NX];
     }
 }
 
 //-*****************************************************************************
-// The boundary conditions are enforced on the I selector of the arrays.
-// There are three types of boundary condition application - no negation,
-// just copying at the boundary, then negating in the x-direction only,
-// then negating in the y-direction only.
-int BC_NoNegate = 0;
-int BC_NegateX = 1;
-int BC_NegateY = 2;
-
+// The bottom and top ghost rows, from the rows just inside them, and then
+// each corner, as the average of the two boundary values next to it.
 //-*****************************************************************************
-void EnforceBoundaryConditions( int io_grid, int i_bType )
+static void SetEndBoundaries( float[] q, float i_sy )
 {
-    // Copy the bottom row from the one above it. If the boundary type
-    // is '2', that means negate the values.
-    // Do the same for the topmost row and the one beneath it.
-    for ( int i = 1; i <= NX; ++i )
+    // Split across processes, only the end slabs have these walls, and the
+    // rest of the rows come from the neighbors. See the Distributed tab.
+    if ( DistRanks > 1 )
     {
-        State[io_grid][IX( i, 0  )] = 
-            ( i_bType == BC_NegateY ) ? 
-            -State[io_grid][IX( i, 1 )] :
-            State[io_grid][IX( i, 1 )];
-
-        State[io_grid][IX( i, NY+1 )] = 
-            ( i_bType == BC_NegateY ) ? 
-            -State[io_grid][IX( i, NY )] :
-            State[io_grid][IX( i, NY )];
+        SetSlabEndBoundaries( q, i_sy );
+        return;
     }
 
-    // Copy the left col from the one to the right of it. If the boundary type
-    // is '1', that means negate the values.
-    // Do the same for the rightmost col and the one to the left of it.
-    for ( int j = 1; j <= NY; ++j )
+    int S = GridStride;
+    int bottom = IX( 1, 0 );
+    int top = IX( 1, NY+1 );
+    if ( i_sy > 0.0 )
     {
-        State[io_grid][IX( 0, j  )]   = 
-            ( i_bType == BC_NegateX ) ? 
-            -State[io_grid][IX( 1, j )] :
-            State[io_grid][IX( 1, j )];
-    
-        State[io_grid][IX( NX+1, j )] = 
-            ( i_bType == BC_NegateY ) ? 
-            -State[io_grid][IX( NX, j )] :
-            State[io_grid][IX( NX, j )];
+        System.arraycopy( q, bottom + S, q, bottom, NX );
+        System.arraycopy( q, top - S, q, top, NX );
+    }
+    else
+    {
+        for ( int i = 0; i < NX; ++i )
+        {
+            q[bottom+i] = -q[bottom+S+i];
+            q[top+i] = -q[top-S+i];
+        }
     }
 
-    // Get each corner by averaging the two boundary values adjacent.
-    State[io_grid][IX(0,0)]     
-        = 0.5 * ( State[io_grid][IX(1,0)] + State[io_grid][IX(0,1)] );
-    State[io_grid][IX(0,NY+1)]   
-        = 0.5 * ( State[io_grid][IX(1,NY+1)] + State[io_grid][IX(0,NY)] );
-    State[io_grid][IX(NX+1,0)]   
-        = 0.5 * ( State[io_grid][IX(NX,0)] + State[io_grid][IX(NX+1,1)] );
-    State[io_grid][IX(NX+1,NY+1)] 
-        = 0.5 * ( State[io_grid][IX(NX,NY+1)] + State[io_grid][IX(NX+1,NY)]);
+    q[IX(0,0)] = 0.5 * ( q[IX(1,0)] + q[IX(0,1)] );
+    q[IX(0,NY+1)] = 0.5 * ( q[IX(1,NY+1)] + q[IX(0,NY)] );
+    q[IX(NX+1,0)] = 0.5 * ( q[IX(NX,0)] + q[IX(NX+1,1)] );
+    q[IX(NX+1,NY+1)] = 0.5 * ( q[IX(NX,NY+1)] + q[IX(NX+1,NY)] );
 }
 
 //-*****************************************************************************
 // Integrate External Forces (basically, in this case, just add the 
 // input source velocity to the velocity)
-void IntegrateExternalVelocity()
+static void IntegrateExternalVelocity()
 {
-    // We can work directly on final density.
-    for ( int a = 0; a < GridArraySize; ++a )
-    {
-        State[GridU][a] += DT * State[GridInputU][a];
-        State[GridV][a] += DT * State[GridInputV][a];
-    }
+    // We can work directly on final velocity. The input is zero outside
+    // the box the emitters stamped.
+    AddScaledBox( GridU, DT, GridInputU, VelInputBox );
+    AddScaledBox( GridV, DT, GridInputV, VelInputBox );
 
     EnforceBoundaryConditions( GridU, BC_NegateX );
     EnforceBoundaryConditions( GridV, BC_NegateY );
@@ -311,16 +408,15 @@ void IntegrateExternalVelocity()
 //-*****************************************************************************
 // Integrate External Densities (basically, in this case, just add the 
 // input source density to the density)
-void IntegrateExternalDensity()
+static void IntegrateExternalDensity()
 {
-    if ( mousePressed && mouseButton == LEFT )
+    // Split across processes, every worker has to take part in the
+    // boundary exchange, whether or not it has any input.
+    if ( !IsEmptyBox( DenInputBox ) || DistRanks > 1 )
     {
-  
-    // We can work directly on final density.
-    for ( int a = 0; a < GridArraySize; ++a )
-    {
-        State[GridDensity][a] += DT * State[GridInputDensity][a];
-    }
+    // We can work directly on final density. The input is zero outside
+    // the box the emitters stamped.
+    AddScaledBox( GridDensity, DT, GridInputDensity, DenInputBox );
 
     EnforceBoundaryConditions( GridDensity, BC_NoNegate );
     }
@@ -346,50 +442,120 @@ void IntegrateExternalDensity()
 // --------------------------------
 // Diffuse (dissipate) density
 // --------------------------------
-void Diffuse( int i_OldQ, int o_NewQ, float i_visc, int i_bType )
+// Jacobi sweeps per diffusion solve.
+static int DiffuseIterations = 9;
+
+// One Jacobi diffusion sweep from src into dst, with its side boundaries.
+// Diffuse fills in the fields and reuses the one kernel for every sweep.
+static class DiffuseSweepKernel extends RowKernel
 {
-    float k = DT * i_visc * sq( DXY );
-    //print( "k = " + k );
+    int src = 0;
+    int dst = 0;
+    float k = 0.0;
+    int bType = 0;
+
+    void Rows( int j0, int j1 )
+    {
+        DiffuseRows( src, dst, k, j0, j1 );
+        SetSideBoundariesFor( State[dst], bType, j0, j1 );
+    }
+}
+static DiffuseSweepKernel DiffuseSweep = new DiffuseSweepKernel();
+
+static void Diffuse( int i_OldQ, int o_NewQ, float i_visc, int i_bType )
+{
+    if ( DiffuseSolver == DS_ConjugateGradient )
+    {
+        DiffuseViaConjugateGradient( i_OldQ, o_NewQ, i_visc, i_bType );
+        return;
+    }
+    else if ( DiffuseSolver == DS_RedBlackSOR )
+    {
+        DiffuseViaRedBlackSOR( i_OldQ, o_NewQ, i_visc, i_bType );
+        return;
+    }
+
+    DiffuseSweep.k = DT * i_visc * sq( DXY );
+    DiffuseSweep.bType = i_bType;
+    //print( "k = " + DiffuseSweep.k );
 
     // Create temporary handles to src and dst arrays, which
     // we will ping-pong. 
     int SRC = o_NewQ;
     int DST = i_OldQ;
 
-    for ( int iters = 0; iters < 9; ++iters )
+    for ( int iters = 0; iters < DiffuseIterations; ++iters )
     {
         // Swap src and dst array pointers.
         int tmp = SRC; SRC = DST; DST = tmp;
 
         // Diffuse the SRC into DST.
-        for ( int j=1; j<=NY; ++j ) 
+        DiffuseSweep.src = SRC;
+        DiffuseSweep.dst = DST;
+        RunInteriorRows( DiffuseSweep );
+
+        // Enforce the rest of the boundary conditions.
+        SetEndBoundariesFor( State[DST], i_bType );
+    }
+}
+
+//-*****************************************************************************
+// One Jacobi diffusion sweep from SRC into DST, for rows i_jBegin up to
+// i_jEnd.
+static void DiffuseRows( int SRC, int DST, float k, int i_jBegin, int i_jEnd )
+{
+    DiffuseBlock( SRC, DST, k, 1, NX+1, i_jBegin, i_jEnd );
+}
+
+// The same sweep, for the cells from i_iBegin up to i_iEnd only.
+static void DiffuseBlock( int SRC, int DST, float k, int i_iBegin, int i_iEnd,
+                   int i_jBegin, int i_jEnd )
+{
+    float[] src = State[SRC];
+    float[] dst = State[DST];
+    if ( KernelBackend == KB_Flat )
+    {
+        DiffuseBlockFlat( src, dst, k, i_iBegin, i_iEnd, i_jBegin, i_jEnd );
+        return;
+    }
+    int S = GridStride;
+    for ( int j=i_jBegin; j<i_jEnd; ++j ) 
+    {
+        int a = IX(i_iBegin,j);
+        for ( int i=i_iBegin; i<i_iEnd; ++i, ++a ) 
         {
-            for ( int i=1; i<=NX; ++i ) 
-            {
-                State[DST][IX(i,j)] = 
-                ( State[SRC][IX(i,j)] + 
-                  k * ( State[SRC][IX(i,j-1)] + 
-                        State[SRC][IX(i-1,j)] + 
-                        State[SRC][IX(i+1,j)] + 
-                        State[SRC][IX(i,j+1)] ) )
-                / ( 1.0 + 4.0*k );
-            }
+            dst[a] = 
+            ( src[a] + 
+              k * ( src[a-S] + 
+                    src[a-1] + 
+                    src[a+1] + 
+                    src[a+S] ) )
+            / ( 1.0 + 4.0*k );
         }
-
-        // Enforce the boundary conditions.
-        EnforceBoundaryConditions( DST, i_bType );
     }
 }
 
 //-*****************************************************************************
-void DiffuseDensity()
+static void DiffuseDensity()
 {
     SwapDensity();
-    Diffuse( GridPrevDensity, GridDensity, D_viscosity, BC_NoNegate );
+    if ( UseActiveTiles )
+    {
+        DiffuseOnTiles( GridPrevDensity, GridDensity, D_viscosity,
+                        BC_NoNegate );
+    }
+    else if ( UseHalfDensity )
+    {
+        DiffuseHalfField( GridPrevDensity, GridDensity, D_viscosity );
+    }
+    else
+    {
+        Diffuse( GridPrevDensity, GridDensity, D_viscosity, BC_NoNegate );
+    }
 }
 
 //-*****************************************************************************
-void DiffuseVelocity()
+static void DiffuseVelocity()
 {
     SwapVelocity();
     Diffuse( GridPrevU, GridU, V_viscosity, BC_NegateX );
@@ -398,19 +564,82 @@ void DiffuseVelocity()
 
 
 //-*****************************************************************************
-void SemiLagrangianAdvect( int i_OldQ, int o_NewQ,
+// The handle and boundary lists passed to the multi-field advection calls.
+// The handles move with every swap, so these are filled in just before
+// each call rather than built new.
+static int[] AdvectOneOld = new int[1];
+static int[] AdvectOneNew = new int[1];
+static int[] AdvectOneBType = new int[1];
+static int[] AdvectVelocityOlds = new int[2];
+static int[] AdvectVelocityNews = new int[2];
+static int[] AdvectVelocityBTypes = new int[2];
+
+//-*****************************************************************************
+static void SemiLagrangianAdvect( int i_OldQ, int o_NewQ,
                            int i_GridU, int i_GridV,
                            int i_bType )
 {
-    for ( int j=1; j<=NY; ++j ) 
+    AdvectOneOld[0] = i_OldQ;
+    AdvectOneNew[0] = o_NewQ;
+    AdvectOneBType[0] = i_bType;
+    SemiLagrangianAdvectFields( AdvectOneOld, AdvectOneNew,
+                                i_GridU, i_GridV, AdvectOneBType );
+}
+
+//-*****************************************************************************
+// Advect several fields by the same velocity at once. The back-traced
+// sample position and the bilinear weights only depend on the velocity, so
+// we compute them once per cell and use them to resample every field,
+// rather than walking the grid once per field.
+//-*****************************************************************************
+static void SemiLagrangianAdvectFields( final int[] i_OldQs, final int[] o_NewQs,
+                                 final int i_GridU, final int i_GridV,
+                                 final int[] i_bTypes )
+{
+    RunInteriorRows( new RowKernel() { void Rows( int j0, int j1 ) {
+        SemiLagrangianAdvectRows( i_OldQs, o_NewQs, i_GridU, i_GridV,
+                                  j0, j1 );
+        for ( int f = 0; f < o_NewQs.length; ++f )
+        {
+            SetSideBoundariesFor( State[o_NewQs[f]], i_bTypes[f], j0, j1 );
+        }
+    } } );
+    for ( int f = 0; f < o_NewQs.length; ++f )
+    {
+        SetEndBoundariesFor( State[o_NewQs[f]], i_bTypes[f] );
+    }
+}
+
+//-*****************************************************************************
+static void SemiLagrangianAdvectRows( int[] i_OldQs, int[] o_NewQs,
+                               int i_GridU, int i_GridV,
+                               int i_jBegin, int i_jEnd )
+{
+    SemiLagrangianAdvectBlock( i_OldQs, o_NewQs, i_GridU, i_GridV,
+                               1, NX+1, i_jBegin, i_jEnd );
+}
+
+//-*****************************************************************************
+// Advect the cells from i_iBegin up to i_iEnd in rows i_jBegin up to
+// i_jEnd.
+static void SemiLagrangianAdvectBlock( int[] i_OldQs, int[] o_NewQs,
+                                int i_GridU, int i_GridV,
+                                int i_iBegin, int i_iEnd,
+                                int i_jBegin, int i_jEnd )
+{
+    int numFields = o_NewQs.length;
+    float[] U = State[i_GridU];
+    float[] V = State[i_GridV];
+    for ( int j=i_jBegin; j<i_jEnd; ++j ) 
     {
         float SimPosY = DXY * ( 0.5 + ( float )j );
-        for ( int i=1; i<=NX; ++i ) 
+        int a = IX(i_iBegin,j);
+        for ( int i=i_iBegin; i<i_iEnd; ++i, ++a ) 
         {
             float SimPosX = DXY * ( 0.5 + ( float )i );
 
-            float SimVelX = State[i_GridU][IX(i,j)];
-            float SimVelY = State[i_GridV][IX(i,j)];
+            float SimVelX = U[a];
+            float SimVelY = V[a];
 
             float SimSamplePosX = SimPosX - DT * SimVelX;
             float SimSamplePosY = SimPosY - DT * SimVelY;
@@ -429,36 +658,84 @@ void SemiLagrangianAdvect( int i_OldQ, int o_NewQ,
             int MaxI = constrain( MinI+1, 0, GX-1 );
             int MaxJ = constrain( MinJ+1, 0, GY-1 );
 
-            float Q00 = State[i_OldQ][IX(MinI,MinJ)];
-            float Q10 = State[i_OldQ][IX(MaxI,MinJ)];
-            float Q01 = State[i_OldQ][IX(MinI,MaxJ)];
-            float Q11 = State[i_OldQ][IX(MaxI,MaxJ)];
+            int A00 = IX(MinI,MinJ);
+            int A10 = IX(MaxI,MinJ);
+            int A01 = IX(MinI,MaxJ);
+            int A11 = IX(MaxI,MaxJ);
 
-            float Qdown = lerp( Q00, Q10, InterpU );
-            float Qup = lerp( Q01, Q11, InterpU );
+            for ( int f = 0; f < numFields; ++f )
+            {
+                float[] OldQ = State[i_OldQs[f]];
+
+                float Qdown = lerp( OldQ[A00], OldQ[A10], InterpU );
+                float Qup = lerp( OldQ[A01], OldQ[A11], InterpU );
 
-            State[o_NewQ][IX(i,j)] = lerp( Qdown, Qup, InterpV );
+                State[o_NewQs[f]][a] = lerp( Qdown, Qup, InterpV );
+            }
         }
     }
-    EnforceBoundaryConditions( o_NewQ, i_bType );
 }
 
 //-*****************************************************************************
-void AdvectDensity()
+static void AdvectDensity()
 {
     SwapDensity();
-    SemiLagrangianAdvect( GridPrevDensity, GridDensity,
-                          GridU, GridV, BC_NoNegate );
+    if ( UseActiveTiles )
+    {
+        UpdateActiveTiles();
+    }
+
+    if ( UseActiveTiles && DensityAdvection.IsDefault() && !UseMACGrid )
+    {
+        AdvectOnTiles( GridPrevDensity, GridDensity, GridU, GridV,
+                       BC_NoNegate );
+    }
+    else if ( UseActiveTiles && DensityAdvection.Scheme == AC_None )
+    {
+        AdvectOnTilesWithMode( GridPrevDensity, GridDensity, GridU, GridV,
+                               BC_NoNegate, DensityAdvection );
+    }
+    else if ( UseHalfDensity )
+    {
+        AdvectHalfField( GridPrevDensity, GridDensity, GridU, GridV,
+                         DensityAdvection );
+    }
+    else
+    {
+        AdvectOneOld[0] = GridPrevDensity;
+        AdvectOneNew[0] = GridDensity;
+        AdvectOneBType[0] = BC_NoNegate;
+        AdvectFieldsWithMode( AdvectOneOld, AdvectOneNew, GridU, GridV,
+                              AdvectOneBType, DensityAdvection );
+    }
 }
 
 //-*****************************************************************************
-void AdvectVelocity()
+static void DampDensity()
+{
+    if ( UseActiveTiles )
+    {
+        DampOnTiles( GridDensity, D_damp );
+    }
+    else
+    {
+        DampArray( GridDensity, D_damp );
+    }
+}
+
+//-*****************************************************************************
+static void AdvectVelocity()
 {
     SwapVelocity();
-    SemiLagrangianAdvect( GridPrevU, GridU,
-                          GridPrevU, GridPrevV, BC_NegateX );
-    SemiLagrangianAdvect( GridPrevV, GridV,
-                          GridPrevU, GridPrevV, BC_NegateY );
+    AdvectVelocityOlds[0] = GridPrevU;
+    AdvectVelocityOlds[1] = GridPrevV;
+    AdvectVelocityNews[0] = GridU;
+    AdvectVelocityNews[1] = GridV;
+    AdvectVelocityBTypes[0] = BC_NegateX;
+    AdvectVelocityBTypes[1] = BC_NegateY;
+    AdvectFieldsWithMode( AdvectVelocityOlds, AdvectVelocityNews,
+                          GridPrevU, GridPrevV, AdvectVelocityBTypes,
+                          VelocityAdvection );
 }
 
 //-*****************************************************************************
@@ -473,23 +750,46 @@ void AdvectVelocity()
 // plus the partial derivative of the y-velocity in the y direction
 // (dV/dy).
 // We're using a central differencing scheme for computing the derivatives 
-// here.
+// here, or one-cell differences across the faces of a staggered grid (see
+// the MACGrid tab).
 //-*****************************************************************************
-void ComputeDivergence( int i_gridU, int i_gridV, int o_gridDiv )
+static void ComputeDivergence( final int i_gridU, final int i_gridV,
+                        final int o_gridDiv )
 {
-    for ( int j = 1; j <= NY; ++j )
-    {
-        for ( int i = 1; i <= NX; ++i )
+    RunInteriorRows( new RowKernel() { void Rows( int j0, int j1 ) {
+        if ( UseMACGrid )
         {
-            float twoDU = State[i_gridU][IX(i+1,j)] - State[i_gridU][IX(i-1,j)];
-            float twoDV = State[i_gridV][IX(i,j+1)] - State[i_gridV][IX(i,j-1)];
-            State[o_gridDiv][IX(i,j)] = 
-                ( twoDU / (2.0*DXY) ) + ( twoDV / (2.0*DXY) );
+            ComputeDivergenceRowsMAC( i_gridU, i_gridV, o_gridDiv, j0, j1 );
         }
-    }
+        else
+        {
+            ComputeDivergenceRows( i_gridU, i_gridV, o_gridDiv, j0, j1 );
+        }
+        SetSideBoundaries( State[o_gridDiv], 1.0, j0, j1 );
+    } } );
     
     // Compute Divergence Boundary conditions.
-    EnforceBoundaryConditions( o_gridDiv, BC_NoNegate );
+    SetEndBoundaries( State[o_gridDiv], 1.0 );
+}
+
+//-*****************************************************************************
+static void ComputeDivergenceRows( int i_gridU, int i_gridV, int o_gridDiv,
+                            int i_jBegin, int i_jEnd )
+{
+    float[] U = State[i_gridU];
+    float[] V = State[i_gridV];
+    float[] Div = State[o_gridDiv];
+    int S = GridStride;
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
+    {
+        int a = IX(1,j);
+        for ( int i = 1; i <= NX; ++i, ++a )
+        {
+            float twoDU = U[a+1] - U[a-1];
+            float twoDV = V[a+S] - V[a-S];
+            Div[a] = ( twoDU / (2.0*DXY) ) + ( twoDV / (2.0*DXY) );
+        }
+    }
 }
 
 //-*****************************************************************************
@@ -546,79 +846,198 @@ void ComputeDivergence( int i_gridU, int i_gridV, int o_gridDiv )
 //          (( P[i,j-1] + P[i-1,j] + P[i+1,j] + P[i,j+1] )) ) / 4
 // 
 //-*****************************************************************************
-void ComputePressureViaJacobiIterations( int i_Div, int o_Pressure, int i_tmp )
+
+// One Jacobi pressure iteration from src into dst, with its side
+// boundaries, reused for every iteration.
+static class JacobiSweepKernel extends RowKernel
+{
+    int div = 0;
+    int src = 0;
+    int dst = 0;
+
+    void Rows( int j0, int j1 )
+    {
+        JacobiPressureRows( div, src, dst, j0, j1 );
+        SetSideBoundaries( State[dst], 1.0, j0, j1 );
+    }
+}
+static JacobiSweepKernel JacobiSweep = new JacobiSweepKernel();
+
+static void ComputePressureViaJacobiIterations( int i_Div, int o_Pressure,
+                                         int i_tmp, boolean i_warmStart )
 {
     // Init array indices.
     int SRC = o_Pressure;
     int DST = i_tmp;
 
-    // Init the DST pressure to zero. It will be swapped into the SRC
-    // location in the loop below.
-    ZeroArray( DST );
-    
-    // Iterate 20 times, improving the pressure current from the pressure
-    // prev.
-    for ( int iter = 0; iter < 10; ++iter )
+    // Start from zero pressure, unless o_Pressure already holds a guess,
+    // with its boundary conditions. See the WarmStart tab.
+    if ( !i_warmStart )
     {
-        // Swap the indices of the current & previous pressure arrays.
-        int tmp = SRC; SRC = DST; DST = tmp;
+        ZeroArray( SRC );
+    }
 
-        // Do a single jacobi iteration to compute the current pressure
-        // from the previous pressure.
-        for ( int j = 1; j <= NY; ++j )
+    // With a tolerance, stop as soon as the residual is below that
+    // fraction of the divergence, which is the residual of zero pressure.
+    // A good guess may not need any iterations at all.
+    boolean checkResidual = JacobiTolerance > 0.0;
+    float target = 0.0;
+    float residual = 0.0;
+    if ( checkResidual )
+    {
+        target = JacobiTolerance * FieldRMS( i_Div );
+        residual = PressureResidualRMS( i_Div, SRC );
+    }
+    if ( JacobiResiduals.length < JacobiMaxIterations )
+    {
+        JacobiResiduals = new float[JacobiMaxIterations];
+    }
+
+    // Iterate, improving the pressure current from the pressure prev.
+    JacobiSweep.div = i_Div;
+    JacobiLastIterations = 0;
+    for ( int iter = 0; iter < JacobiMaxIterations; ++iter )
+    {
+        if ( checkResidual && residual <= target )
         {
-            for ( int i = 1; i <= NX; ++i )
-            {
-                State[DST][IX(i,j)] =
-                ( ( State[SRC][IX(i,j-1)] +
-                    State[SRC][IX(i-1,j)] +
-                    State[SRC][IX(i+1,j)] +
-                    State[SRC][IX(i,j+1)] ) -
-                  ( DXY * DXY * State[i_Div][IX(i,j)] ) ) / 4.0;
-            }
+            break;
         }
 
+        // Do a single jacobi iteration to compute the current pressure
+        // from the previous pressure.
+        JacobiSweep.src = SRC;
+        JacobiSweep.dst = DST;
+        RunInteriorRows( JacobiSweep );
+
         // Okay we've solved for DST. Enforce boundary conditions on it,
         // without negating in any direction.
-        EnforceBoundaryConditions( DST, BC_NoNegate );
+        SetEndBoundaries( State[DST], 1.0 );
+
+        if ( CollectStats || checkResidual )
+        {
+            residual = PressureResidualRMS( i_Div, DST );
+            JacobiResiduals[iter] = residual;
+        }
+
+        // Swap the indices of the current & previous pressure arrays.
+        int tmp = SRC; SRC = DST; DST = tmp;
+        ++JacobiLastIterations;
+    }
+
+    // The latest pressure is in SRC.
+    if ( SRC != o_Pressure )
+    {
+        CopyArray( SRC, o_Pressure );
     }
 }
 
 //-*****************************************************************************
-// Apply Negative Gradient of Pressure to Velocity
-void ApplyNegativeGradientOfPressureToVelocity( int i_pressure,
-                                                int o_velU,
-                                                int o_velV )
-{ 
-    for ( int j = 1; j <= NY; ++j )
+// A single jacobi pressure iteration from SRC into DST, for rows i_jBegin
+// up to i_jEnd.
+static void JacobiPressureRows( int i_Div, int SRC, int DST,
+                         int i_jBegin, int i_jEnd )
+{
+    float[] src = State[SRC];
+    float[] dst = State[DST];
+    float[] Div = State[i_Div];
+    if ( KernelBackend == KB_Flat )
+    {
+        JacobiPressureRowsFlat( Div, src, dst, i_jBegin, i_jEnd );
+        return;
+    }
+    int S = GridStride;
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
     {
-        for ( int i = 1; i <= NX; ++i )
+        int a = IX(1,j);
+        for ( int i = 1; i <= NX; ++i, ++a )
         {
-            float twoDPx = State[i_pressure][IX(i+1,j)] - 
-                           State[i_pressure][IX(i-1,j)];
-            float twoDPy = State[i_pressure][IX(i,j+1)] - 
-                           State[i_pressure][IX(i,j-1)];
-        
-            State[o_velU][IX(i,j)] -= twoDPx / (2.0*DXY);
-            State[o_velV][IX(i,j)] -= twoDPy / (2.0*DXY);
+            dst[a] =
+            ( ( src[a-S] +
+                src[a-1] +
+                src[a+1] +
+                src[a+S] ) -
+              ( DXY * DXY * Div[a] ) ) / 4.0;
         }
     }
+}
+
+//-*****************************************************************************
+// Apply Negative Gradient of Pressure to Velocity
+static void ApplyNegativeGradientOfPressureToVelocity( final int i_pressure,
+                                                final int o_velU,
+                                                final int o_velV )
+{ 
+    RunInteriorRows( new RowKernel() { void Rows( int j0, int j1 ) {
+        if ( UseMACGrid )
+        {
+            ApplyNegativeGradientRowsMAC( i_pressure, o_velU, o_velV, j0, j1 );
+        }
+        else
+        {
+            ApplyNegativeGradientRows( i_pressure, o_velU, o_velV, j0, j1 );
+        }
+        SetSideBoundariesFor( State[o_velU], BC_NegateX, j0, j1 );
+        SetSideBoundariesFor( State[o_velV], BC_NegateY, j0, j1 );
+    } } );
 
     // And apply boundary conditions. The U velocities are negated horizonally,
     // and the V velocities are negated vertically. This makes the fluid
     // reflect off the boundaries.
-    EnforceBoundaryConditions( o_velU, BC_NegateX );
-    EnforceBoundaryConditions( o_velV, BC_NegateY );
+    SetEndBoundariesFor( State[o_velU], BC_NegateX );
+    SetEndBoundariesFor( State[o_velV], BC_NegateY );
 }
 
 //-*****************************************************************************
-void EnforceIncompressibility()
+static void ApplyNegativeGradientRows( int i_pressure, int o_velU, int o_velV,
+                                int i_jBegin, int i_jEnd )
+{ 
+    float[] P = State[i_pressure];
+    float[] U = State[o_velU];
+    float[] V = State[o_velV];
+    int S = GridStride;
+    for ( int j = i_jBegin; j < i_jEnd; ++j )
+    {
+        int a = IX(1,j);
+        for ( int i = 1; i <= NX; ++i, ++a )
+        {
+            float twoDPx = P[a+1] - P[a-1];
+            float twoDPy = P[a+S] - P[a-S];
+        
+            U[a] -= twoDPx / (2.0*DXY);
+            V[a] -= twoDPy / (2.0*DXY);
+        }
+    }
+}
+
+//-*****************************************************************************
+static void EnforceIncompressibility()
 {
+    // The pressure is kept from step to step, and may be the solvers'
+    // starting point. See the WarmStart tab.
+    boolean warm = PrepareInitialPressure();
+
     int DIV = GridTemp0;
-    int PRES = GridTemp1;
+    int PRES = GridPressure;
     int TMP = GridTemp2;
     ComputeDivergence( GridU, GridV, DIV );
-    ComputePressureViaJacobiIterations( DIV, PRES, TMP );
+    if ( PressureSolver == PS_Multigrid )
+    {
+        ComputePressureViaMultigrid( DIV, PRES, warm );
+    }
+    else if ( PressureSolver == PS_ConjugateGradient )
+    {
+        ComputePressureViaConjugateGradient( DIV, PRES, warm );
+    }
+    else if ( PressureSolver == PS_RedBlackSOR )
+    {
+        ComputePressureViaRedBlackSOR( DIV, PRES, warm );
+    }
+    else
+    {
+        NeedTemp2();
+        ComputePressureViaJacobiIterations( DIV, PRES, TMP, warm );
+    }
+    PressureSolved();
     ApplyNegativeGradientOfPressureToVelocity( PRES, GridU, GridV );
 }
 
@@ -629,30 +1048,65 @@ void EnforceIncompressibility()
 //-*****************************************************************************
 
 //-*****************************************************************************
-void FluidTimeStep()
+static void FluidTimeStep()
 {
+    // The 3D solver has its own pipeline. See the Smoke3D tab.
+    if ( Use3D )
+    {
+        FluidTimeStep3D();
+        return;
+    }
+
+    // Each stage is timed when stats are on. See the Stats tab.
+    long t;
+
     // Get External Input
+    t = StatsBegin();
     GetInputSourceDensity();
     GetInputSourceVelocity();
+    StatsEnd( STAGE_Input, t );
 
     // Solve Velocities
+    t = StatsBegin();
     AdvectVelocity();
+    StatsEnd( STAGE_Advect, t );
+    t = StatsBegin();
     DampArray( GridU, V_damp );
     DampArray( GridV, V_damp );
+    StatsEnd( STAGE_Damp, t );
+    t = StatsBegin();
     DiffuseVelocity();
+    StatsEnd( STAGE_Diffuse, t );
+    t = StatsBegin();
     IntegrateExternalVelocity();
-    EnforceIncompressibility();
+    StatsEnd( STAGE_External, t );
+    EnforceIncompressibilityWithStats();
     //AdvectFluid();
     //EnforceIncompressibility();
 
     // Solve Densities
+    t = StatsBegin();
     AdvectDensity();
+    StatsEnd( STAGE_Advect, t );
+    t = StatsBegin();
     DiffuseDensity();
-    DampArray( GridDensity, D_damp );
+    StatsEnd( STAGE_Diffuse, t );
+    t = StatsBegin();
+    DampDensity();
+    StatsEnd( STAGE_Damp, t );
+    t = StatsBegin();
     IntegrateExternalDensity();
+    if ( UseActiveTiles )
+    {
+        RetireEmptyTiles();
+    }
+    StatsEnd( STAGE_External, t );
     //DiffuseDensities();
     //IntegrateExternalDensities();
     //AdvectDensities();
+
+    SimTime += DT;
+    StatsStepDone();
 }
 
 //-*****************************************************************************
@@ -697,7 +1151,6 @@ void setup()
 //-*****************************************************************************
 void DrawScalarField( int i_field )
 {
-    float pixr, pixg, pixb;
     float d;
     StateImage.loadPixels();
     //for ( int wj = 0; wj < height; ++wj )
@@ -710,17 +1163,14 @@ void DrawScalarField( int i_field )
         {
             //int i = constrain( 1+( int )( (( float )wi) / (( float )CellPixels) ), 1, NX );
 
-            d = constrain( State[i_field][IX(wi,wj)], 0.0, 1.0 );
+            d = FieldValue( i_field, IX(wi,wj) );
 
             //colorMode(HSB, 1);
             //float h = map(d, 0, 1, 0.675, .55);
             //float s = map(d, 0, 1, 0, 1);
             //float b = map(d, 0, 1, 1, .25);
-            pixr = 0.9 * ( 1.0 - d );
-            pixg = 0.9 * ( 1.0 - (d*d) );
-            pixb = 0.9 * ( 1.0 - (d*d*d) );
-
-            StateImage.pixels[ wi + (wj*GX) ] = color( pixr, pixg, pixb );
+            // The color ramp is a table; see the Renderer tab.
+            StateImage.pixels[ wi + (wj*GX) ] = DensityColor( d );
         }
     }
     StateImage.updatePixels();
@@ -772,6 +1222,97 @@ void keyReleased()
     {
         DisplayVelocity = !DisplayVelocity;
     }  
+    if ( key == 112 )
+    {
+        PressureSolver = ( PressureSolver + 1 ) % 4;
+        ResetPressureHistory();
+        ReleaseTemp2();
+    }
+    if ( key == 100 )
+    {
+        DiffuseSolver = ( DiffuseSolver + 1 ) % 3;
+    }
+    // 's' toggles the time step stats, printed every 60 steps.
+    if ( key == 115 )
+    {
+        CollectStats = !CollectStats;
+        StatsDumpInterval = 60;
+        ResetIntervalStats();
+    }
+    // 'c' records frames to the frame cache, 'o' plays them back.
+    if ( key == 99 )
+    {
+        ToggleFrameCacheRecording();
+    }
+    if ( key == 111 )
+    {
+        ToggleFrameCachePlayback();
+    }
+    // 'a' turns adaptive substepping on and off.
+    if ( key == 97 )
+    {
+        UseAdaptiveTimeStep = !UseAdaptiveTimeStep;
+    }
+    // 'm' cycles the density's advection scheme, 'n' the velocity's.
+    if ( key == 109 )
+    {
+        DensityAdvection.Scheme = ( DensityAdvection.Scheme + 1 ) % 3;
+        println( "Density advection: " + DensityAdvection.Name() );
+    }
+    if ( key == 110 )
+    {
+        VelocityAdvection.Scheme = ( VelocityAdvection.Scheme + 1 ) % 3;
+        println( "Velocity advection: " + VelocityAdvection.Name() );
+    }
+    // 'g' switches the velocity between cell centers and faces.
+    if ( key == 103 )
+    {
+        SetUseMACGrid( !UseMACGrid );
+    }
+    // 'r' starts and stops rendering frames to the render folder.
+    if ( key == 114 )
+    {
+        if ( RenderThread == null )
+        {
+            StartRenderer( sketchPath( "render" ) );
+        }
+        else
+        {
+            FinishRenderer();
+        }
+    }
+    // '3' switches to the 3D solver and back.
+    if ( key == 51 )
+    {
+        SetUse3D( !Use3D );
+    }
+    // 't' switches the density stages to active tiles and back.
+    if ( key == 116 )
+    {
+        SetUseActiveTiles( !UseActiveTiles );
+    }
+    // 'w' cycles where the pressure solves start.
+    if ( key == 119 )
+    {
+        PressureWarmStart = ( PressureWarmStart + 1 ) % 3;
+        println( "Pressure warm start: " +
+                 PressureWarmStartNames[PressureWarmStart] );
+    }
+    // 'h' keeps the density in half floats, or floats again.
+    if ( key == 104 )
+    {
+        SetUseHalfDensity( !UseHalfDensity );
+        println( "Half float density: " + UseHalfDensity );
+    }
+    // 'k' saves a checkpoint, 'l' restores the latest one.
+    if ( key == 107 )
+    {
+        SaveCheckpoint( sketchPath( CheckpointDir ) );
+    }
+    if ( key == 108 )
+    {
+        RestoreLatestCheckpoint( sketchPath( CheckpointDir ) );
+    }
 }
 
 //-*****************************************************************************
@@ -785,7 +1326,23 @@ void draw()
 {
     background( 0.5 );
 
-    FluidTimeStep();
+    if ( FrameCachePlayback )
+    {
+        ScrubFrameCache();
+    }
+    else
+    {
+        GetMouseInput();
+        AdvanceFrame();
+        if ( FrameCacheRecording )
+        {
+            AppendFrame( frameCount );
+        }
+        if ( RenderThread != null )
+        {
+            QueueRenderFrame( frameCount );
+        }
+    }
 
     DrawScalarField( GridDensity );
     if ( DisplayVelocity )
@@ -0,0 +1,40 @@
+// Random numbers, for emitting particles and placing the benchmark's
+// queries.
+//
+// Like noise(), Processing's random() and randomSeed() belong to the
+// PApplet, which --bench never constructs. These do the same with a
+// java.util.Random of their own, so a seed gives the same sequence it
+// would there.
+
+static java.util.Random SimRandom = new java.util.Random();
+
+static void RandomSeed( long i_seed )
+{
+    SimRandom.setSeed( i_seed );
+}
+
+// A random float from 0 up to (not including) i_high, as random( high ).
+static float RandomFloat( float i_high )
+{
+    if ( i_high == 0.0 || i_high != i_high )
+    {
+        return 0.0;
+    }
+    float value;
+    do
+    {
+        value = SimRandom.nextFloat() * i_high;
+    }
+    while ( value == i_high );
+    return value;
+}
+
+// A random float from i_low up to i_high, as random( low, high ).
+static float RandomFloat( float i_low, float i_high )
+{
+    if ( i_low >= i_high )
+    {
+        return i_low;
+    }
+    return RandomFloat( i_high - i_low ) + i_low;
+}
@@ -0,0 +1,162 @@
+// A uniform grid over the world for finding the particles near a point.
+//
+// The world is cut into square hash cells of HashCellSize, and the live
+// particles are counting-sorted by cell: HashSorted lists the particles
+// of cell 0, then cell 1, and so on, and the particles of cell c are
+// HashSorted[HashCellStart[c]] up to HashSorted[HashCellStart[c+1]]. A
+// query then only looks at the cells its circle overlaps. Building it is
+// two passes over the particles and one over the cells, with no
+// allocation once the arrays are big enough.
+//
+// The hash is rebuilt on demand, the first time it's queried after the
+// particles have moved.
+
+// The cell size, in meters. One velocity cell by default.
+static float HashCellSize = DXY;
+static int HashNX = 0;
+static int HashNY = 0;
+static int[] HashCellStart = new int[1];
+static int[] HashCursor = new int[1];
+static int[] HashSorted = new int[0];
+
+// The hash cell of each particle, by particle.
+static int[] ParticleCell = new int[0];
+
+static boolean HashValid = false;
+
+static int HashCellX( float x )
+{
+    return constrain( floor( x / HashCellSize ), 0, HashNX-1 );
+}
+
+static int HashCellY( float y )
+{
+    return constrain( floor( y / HashCellSize ), 0, HashNY-1 );
+}
+
+// Compute the hash cell of particles i_begin up to i_end.
+static class HashCellKernel extends RangeKernel
+{
+    void Range( int i_begin, int i_end )
+    {
+        float[] PX = State[StatePosX];
+        float[] PY = State[StatePosY];
+        for ( int n = i_begin; n < i_end; ++n )
+        {
+            ParticleCell[n] = HashCellX( PX[n] ) + HashNX * HashCellY( PY[n] );
+        }
+    }
+}
+static HashCellKernel TheHashCellKernel = new HashCellKernel();
+
+// Sort the live particles into the hash.
+static void BuildSpatialHash()
+{
+    HashNX = max( 1, ceil( LX / HashCellSize ) );
+    HashNY = max( 1, ceil( LY / HashCellSize ) );
+    int numCells = HashNX * HashNY;
+    if ( HashCellStart.length != numCells + 1 )
+    {
+        HashCellStart = new int[numCells + 1];
+        HashCursor = new int[numCells];
+    }
+    if ( HashSorted.length != N )
+    {
+        HashSorted = new int[N];
+        ParticleCell = new int[N];
+    }
+
+    RunRange( 0, NumLive, TheHashCellKernel );
+
+    // Count the particles in each cell, then turn the counts into the
+    // start of each cell, and drop each particle into its place.
+    java.util.Arrays.fill( HashCellStart, 0 );
+    for ( int n = 0; n < NumLive; ++n )
+    {
+        ++HashCellStart[ParticleCell[n] + 1];
+    }
+    for ( int c = 0; c < numCells; ++c )
+    {
+        HashCellStart[c + 1] += HashCellStart[c];
+    }
+    System.arraycopy( HashCellStart, 0, HashCursor, 0, numCells );
+    for ( int n = 0; n < NumLive; ++n )
+    {
+        HashSorted[HashCursor[ParticleCell[n]]++] = n;
+    }
+
+    HashValid = true;
+}
+
+// Put the particles within i_radius of (i_x, i_y) into o_found, stopping
+// if it fills up, and return how many there are.
+static int GatherNeighbors( float i_x, float i_y, float i_radius, int[] o_found )
+{
+    if ( !HashValid )
+    {
+        BuildSpatialHash();
+    }
+
+    float[] PX = State[StatePosX];
+    float[] PY = State[StatePosY];
+    float r2 = i_radius * i_radius;
+    int count = 0;
+    int cj1 = HashCellY( i_y + i_radius );
+    int ci1 = HashCellX( i_x + i_radius );
+    for ( int cj = HashCellY( i_y - i_radius ); cj <= cj1; ++cj )
+    {
+        for ( int ci = HashCellX( i_x - i_radius ); ci <= ci1; ++ci )
+        {
+            int c = ci + HashNX * cj;
+            for ( int k = HashCellStart[c]; k < HashCellStart[c + 1]; ++k )
+            {
+                int n = HashSorted[k];
+                float dx = PX[n] - i_x;
+                float dy = PY[n] - i_y;
+                if ( dx * dx + dy * dy <= r2 )
+                {
+                    if ( count == o_found.length )
+                    {
+                        return count;
+                    }
+                    o_found[count++] = n;
+                }
+            }
+        }
+    }
+    return count;
+}
+
+// The number of particles within i_radius of (i_x, i_y).
+static int CountNeighbors( float i_x, float i_y, float i_radius )
+{
+    if ( !HashValid )
+    {
+        BuildSpatialHash();
+    }
+
+    float[] PX = State[StatePosX];
+    float[] PY = State[StatePosY];
+    float r2 = i_radius * i_radius;
+    int count = 0;
+    int cj1 = HashCellY( i_y + i_radius );
+    int ci1 = HashCellX( i_x + i_radius );
+    for ( int cj = HashCellY( i_y - i_radius ); cj <= cj1; ++cj )
+    {
+        for ( int ci = HashCellX( i_x - i_radius ); ci <= ci1; ++ci )
+        {
+            int c = ci + HashNX * cj;
+            for ( int k = HashCellStart[c]; k < HashCellStart[c + 1]; ++k )
+            {
+                int n = HashSorted[k];
+                float dx = PX[n] - i_x;
+                float dy = PY[n] - i_y;
+                if ( dx * dx + dy * dy <= r2 )
+                {
+                    ++count;
+                }
+            }
+        }
+    }
+    return count;
+}
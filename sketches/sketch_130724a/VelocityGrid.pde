@@ -0,0 +1,160 @@
+// The velocity field the particles move through. This is the grid from
+// the FluidSemiLagrangianAdvection sketches: the curl of some fractal
+// noise, advecting itself with RK4 Semi-Lagrangian steps, sampled with
+// the same BiLinearResample. It lives in Grid rather than State, since
+// State holds the particles here. Its size is at the top of the main tab.
+
+static int GridSize = 5;
+static float[][] Grid = new float[GridSize][ArraySize];
+static int GridVelU = 0;
+static int GridPrevVelU = 1;
+static int GridVelV = 2;
+static int GridPrevVelV = 3;
+static int GridTmp = 4;
+
+// Index an element of a grid in the Grid array
+static int IX( int i, int j ) {
+    return ( i + NX*j );
+}
+
+static float snoise( float x, float y ) {
+   return ( 2.0 * Noise( x, y )) - 1.0;
+}
+
+static float Fractal(float x, float y) {
+  float octave_gain = 0.5;
+  float lacunarity = 1.67;
+  float f = 0.0;
+  float amp = 1.0;
+  float px = x;
+  float py = y;
+  for (int oct = 0; oct < 4; ++oct) {
+    f += amp * snoise(px, py);
+    amp *= octave_gain;
+    px *= lacunarity;
+    py *= lacunarity;
+  }
+  return f;
+}
+
+static void SetFieldToFractal(int field, float gain,
+    float offset_x, float offset_y,
+    float pattern_size) {
+  NoiseSeed( 0 );
+  float spacing = DXY / pattern_size;
+  for (int j = 0; j < NY; ++j) {
+    float noise_pos_y = offset_y + spacing * float(j);
+    for (int i = 0; i < NX; ++i) {
+      float noise_pos_x = offset_x + spacing * float(i);
+      float d = gain * Fractal(noise_pos_x, noise_pos_y);
+      Grid[field][IX(i,j)] = d;
+    }
+  }
+}
+
+static void SetVelocityToCurlOfQ(int U, int V, int Q) {
+  for (int j = 0; j < NY; ++j) {
+    int j_lo = constrain(j-1, 0, NY-1);
+    int j_hi = constrain(j+1, 0, NY-1);
+    float dy = DXY * float(j_hi - j_lo);
+    for (int i = 0; i < NX; ++i) {
+      int i_lo = constrain(i-1, 0, NX-1);
+      int i_hi = constrain(i+1, 0, NX-1);
+      float dx = DXY * float(i_hi - i_lo);
+
+      float dQdx = (Grid[Q][IX(i_hi,j)] - Grid[Q][IX(i_lo,j)])/dx;
+      float dQdy = (Grid[Q][IX(i,j_hi)] - Grid[Q][IX(i,j_lo)])/dy;
+
+      Grid[U][IX(i,j)] = dQdy;
+      Grid[V][IX(i,j)] = -dQdx;
+    }
+  }
+}
+
+static void CopyField(int src, int dst) {
+  for (int i = 0; i < ArraySize; ++i) {
+    Grid[dst][i] = Grid[src][i];
+  }
+}
+
+static void SetInitialGrid() {
+  SetFieldToFractal(GridTmp, 5.0, 2341.17, 9911.44, WorldSize * 1.7);
+  SetVelocityToCurlOfQ(GridVelU, GridVelV, GridTmp);
+  CopyField(GridVelU, GridPrevVelU);
+  CopyField(GridVelV, GridPrevVelV);
+}
+
+static void SwapVel() {
+  int tmp = GridPrevVelU;
+  GridPrevVelU = GridVelU;
+  GridVelU = tmp;
+
+  tmp = GridPrevVelV;
+  GridPrevVelV = GridVelV;
+  GridVelV = tmp;
+}
+
+// Bi-Linear Resampling of a field Q at some point fi, fj
+static float BiLinearResample(int Q, float fi, float fj) {
+  int i_lo = floor(fi);
+  float s = fi - float(i_lo);
+  i_lo = constrain(i_lo, 0, NX-1);
+  int i_hi = min(i_lo + 1, NX-1);
+
+  int j_lo = floor(fj);
+  float t = fj - float(j_lo);
+  j_lo = constrain(j_lo, 0, NY-1);
+  int j_hi = min(j_lo + 1, NY-1);
+
+  float q00 = Grid[Q][IX(i_lo,j_lo)];
+  float q10 = Grid[Q][IX(i_hi,j_lo)];
+  float q01 = Grid[Q][IX(i_lo,j_hi)];
+  float q11 = Grid[Q][IX(i_hi,j_hi)];
+  return lerp(lerp(q00, q10, s), lerp(q01, q11, s), t);
+}
+
+// Semi-Lagrangian Advection of Q by U & V
+static void SemiLagrangianAdvectRK4(int new_Q, int old_Q, int U, int V, float dt) {
+  for (int j = 0; j < NY; ++j) {
+    for (int i = 0; i < NX; ++i) {
+      float h = -dt;
+
+      // k1 step
+      float cell_vel_u_k1 = Grid[U][IX(i,j)] / DXY;
+      float cell_vel_v_k1 = Grid[V][IX(i,j)] / DXY;
+
+      // k2 step
+      float fi_k2 = float(i) + (h/2.0)*cell_vel_u_k1;
+      float fj_k2 = float(j) + (h/2.0)*cell_vel_v_k1;
+      float cell_vel_u_k2 = BiLinearResample(U, fi_k2, fj_k2) / DXY;
+      float cell_vel_v_k2 = BiLinearResample(V, fi_k2, fj_k2) / DXY;
+
+      // k3 step
+      float fi_k3 = float(i) + (h/2.0)*cell_vel_u_k2;
+      float fj_k3 = float(j) + (h/2.0)*cell_vel_v_k2;
+      float cell_vel_u_k3 = BiLinearResample(U, fi_k3, fj_k3) / DXY;
+      float cell_vel_v_k3 = BiLinearResample(V, fi_k3, fj_k3) / DXY;
+
+      // k4 step
+      float fi_k4 = float(i) + h*cell_vel_u_k3;
+      float fj_k4 = float(j) + h*cell_vel_v_k3;
+      float cell_vel_u_k4 = BiLinearResample(U, fi_k4, fj_k4) / DXY;
+      float cell_vel_v_k4 = BiLinearResample(V, fi_k4, fj_k4) / DXY;
+
+      float fi = float(i) + (h/6.0)*(cell_vel_u_k1 +
+        (cell_vel_u_k2 * 2.0) + (cell_vel_u_k3 * 2.0) + cell_vel_u_k4);
+      float fj = float(j) + (h/6.0)*(cell_vel_v_k1 +
+        (cell_vel_v_k2 * 2.0) + (cell_vel_v_k3 * 2.0) + cell_vel_v_k4);
+
+      Grid[new_Q][IX(i,j)] = BiLinearResample(old_Q, fi, fj);
+    }
+  }
+}
+
+static void GridTimeStep(float dt) {
+  SwapVel();
+  SemiLagrangianAdvectRK4(GridVelU, GridPrevVelU,
+      GridPrevVelU, GridPrevVelV, dt);
+  SemiLagrangianAdvectRK4(GridVelV, GridPrevVelV,
+      GridPrevVelU, GridPrevVelV, dt);
+}
@@ -1,12 +1,545 @@
-int N = 256;
+// A particle system, moving through the velocity grid of the
+// FluidSemiLagrangianAdvection sketches (see the VelocityGrid tab).
+//
+// The particles are held structure-of-arrays: State has one row per
+// attribute and one column per particle, so each update is a flat loop
+// over a few float arrays. State is allocated once, for N particles, and
+// used as a pool: the live particles are always columns 0 up to NumLive.
+// Emitting fills the next free column, and killing a particle moves the
+// last live one into its place, so nothing is ever allocated per particle
+// and the live ones stay packed.
+//
+// Each step, the particles are advected through U and V with RK2, sampled
+// with the grid's BiLinearResample, in parallel across the worker pool
+// (see the Parallel tab). A particle is emitted with a velocity of its
+// own; how much that differs from the grid's - its slip - dies away over
+// ParticleDragTime seconds, after which it just follows the flow. Killing
+// the expired particles runs across the pool too. The SpatialHash tab finds the particles near a
+// point; hold the mouse over the window to see it.
+//
+// Keys: 'r' resets, 'p' toggles threads, 'h' toggles the neighbor query.
+// Drag with the mouse to emit particles.
+//
+// For timing without a window, run:
+//   java sketch_130724a --bench n=1048576 steps=100 threads=4
+// The particles, the grid and the steps are static, so this never
+// constructs the sketch, and needs no display; only setup(), draw(), the
+// drawing and the keys belong to the window.
 
-int StateSize = 9;
-float[][] State = new float[StateSize][N];
-int StatePosX = 0;
-int StatePosY = 1;
+// The velocity grid, NX by NY cells of DXY meters.
+static float WorldSize = 10.0;
+static int NX = 64;
+static int NY = 64;
+static int ArraySize = NX * NY;
+static float DXY = WorldSize / NX;
 
-void InitState()
+static float LX = WorldSize;
+static float LY = WorldSize;
+
+// The number of particles the pool can hold.
+static int N = 1024 * 1024;
+
+static int StateSize = 9;
+static float[][] State = new float[StateSize][N];
+static int StatePosX = 0;
+static int StatePosY = 1;
+static int StateVelX = 2;
+static int StateVelY = 3;
+static int StatePrevPosX = 4;
+static int StatePrevPosY = 5;
+static int StateAge = 6;
+static int StateLifespan = 7;
+static int StateSoot = 8;
+
+// The live particles are columns 0 up to NumLive.
+static int NumLive = 0;
+
+static float SimTime = 0.0;
+
+// The source: EmitRate particles per second in a disk at (SourceX,
+// SourceY), launched upwards at SourceSpeed, living between LifespanMin
+// and LifespanMax seconds.
+static float SourceX = 0.5 * LX;
+static float SourceY = 0.85 * LY;
+static float SourceRadius = 0.3;
+static float SourceSpeed = 1.0;
+static float EmitRate = 200000.0;
+static float LifespanMin = 3.0;
+static float LifespanMax = 5.0;
+static float EmitCarry = 0.0;
+
+// The time for a particle's slip over the grid velocity to fall to 1/e.
+static float ParticleDragTime = 0.5;
+
+// Drawing.
+static int PixelsPerCell = 8;
+static int WindowWidth = PixelsPerCell * NX;
+static int WindowHeight = PixelsPerCell * NY;
+static float[] SootImage = new float[WindowWidth * WindowHeight];
+static float SootPerPixel = 0.05;
+
+// Killing: per block of 16 particles, the number of expired ones before
+// it, and the columns of the expired particles that the survivors move
+// into. See KillParticles.
+static int[] DeadBefore = new int[N / 16 + 2];
+static int[] HoleIndex = new int[N];
+static int KillLive = 0;
+
+// The neighbor query around the mouse.
+static boolean ShowNeighbors = true;
+static float QueryRadius = 0.25;
+static int[] QueryFound = new int[4096];
+
+// Make a pool for i_capacity particles, all dead.
+static void AllocateParticles( int i_capacity )
+{
+    N = i_capacity;
+    State = new float[StateSize][N];
+    DeadBefore = new int[N / 16 + 2];
+    HoleIndex = new int[N];
+    NumLive = 0;
+    HashValid = false;
+}
+
+static void InitState()
+{
+    SetInitialGrid();
+    NumLive = 0;
+    EmitCarry = 0.0;
+    SimTime = 0.0;
+    HashValid = false;
+}
+
+// Emit up to i_count particles in a disk of radius i_radius at (i_x, i_y),
+// moving with (i_velX, i_velY), as many as the pool has room for.
+static void EmitParticles( float i_x, float i_y, float i_radius, int i_count,
+                    float i_velX, float i_velY )
+{
+    int end = min( N, NumLive + i_count );
+    for ( int n = NumLive; n < end; ++n )
+    {
+        float r = i_radius * sqrt( RandomFloat( 1.0 ) );
+        float theta = RandomFloat( TWO_PI );
+        float x = i_x + r * cos( theta );
+        float y = i_y + r * sin( theta );
+        State[StatePosX][n] = x;
+        State[StatePosY][n] = y;
+        State[StatePrevPosX][n] = x;
+        State[StatePrevPosY][n] = y;
+        State[StateVelX][n] = i_velX;
+        State[StateVelY][n] = i_velY;
+        State[StateAge][n] = 0.0;
+        State[StateLifespan][n] = RandomFloat( LifespanMin, LifespanMax );
+        State[StateSoot][n] = 1.0;
+    }
+    NumLive = end;
+    HashValid = false;
+}
+
+// Kill every particle that has outlived its lifespan, keeping the live
+// ones packed.
+//
+// The particles that survive past the new end of the live range move into
+// the holes the expired ones leave before it; there are exactly as many of
+// one as the other. The k-th survivor past the end goes into the k-th
+// hole, so every move is independent, and the result doesn't depend on
+// the number of threads:
+//
+//   1. count the expired particles in each block of 16, in parallel;
+//   2. sum the counts, serially, once per block rather than per particle;
+//   3. list the holes, in parallel, each band starting from its block's
+//      count;
+//   4. move the survivors past the end into the holes, in parallel.
+//
+// RunRange cuts its bands on multiples of 16, so a block never straddles
+// two bands.
+static boolean IsExpired( int n )
+{
+    return State[StateAge][n] >= State[StateLifespan][n];
+}
+
+// The number of expired particles before column i_n.
+static int ExpiredBefore( int i_n )
+{
+    int count = DeadBefore[i_n >> 4];
+    for ( int n = i_n & ~15; n < i_n; ++n )
+    {
+        count += IsExpired( n ) ? 1 : 0;
+    }
+    return count;
+}
+
+static class CountExpiredKernel extends RangeKernel
+{
+    void Range( int i_begin, int i_end )
+    {
+        for ( int n = i_begin; n < i_end; ++n )
+        {
+            DeadBefore[( n >> 4 ) + 1] += IsExpired( n ) ? 1 : 0;
+        }
+    }
+}
+static CountExpiredKernel TheCountExpiredKernel = new CountExpiredKernel();
+
+static class ListHolesKernel extends RangeKernel
+{
+    void Range( int i_begin, int i_end )
+    {
+        int hole = DeadBefore[i_begin >> 4];
+        for ( int n = i_begin; n < i_end; ++n )
+        {
+            if ( IsExpired( n ) )
+            {
+                HoleIndex[hole++] = n;
+            }
+        }
+    }
+}
+static ListHolesKernel TheListHolesKernel = new ListHolesKernel();
+
+static class FillHolesKernel extends RangeKernel
+{
+    void Range( int i_begin, int i_end )
+    {
+        // Survivor k, counting from KillLive, goes into hole k.
+        int survivor = ( i_begin - KillLive ) -
+            ( ExpiredBefore( i_begin ) - ExpiredBefore( KillLive ) );
+        for ( int n = i_begin; n < i_end; ++n )
+        {
+            if ( IsExpired( n ) )
+            {
+                continue;
+            }
+            int hole = HoleIndex[survivor++];
+            for ( int a = 0; a < StateSize; ++a )
+            {
+                State[a][hole] = State[a][n];
+            }
+        }
+    }
+}
+static FillHolesKernel TheFillHolesKernel = new FillHolesKernel();
+
+static void KillParticles()
+{
+    int numBlocks = ( NumLive + 15 ) >> 4;
+    java.util.Arrays.fill( DeadBefore, 0, numBlocks + 1, 0 );
+    RunRange( 0, NumLive, TheCountExpiredKernel );
+    for ( int b = 1; b <= numBlocks; ++b )
+    {
+        DeadBefore[b] += DeadBefore[b-1];
+    }
+
+    int numExpired = DeadBefore[numBlocks];
+    if ( numExpired > 0 )
+    {
+        KillLive = NumLive - numExpired;
+        RunRange( 0, KillLive, TheListHolesKernel );
+        RunRange( KillLive, NumLive, TheFillHolesKernel );
+        NumLive = KillLive;
+    }
+    HashValid = false;
+}
+
+// Advect particles i_begin up to i_end through the grid velocity with RK2,
+// working in cells like the grid's Semi-Lagrangian steps, plus whatever is
+// left of their slip over the grid velocity. A particle that leaves the
+// grid is expired, so that KillParticles removes it.
+static void AdvectParticleRange( int i_begin, int i_end, float dt )
+{
+    float[] PX = State[StatePosX];
+    float[] PY = State[StatePosY];
+    float[] VX = State[StateVelX];
+    float[] VY = State[StateVelY];
+    float[] PrevX = State[StatePrevPosX];
+    float[] PrevY = State[StatePrevPosY];
+    float[] Age = State[StateAge];
+    float[] Lifespan = State[StateLifespan];
+    int U = GridVelU;
+    int V = GridVelV;
+    float slipDecay = exp( -dt / ParticleDragTime );
+    for ( int n = i_begin; n < i_end; ++n )
+    {
+        float fi = PX[n] / DXY;
+        float fj = PY[n] / DXY;
+
+        // k1 step
+        float cell_vel_u_k1 = BiLinearResample( U, fi, fj ) / DXY;
+        float cell_vel_v_k1 = BiLinearResample( V, fi, fj ) / DXY;
+
+        // k2 step, from the midpoint.
+        float fi_k2 = fi + ( dt / 2.0 ) * cell_vel_u_k1;
+        float fj_k2 = fj + ( dt / 2.0 ) * cell_vel_v_k1;
+        float cell_vel_u_k2 = BiLinearResample( U, fi_k2, fj_k2 ) / DXY;
+        float cell_vel_v_k2 = BiLinearResample( V, fi_k2, fj_k2 ) / DXY;
+
+        // The slip, in cells per second, decayed over this step.
+        float slip_u = ( VX[n] / DXY - cell_vel_u_k1 ) * slipDecay;
+        float slip_v = ( VY[n] / DXY - cell_vel_v_k1 ) * slipDecay;
+
+        fi += dt * ( cell_vel_u_k2 + slip_u );
+        fj += dt * ( cell_vel_v_k2 + slip_v );
+
+        PrevX[n] = PX[n];
+        PrevY[n] = PY[n];
+        PX[n] = fi * DXY;
+        PY[n] = fj * DXY;
+        VX[n] = ( cell_vel_u_k2 + slip_u ) * DXY;
+        VY[n] = ( cell_vel_v_k2 + slip_v ) * DXY;
+        Age[n] += dt;
+        if ( fi < 0.0 || fi > float( NX-1 ) || fj < 0.0 || fj > float( NY-1 ) )
+        {
+            Age[n] = Lifespan[n];
+        }
+    }
+}
+
+static class AdvectKernel extends RangeKernel
+{
+    float dt;
+
+    void Range( int i_begin, int i_end )
+    {
+        AdvectParticleRange( i_begin, i_end, dt );
+    }
+}
+static AdvectKernel TheAdvectKernel = new AdvectKernel();
+
+static void AdvectParticles( float dt )
+{
+    TheAdvectKernel.dt = dt;
+    RunRange( 0, NumLive, TheAdvectKernel );
+    HashValid = false;
+}
+
+// Emit from the source, carrying the fraction of a particle over to the
+// next step.
+static void EmitFromSource( float dt )
+{
+    EmitCarry += EmitRate * dt;
+    int count = floor( EmitCarry );
+    EmitCarry -= float( count );
+    EmitParticles( SourceX, SourceY, SourceRadius, count, 0.0, -SourceSpeed );
+}
+
+static void TimeStep( float dt )
+{
+    GridTimeStep( dt );
+    AdvectParticles( dt );
+    KillParticles();
+    EmitFromSource( dt );
+    SimTime += dt;
+}
+
+void setup()
+{
+    InitState();
+    size( WindowWidth, WindowHeight );
+    colorMode( RGB, 1.0 );
+    textSize( 16 );
+}
+
+// Draw the particles as soot, summing each one's fading soot into the
+// pixel it's in, and coloring like the grid sketches' DrawScalarField.
+void DrawParticles()
+{
+    java.util.Arrays.fill( SootImage, 0.0 );
+    float[] PX = State[StatePosX];
+    float[] PY = State[StatePosY];
+    float[] Age = State[StateAge];
+    float[] Lifespan = State[StateLifespan];
+    float[] Soot = State[StateSoot];
+    float pixelsPerMeter = float( PixelsPerCell ) / DXY;
+    for ( int n = 0; n < NumLive; ++n )
+    {
+        int px = int( PX[n] * pixelsPerMeter );
+        int py = int( PY[n] * pixelsPerMeter );
+        if ( px >= 0 && px < WindowWidth && py >= 0 && py < WindowHeight )
+        {
+            SootImage[px + WindowWidth * py] +=
+                Soot[n] * ( 1.0 - Age[n] / Lifespan[n] );
+        }
+    }
+
+    color soot_high = color( 0.3, 0.0, 0.3 );
+    color soot_low = color( 1.0, 1.0, 1.0 );
+    loadPixels();
+    for ( int p = 0; p < WindowWidth * WindowHeight; ++p )
+    {
+        float d = constrain( SootImage[p] * SootPerPixel, 0.0, 1.0 );
+        pixels[p] = lerpColor( soot_low, soot_high, sqrt( d ) );
+    }
+    updatePixels();
+}
+
+// Circle the particles near the mouse.
+void DrawNeighbors()
+{
+    float pixelsPerMeter = float( PixelsPerCell ) / DXY;
+    float x = mouseX / pixelsPerMeter;
+    float y = mouseY / pixelsPerMeter;
+    int total = CountNeighbors( x, y, QueryRadius );
+    int found = GatherNeighbors( x, y, QueryRadius, QueryFound );
+
+    noFill();
+    stroke( 1.0, 0.1, 0.1 );
+    ellipse( mouseX, mouseY, 2.0 * QueryRadius * pixelsPerMeter,
+             2.0 * QueryRadius * pixelsPerMeter );
+    for ( int k = 0; k < found; ++k )
+    {
+        int n = QueryFound[k];
+        point( State[StatePosX][n] * pixelsPerMeter,
+               State[StatePosY][n] * pixelsPerMeter );
+    }
+    noStroke();
+    fill( 0.0 );
+    text( total + " neighbors", mouseX + 10, mouseY - 10 );
+}
+
+void draw()
+{
+    float dt = 1.0 / 24.0;
+
+    // Emit where the mouse is dragged, moving with it.
+    if ( mousePressed )
+    {
+        float pixelsPerMeter = float( PixelsPerCell ) / DXY;
+        EmitParticles( mouseX / pixelsPerMeter, mouseY / pixelsPerMeter,
+                       SourceRadius, int( EmitRate * dt ),
+                       ( mouseX - pmouseX ) / ( pixelsPerMeter * dt ),
+                       ( mouseY - pmouseY ) / ( pixelsPerMeter * dt ) );
+    }
+    TimeStep( dt );
+
+    DrawParticles();
+    if ( ShowNeighbors )
+    {
+        DrawNeighbors();
+    }
+
+    // Label.
+    noStroke();
+    fill( 1.0, 1.0, 1.0, 0.75 );
+    rect( 0.0, 0.0, width, 30.0 );
+    fill( 0.0 );
+    text( NumLive + " particles of " + N +
+          ( UseParallelLoops ? ", " + NumWorkerThreads + " threads" : "" ),
+          10, 20 );
+}
+
+void keyReleased()
+{
+    if ( key == 'r' )
+    {
+        InitState();
+    }
+    else if ( key == 'p' )
+    {
+        UseParallelLoops = !UseParallelLoops;
+    }
+    else if ( key == 'h' )
+    {
+        ShowNeighbors = !ShowNeighbors;
+    }
+}
+
+// Time each part of the step on a full pool.
+static void RunBenchmarksFromArgs( String[] args )
+{
+    int capacity = N;
+    int steps = 100;
+    for ( int a = 0; a < args.length; ++a )
+    {
+        String[] kv = split( args[a], '=' );
+        if ( kv.length != 2 )
+        {
+            println( "Ignoring argument: " + args[a] );
+        }
+        else if ( kv[0].equals( "n" ) )
+        {
+            capacity = max( 1, int( kv[1] ) );
+        }
+        else if ( kv[0].equals( "steps" ) )
+        {
+            steps = max( 1, int( kv[1] ) );
+        }
+        else if ( kv[0].equals( "threads" ) )
+        {
+            NumWorkerThreads = max( 1, int( kv[1] ) );
+        }
+        else
+        {
+            println( "Ignoring argument: " + args[a] );
+        }
+    }
+
+    float dt = 1.0 / 24.0;
+    RandomSeed( 0 );
+    AllocateParticles( capacity );
+    InitState();
+
+    // Fill the pool over the whole grid, with the source keeping it full
+    // as particles die and leave.
+    EmitParticles( 0.5 * LX, 0.5 * LY, 0.5 * LX, N, 0.0, 0.0 );
+    EmitRate = 0.1 * float( N ) / dt;
+    println( NumLive + " particles, " + steps + " steps, " +
+             NumWorkerThreads + " threads" );
+
+    long advectNanos = 0;
+    long killNanos = 0;
+    long emitNanos = 0;
+    long hashNanos = 0;
+    for ( int s = 0; s < steps; ++s )
+    {
+        GridTimeStep( dt );
+        long t0 = System.nanoTime();
+        AdvectParticles( dt );
+        long t1 = System.nanoTime();
+        KillParticles();
+        long t2 = System.nanoTime();
+        EmitFromSource( dt );
+        long t3 = System.nanoTime();
+        BuildSpatialHash();
+        long t4 = System.nanoTime();
+        SimTime += dt;
+
+        // Skip the first few steps, while the loops are being compiled.
+        if ( s >= min( 10, steps / 2 ) )
+        {
+            advectNanos += t1 - t0;
+            killNanos += t2 - t1;
+            emitNanos += t3 - t2;
+            hashNanos += t4 - t3;
+        }
+    }
+    int timed = steps - min( 10, steps / 2 );
+    println( "Advect: " + nf( advectNanos / ( 1.0e6 * timed ), 1, 2 ) + " ms/step" );
+    println( "Kill: " + nf( killNanos / ( 1.0e6 * timed ), 1, 2 ) + " ms/step" );
+    println( "Emit: " + nf( emitNanos / ( 1.0e6 * timed ), 1, 2 ) + " ms/step" );
+    println( "Hash: " + nf( hashNanos / ( 1.0e6 * timed ), 1, 2 ) + " ms/step" );
+
+    int queries = 100000;
+    long found = 0;
+    long q0 = System.nanoTime();
+    for ( int q = 0; q < queries; ++q )
+    {
+        found += CountNeighbors( RandomFloat( LX ), RandomFloat( LY ),
+                                 QueryRadius );
+    }
+    long q1 = System.nanoTime();
+    println( "Query: " + nf( ( q1 - q0 ) / ( 1.0e3 * queries ), 1, 2 ) +
+             " us each, " + ( found / queries ) + " neighbors on average, " +
+             NumLive + " live" );
+}
+
+static public void main( String[] args )
 {
-    
-  
+    if ( args.length > 0 && args[0].equals( "--bench" ) )
+    {
+        RunBenchmarksFromArgs( subset( args, 1 ) );
+    }
+    else
+    {
+        PApplet.main( concat( new String[] { "sketch_130724a" }, args ) );
+    }
 }